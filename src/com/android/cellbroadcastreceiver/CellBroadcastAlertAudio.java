@@ -23,7 +23,6 @@ import static com.android.cellbroadcastreceiver.CellBroadcastReceiver.DBG;
 import android.app.Service;
 import android.content.Context;
 import android.content.Intent;
-import android.content.SharedPreferences;
 import android.content.res.AssetFileDescriptor;
 import android.content.res.Resources;
 import android.hardware.camera2.CameraAccessException;
@@ -41,7 +40,6 @@ import android.os.Looper;
 import android.os.Message;
 import android.os.VibrationEffect;
 import android.os.Vibrator;
-import android.preference.PreferenceManager;
 import android.speech.tts.TextToSpeech;
 import android.telephony.PhoneStateListener;
 import android.telephony.SubscriptionManager;
@@ -321,13 +319,10 @@ public class CellBroadcastAlertAudio extends Service implements TextToSpeech.OnI
         mSubId = intent.getIntExtra(ALERT_AUDIO_SUB_INDEX,
                 SubscriptionManager.INVALID_SUBSCRIPTION_ID);
 
-        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(this);
-
         // retrieve whether to play alert sound in full volume regardless Do Not Disturb is on.
         mOverrideDnd = intent.getBooleanExtra(ALERT_AUDIO_OVERRIDE_DND_EXTRA, false);
         // retrieve the vibrate settings from cellbroadcast receiver settings.
-        mEnableVibrate = prefs.getBoolean(CellBroadcastSettings.KEY_ENABLE_ALERT_VIBRATE, true)
-                || mOverrideDnd;
+        mEnableVibrate = CellBroadcastAlertPreferences.get(this).mAlertVibrate || mOverrideDnd;
         // retrieve the vibration patterns.
         mVibrationPattern = intent.getIntArrayExtra(ALERT_AUDIO_VIBRATION_PATTERN_EXTRA);
 
@@ -36,7 +36,6 @@ import android.os.Handler;
 import android.os.Message;
 import android.os.PowerManager;
 import android.preference.PreferenceManager;
-import android.provider.Telephony;
 import android.telephony.SmsCbCmasInfo;
 import android.telephony.SmsCbMessage;
 import android.telephony.SubscriptionManager;
@@ -320,11 +319,19 @@ public class CellBroadcastAlertDialog extends Activity {
             Log.d(TAG, "onCreate getting message list from saved instance state");
             mMessageList = savedInstanceState.getParcelableArrayList(
                     CellBroadcastAlertService.SMS_CB_MESSAGE_EXTRA);
+            if (mMessageList != null) {
+                CellBroadcastRowIds.putAll(mMessageList,
+                        savedInstanceState.getLongArray(CellBroadcastRowIds.EXTRA_ROW_IDS));
+            }
         } else {
             Log.d(TAG, "onCreate getting message list from intent");
             Intent intent = getIntent();
             mMessageList = intent.getParcelableArrayListExtra(
                     CellBroadcastAlertService.SMS_CB_MESSAGE_EXTRA);
+            if (mMessageList != null) {
+                CellBroadcastRowIds.putAll(mMessageList,
+                        intent.getLongArrayExtra(CellBroadcastRowIds.EXTRA_ROW_IDS));
+            }
 
             // If we were started from a notification, dismiss it.
             clearNotification(intent);
@@ -417,6 +424,8 @@ public class CellBroadcastAlertDialog extends Activity {
         }
         // Stop playing alert sound/vibration/speech (if started)
         stopService(new Intent(this, CellBroadcastAlertAudio.class));
+        // Write the read marks made while the dialog was shown
+        CellBroadcastMarkBuffer.getInstance().flush(this);
         super.onStop();
     }
 
@@ -466,6 +475,8 @@ public class CellBroadcastAlertDialog extends Activity {
         super.onSaveInstanceState(outState);
         outState.putParcelableArrayList(
                 CellBroadcastAlertService.SMS_CB_MESSAGE_EXTRA, mMessageList);
+        outState.putLongArray(CellBroadcastRowIds.EXTRA_ROW_IDS,
+                CellBroadcastRowIds.toArray(mMessageList));
     }
 
     /**
@@ -632,6 +643,8 @@ public class CellBroadcastAlertDialog extends Activity {
         ArrayList<SmsCbMessage> newMessageList = intent.getParcelableArrayListExtra(
                 CellBroadcastAlertService.SMS_CB_MESSAGE_EXTRA);
         if (newMessageList != null) {
+            CellBroadcastRowIds.putAll(newMessageList,
+                    intent.getLongArrayExtra(CellBroadcastRowIds.EXTRA_ROW_IDS));
             if (intent.getBooleanExtra(FROM_SAVE_STATE_NOTIFICATION_EXTRA, false)) {
                 mMessageList = newMessageList;
             } else {
@@ -709,14 +722,12 @@ public class CellBroadcastAlertDialog extends Activity {
             return;
         }
 
-        // Mark the alert as read.
+        // Mark the alert as read, by row ID if it is known.
+        final long rowId = CellBroadcastRowIds.get(lastMessage);
         final long deliveryTime = lastMessage.getReceivedTime();
 
-        // Mark broadcast as read on a background thread.
-        new CellBroadcastContentProvider.AsyncCellBroadcastTask(getContentResolver())
-                .execute((CellBroadcastContentProvider.CellBroadcastOperation) provider
-                        -> provider.markBroadcastRead(Telephony.CellBroadcasts.DELIVERY_TIME,
-                        deliveryTime));
+        // Mark broadcast as read. The mark is written later, along with the others made meanwhile.
+        CellBroadcastMarkBuffer.getInstance().markRead(this, rowId, deliveryTime);
 
         // Set the opt-out dialog flag if this is a CMAS alert (other than Presidential Alert).
         if (lastMessage.isCmasMessage() && lastMessage.getCmasWarningInfo().getMessageClass()
@@ -744,10 +755,10 @@ public class CellBroadcastAlertDialog extends Activity {
 
         // Show opt-in/opt-out dialog when the first CMAS alert is received.
         if (mShowOptOutDialog) {
-            SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(this);
-            if (prefs.getBoolean(CellBroadcastSettings.KEY_SHOW_CMAS_OPT_OUT_DIALOG, true)) {
+            if (CellBroadcastAlertPreferences.get(this).mShowCmasOptOutDialog) {
                 // Clear the flag so the user will only see the opt-out dialog once.
-                prefs.edit().putBoolean(CellBroadcastSettings.KEY_SHOW_CMAS_OPT_OUT_DIALOG, false)
+                PreferenceManager.getDefaultSharedPreferences(this).edit()
+                        .putBoolean(CellBroadcastSettings.KEY_SHOW_CMAS_OPT_OUT_DIALOG, false)
                         .apply();
 
                 KeyguardManager km = (KeyguardManager) getSystemService(Context.KEYGUARD_SERVICE);
@@ -0,0 +1,328 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.cellbroadcastreceiver;
+
+import android.annotation.NonNull;
+import android.content.Context;
+import android.telephony.SmsCbEtwsInfo;
+import android.telephony.SmsCbMessage;
+import android.util.Log;
+import android.util.SparseArray;
+
+import com.android.cellbroadcastreceiver.CellBroadcastAlertService.AlertType;
+import com.android.cellbroadcastreceiver.CellBroadcastChannelManager.CellBroadcastChannelRange;
+import com.android.internal.annotations.GuardedBy;
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.util.Arrays;
+
+/**
+ * Compiled decision table telling whether the messages of a channel are shown to the user.
+ *
+ * The table is compiled from the alert preferences, the test alert settings and the channel
+ * index of a subscription. The channel space is split into intervals with the same verdict, and
+ * the verdict of each interval is computed once for each network condition of
+ * {@link CellBroadcastChannelManager#getNetworkScope()}, so filtering a message is a single
+ * lookup. The network condition is only queried for channels whose ranges have a scope that makes
+ * a difference.
+ *
+ * Tables are cached per subscription. A table is dropped when the channel index it was compiled
+ * from is replaced, when the generation of {@link CellBroadcastAlertPreferences} changes or when
+ * {@link #invalidate()} is called after a carrier config change.
+ */
+public final class CellBroadcastAlertFilter {
+
+    private static final String TAG = "CBAlertFilter";
+
+    /** Verdict bits of a channel that is allowed under every network condition. */
+    private static final int ALLOWED_ALWAYS =
+            (1 << CellBroadcastChannelManager.NETWORK_SCOPE_COUNT) - 1;
+
+    private static final int[] EMPTY = new int[0];
+
+    private static final Object sLock = new Object();
+
+    @GuardedBy("sLock")
+    private static final SparseArray<CellBroadcastAlertFilter> sFilters = new SparseArray<>();
+
+    /** Bumped whenever the cached tables become outdated by a carrier config change. */
+    @GuardedBy("sLock")
+    private static int sGeneration;
+
+    private final CellBroadcastChannelIndex mIndex;
+    private final int mGeneration;
+    private final long mPreferencesGeneration;
+
+    private final boolean mEtwsAllowed;
+    private final boolean mEtwsTestAllowed;
+
+    /** Sorted, non-overlapping intervals [start, end] with the verdict bits of each. */
+    private final int[] mStarts;
+    private final int[] mEnds;
+    private final int[] mVerdicts;
+
+    /** Settings a table is compiled from. */
+    private static final class Settings {
+        final CellBroadcastAlertPreferences mPrefs;
+        final boolean mTestAlertsVisible;
+        final boolean mAlwaysEnableExerciseAlert;
+
+        Settings(CellBroadcastAlertPreferences prefs, boolean testAlertsVisible,
+                boolean alwaysEnableExerciseAlert) {
+            mPrefs = prefs;
+            mTestAlertsVisible = testAlertsVisible;
+            mAlwaysEnableExerciseAlert = alwaysEnableExerciseAlert;
+        }
+    }
+
+    private CellBroadcastAlertFilter(@NonNull CellBroadcastChannelIndex index, int generation,
+            @NonNull Settings settings) {
+        mIndex = index;
+        mGeneration = generation;
+        mPreferencesGeneration = settings.mPrefs.mGeneration;
+        mEtwsTestAllowed = settings.mPrefs.mAlertsMasterToggle && settings.mTestAlertsVisible
+                && settings.mPrefs.mTestAlerts;
+        mEtwsAllowed = settings.mPrefs.mAlertsMasterToggle;
+
+        int[] bounds = new int[index.getAllRanges().size() * 2];
+        int count = 0;
+        for (CellBroadcastChannelRange range : index.getAllRanges()) {
+            if (range.mStartId > range.mEndId) continue;
+            bounds[count++] = range.mStartId;
+            bounds[count++] = range.mEndId + 1;
+        }
+        Arrays.sort(bounds, 0, count);
+
+        int[] starts = new int[count];
+        int[] ends = new int[count];
+        int[] verdicts = new int[count];
+        int size = 0;
+        for (int i = 0; i + 1 < count; i++) {
+            int start = bounds[i];
+            int end = bounds[i + 1] - 1;
+            if (start > end) continue;
+            int verdict = 0;
+            for (int scope = 0; scope < CellBroadcastChannelManager.NETWORK_SCOPE_COUNT;
+                    scope++) {
+                if (evaluate(index, settings, start, scope)) {
+                    verdict |= 1 << scope;
+                }
+            }
+            // Channels outside of all intervals are allowed, so allowed intervals are not kept.
+            if (verdict == ALLOWED_ALWAYS) continue;
+            if (size > 0 && verdicts[size - 1] == verdict && ends[size - 1] + 1 == start) {
+                ends[size - 1] = end;
+            } else {
+                starts[size] = start;
+                ends[size] = end;
+                verdicts[size] = verdict;
+                size++;
+            }
+        }
+        mStarts = size > 0 ? Arrays.copyOf(starts, size) : EMPTY;
+        mEnds = size > 0 ? Arrays.copyOf(ends, size) : EMPTY;
+        mVerdicts = size > 0 ? Arrays.copyOf(verdicts, size) : EMPTY;
+    }
+
+    /**
+     * Get the decision table of a subscription, compiling it if the cached one is outdated.
+     *
+     * @param context Context
+     * @param channelManager Channel manager of the subscription
+     * @param subId Subscription index
+     * @return The decision table
+     */
+    public static @NonNull CellBroadcastAlertFilter getInstance(@NonNull Context context,
+            @NonNull CellBroadcastChannelManager channelManager, int subId) {
+        CellBroadcastChannelIndex index = channelManager.getChannelIndex();
+        CellBroadcastAlertPreferences prefs = CellBroadcastAlertPreferences.get(context);
+        int generation;
+        synchronized (sLock) {
+            generation = sGeneration;
+            CellBroadcastAlertFilter filter = sFilters.get(subId);
+            if (filter != null && filter.mIndex == index && filter.mGeneration == generation
+                    && filter.mPreferencesGeneration == prefs.mGeneration) {
+                return filter;
+            }
+        }
+
+        CellBroadcastAlertFilter filter = new CellBroadcastAlertFilter(index, generation,
+                new Settings(prefs,
+                        CellBroadcastSettings.isTestAlertsToggleVisible(
+                                context.getApplicationContext()),
+                        context.getResources().getBoolean(R.bool.always_enable_exercise_alert)));
+        Log.d(TAG, "Compiled alert filter for sub " + subId + ": " + filter);
+        synchronized (sLock) {
+            // Don't cache a table compiled from a carrier config that changed in the meantime.
+            if (sGeneration == generation) {
+                sFilters.put(subId, filter);
+            }
+        }
+        return filter;
+    }
+
+    /**
+     * Drop the decision tables of all subscriptions, e.g. after a carrier config change.
+     */
+    public static void invalidate() {
+        synchronized (sLock) {
+            sGeneration++;
+            sFilters.clear();
+        }
+    }
+
+    /**
+     * Compile a decision table from explicit settings.
+     */
+    @VisibleForTesting
+    public static @NonNull CellBroadcastAlertFilter compile(
+            @NonNull CellBroadcastChannelIndex index, @NonNull CellBroadcastAlertPreferences prefs,
+            boolean testAlertsVisible, boolean alwaysEnableExerciseAlert) {
+        return new CellBroadcastAlertFilter(index, -1,
+                new Settings(prefs, testAlertsVisible, alwaysEnableExerciseAlert));
+    }
+
+    /**
+     * Check if the message's channel is enabled on the device.
+     *
+     * @param message The message to check
+     * @param channelManager Channel manager of the message's subscription, consulted for the
+     * network condition if the channel's ranges have a scope
+     * @return {@code true} if the channel is enabled on the device, otherwise {@code false}.
+     */
+    public boolean isChannelEnabled(@NonNull SmsCbMessage message,
+            @NonNull CellBroadcastChannelManager channelManager) {
+        SmsCbEtwsInfo etwsInfo = message.getEtwsWarningInfo();
+        if (etwsInfo != null
+                && etwsInfo.getWarningType() == SmsCbEtwsInfo.ETWS_WARNING_TYPE_TEST_MESSAGE) {
+            return mEtwsTestAllowed;
+        }
+        if (message.isEtwsMessage()) {
+            return mEtwsAllowed;
+        }
+
+        int verdict = getVerdict(message.getServiceCategory());
+        if (verdict == ALLOWED_ALWAYS) return true;
+        if (verdict == 0) return false;
+        return (verdict & (1 << channelManager.getNetworkScope())) != 0;
+    }
+
+    /**
+     * @param channel Cell broadcast message channel
+     * @param networkScope Network condition, as returned by
+     * {@link CellBroadcastChannelManager#getNetworkScope()}
+     * @return {@code true} if messages of the channel are allowed under the network condition.
+     */
+    @VisibleForTesting
+    public boolean isChannelEnabled(int channel, int networkScope) {
+        return (getVerdict(channel) & (1 << networkScope)) != 0;
+    }
+
+    private int getVerdict(int channel) {
+        int pos = Arrays.binarySearch(mStarts, channel);
+        if (pos < 0) {
+            // insertion point - 1 is the last interval starting before the channel
+            pos = -pos - 2;
+        }
+        if (pos >= 0 && channel <= mEnds[pos]) {
+            return mVerdicts[pos];
+        }
+        return ALLOWED_ALWAYS;
+    }
+
+    /**
+     * Decide on a non-ETWS channel under one network condition.
+     */
+    private static boolean evaluate(CellBroadcastChannelIndex index, Settings settings,
+            int channel, int networkScope) {
+        CellBroadcastAlertPreferences prefs = settings.mPrefs;
+        boolean emergencyAlertEnabled = prefs.mAlertsMasterToggle;
+
+        // Check if the messages are on additional channels enabled by the resource config.
+        // If those channels are enabled by the carrier, but the device is actually roaming, we
+        // should not allow the messages.
+        CellBroadcastChannelRange range = index.getRange(channel,
+                R.array.additional_cbs_channels_strings);
+        if (range != null) {
+            // Check if the channel is within the scope. If not, ignore the alert message.
+            if (!CellBroadcastChannelManager.isInScope(range.mScope, networkScope)) {
+                return false;
+            }
+            if (range.mAlertType == AlertType.TEST) {
+                return emergencyAlertEnabled && settings.mTestAlertsVisible
+                        && prefs.mTestAlerts;
+            }
+            return emergencyAlertEnabled;
+        }
+
+        if (inRange(index, channel, R.array.emergency_alerts_channels_range_strings,
+                networkScope)) {
+            return emergencyAlertEnabled && prefs.mEmergencyAlerts;
+        }
+        // CMAS warning types
+        if (inRange(index, channel, R.array.cmas_presidential_alerts_channels_range_strings,
+                networkScope)) {
+            // always enabled
+            return true;
+        }
+        if (inRange(index, channel, R.array.cmas_alert_extreme_channels_range_strings,
+                networkScope)) {
+            return emergencyAlertEnabled && prefs.mCmasExtremeAlerts;
+        }
+        if (inRange(index, channel, R.array.cmas_alerts_severe_range_strings, networkScope)) {
+            return emergencyAlertEnabled && prefs.mCmasSevereAlerts;
+        }
+        if (inRange(index, channel, R.array.cmas_amber_alerts_channels_range_strings,
+                networkScope)) {
+            return emergencyAlertEnabled && prefs.mCmasAmberAlerts;
+        }
+
+        boolean exercise = inRange(index, channel, R.array.exercise_alert_range_strings,
+                networkScope);
+        if (exercise && settings.mAlwaysEnableExerciseAlert) {
+            return true;
+        }
+        if (inRange(index, channel, R.array.required_monthly_test_range_strings, networkScope)
+                || exercise
+                || inRange(index, channel, R.array.operator_defined_alert_range_strings,
+                networkScope)) {
+            return emergencyAlertEnabled && settings.mTestAlertsVisible && prefs.mTestAlerts;
+        }
+
+        if (inRange(index, channel, R.array.public_safety_messages_channels_range_strings,
+                networkScope)) {
+            return emergencyAlertEnabled && prefs.mPublicSafetyMessages;
+        }
+        if (inRange(index, channel, R.array.state_local_test_alert_range_strings,
+                networkScope)) {
+            return emergencyAlertEnabled && prefs.mStateLocalTestAlerts;
+        }
+        return true;
+    }
+
+    private static boolean inRange(CellBroadcastChannelIndex index, int channel, int key,
+            int networkScope) {
+        CellBroadcastChannelRange range = index.getRange(channel, key);
+        return range != null && CellBroadcastChannelManager.isInScope(range.mScope, networkScope);
+    }
+
+    @Override
+    public String toString() {
+        return "CellBroadcastAlertFilter:[etws=" + mEtwsAllowed + ",etwsTest=" + mEtwsTestAllowed
+                + ",filteredIntervals=" + mStarts.length + "]";
+    }
+}
@@ -0,0 +1,388 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.cellbroadcastreceiver;
+
+import android.annotation.NonNull;
+import android.os.Process;
+import android.os.SystemClock;
+import android.telephony.SmsCbCmasInfo;
+import android.telephony.SmsCbEtwsInfo;
+import android.telephony.SmsCbMessage;
+import android.util.Log;
+
+import com.android.internal.annotations.GuardedBy;
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs the processing of received messages, i.e. filtering, writing to the database and starting
+ * the presentation, on a dedicated worker thread instead of the service's main thread.
+ *
+ * Messages wait in a priority queue ordered by alert class, so a burst of test or public safety
+ * messages never delays the dialog and audio of a presidential alert queued behind them. Messages
+ * of the same class are processed in the order they were received.
+ *
+ * During alert floods, e.g. updates and copies in several languages on several channels, messages
+ * arrive within milliseconds of each other. The worker lets messages accumulate for
+ * {@link #DEFAULT_BATCH_WINDOW_MS} after the first one of a burst and hands all of them, in the
+ * order they were received, to the {@link MessageProcessor} at once, so that the burst is written
+ * in one transaction and presented with one notification update and one audio start. If more
+ * messages are pending than fit in a batch, the ones of the highest priority are taken first.
+ */
+public final class CellBroadcastAlertPipeline {
+
+    private static final String TAG = "CBAlertPipeline";
+
+    /** Priorities by alert class, lower values are processed first. */
+    public static final int PRIORITY_PRESIDENTIAL = 0;
+    public static final int PRIORITY_EXTREME = 1;
+    public static final int PRIORITY_SEVERE = 2;
+    public static final int PRIORITY_AMBER = 3;
+    public static final int PRIORITY_PUBLIC_SAFETY = 4;
+    public static final int PRIORITY_TEST = 5;
+    public static final int PRIORITY_OTHER = 6;
+
+    /** Time the messages of a burst are collected for before they are processed together. */
+    public static final long DEFAULT_BATCH_WINDOW_MS = 5;
+
+    /** Maximum number of messages processed together. */
+    public static final int MAX_BATCH_SIZE = 32;
+
+    /** Idle time after which the worker thread is released. */
+    private static final long WORKER_KEEP_ALIVE_MS = 30 * 1000;
+
+    private static final CellBroadcastAlertPipeline sInstance = new CellBroadcastAlertPipeline();
+
+    /** A queued job, usually draining the pending messages. */
+    private static final class Job implements Runnable, Comparable<Job> {
+        final int mPriority;
+        final long mSequence;
+        final Runnable mRunnable;
+
+        Job(int priority, long sequence, Runnable runnable) {
+            mPriority = priority;
+            mSequence = sequence;
+            mRunnable = runnable;
+        }
+
+        @Override
+        public void run() {
+            try {
+                mRunnable.run();
+            } catch (RuntimeException e) {
+                // Don't let one malformed message take down the ones queued behind it.
+                Log.e(TAG, "Failed to run job with priority " + mPriority, e);
+            }
+        }
+
+        @Override
+        public int compareTo(Job other) {
+            if (mPriority != other.mPriority) {
+                return Integer.compare(mPriority, other.mPriority);
+            }
+            return Long.compare(mSequence, other.mSequence);
+        }
+    }
+
+    /** Processes a batch of received messages on the worker thread. */
+    public interface MessageProcessor {
+        /**
+         * @param messages Messages in the order they were received
+         */
+        void process(@NonNull List<SmsCbMessage> messages);
+    }
+
+    /** A received message waiting for its batch. */
+    private static final class PendingMessage implements Comparable<PendingMessage> {
+        final SmsCbMessage mMessage;
+        final MessageProcessor mProcessor;
+        final int mPriority;
+        final long mSequence;
+        final long mEnqueueTime;
+
+        PendingMessage(SmsCbMessage message, MessageProcessor processor, int priority,
+                long sequence, long enqueueTime) {
+            mMessage = message;
+            mProcessor = processor;
+            mPriority = priority;
+            mSequence = sequence;
+            mEnqueueTime = enqueueTime;
+        }
+
+        @Override
+        public int compareTo(PendingMessage other) {
+            if (mPriority != other.mPriority) {
+                return Integer.compare(mPriority, other.mPriority);
+            }
+            return Long.compare(mSequence, other.mSequence);
+        }
+    }
+
+    private final AtomicLong mSequence = new AtomicLong();
+
+    private final ThreadPoolExecutor mExecutor;
+
+    private final PriorityBlockingQueue<PendingMessage> mPending = new PriorityBlockingQueue<>();
+
+    private volatile long mBatchWindowMs = DEFAULT_BATCH_WINDOW_MS;
+
+    private final Object mLock = new Object();
+
+    @GuardedBy("mLock")
+    private long mBatchCount;
+
+    @GuardedBy("mLock")
+    private long mMessageCount;
+
+    @GuardedBy("mLock")
+    private int mLastBatchSize;
+
+    @GuardedBy("mLock")
+    private int mMaxBatchSize;
+
+    @GuardedBy("mLock")
+    private long mTotalTimeToDisplayMs;
+
+    @GuardedBy("mLock")
+    private long mMaxTimeToDisplayMs;
+
+    @VisibleForTesting
+    public CellBroadcastAlertPipeline() {
+        // Only Comparable jobs are queued, see execute().
+        mExecutor = new ThreadPoolExecutor(1, 1, WORKER_KEEP_ALIVE_MS, TimeUnit.MILLISECONDS,
+                new PriorityBlockingQueue<>(), r -> new Thread(() -> {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_FOREGROUND);
+                    r.run();
+                }, "CBAlertPipeline"));
+        mExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * @return The process-wide pipeline
+     */
+    public static @NonNull CellBroadcastAlertPipeline getInstance() {
+        return sInstance;
+    }
+
+    /**
+     * Queue the processing of a message. The message is processed together with the other
+     * messages of the same burst that use the same processor.
+     *
+     * @param message The received message, which determines the priority
+     * @param processor Processes the batch the message ends up in, on the worker thread
+     */
+    public void enqueue(@NonNull SmsCbMessage message, @NonNull MessageProcessor processor) {
+        int priority = getPriority(message);
+        mPending.add(new PendingMessage(message, processor, priority,
+                mSequence.getAndIncrement(), SystemClock.elapsedRealtime()));
+        // One drain per message, at its priority. A drain finding the queue already emptied by an
+        // earlier one does nothing.
+        execute(priority, this::drain);
+    }
+
+    /**
+     * Set the time the messages of a burst are collected for, 0 to only batch the messages that
+     * are already pending when the worker gets to them.
+     */
+    @VisibleForTesting
+    public void setBatchWindow(long batchWindowMs) {
+        mBatchWindowMs = batchWindowMs;
+    }
+
+    /**
+     * Queue a job with a priority.
+     *
+     * @param priority One of the PRIORITY_* constants
+     * @param job Runs on the worker thread
+     */
+    @VisibleForTesting
+    public void execute(int priority, @NonNull Runnable job) {
+        // Jobs are passed to the executor directly, since the futures submit() would wrap them
+        // in can't be ordered by the priority queue.
+        mExecutor.execute(new Job(priority, mSequence.getAndIncrement(), job));
+    }
+
+    /**
+     * @return The number of jobs waiting to be processed.
+     */
+    public int getQueuedCount() {
+        return mExecutor.getQueue().size();
+    }
+
+    /**
+     * Process the pending messages as one batch, after letting the burst they belong to
+     * accumulate.
+     */
+    private void drain() {
+        PendingMessage first = mPending.peek();
+        if (first == null) return;
+
+        long waitMs = first.mEnqueueTime + mBatchWindowMs - SystemClock.elapsedRealtime();
+        if (waitMs > 0) {
+            SystemClock.sleep(waitMs);
+        }
+
+        ArrayList<PendingMessage> batch = new ArrayList<>();
+        mPending.drainTo(batch, MAX_BATCH_SIZE);
+        if (batch.isEmpty()) return;
+        // drainTo() removes the messages in priority order, restore the order they were
+        // received in.
+        batch.sort((a, b) -> Long.compare(a.mSequence, b.mSequence));
+
+        // Hand consecutive messages of the same processor over together.
+        int start = 0;
+        while (start < batch.size()) {
+            MessageProcessor processor = batch.get(start).mProcessor;
+            int end = start + 1;
+            while (end < batch.size() && batch.get(end).mProcessor == processor) {
+                end++;
+            }
+            ArrayList<SmsCbMessage> messages = new ArrayList<>(end - start);
+            for (int i = start; i < end; i++) {
+                messages.add(batch.get(i).mMessage);
+            }
+            try {
+                processor.process(messages);
+            } catch (RuntimeException e) {
+                Log.e(TAG, "Failed to process batch of " + messages.size() + " messages", e);
+            }
+            recordBatch(batch.subList(start, end), SystemClock.elapsedRealtime());
+            start = end;
+        }
+    }
+
+    private void recordBatch(List<PendingMessage> batch, long now) {
+        synchronized (mLock) {
+            mBatchCount++;
+            mMessageCount += batch.size();
+            mLastBatchSize = batch.size();
+            mMaxBatchSize = Math.max(mMaxBatchSize, batch.size());
+            for (PendingMessage pending : batch) {
+                long timeToDisplayMs = now - pending.mEnqueueTime;
+                mTotalTimeToDisplayMs += timeToDisplayMs;
+                mMaxTimeToDisplayMs = Math.max(mMaxTimeToDisplayMs, timeToDisplayMs);
+            }
+        }
+        Log.d(TAG, "Processed batch of " + batch.size() + " messages. " + this);
+    }
+
+    /**
+     * @return The number of batches processed.
+     */
+    public long getBatchCount() {
+        synchronized (mLock) {
+            return mBatchCount;
+        }
+    }
+
+    /**
+     * @return The number of messages processed.
+     */
+    public long getMessageCount() {
+        synchronized (mLock) {
+            return mMessageCount;
+        }
+    }
+
+    /**
+     * @return The size of the largest batch processed.
+     */
+    public int getMaxBatchSize() {
+        synchronized (mLock) {
+            return mMaxBatchSize;
+        }
+    }
+
+    /**
+     * @return The average time from receiving a message to the end of the processing of its
+     * batch, which starts the presentation.
+     */
+    public long getAverageTimeToDisplayMs() {
+        synchronized (mLock) {
+            return mMessageCount == 0 ? 0 : mTotalTimeToDisplayMs / mMessageCount;
+        }
+    }
+
+    /**
+     * @return The longest time from receiving a message to the end of the processing of its
+     * batch.
+     */
+    public long getMaxTimeToDisplayMs() {
+        synchronized (mLock) {
+            return mMaxTimeToDisplayMs;
+        }
+    }
+
+    /**
+     * Get the priority of a message from its alert class.
+     *
+     * @param message The message
+     * @return One of the PRIORITY_* constants
+     */
+    public static int getPriority(@NonNull SmsCbMessage message) {
+        SmsCbEtwsInfo etwsInfo = message.getEtwsWarningInfo();
+        if (message.isEtwsMessage()) {
+            return etwsInfo != null
+                    && etwsInfo.getWarningType() == SmsCbEtwsInfo.ETWS_WARNING_TYPE_TEST_MESSAGE
+                    ? PRIORITY_TEST : PRIORITY_EXTREME;
+        }
+
+        SmsCbCmasInfo cmasInfo = message.getCmasWarningInfo();
+        if (cmasInfo != null) {
+            switch (cmasInfo.getMessageClass()) {
+                case SmsCbCmasInfo.CMAS_CLASS_PRESIDENTIAL_LEVEL_ALERT:
+                    return PRIORITY_PRESIDENTIAL;
+                case SmsCbCmasInfo.CMAS_CLASS_EXTREME_THREAT:
+                    return PRIORITY_EXTREME;
+                case SmsCbCmasInfo.CMAS_CLASS_SEVERE_THREAT:
+                    return PRIORITY_SEVERE;
+                case SmsCbCmasInfo.CMAS_CLASS_CHILD_ABDUCTION_EMERGENCY:
+                    return PRIORITY_AMBER;
+                case SmsCbCmasInfo.CMAS_CLASS_REQUIRED_MONTHLY_TEST:
+                case SmsCbCmasInfo.CMAS_CLASS_CMAS_EXERCISE:
+                    return PRIORITY_TEST;
+                // Carriers use operator defined alerts for real alerts, not only for tests.
+                case SmsCbCmasInfo.CMAS_CLASS_OPERATOR_DEFINED_USE:
+                default:
+                    return PRIORITY_PUBLIC_SAFETY;
+            }
+        }
+
+        return message.isEmergencyMessage() ? PRIORITY_PUBLIC_SAFETY : PRIORITY_OTHER;
+    }
+
+    @Override
+    public String toString() {
+        synchronized (mLock) {
+            return "CellBroadcastAlertPipeline:[queued=" + mExecutor.getQueue().size()
+                    + ",pending=" + mPending.size()
+                    + ",batches=" + mBatchCount
+                    + ",messages=" + mMessageCount
+                    + ",lastBatchSize=" + mLastBatchSize
+                    + ",maxBatchSize=" + mMaxBatchSize
+                    + ",avgTimeToDisplay=" + (mMessageCount == 0 ? 0
+                            : mTotalTimeToDisplayMs / mMessageCount)
+                    + ",maxTimeToDisplay=" + mMaxTimeToDisplayMs + "]";
+        }
+    }
+}
@@ -0,0 +1,195 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.cellbroadcastreceiver;
+
+import android.annotation.NonNull;
+import android.annotation.Nullable;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.preference.PreferenceManager;
+
+import com.android.internal.annotations.GuardedBy;
+import com.android.internal.annotations.VisibleForTesting;
+
+/**
+ * Immutable snapshot of the user preferences the alert pipeline depends on.
+ *
+ * The current snapshot is published through a volatile reference and replaced as a whole by a
+ * shared preference change listener, so readers on the receive path neither take the shared
+ * preferences lock nor unbox values. Every snapshot carries a generation, which is bumped with
+ * each replacement. Caches derived from the preferences, such as the compiled
+ * {@link CellBroadcastAlertFilter}, key on it.
+ */
+public final class CellBroadcastAlertPreferences {
+
+    private static final Object sLock = new Object();
+
+    private static volatile CellBroadcastAlertPreferences sCurrent;
+
+    @GuardedBy("sLock")
+    private static long sGeneration;
+
+    @GuardedBy("sLock")
+    private static SharedPreferences sRegisteredPreferences;
+
+    /**
+     * Held here because shared preferences only keep a weak reference to their listeners.
+     */
+    private static final SharedPreferences.OnSharedPreferenceChangeListener sPreferenceListener =
+            (prefs, key) -> {
+                synchronized (sLock) {
+                    if (prefs == sRegisteredPreferences) {
+                        sCurrent = new CellBroadcastAlertPreferences(prefs, ++sGeneration);
+                    }
+                }
+            };
+
+    /** Shared preferences the snapshot was read from. */
+    private final SharedPreferences mSource;
+
+    /** Generation of the snapshot, bumped whenever the preferences change. */
+    public final long mGeneration;
+
+    /** {@link CellBroadcastSettings#KEY_ENABLE_ALERTS_MASTER_TOGGLE} */
+    public final boolean mAlertsMasterToggle;
+    /** {@link CellBroadcastSettings#KEY_ENABLE_EMERGENCY_ALERTS} */
+    public final boolean mEmergencyAlerts;
+    /** {@link CellBroadcastSettings#KEY_ENABLE_CMAS_EXTREME_THREAT_ALERTS} */
+    public final boolean mCmasExtremeAlerts;
+    /** {@link CellBroadcastSettings#KEY_ENABLE_CMAS_SEVERE_THREAT_ALERTS} */
+    public final boolean mCmasSevereAlerts;
+    /** {@link CellBroadcastSettings#KEY_ENABLE_CMAS_AMBER_ALERTS} */
+    public final boolean mCmasAmberAlerts;
+    /** {@link CellBroadcastSettings#KEY_ENABLE_TEST_ALERTS} */
+    public final boolean mTestAlerts;
+    /** {@link CellBroadcastSettings#KEY_ENABLE_AREA_UPDATE_INFO_ALERTS} */
+    public final boolean mAreaUpdateInfoAlerts;
+    /** {@link CellBroadcastSettings#KEY_ENABLE_PUBLIC_SAFETY_MESSAGES} */
+    public final boolean mPublicSafetyMessages;
+    /** {@link CellBroadcastSettings#KEY_ENABLE_STATE_LOCAL_TEST_ALERTS} */
+    public final boolean mStateLocalTestAlerts;
+    /** {@link CellBroadcastSettings#KEY_RECEIVE_CMAS_IN_SECOND_LANGUAGE} */
+    public final boolean mReceiveCmasInSecondLanguage;
+    /** {@link CellBroadcastSettings#KEY_OVERRIDE_DND} */
+    public final boolean mOverrideDnd;
+    /** {@link CellBroadcastSettings#KEY_ENABLE_ALERT_VIBRATE} */
+    public final boolean mAlertVibrate;
+    /** {@link CellBroadcastSettings#KEY_SHOW_CMAS_OPT_OUT_DIALOG} */
+    public final boolean mShowCmasOptOutDialog;
+    /** {@link CellBroadcastSettings#KEY_ALERT_REMINDER_INTERVAL}, {@code null} if not set */
+    public final @Nullable String mAlertReminderInterval;
+
+    /**
+     * Read a snapshot of the preferences.
+     *
+     * @param prefs Shared preferences
+     * @param generation Generation of the snapshot
+     */
+    @VisibleForTesting
+    public CellBroadcastAlertPreferences(@NonNull SharedPreferences prefs, long generation) {
+        mSource = prefs;
+        mGeneration = generation;
+        mAlertsMasterToggle = prefs.getBoolean(
+                CellBroadcastSettings.KEY_ENABLE_ALERTS_MASTER_TOGGLE, true);
+        mEmergencyAlerts = prefs.getBoolean(CellBroadcastSettings.KEY_ENABLE_EMERGENCY_ALERTS,
+                true);
+        mCmasExtremeAlerts = prefs.getBoolean(
+                CellBroadcastSettings.KEY_ENABLE_CMAS_EXTREME_THREAT_ALERTS, true);
+        mCmasSevereAlerts = prefs.getBoolean(
+                CellBroadcastSettings.KEY_ENABLE_CMAS_SEVERE_THREAT_ALERTS, true);
+        mCmasAmberAlerts = prefs.getBoolean(CellBroadcastSettings.KEY_ENABLE_CMAS_AMBER_ALERTS,
+                true);
+        mTestAlerts = prefs.getBoolean(CellBroadcastSettings.KEY_ENABLE_TEST_ALERTS, false);
+        mAreaUpdateInfoAlerts = prefs.getBoolean(
+                CellBroadcastSettings.KEY_ENABLE_AREA_UPDATE_INFO_ALERTS, false);
+        mPublicSafetyMessages = prefs.getBoolean(
+                CellBroadcastSettings.KEY_ENABLE_PUBLIC_SAFETY_MESSAGES, true);
+        mStateLocalTestAlerts = prefs.getBoolean(
+                CellBroadcastSettings.KEY_ENABLE_STATE_LOCAL_TEST_ALERTS, false);
+        mReceiveCmasInSecondLanguage = prefs.getBoolean(
+                CellBroadcastSettings.KEY_RECEIVE_CMAS_IN_SECOND_LANGUAGE, false);
+        mOverrideDnd = prefs.getBoolean(CellBroadcastSettings.KEY_OVERRIDE_DND, false);
+        mAlertVibrate = prefs.getBoolean(CellBroadcastSettings.KEY_ENABLE_ALERT_VIBRATE, true);
+        mShowCmasOptOutDialog = prefs.getBoolean(
+                CellBroadcastSettings.KEY_SHOW_CMAS_OPT_OUT_DIALOG, true);
+        mAlertReminderInterval = prefs.getString(
+                CellBroadcastSettings.KEY_ALERT_REMINDER_INTERVAL, null);
+    }
+
+    /**
+     * Get the current snapshot of the default shared preferences. The snapshot is read on the
+     * first call and replaced whenever a preference changes.
+     *
+     * @param context Context
+     * @return The current snapshot
+     */
+    public static @NonNull CellBroadcastAlertPreferences get(@NonNull Context context) {
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+        CellBroadcastAlertPreferences current = sCurrent;
+        if (current != null && current.mSource == prefs) {
+            return current;
+        }
+
+        synchronized (sLock) {
+            current = sCurrent;
+            if (current != null && current.mSource == prefs) {
+                return current;
+            }
+            if (sRegisteredPreferences != prefs) {
+                if (sRegisteredPreferences != null) {
+                    sRegisteredPreferences.unregisterOnSharedPreferenceChangeListener(
+                            sPreferenceListener);
+                }
+                prefs.registerOnSharedPreferenceChangeListener(sPreferenceListener);
+                sRegisteredPreferences = prefs;
+            }
+            current = new CellBroadcastAlertPreferences(prefs, ++sGeneration);
+            sCurrent = current;
+            return current;
+        }
+    }
+
+    /**
+     * Drop the current snapshot, so that the next {@link #get(Context)} reads the preferences
+     * again. Needed where preferences change without notifying listeners, e.g. mocked ones.
+     */
+    @VisibleForTesting
+    public static void invalidate() {
+        synchronized (sLock) {
+            sCurrent = null;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "CellBroadcastAlertPreferences:[generation=" + mGeneration
+                + ",masterToggle=" + mAlertsMasterToggle
+                + ",emergency=" + mEmergencyAlerts
+                + ",extreme=" + mCmasExtremeAlerts
+                + ",severe=" + mCmasSevereAlerts
+                + ",amber=" + mCmasAmberAlerts
+                + ",test=" + mTestAlerts
+                + ",areaUpdateInfo=" + mAreaUpdateInfoAlerts
+                + ",publicSafety=" + mPublicSafetyMessages
+                + ",stateLocalTest=" + mStateLocalTestAlerts
+                + ",secondLanguage=" + mReceiveCmasInSecondLanguage
+                + ",overrideDnd=" + mOverrideDnd
+                + ",vibrate=" + mAlertVibrate
+                + ",optOutDialog=" + mShowCmasOptOutDialog
+                + ",reminderInterval=" + mAlertReminderInterval + "]";
+    }
+}
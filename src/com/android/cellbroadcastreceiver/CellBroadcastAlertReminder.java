@@ -23,7 +23,6 @@ import android.app.PendingIntent;
 import android.app.Service;
 import android.content.Context;
 import android.content.Intent;
-import android.content.SharedPreferences;
 import android.content.res.Resources;
 import android.media.AudioManager;
 import android.media.Ringtone;
@@ -33,7 +32,6 @@ import android.os.IBinder;
 import android.os.SystemClock;
 import android.os.VibrationEffect;
 import android.os.Vibrator;
-import android.preference.PreferenceManager;
 import android.telephony.SubscriptionManager;
 import android.util.Log;
 
@@ -134,9 +132,8 @@ public class CellBroadcastAlertReminder extends Service {
         // Stop any alert reminder sound and cancel any previously queued reminders.
         cancelAlertReminder();
 
-        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
-        String prefStr = prefs.getString(CellBroadcastSettings.KEY_ALERT_REMINDER_INTERVAL,
-                null);
+        CellBroadcastAlertPreferences prefs = CellBroadcastAlertPreferences.get(context);
+        String prefStr = prefs.mAlertReminderInterval;
         int reminderIntervalMinutes;
 
         if (prefStr == null) {
@@ -176,8 +173,7 @@ public class CellBroadcastAlertReminder extends Service {
 
         Intent playIntent = new Intent(context, CellBroadcastAlertReminder.class);
         playIntent.setAction(ACTION_PLAY_ALERT_REMINDER);
-        playIntent.putExtra(ALERT_REMINDER_VIBRATE_EXTRA,
-                prefs.getBoolean(CellBroadcastSettings.KEY_ENABLE_ALERT_VIBRATE, true));
+        playIntent.putExtra(ALERT_REMINDER_VIBRATE_EXTRA, prefs.mAlertVibrate);
         playIntent.putExtra(SubscriptionManager.EXTRA_SUBSCRIPTION_INDEX, subId);
         sPlayReminderIntent = PendingIntent.getService(context, 0, playIntent,
                 PendingIntent.FLAG_UPDATE_CURRENT);
@@ -29,7 +29,6 @@ import android.app.Service;
 import android.content.ContentValues;
 import android.content.Context;
 import android.content.Intent;
-import android.content.SharedPreferences;
 import android.content.pm.PackageManager;
 import android.content.res.Resources;
 import android.media.AudioAttributes;
@@ -42,9 +41,7 @@ import android.os.IBinder;
 import android.os.Looper;
 import android.os.SystemProperties;
 import android.os.UserHandle;
-import android.preference.PreferenceManager;
 import android.provider.Telephony;
-import android.telephony.CarrierConfigManager;
 import android.service.notification.StatusBarNotification;
 import android.telephony.PhoneStateListener;
 import android.telephony.SmsCbEtwsInfo;
@@ -59,7 +56,12 @@ import com.android.cellbroadcastservice.CellBroadcastStatsLog;
 import com.android.internal.annotations.VisibleForTesting;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Locale;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 /**
  * This service manages the display and animation of broadcast messages.
@@ -109,9 +111,24 @@ public class CellBroadcastAlertService extends Service
     /** Check for system property to enable/disable duplicate detection. */
     static boolean mUseDupDetection = SystemProperties.getBoolean(CB_DUP_DETECTION, true);
 
+    /**
+     * Maximum time the presentation of received alerts waits for them to be written to the
+     * database, which gives their row IDs.
+     */
+    private static final long INSERT_WAIT_MS = 200;
+
     /** Intent extra for passing a SmsCbMessage */
     private static final String EXTRA_MESSAGE = "message";
 
+    /** Intent extra for passing the SmsCbMessages of a batch, in order */
+    private static final String EXTRA_MESSAGE_LIST = "message_list";
+
+    /** Intent extra for passing the read watermark, read along with the batch */
+    private static final String EXTRA_READ_WATERMARK = "read_watermark";
+
+    /** Intent extra for passing the number of unread messages, read along with the batch */
+    private static final String EXTRA_UNREAD_COUNT = "unread_count";
+
     /**
      * Key for accessing message filter from SystemProperties. For testing use.
      */
@@ -172,6 +189,8 @@ public class CellBroadcastAlertService extends Service
         mTelephonyManager.listen(mPhoneStateListener, PhoneStateListener.LISTEN_CALL_STATE);
         mAudioManager = (AudioManager)
             getApplicationContext().getSystemService(Context.AUDIO_SERVICE);
+        // Read the retransmissions seen by an earlier process before the first alert is checked
+        CellBroadcastDuplicateDetector.getInstance().preload(getApplicationContext());
     }
 
     @Override
@@ -223,9 +242,8 @@ public class CellBroadcastAlertService extends Service
                     SubscriptionManager.DEFAULT_SUBSCRIPTION_ID)
                     .getString(R.string.emergency_alert_second_language_code);
             if (!secondLanguageCode.isEmpty()) {
-                SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(this);
-                boolean receiveInSecondLanguage = prefs.getBoolean(
-                        CellBroadcastSettings.KEY_RECEIVE_CMAS_IN_SECOND_LANGUAGE, false);
+                boolean receiveInSecondLanguage = CellBroadcastAlertPreferences.get(this)
+                        .mReceiveCmasInSecondLanguage;
                 // For DCS values that bit 6 is 1 and bit 7 is 0, language field is not defined so
                 // ap receives it as null value and so alert is not shown to the user.
                 // bypass language filter in this case.
@@ -255,14 +273,11 @@ public class CellBroadcastAlertService extends Service
         // Check for custom filtering
         String messageFilters = SystemProperties.get(MESSAGE_FILTER_PROPERTY_KEY, "");
         if (!TextUtils.isEmpty(messageFilters)) {
-            String[] filters = messageFilters.split(",");
-            for (String filter : filters) {
-                if (!TextUtils.isEmpty(filter)) {
-                    if (message.getMessageBody().toLowerCase().contains(filter)) {
-                        Log.i(TAG, "Skipped message due to filter: " + filter);
-                        return false;
-                    }
-                }
+            CellBroadcastMessageFilter filter = CellBroadcastMessageFilter.get(messageFilters);
+            int match = filter.match(message.getMessageBody());
+            if (match != CellBroadcastMessageFilter.NO_MATCH) {
+                Log.i(TAG, "Skipped message due to filter: " + filter.getPattern(match));
+                return false;
             }
         }
 
@@ -293,54 +308,97 @@ public class CellBroadcastAlertService extends Service
                     CellBroadcastStatsLog.CELL_BROADCAST_MESSAGE_REPORTED__SOURCE__CB_RECEIVER_APP);
         }
 
-        if (!shouldDisplayMessage(message)) {
-            return;
-        }
-
-        final Intent alertIntent = new Intent(SHOW_NEW_ALERT_ACTION);
-        alertIntent.setClass(this, CellBroadcastAlertService.class);
-        alertIntent.putExtra(EXTRA_MESSAGE, message);
-
-        // write to database on a background thread
-        new CellBroadcastContentProvider.AsyncCellBroadcastTask(getContentResolver())
-                .execute((CellBroadcastContentProvider.CellBroadcastOperation) provider -> {
-                    if (provider.insertNewBroadcast(message)) {
-                        // new message, show the alert or notification on UI thread
-                        startService(alertIntent);
-                        // mark the message as displayed to the user.
-                        markMessageDisplayed(message);
-                        if (CellBroadcastSettings.getResources(mContext,
-                                message.getSubscriptionId())
-                                .getBoolean(R.bool.enable_write_alerts_to_sms_inbox)) {
-                            // TODO: Should not create the instance of channel manager everywhere.
-                            CellBroadcastChannelManager channelManager =
-                                    new CellBroadcastChannelManager(mContext,
-                                            message.getSubscriptionId());
-                            CellBroadcastChannelRange range = channelManager
-                                    .getCellBroadcastChannelRangeFromMessage(message);
-                            if (CellBroadcastReceiver.isTestingMode(getApplicationContext())
-                                    || (range != null && range.mWriteToSmsInbox)) {
-                                writeMessageToSmsInbox(message);
-                            }
-                        }
-                        return true;
-                    } else {
-                        return false;
-                    }
-                });
+        // Filter, persist and present the message off the main thread. Messages wait for the
+        // pipeline by alert class, so that test messages never delay a presidential alert, and
+        // the messages of a burst are handled together.
+        CellBroadcastAlertPipeline.getInstance().enqueue(message, this::processMessages);
     }
 
     /**
-     * Mark the message as displayed in cell broadcast service's database.
+     * Filter, persist and present a batch of received messages. Runs on the alert pipeline.
      *
-     * @param message The cell broadcast message.
+     * @param messages The received messages, in the order to handle them
      */
-    private void markMessageDisplayed(SmsCbMessage message) {
-        ContentValues cv = new ContentValues();
-        cv.put(Telephony.CellBroadcasts.MESSAGE_DISPLAYED, 1);
-        mContext.getContentResolver().update(Telephony.CellBroadcasts.CONTENT_URI, cv,
-                Telephony.CellBroadcasts.RECEIVED_TIME + "=?",
-                new String[] {Long.toString(message.getReceivedTime())});
+    private void processMessages(List<SmsCbMessage> messages) {
+        // Filter
+        ArrayList<SmsCbMessage> accepted = new ArrayList<>(messages.size());
+        for (SmsCbMessage message : messages) {
+            if (!shouldDisplayMessage(message)) {
+                continue;
+            }
+            // Drop retransmissions before they reach the database, notification and audio
+            // stages.
+            if (mUseDupDetection && CellBroadcastDuplicateDetector.getInstance()
+                    .checkAndAdd(mContext, message)) {
+                Log.d(TAG, "ignoring duplicate message, serial number "
+                        + message.getSerialNumber() + ", service category "
+                        + message.getServiceCategory());
+                continue;
+            }
+            accepted.add(message);
+        }
+        if (accepted.isEmpty()) {
+            return;
+        }
+
+        // Persist, in one transaction, ahead of the other writes. The presentation waits for
+        // the row IDs for a bounded time only.
+        final long[] rowIds = new long[accepted.size()];
+        Arrays.fill(rowIds, CellBroadcastRowIds.UNKNOWN);
+        final long[][] inserted = new long[1][];
+        try {
+            if (!CellBroadcastDatabaseExecutor.getInstance().executeUrgent(this, provider -> {
+                inserted[0] = provider.insertNewBroadcasts(accepted);
+                return inserted[0].length > 0;
+            }).get(INSERT_WAIT_MS, TimeUnit.MILLISECONDS)) {
+                return;
+            }
+            System.arraycopy(inserted[0], 0, rowIds, 0, inserted[0].length);
+        } catch (TimeoutException e) {
+            // Present now. The messages are written when the database gets to them, and marking
+            // them read falls back to their delivery time.
+            Log.e(TAG, "insert of " + accepted.size() + " broadcasts still pending after "
+                    + INSERT_WAIT_MS + "ms");
+        } catch (ExecutionException e) {
+            // Still notify the user. The messages are passed with the intent, so they are
+            // displayed even if they could not be written to the database.
+            Log.e(TAG, "failed to insert " + accepted.size() + " broadcasts", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        // Present: show the alerts or notification on the UI thread. The row IDs travel with
+        // the messages, so that marking them read later addresses their rows directly.
+        final Intent alertIntent = new Intent(SHOW_NEW_ALERT_ACTION);
+        alertIntent.setClass(this, CellBroadcastAlertService.class);
+        if (accepted.size() == 1) {
+            alertIntent.putExtra(EXTRA_MESSAGE, accepted.get(0));
+        } else {
+            alertIntent.putParcelableArrayListExtra(EXTRA_MESSAGE_LIST, accepted);
+        }
+        alertIntent.putExtra(CellBroadcastRowIds.EXTRA_ROW_IDS, rowIds);
+        // Read here rather than on the UI thread, which presents the alerts
+        alertIntent.putExtra(EXTRA_READ_WATERMARK,
+                CellBroadcastContentProvider.getReadWatermark(this));
+        alertIntent.putExtra(EXTRA_UNREAD_COUNT,
+                CellBroadcastContentProvider.countUnreadBroadcasts(this));
+        startService(alertIntent);
+        // mark the messages as displayed to the user.
+        CellBroadcastMarkBuffer.getInstance().markDisplayed(mContext, accepted);
+        for (SmsCbMessage message : accepted) {
+            if (CellBroadcastSettings.getResources(mContext, message.getSubscriptionId())
+                    .getBoolean(R.bool.enable_write_alerts_to_sms_inbox)) {
+                // TODO: Should not create the instance of channel manager everywhere.
+                CellBroadcastChannelManager channelManager =
+                        new CellBroadcastChannelManager(mContext, message.getSubscriptionId());
+                CellBroadcastChannelRange range = channelManager
+                        .getCellBroadcastChannelRangeFromMessage(message);
+                if (CellBroadcastReceiver.isTestingMode(getApplicationContext())
+                        || (range != null && range.mWriteToSmsInbox)) {
+                    writeMessageToSmsInbox(message);
+                }
+            }
+        }
     }
 
     private void showNewAlert(Intent intent) {
@@ -350,32 +408,60 @@ public class CellBroadcastAlertService extends Service
             return;
         }
 
-        SmsCbMessage cbm = intent.getParcelableExtra(EXTRA_MESSAGE);
+        ArrayList<SmsCbMessage> messages = intent.getParcelableArrayListExtra(EXTRA_MESSAGE_LIST);
+        if (messages == null) {
+            SmsCbMessage cbm = intent.getParcelableExtra(EXTRA_MESSAGE);
+            if (cbm != null) {
+                messages = new ArrayList<>(1);
+                messages.add(cbm);
+            }
+        }
 
-        if (cbm == null) {
+        if (messages == null || messages.isEmpty()) {
             Log.e(TAG, "received SHOW_NEW_ALERT_ACTION with no message extra");
             return;
         }
+        CellBroadcastRowIds.putAll(messages,
+                intent.getLongArrayExtra(CellBroadcastRowIds.EXTRA_ROW_IDS));
+
+        ArrayList<SmsCbMessage> emergencyMessages = new ArrayList<>();
+        ArrayList<SmsCbMessage> messageList = null;
+        SmsCbMessage lastNotified = null;
+        for (SmsCbMessage cbm : messages) {
+            if (mTelephonyManager.getCallState() != TelephonyManager.CALL_STATE_IDLE
+                    && CellBroadcastSettings.getResources(mContext, cbm.getSubscriptionId())
+                    .getBoolean(R.bool.enable_alert_handling_during_call)) {
+                Log.d(TAG, "CMAS received in dialing/during voicecall.");
+                sRemindAfterCallFinish = true;
+            }
 
-        if (mTelephonyManager.getCallState() != TelephonyManager.CALL_STATE_IDLE
-                && CellBroadcastSettings.getResources(mContext, cbm.getSubscriptionId())
-                .getBoolean(R.bool.enable_alert_handling_during_call)) {
-            Log.d(TAG, "CMAS received in dialing/during voicecall.");
-            sRemindAfterCallFinish = true;
+            // Either shown the dialog, adding it to notification (non emergency, or delayed
+            // emergency),
+            CellBroadcastChannelManager channelManager = new CellBroadcastChannelManager(
+                    mContext, cbm.getSubscriptionId());
+            if (channelManager.isEmergencyMessage(cbm) && !sRemindAfterCallFinish) {
+                emergencyMessages.add(cbm);
+            } else {
+                // add to the list of unread non-emergency cell broadcast messages
+                messageList = CellBroadcastReceiverApp.addNewMessageToList(cbm);
+                lastNotified = cbm;
+            }
         }
 
-        // Either shown the dialog, adding it to notification (non emergency, or delayed emergency),
-        CellBroadcastChannelManager channelManager = new CellBroadcastChannelManager(
-                mContext, cbm.getSubscriptionId());
-        if (channelManager.isEmergencyMessage(cbm) && !sRemindAfterCallFinish) {
-            // start alert sound / vibration / TTS and display full-screen alert
-            openEmergencyAlertNotification(cbm);
-        } else {
+        if (!emergencyMessages.isEmpty()) {
+            // start alert sound / vibration / TTS and display full-screen alert, once for all
+            // emergency messages of the batch
+            openEmergencyAlertNotification(emergencyMessages);
+        }
+        if (lastNotified != null) {
+            // the messages of the list below the read watermark were marked read meanwhile
+            messageList = CellBroadcastReceiverApp.removeReadMessages(
+                    intent.getLongExtra(EXTRA_READ_WATERMARK, 0));
             // add notification to the bar by passing the list of unread non-emergency
-            // cell broadcast messages
-            ArrayList<SmsCbMessage> messageList = CellBroadcastReceiverApp
-                    .addNewMessageToList(cbm);
-            addToNotificationBar(cbm, messageList, this, false);
+            // cell broadcast messages, once for the batch, with the number of unread messages
+            // of the history
+            addToNotificationBar(lastNotified, messageList, this, false,
+                    intent.getIntExtra(EXTRA_UNREAD_COUNT, 0));
         }
     }
 
@@ -386,139 +472,43 @@ public class CellBroadcastAlertService extends Service
      * @return true if the channel is enabled on the device, otherwise false.
      */
     private boolean isChannelEnabled(SmsCbMessage message) {
-
-        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(this);
-        // Check if all emergency alerts are disabled.
-        boolean emergencyAlertEnabled =
-                prefs.getBoolean(CellBroadcastSettings.KEY_ENABLE_ALERTS_MASTER_TOGGLE, true);
-
-        // Check if ETWS/CMAS test message is forced to disabled on the device.
-        boolean forceDisableEtwsCmasTest =
-                CellBroadcastSettings.isFeatureEnabled(this,
-                        CarrierConfigManager.KEY_CARRIER_FORCE_DISABLE_ETWS_CMAS_TEST_BOOL, false);
-
-        SmsCbEtwsInfo etwsInfo = message.getEtwsWarningInfo();
-        if (etwsInfo != null
-                && etwsInfo.getWarningType() == SmsCbEtwsInfo.ETWS_WARNING_TYPE_TEST_MESSAGE) {
-            return emergencyAlertEnabled
-                    && CellBroadcastSettings.isTestAlertsToggleVisible(getApplicationContext())
-                    && PreferenceManager.getDefaultSharedPreferences(this)
-                    .getBoolean(CellBroadcastSettings.KEY_ENABLE_TEST_ALERTS, false);
-        }
-
-        if (message.isEtwsMessage()) {
-            // ETWS messages.
-            // Turn on/off emergency notifications is the only way to turn on/off ETWS messages.
-            return emergencyAlertEnabled;
-
-        }
-
-        int channel = message.getServiceCategory();
-
-        // Check if the messages are on additional channels enabled by the resource config.
-        // If those channels are enabled by the carrier, but the device is actually roaming, we
-        // should not allow the messages.
         CellBroadcastChannelManager channelManager = new CellBroadcastChannelManager(
                 mContext, message.getSubscriptionId());
-        ArrayList<CellBroadcastChannelRange> ranges = channelManager.getCellBroadcastChannelRanges(
-                R.array.additional_cbs_channels_strings);
-
-        for (CellBroadcastChannelRange range : ranges) {
-            if (range.mStartId <= channel && range.mEndId >= channel) {
-                // Check if the channel is within the scope. If not, ignore the alert message.
-                if (!channelManager.checkScope(range.mScope)) {
-                    Log.d(TAG, "The range [" + range.mStartId + "-" + range.mEndId
-                            + "] is not within the scope. mScope = " + range.mScope);
-                    return false;
-                }
-
-                if (range.mAlertType == AlertType.TEST) {
-                    return emergencyAlertEnabled
-                            && CellBroadcastSettings.isTestAlertsToggleVisible(
-                                    getApplicationContext())
-                            && PreferenceManager.getDefaultSharedPreferences(this)
-                            .getBoolean(CellBroadcastSettings.KEY_ENABLE_TEST_ALERTS,
-                                    false);
-                }
+        return CellBroadcastAlertFilter.getInstance(this, channelManager,
+                message.getSubscriptionId()).isChannelEnabled(message, channelManager);
+    }
 
-                return emergencyAlertEnabled;
+    /**
+     * Order the alerts of a batch for the dialog, which shows the last one first: the alerts keep
+     * the order they were received in, except that the alert of the highest priority, the most
+     * recent one among equals, is moved to the end.
+     *
+     * @param messages The alerts, in the order they were received
+     * @return The alerts in the order to display them
+     */
+    @VisibleForTesting
+    public static ArrayList<SmsCbMessage> orderForDisplay(List<SmsCbMessage> messages) {
+        int top = messages.size() - 1;
+        for (int i = top - 1; i >= 0; i--) {
+            if (CellBroadcastAlertPipeline.getPriority(messages.get(i))
+                    < CellBroadcastAlertPipeline.getPriority(messages.get(top))) {
+                top = i;
             }
         }
-
-        if (channelManager.checkCellBroadcastChannelRange(channel,
-                R.array.emergency_alerts_channels_range_strings)) {
-            return emergencyAlertEnabled
-                    && PreferenceManager.getDefaultSharedPreferences(this).getBoolean(
-                            CellBroadcastSettings.KEY_ENABLE_EMERGENCY_ALERTS, true);
-        }
-        // CMAS warning types
-        if (channelManager.checkCellBroadcastChannelRange(channel,
-                R.array.cmas_presidential_alerts_channels_range_strings)) {
-            // always enabled
-            return true;
-        }
-        if (channelManager.checkCellBroadcastChannelRange(channel,
-                R.array.cmas_alert_extreme_channels_range_strings)) {
-            return emergencyAlertEnabled
-                    && PreferenceManager.getDefaultSharedPreferences(this).getBoolean(
-                            CellBroadcastSettings.KEY_ENABLE_CMAS_EXTREME_THREAT_ALERTS, true);
-        }
-        if (channelManager.checkCellBroadcastChannelRange(channel,
-                R.array.cmas_alerts_severe_range_strings)) {
-            return emergencyAlertEnabled
-                    && PreferenceManager.getDefaultSharedPreferences(this).getBoolean(
-                            CellBroadcastSettings.KEY_ENABLE_CMAS_SEVERE_THREAT_ALERTS, true);
-        }
-        if (channelManager.checkCellBroadcastChannelRange(channel,
-                R.array.cmas_amber_alerts_channels_range_strings)) {
-            return emergencyAlertEnabled
-                    && PreferenceManager.getDefaultSharedPreferences(this)
-                            .getBoolean(CellBroadcastSettings.KEY_ENABLE_CMAS_AMBER_ALERTS, true);
-        }
-
-        if (channelManager.checkCellBroadcastChannelRange(channel,
-                R.array.exercise_alert_range_strings)
-                && getResources().getBoolean(R.bool.always_enable_exercise_alert)) {
-            return true;
-        }
-
-        if (channelManager.checkCellBroadcastChannelRange(channel,
-                R.array.required_monthly_test_range_strings)
-                || channelManager.checkCellBroadcastChannelRange(channel,
-                R.array.exercise_alert_range_strings)
-                || channelManager.checkCellBroadcastChannelRange(channel,
-                R.array.operator_defined_alert_range_strings)) {
-            return emergencyAlertEnabled
-                    && CellBroadcastSettings.isTestAlertsToggleVisible(getApplicationContext())
-                    && PreferenceManager.getDefaultSharedPreferences(this)
-                            .getBoolean(CellBroadcastSettings.KEY_ENABLE_TEST_ALERTS,
-                                    false);
-        }
-
-        if (channelManager.checkCellBroadcastChannelRange(channel,
-                R.array.public_safety_messages_channels_range_strings)) {
-            return emergencyAlertEnabled
-                    && PreferenceManager.getDefaultSharedPreferences(this)
-                    .getBoolean(CellBroadcastSettings.KEY_ENABLE_PUBLIC_SAFETY_MESSAGES,
-                            true);
-        }
-
-        if (channelManager.checkCellBroadcastChannelRange(channel,
-                R.array.state_local_test_alert_range_strings)) {
-            return emergencyAlertEnabled
-                    && PreferenceManager.getDefaultSharedPreferences(this)
-                    .getBoolean(CellBroadcastSettings.KEY_ENABLE_STATE_LOCAL_TEST_ALERTS,
-                            false);
-        }
-
-        return true;
+        ArrayList<SmsCbMessage> ordered = new ArrayList<>(messages);
+        ordered.add(ordered.remove(top));
+        return ordered;
     }
 
     /**
-     * Display an alert message for emergency alerts.
-     * @param message the alert to display
+     * Display alert messages for emergency alerts. The audio is started once, for the alert of
+     * the highest priority, which the dialog shows first.
+     * @param messages the alerts to display, in the order they were received
      */
-    private void openEmergencyAlertNotification(SmsCbMessage message) {
+    private void openEmergencyAlertNotification(ArrayList<SmsCbMessage> messages) {
+        messages = orderForDisplay(messages);
+        SmsCbMessage message = messages.get(messages.size() - 1);
+
         // Close dialogs and window shade
         Intent closeDialogs = new Intent(Intent.ACTION_CLOSE_SYSTEM_DIALOGS);
         sendBroadcast(closeDialogs);
@@ -526,7 +516,7 @@ public class CellBroadcastAlertService extends Service
         // start audio/vibration/speech service for emergency alerts
         Intent audioIntent = new Intent(this, CellBroadcastAlertAudio.class);
         audioIntent.setAction(CellBroadcastAlertAudio.ACTION_START_ALERT_AUDIO);
-        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(this);
+        CellBroadcastAlertPreferences prefs = CellBroadcastAlertPreferences.get(this);
 
         CellBroadcastChannelManager channelManager = new CellBroadcastChannelManager(
                 mContext, message.getSubscriptionId());
@@ -555,14 +545,10 @@ public class CellBroadcastAlertService extends Service
                 }
             }
         } else {
-            int channel = message.getServiceCategory();
-            ArrayList<CellBroadcastChannelRange> ranges = channelManager
-                    .getAllCellBroadcastChannelRanges();
-            for (CellBroadcastChannelRange range : ranges) {
-                if (channel >= range.mStartId && channel <= range.mEndId) {
-                    alertType = range.mAlertType;
-                    break;
-                }
+            CellBroadcastChannelRange firstRange = channelManager.getChannelIndex()
+                    .getFirstRange(message.getServiceCategory());
+            if (firstRange != null) {
+                alertType = firstRange.mAlertType;
             }
         }
         CellBroadcastChannelRange range = channelManager
@@ -575,7 +561,7 @@ public class CellBroadcastAlertService extends Service
                         : CellBroadcastSettings.getResources(mContext, message.getSubscriptionId())
                         .getIntArray(R.array.default_vibration_pattern));
 
-        if (prefs.getBoolean(CellBroadcastSettings.KEY_OVERRIDE_DND, false)
+        if (prefs.mOverrideDnd
                 || (range != null && range.mOverrideDnd)) {
             audioIntent.putExtra(CellBroadcastAlertAudio.ALERT_AUDIO_OVERRIDE_DND_EXTRA, true);
         }
@@ -596,15 +582,12 @@ public class CellBroadcastAlertService extends Service
                 (range != null) ? range.mAlertDuration : -1);
         startService(audioIntent);
 
-        ArrayList<SmsCbMessage> messageList = new ArrayList<>();
-        messageList.add(message);
-
         // For FEATURE_WATCH, the dialog doesn't make sense from a UI/UX perspective
         if (getPackageManager().hasSystemFeature(PackageManager.FEATURE_WATCH)) {
-            addToNotificationBar(message, messageList, this, false);
+            addToNotificationBar(message, messages, this, false);
         } else {
             Intent alertDialogIntent = createDisplayMessageIntent(this,
-                    CellBroadcastAlertDialog.class, messageList);
+                    CellBroadcastAlertDialog.class, messages);
             alertDialogIntent.addFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
             startActivity(alertDialogIntent);
         }
@@ -619,6 +602,18 @@ public class CellBroadcastAlertService extends Service
     static void addToNotificationBar(SmsCbMessage message,
                                      ArrayList<SmsCbMessage> messageList, Context context,
                                      boolean fromSaveState) {
+        addToNotificationBar(message, messageList, context, fromSaveState, 0);
+    }
+
+    /**
+     * Same as {@link #addToNotificationBar(SmsCbMessage, ArrayList, Context, boolean)}, with the
+     * number of the notification.
+     * @param historyUnreadCount number of unread messages of the history, from the counters of
+     * the provider, or 0 if unknown. The notification counts at least the messages of the list.
+     */
+    static void addToNotificationBar(SmsCbMessage message,
+                                     ArrayList<SmsCbMessage> messageList, Context context,
+                                     boolean fromSaveState, int historyUnreadCount) {
         Resources res = CellBroadcastSettings.getResources(context, message.getSubscriptionId());
         int channelTitleId = CellBroadcastResources.getDialogTitleResource(context, message);
         CharSequence channelName = context.getText(channelTitleId);
@@ -633,7 +628,8 @@ public class CellBroadcastAlertService extends Service
         Intent intent;
         if (isWatch) {
             // For FEATURE_WATCH we want to mark as read
-            intent = createMarkAsReadIntent(context, message.getReceivedTime());
+            intent = createMarkAsReadIntent(context, CellBroadcastRowIds.get(message),
+                    message.getReceivedTime());
         } else {
             // For anything else we handle it normally
             intent = createDisplayMessageIntent(context, CellBroadcastAlertDialog.class,
@@ -685,8 +681,9 @@ public class CellBroadcastAlertService extends Service
             builder.setDefaults(Notification.DEFAULT_ALL);
         }
 
-        // increment unread alert count (decremented when user dismisses alert dialog)
-        int unreadCount = messageList.size();
+        // increment unread alert count (decremented when user dismisses alert dialog). The
+        // messages of the list may not be written to the history yet.
+        int unreadCount = Math.max(messageList.size(), historyUnreadCount);
         if (unreadCount > 1) {
             // use generic count of unread broadcasts if more than one unread
             builder.setContentTitle(context.getString(R.string.notification_multiple_title));
@@ -698,6 +695,8 @@ public class CellBroadcastAlertService extends Service
                             .bigText(messageBody));
         }
 
+        builder.setNumber(unreadCount);
+
         notificationManager.notify(NOTIFICATION_ID, builder.build());
 
         // FEATURE_WATCH devices do not have global sounds for notifications; only vibrate.
@@ -751,6 +750,8 @@ public class CellBroadcastAlertService extends Service
         Intent intent = new Intent(context, intentClass);
         intent.putParcelableArrayListExtra(CellBroadcastAlertService.SMS_CB_MESSAGE_EXTRA,
                 messageList);
+        intent.putExtra(CellBroadcastRowIds.EXTRA_ROW_IDS,
+                CellBroadcastRowIds.toArray(messageList));
         return intent;
     }
 
@@ -759,12 +760,14 @@ public class CellBroadcastAlertService extends Service
      * a message as read
      *
      * @param context context of the caller
-     * @param deliveryTime time the message was sent in order to mark as read
+     * @param rowId row ID of the message to mark as read, or {@link CellBroadcastRowIds#UNKNOWN}
+     * @param deliveryTime time the message was sent, to mark it as read if the row ID is unknown
      * @return delete intent to add to the pending intent
      */
-    static Intent createMarkAsReadIntent(Context context, long deliveryTime) {
+    static Intent createMarkAsReadIntent(Context context, long rowId, long deliveryTime) {
         Intent deleteIntent = new Intent(context, CellBroadcastInternalReceiver.class);
         deleteIntent.setAction(CellBroadcastReceiver.ACTION_MARK_AS_READ);
+        deleteIntent.putExtra(CellBroadcastRowIds.EXTRA_ROW_ID, rowId);
         deleteIntent.putExtra(CellBroadcastReceiver.EXTRA_DELIVERY_TIME, deliveryTime);
         return deleteIntent;
     }
@@ -849,8 +852,9 @@ public class CellBroadcastAlertService extends Service
                 ArrayList<SmsCbMessage> newMessageList =
                         CellBroadcastReceiverApp.getNewMessageList();
 
-                for (int i = 0; i < newMessageList.size(); i++) {
-                    openEmergencyAlertNotification(newMessageList.get(i));
+                if (!newMessageList.isEmpty()) {
+                    // Copied, since the list is cleared below.
+                    openEmergencyAlertNotification(new ArrayList<>(newMessageList));
                 }
             }
             CellBroadcastReceiverApp.clearNewMessageList();
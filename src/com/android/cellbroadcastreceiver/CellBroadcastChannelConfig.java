@@ -0,0 +1,243 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.cellbroadcastreceiver;
+
+import android.annotation.NonNull;
+import android.annotation.Nullable;
+
+import com.android.cellbroadcastreceiver.CellBroadcastChannelManager.CellBroadcastChannelRange;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Desired cell broadcast channel configuration of a subscription, as the sequence of
+ * {@link android.telephony.SmsManager} enable/disable calls that would set it up after a reset.
+ *
+ * The lower layer keeps a reference count per range, so the state the sequence leaves behind is
+ * the multiset of enabled ranges: an enable adds a range, a disable removes one identical range
+ * if there is any. {@link #diff(Map, Map)} computes the calls that turn one such state into
+ * another without going through a reset.
+ *
+ * Ranges added together with the same enable state are coalesced per radio access technology:
+ * adjacent and overlapping ranges are merged, so that fewer calls are needed. Ranges of different
+ * {@link #add} calls are never merged, because they are enabled and disabled independently and a
+ * merged range would have to be split again whenever one of them changes. The coalesced calls are
+ * only used if they leave exactly the same channels enabled as the original ones.
+ */
+public final class CellBroadcastChannelConfig {
+
+    /** A range of message identifiers of one radio access technology. */
+    public static final class Range {
+        public final int mStartId;
+        public final int mEndId;
+        public final int mRanType;
+
+        public Range(int startId, int endId, int ranType) {
+            mStartId = startId;
+            mEndId = endId;
+            mRanType = ranType;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Range)) return false;
+            Range other = (Range) o;
+            return mStartId == other.mStartId && mEndId == other.mEndId
+                    && mRanType == other.mRanType;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(mStartId, mEndId, mRanType);
+        }
+
+        @Override
+        public String toString() {
+            return "Range:[" + mStartId + "-" + mEndId + ",rat=" + mRanType + "]";
+        }
+    }
+
+    /** One enable or disable call. */
+    public static final class Operation {
+        public final Range mRange;
+        public final boolean mEnable;
+
+        public Operation(@NonNull Range range, boolean enable) {
+            mRange = range;
+            mEnable = enable;
+        }
+
+        @Override
+        public String toString() {
+            return (mEnable ? "enable " : "disable ") + mRange;
+        }
+    }
+
+    /** Calls as requested, one per range. */
+    private final ArrayList<Operation> mOperations = new ArrayList<>();
+
+    /** Calls with the ranges of each {@link #add} call coalesced. */
+    private final ArrayList<Operation> mCoalescedOperations = new ArrayList<>();
+
+    /**
+     * Append enable or disable calls for ranges.
+     *
+     * @param enable {@code true} to enable the ranges, {@code false} to disable them
+     * @param ranges Channel ranges
+     */
+    public void add(boolean enable, @Nullable List<CellBroadcastChannelRange> ranges) {
+        if (ranges == null) return;
+        ArrayList<Range> coalesced = new ArrayList<>(ranges.size());
+        for (CellBroadcastChannelRange range : ranges) {
+            Range r = new Range(range.mStartId, range.mEndId, range.mRanType);
+            mOperations.add(new Operation(r, enable));
+            coalesce(coalesced, r);
+        }
+        for (Range r : coalesced) {
+            mCoalescedOperations.add(new Operation(r, enable));
+        }
+    }
+
+    /**
+     * Add a range to a list of disjoint, non-adjacent ranges, merging it with every range of the
+     * same RAT it overlaps or touches. The merged range takes the position of the earliest one.
+     */
+    private static void coalesce(List<Range> ranges, Range range) {
+        int position = -1;
+        for (int i = 0; i < ranges.size(); i++) {
+            Range other = ranges.get(i);
+            if (other.mRanType != range.mRanType
+                    || (long) other.mStartId > (long) range.mEndId + 1
+                    || (long) range.mStartId > (long) other.mEndId + 1) {
+                continue;
+            }
+            range = new Range(Math.min(range.mStartId, other.mStartId),
+                    Math.max(range.mEndId, other.mEndId), range.mRanType);
+            if (position == -1) {
+                position = i;
+                ranges.set(i, range);
+            } else {
+                ranges.set(position, range);
+                ranges.remove(i--);
+            }
+        }
+        if (position == -1) {
+            ranges.add(range);
+        }
+    }
+
+    /**
+     * @return The number of calls requested through {@link #add}, before coalescing.
+     */
+    public int getRequestedCount() {
+        return mOperations.size();
+    }
+
+    /**
+     * @return The calls that set up this configuration after a reset, in order. Coalesced ranges
+     * are used if they enable the same channels as the requested ones.
+     */
+    public @NonNull List<Operation> getOperations() {
+        if (mCoalescedOperations.size() < mOperations.size()
+                && getChannelSet(getEnabledRanges(mCoalescedOperations))
+                        .equals(getChannelSet(getEnabledRanges(mOperations)))) {
+            return Collections.unmodifiableList(mCoalescedOperations);
+        }
+        return Collections.unmodifiableList(mOperations);
+    }
+
+    /**
+     * @return The ranges left enabled by {@link #getOperations()} after a reset, with the number
+     * of times each of them is enabled.
+     */
+    public @NonNull Map<Range, Integer> getEnabledRanges() {
+        return getEnabledRanges(getOperations());
+    }
+
+    /**
+     * @param enabledRanges Enabled ranges, as returned by {@link #getEnabledRanges()}
+     * @return The channels the enabled ranges listen to, as the fewest ranges, sorted by RAT and
+     * start.
+     */
+    public static @NonNull List<Range> getChannelSet(@NonNull Map<Range, Integer> enabledRanges) {
+        ArrayList<Range> ranges = new ArrayList<>(enabledRanges.keySet());
+        ranges.sort((a, b) -> a.mRanType != b.mRanType
+                ? Integer.compare(a.mRanType, b.mRanType)
+                : Integer.compare(a.mStartId, b.mStartId));
+        ArrayList<Range> channels = new ArrayList<>(ranges.size());
+        for (Range range : ranges) {
+            Range last = channels.isEmpty() ? null : channels.get(channels.size() - 1);
+            if (last != null && last.mRanType == range.mRanType
+                    && (long) range.mStartId <= (long) last.mEndId + 1) {
+                channels.set(channels.size() - 1, new Range(last.mStartId,
+                        Math.max(last.mEndId, range.mEndId), last.mRanType));
+            } else {
+                channels.add(range);
+            }
+        }
+        return channels;
+    }
+
+    private static Map<Range, Integer> getEnabledRanges(List<Operation> operations) {
+        LinkedHashMap<Range, Integer> enabled = new LinkedHashMap<>();
+        for (Operation op : operations) {
+            Integer count = enabled.get(op.mRange);
+            if (op.mEnable) {
+                enabled.put(op.mRange, count == null ? 1 : count + 1);
+            } else if (count != null) {
+                if (count == 1) {
+                    enabled.remove(op.mRange);
+                } else {
+                    enabled.put(op.mRange, count - 1);
+                }
+            }
+        }
+        return enabled;
+    }
+
+    /**
+     * Compute the calls that turn an applied state into a desired one. Enables come first, so
+     * a channel that is in both states is never left disabled in between.
+     *
+     * @param applied Ranges currently enabled, with their counts
+     * @param desired Ranges that should be enabled, with their counts
+     * @return The calls to issue, empty if the states are identical.
+     */
+    public static @NonNull List<Operation> diff(@NonNull Map<Range, Integer> applied,
+            @NonNull Map<Range, Integer> desired) {
+        ArrayList<Operation> operations = new ArrayList<>();
+        for (Map.Entry<Range, Integer> entry : desired.entrySet()) {
+            Integer count = applied.get(entry.getKey());
+            for (int i = count == null ? 0 : count; i < entry.getValue(); i++) {
+                operations.add(new Operation(entry.getKey(), true));
+            }
+        }
+        for (Map.Entry<Range, Integer> entry : applied.entrySet()) {
+            Integer count = desired.get(entry.getKey());
+            for (int i = count == null ? 0 : count; i < entry.getValue(); i++) {
+                operations.add(new Operation(entry.getKey(), false));
+            }
+        }
+        return operations;
+    }
+}
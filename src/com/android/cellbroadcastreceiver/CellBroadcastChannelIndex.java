@@ -0,0 +1,280 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.cellbroadcastreceiver;
+
+import android.annotation.NonNull;
+import android.annotation.Nullable;
+import android.util.SparseArray;
+
+import com.android.cellbroadcastreceiver.CellBroadcastChannelManager.CellBroadcastChannelRange;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Immutable, compiled view of the cell broadcast channel ranges configured for one subscription.
+ *
+ * The ranges of every resource key are flattened into sorted, non-overlapping intervals over the
+ * 16-bit service category space, so that "which range of this key contains the channel", "which
+ * range is the first match across all keys" and "what is the emergency level of the channel" are
+ * answered with a binary search instead of re-reading and re-parsing the resources.
+ *
+ * Lookups preserve the semantics of the original linear scans: when ranges overlap, the range
+ * listed first (first key, then first entry within that key) wins.
+ */
+public final class CellBroadcastChannelIndex {
+
+    /** Source resource keys in lookup order. */
+    private final int[] mKeys;
+
+    /** Parsed ranges for each source key, in resource order. */
+    private final SparseArray<List<CellBroadcastChannelRange>> mRanges = new SparseArray<>();
+
+    /** Compiled intervals for each source key. Values are indices into the key's range list. */
+    private final SparseArray<Intervals> mIntervalsByKey = new SparseArray<>();
+
+    /** All ranges of all keys, concatenated in lookup order. */
+    private final List<CellBroadcastChannelRange> mAllRanges;
+
+    /** Compiled intervals over {@link #mAllRanges}. Values are indices into that list. */
+    private final Intervals mAllIntervals;
+
+    /**
+     * Compiled intervals holding the resolved emergency level. Channels without any configured
+     * level are absent, which callers treat as {@link CellBroadcastChannelRange#LEVEL_UNKNOWN}.
+     */
+    private final Intervals mEmergencyLevels;
+
+    /**
+     * Sorted, non-overlapping closed intervals [start, end] with one int value each.
+     */
+    private static final class Intervals {
+        private final int[] mStarts;
+        private final int[] mEnds;
+        private final int[] mValues;
+
+        Intervals(int[] starts, int[] ends, int[] values) {
+            mStarts = starts;
+            mEnds = ends;
+            mValues = values;
+        }
+
+        /**
+         * @return the value of the interval containing the channel, or -1 if none does.
+         */
+        int find(int channel) {
+            int pos = Arrays.binarySearch(mStarts, channel);
+            if (pos < 0) {
+                // insertion point - 1 is the last interval starting before the channel
+                pos = -pos - 2;
+            }
+            if (pos >= 0 && channel <= mEnds[pos]) {
+                return mValues[pos];
+            }
+            return -1;
+        }
+
+        int size() {
+            return mStarts.length;
+        }
+    }
+
+    /** Resolves the value of an elementary interval from any channel inside of it. */
+    private interface Resolver {
+        /** @return the value for the channel, or -1 if the channel is not covered. */
+        int resolve(int channel);
+    }
+
+    /**
+     * Compile a channel index.
+     *
+     * @param keys Resource keys in lookup order
+     * @param ranges Parsed ranges for each key. Keys without an entry are treated as empty.
+     */
+    public CellBroadcastChannelIndex(@NonNull int[] keys,
+            @NonNull SparseArray<List<CellBroadcastChannelRange>> ranges) {
+        mKeys = keys.clone();
+
+        ArrayList<CellBroadcastChannelRange> all = new ArrayList<>();
+        for (int key : mKeys) {
+            List<CellBroadcastChannelRange> keyRanges = ranges.get(key);
+            keyRanges = keyRanges == null ? Collections.emptyList()
+                    : Collections.unmodifiableList(new ArrayList<>(keyRanges));
+            mRanges.put(key, keyRanges);
+            final List<CellBroadcastChannelRange> list = keyRanges;
+            mIntervalsByKey.put(key, compile(list, channel -> firstMatch(list, channel)));
+            all.addAll(keyRanges);
+        }
+        mAllRanges = Collections.unmodifiableList(all);
+        mAllIntervals = compile(mAllRanges, channel -> firstMatch(mAllRanges, channel));
+        mEmergencyLevels = compile(mAllRanges, this::resolveEmergencyLevel);
+    }
+
+    /**
+     * @param key Resource key
+     * @return The ranges of the key in resource order, or an empty list if the key is not indexed.
+     */
+    public @NonNull List<CellBroadcastChannelRange> getRanges(int key) {
+        List<CellBroadcastChannelRange> ranges = mRanges.get(key);
+        return ranges != null ? ranges : Collections.emptyList();
+    }
+
+    /**
+     * @return The indexed resource keys, in lookup order.
+     */
+    public @NonNull int[] getKeys() {
+        return mKeys.clone();
+    }
+
+    /**
+     * @return All ranges of all indexed keys, in lookup order.
+     */
+    public @NonNull List<CellBroadcastChannelRange> getAllRanges() {
+        return mAllRanges;
+    }
+
+    /**
+     * @return {@code true} if the key was compiled into this index.
+     */
+    public boolean isIndexed(int key) {
+        return mRanges.indexOfKey(key) >= 0;
+    }
+
+    /**
+     * @param channel Cell broadcast message channel
+     * @param key Resource key
+     * @return The first range of the key that contains the channel, or {@code null}.
+     */
+    public @Nullable CellBroadcastChannelRange getRange(int channel, int key) {
+        Intervals intervals = mIntervalsByKey.get(key);
+        if (intervals == null) return null;
+        int index = intervals.find(channel);
+        return index >= 0 ? mRanges.get(key).get(index) : null;
+    }
+
+    /**
+     * @param channel Cell broadcast message channel
+     * @param key Resource key
+     * @return The ranges of the key that contain the channel, in resource order.
+     */
+    public @NonNull List<CellBroadcastChannelRange> getMatchingRanges(int channel, int key) {
+        Intervals intervals = mIntervalsByKey.get(key);
+        int first = intervals != null ? intervals.find(channel) : -1;
+        if (first < 0) {
+            return Collections.emptyList();
+        }
+        // No range before the first match contains the channel
+        List<CellBroadcastChannelRange> ranges = mRanges.get(key);
+        ArrayList<CellBroadcastChannelRange> result = new ArrayList<>();
+        for (int i = first; i < ranges.size(); i++) {
+            CellBroadcastChannelRange range = ranges.get(i);
+            if (range.mStartId <= channel && range.mEndId >= channel) {
+                result.add(range);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @param channel Cell broadcast message channel
+     * @return The first range across all keys, in lookup order, that contains the channel, or
+     * {@code null}.
+     */
+    public @Nullable CellBroadcastChannelRange getFirstRange(int channel) {
+        int index = mAllIntervals.find(channel);
+        return index >= 0 ? mAllRanges.get(index) : null;
+    }
+
+    /**
+     * @param channel Cell broadcast message channel
+     * @return The emergency level configured for the channel. For each key in lookup order, the
+     * first range containing the channel is consulted and the first known level is returned.
+     * {@link CellBroadcastChannelRange#LEVEL_UNKNOWN} if none of the ranges specifies it.
+     */
+    public int getEmergencyLevel(int channel) {
+        int level = mEmergencyLevels.find(channel);
+        return level >= 0 ? level : CellBroadcastChannelRange.LEVEL_UNKNOWN;
+    }
+
+    private int resolveEmergencyLevel(int channel) {
+        for (int key : mKeys) {
+            List<CellBroadcastChannelRange> ranges = mRanges.get(key);
+            int index = firstMatch(ranges, channel);
+            if (index >= 0 && ranges.get(index).mEmergencyLevel
+                    != CellBroadcastChannelRange.LEVEL_UNKNOWN) {
+                return ranges.get(index).mEmergencyLevel;
+            }
+        }
+        return -1;
+    }
+
+    private static int firstMatch(List<CellBroadcastChannelRange> ranges, int channel) {
+        for (int i = 0; i < ranges.size(); i++) {
+            CellBroadcastChannelRange range = ranges.get(i);
+            if (range.mStartId <= channel && range.mEndId >= channel) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Split the channel space covered by the ranges into elementary intervals on which the set of
+     * covering ranges is constant, resolve each of them once and merge neighbours that resolve to
+     * the same value.
+     */
+    private static Intervals compile(List<CellBroadcastChannelRange> ranges, Resolver resolver) {
+        int[] bounds = new int[ranges.size() * 2];
+        int count = 0;
+        for (CellBroadcastChannelRange range : ranges) {
+            if (range.mStartId > range.mEndId) continue;
+            bounds[count++] = range.mStartId;
+            bounds[count++] = range.mEndId + 1;
+        }
+        Arrays.sort(bounds, 0, count);
+
+        int[] starts = new int[count];
+        int[] ends = new int[count];
+        int[] values = new int[count];
+        int size = 0;
+        for (int i = 0; i + 1 < count; i++) {
+            int start = bounds[i];
+            int end = bounds[i + 1] - 1;
+            if (start > end) continue;
+            int value = resolver.resolve(start);
+            if (value < 0) continue;
+            if (size > 0 && values[size - 1] == value && ends[size - 1] + 1 == start) {
+                ends[size - 1] = end;
+            } else {
+                starts[size] = start;
+                ends[size] = end;
+                values[size] = value;
+                size++;
+            }
+        }
+        return new Intervals(Arrays.copyOf(starts, size), Arrays.copyOf(ends, size),
+                Arrays.copyOf(values, size));
+    }
+
+    @Override
+    public String toString() {
+        return "CellBroadcastChannelIndex:[keys=" + mKeys.length + ",ranges=" + mAllRanges.size()
+                + ",intervals=" + mAllIntervals.size() + "]";
+    }
+}
@@ -16,19 +16,16 @@
 
 package com.android.cellbroadcastreceiver;
 
-import static android.telephony.ServiceState.ROAMING_TYPE_NOT_ROAMING;
-
 import android.annotation.NonNull;
 import android.content.Context;
-import android.telephony.AccessNetworkConstants;
-import android.telephony.NetworkRegistrationInfo;
-import android.telephony.ServiceState;
+import android.content.res.Resources;
 import android.telephony.SmsCbMessage;
-import android.telephony.TelephonyManager;
 import android.util.Log;
+import android.util.SparseArray;
 
 import com.android.cellbroadcastreceiver.CellBroadcastAlertService.AlertType;
 
+import java.io.File;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
@@ -51,6 +48,17 @@ public class CellBroadcastChannelManager {
 
     private static final String TAG = "CBChannelManager";
 
+    /** Not roaming, or the roaming condition is unknown. Ranges of every scope are in. */
+    public static final int NETWORK_SCOPE_ANY = 0;
+    /** Domestic roaming. Only ranges of domestic scope are in. */
+    public static final int NETWORK_SCOPE_DOMESTIC = 1;
+    /** International roaming. Only ranges of international scope are in. */
+    public static final int NETWORK_SCOPE_INTERNATIONAL = 2;
+    /** Roaming of unknown type. Only ranges without a scope are in. */
+    public static final int NETWORK_SCOPE_NONE = 3;
+    /** Number of network conditions. */
+    public static final int NETWORK_SCOPE_COUNT = 4;
+
     private static List<Integer> sCellBroadcastRangeResourceKeys = new ArrayList<>(
             Arrays.asList(R.array.additional_cbs_channels_strings,
                     R.array.emergency_alerts_channels_range_strings,
@@ -67,7 +75,6 @@ public class CellBroadcastChannelManager {
                     R.array.state_local_test_alert_range_strings
             ));
 
-    private static ArrayList<CellBroadcastChannelRange> sAllCellBroadcastChannelRanges = null;
 
     private final Context mContext;
 
@@ -102,6 +109,9 @@ public class CellBroadcastChannelManager {
         private static final String KEY_FILTER_LANGUAGE = "filter_language";
 
 
+        /** Alert types, cached to avoid cloning the values array for every range. */
+        private static final AlertType[] ALERT_TYPES = AlertType.values();
+
         public static final int SCOPE_UNKNOWN       = 0;
         public static final int SCOPE_CARRIER       = 1;
         public static final int SCOPE_DOMESTIC      = 2;
@@ -126,94 +136,240 @@ public class CellBroadcastChannelManager {
         // for all channels except for channels which explicitly set to exclude from sms inbox.
         public boolean mWriteToSmsInbox = true;
 
+        /**
+         * Create an empty range, to be filled in by {@link CellBroadcastChannelSnapshot}.
+         */
+        CellBroadcastChannelRange() {
+        }
+
         public CellBroadcastChannelRange(Context context, int subId, String channelRange) {
+            this(CellBroadcastSettings.getResources(context, subId)
+                    .getIntArray(R.array.default_vibration_pattern), channelRange);
+        }
 
+        /**
+         * Parse a channel range in a single pass over the string, without splitting it.
+         *
+         * @param defaultVibrationPattern Vibration pattern used unless the range specifies its
+         * own. The array is shared, not copied.
+         * @param channelRange The channel range configuration string
+         * @throws ChannelRangeParseException if the channel range is malformed
+         */
+        public CellBroadcastChannelRange(int[] defaultVibrationPattern, String channelRange) {
             mAlertType = AlertType.DEFAULT;
             mEmergencyLevel = LEVEL_UNKNOWN;
             mRanType = SmsCbMessage.MESSAGE_FORMAT_3GPP;
             mScope = SCOPE_UNKNOWN;
-            mVibrationPattern =
-                    CellBroadcastSettings.getResources(context, subId)
-                            .getIntArray(R.array.default_vibration_pattern);
+            mVibrationPattern = defaultVibrationPattern;
             mFilterLanguage = false;
 
-            int colonIndex = channelRange.indexOf(':');
-            if (colonIndex != -1) {
-                // Parse the alert type and emergency flag
-                String[] pairs = channelRange.substring(colonIndex + 1).trim().split(",");
-                for (String pair : pairs) {
-                    pair = pair.trim();
-                    String[] tokens = pair.split("=");
-                    if (tokens.length == 2) {
-                        String key = tokens[0].trim();
-                        String value = tokens[1].trim();
-                        switch (key) {
-                            case KEY_TYPE:
-                                mAlertType = AlertType.valueOf(value.toUpperCase());
-                                break;
-                            case KEY_EMERGENCY:
-                                if (value.equalsIgnoreCase("true")) {
-                                    mEmergencyLevel = LEVEL_EMERGENCY;
-                                } else if (value.equalsIgnoreCase("false")) {
-                                    mEmergencyLevel = LEVEL_NOT_EMERGENCY;
-                                }
-                                break;
-                            case KEY_RAT:
-                                mRanType = value.equalsIgnoreCase("cdma")
-                                        ? SmsCbMessage.MESSAGE_FORMAT_3GPP2 :
-                                        SmsCbMessage.MESSAGE_FORMAT_3GPP;
-                                break;
-                            case KEY_SCOPE:
-                                if (value.equalsIgnoreCase("carrier")) {
-                                    mScope = SCOPE_CARRIER;
-                                } else if (value.equalsIgnoreCase("domestic")) {
-                                    mScope = SCOPE_DOMESTIC;
-                                } else if (value.equalsIgnoreCase("international")) {
-                                    mScope = SCOPE_INTERNATIONAL;
-                                }
-                                break;
-                            case KEY_VIBRATION:
-                                String[] vibration = value.split("\\|");
-                                if (vibration.length > 0) {
-                                    mVibrationPattern = new int[vibration.length];
-                                    for (int i = 0; i < vibration.length; i++) {
-                                        mVibrationPattern[i] = Integer.parseInt(vibration[i]);
-                                    }
-                                }
-                                break;
-                            case KEY_FILTER_LANGUAGE:
-                                if (value.equalsIgnoreCase("true")) {
-                                    mFilterLanguage = true;
-                                }
-                                break;
-                            case KEY_ALERT_DURATION:
-                                mAlertDuration = Integer.parseInt(value);
-                                break;
-                            case KEY_OVERRIDE_DND:
-                                if (value.equalsIgnoreCase("true")) {
-                                    mOverrideDnd = true;
-                                }
-                                break;
-                            case KEY_EXCLUDE_FROM_SMS_INBOX:
-                                if (value.equalsIgnoreCase("true")) {
-                                    mWriteToSmsInbox = false;
-                                }
-                                break;
-                        }
-                    }
-                }
-                channelRange = channelRange.substring(0, colonIndex).trim();
-            }
+            final String s = channelRange;
+            final int length = s.length();
+            int colonIndex = s.indexOf(':');
+            int rangeEnd = colonIndex != -1 ? colonIndex : length;
 
             // Parse the channel range
-            int dashIndex = channelRange.indexOf('-');
+            int dashIndex = indexOf(s, '-', 0, rangeEnd);
             if (dashIndex != -1) {
                 // range that has start id and end id
-                mStartId = Integer.decode(channelRange.substring(0, dashIndex).trim());
-                mEndId = Integer.decode(channelRange.substring(dashIndex + 1).trim());
+                mStartId = parseInt(s, 0, dashIndex, true);
+                mEndId = parseInt(s, dashIndex + 1, rangeEnd, true);
             } else {
                 // Not a range, only a single id
-                mStartId = mEndId = Integer.decode(channelRange);
+                mStartId = mEndId = parseInt(s, 0, rangeEnd, true);
+            }
+
+            if (colonIndex != -1) {
+                // Parse the comma separated key=value pairs
+                int pos = colonIndex + 1;
+                while (pos <= length) {
+                    int pairEnd = indexOf(s, ',', pos, length);
+                    if (pairEnd == -1) pairEnd = length;
+                    parsePair(s, pos, pairEnd);
+                    pos = pairEnd + 1;
+                }
+            }
+        }
+
+        /**
+         * Parse one "key=value" pair in s[start, end). Pairs without exactly one '=', with an empty
+         * key or value, or with an unknown key are ignored.
+         */
+        private void parsePair(String s, int start, int end) {
+            start = skipWhitespace(s, start, end);
+            end = trimEnd(s, start, end);
+            int eqIndex = indexOf(s, '=', start, end);
+            if (eqIndex == -1 || indexOf(s, '=', eqIndex + 1, end) != -1) return;
+            int keyEnd = trimEnd(s, start, eqIndex);
+            int valueStart = skipWhitespace(s, eqIndex + 1, end);
+            if (keyEnd == start || valueStart == end) return;
+
+            if (matches(s, start, keyEnd, KEY_TYPE)) {
+                mAlertType = parseAlertType(s, valueStart, end);
+            } else if (matches(s, start, keyEnd, KEY_EMERGENCY)) {
+                if (matchesIgnoreCase(s, valueStart, end, "true")) {
+                    mEmergencyLevel = LEVEL_EMERGENCY;
+                } else if (matchesIgnoreCase(s, valueStart, end, "false")) {
+                    mEmergencyLevel = LEVEL_NOT_EMERGENCY;
+                }
+            } else if (matches(s, start, keyEnd, KEY_RAT)) {
+                mRanType = matchesIgnoreCase(s, valueStart, end, "cdma")
+                        ? SmsCbMessage.MESSAGE_FORMAT_3GPP2 : SmsCbMessage.MESSAGE_FORMAT_3GPP;
+            } else if (matches(s, start, keyEnd, KEY_SCOPE)) {
+                if (matchesIgnoreCase(s, valueStart, end, "carrier")) {
+                    mScope = SCOPE_CARRIER;
+                } else if (matchesIgnoreCase(s, valueStart, end, "domestic")) {
+                    mScope = SCOPE_DOMESTIC;
+                } else if (matchesIgnoreCase(s, valueStart, end, "international")) {
+                    mScope = SCOPE_INTERNATIONAL;
+                }
+            } else if (matches(s, start, keyEnd, KEY_VIBRATION)) {
+                int[] vibration = parseVibrationPattern(s, valueStart, end);
+                if (vibration != null) {
+                    mVibrationPattern = vibration;
+                }
+            } else if (matches(s, start, keyEnd, KEY_FILTER_LANGUAGE)) {
+                if (matchesIgnoreCase(s, valueStart, end, "true")) {
+                    mFilterLanguage = true;
+                }
+            } else if (matches(s, start, keyEnd, KEY_ALERT_DURATION)) {
+                mAlertDuration = parseInt(s, valueStart, end, false);
+            } else if (matches(s, start, keyEnd, KEY_OVERRIDE_DND)) {
+                if (matchesIgnoreCase(s, valueStart, end, "true")) {
+                    mOverrideDnd = true;
+                }
+            } else if (matches(s, start, keyEnd, KEY_EXCLUDE_FROM_SMS_INBOX)) {
+                if (matchesIgnoreCase(s, valueStart, end, "true")) {
+                    mWriteToSmsInbox = false;
+                }
+            }
+        }
+
+        private static AlertType parseAlertType(String s, int start, int end) {
+            for (AlertType type : ALERT_TYPES) {
+                if (matchesIgnoreCase(s, start, end, type.name())) {
+                    return type;
+                }
+            }
+            throw new ChannelRangeParseException("Unknown alert type", s, start);
+        }
+
+        /**
+         * Parse a '|' separated list of decimal durations in s[start, end). Trailing empty
+         * elements are ignored.
+         *
+         * @return The vibration pattern, or {@code null} if the list is empty.
+         */
+        private static int[] parseVibrationPattern(String s, int start, int end) {
+            int last = end;
+            while (last > start && s.charAt(last - 1) == '|') last--;
+            if (last == start) return null;
+
+            int count = 1;
+            for (int i = start; i < last; i++) {
+                if (s.charAt(i) == '|') count++;
+            }
+            int[] pattern = new int[count];
+            int pos = start;
+            for (int i = 0; i < count; i++) {
+                int elementEnd = indexOf(s, '|', pos, last);
+                if (elementEnd == -1) elementEnd = last;
+                pattern[i] = parseInt(s, pos, elementEnd, false);
+                pos = elementEnd + 1;
+            }
+            return pattern;
+        }
+
+        /**
+         * Parse an integer in s[start, end), ignoring surrounding whitespace.
+         *
+         * @param decode {@code true} to accept the hexadecimal and octal notations of
+         * {@link Integer#decode(String)}, {@code false} for decimal only.
+         */
+        private static int parseInt(String s, int start, int end, boolean decode) {
+            start = skipWhitespace(s, start, end);
+            end = trimEnd(s, start, end);
+            int pos = start;
+            boolean negative = false;
+            if (pos < end && (s.charAt(pos) == '-' || s.charAt(pos) == '+')) {
+                negative = s.charAt(pos) == '-';
+                pos++;
+            }
+
+            int radix = 10;
+            if (decode) {
+                if (s.startsWith("0x", pos) || s.startsWith("0X", pos)) {
+                    radix = 16;
+                    pos += 2;
+                } else if (s.startsWith("#", pos)) {
+                    radix = 16;
+                    pos++;
+                } else if (s.startsWith("0", pos) && pos + 1 < end) {
+                    radix = 8;
+                    pos++;
+                }
+            }
+            if (pos == end) {
+                throw new ChannelRangeParseException("Missing number", s, pos);
+            }
+
+            long value = 0;
+            for (; pos < end; pos++) {
+                int digit = Character.digit(s.charAt(pos), radix);
+                if (digit < 0) {
+                    throw new ChannelRangeParseException("Invalid digit", s, pos);
+                }
+                value = value * radix + digit;
+                if (value > Integer.MAX_VALUE + (negative ? 1L : 0L)) {
+                    throw new ChannelRangeParseException("Number out of range", s, start);
+                }
+            }
+            return (int) (negative ? -value : value);
+        }
+
+        /** @return The index of c in s[start, end), or -1. */
+        private static int indexOf(String s, char c, int start, int end) {
+            for (int i = start; i < end; i++) {
+                if (s.charAt(i) == c) return i;
+            }
+            return -1;
+        }
+
+        private static int skipWhitespace(String s, int start, int end) {
+            while (start < end && Character.isWhitespace(s.charAt(start))) start++;
+            return start;
+        }
+
+        private static int trimEnd(String s, int start, int end) {
+            while (end > start && Character.isWhitespace(s.charAt(end - 1))) end--;
+            return end;
+        }
+
+        private static boolean matches(String s, int start, int end, String token) {
+            return end - start == token.length() && s.startsWith(token, start);
+        }
+
+        private static boolean matchesIgnoreCase(String s, int start, int end, String token) {
+            return end - start == token.length()
+                    && s.regionMatches(true, start, token, 0, token.length());
+        }
+
+        /**
+         * Thrown when a channel range configuration string is malformed.
+         */
+        public static class ChannelRangeParseException extends IllegalArgumentException {
+            private final int mColumn;
+
+            ChannelRangeParseException(String message, String channelRange, int column) {
+                super(message + " at column " + column + " of \"" + channelRange + "\"");
+                mColumn = column;
+            }
+
+            /**
+             * @return The zero-based position in the channel range string where parsing failed.
+             */
+            public int getColumn() {
+                return mColumn;
             }
         }
 
@@ -245,15 +401,35 @@ public class CellBroadcastChannelManager {
      * @return The list of channel ranges enabled by the carriers.
      */
     public @NonNull ArrayList<CellBroadcastChannelRange> getCellBroadcastChannelRanges(int key) {
+        CellBroadcastChannelIndex index = getChannelIndex();
+        if (index.isIndexed(key)) {
+            return new ArrayList<>(index.getRanges(key));
+        }
+        return parseCellBroadcastChannelRanges(
+                CellBroadcastSettings.getResources(mContext, mSubId), key);
+    }
+
+    private @NonNull ArrayList<CellBroadcastChannelRange> parseCellBroadcastChannelRanges(
+            Resources res, int key) {
+        return parseCellBroadcastChannelRanges(res, key,
+                res.getIntArray(R.array.default_vibration_pattern));
+    }
+
+    /**
+     * @param defaultVibrationPattern Default vibration pattern, shared by all ranges that don't
+     * specify their own.
+     */
+    private static @NonNull ArrayList<CellBroadcastChannelRange> parseCellBroadcastChannelRanges(
+            Resources res, int key, int[] defaultVibrationPattern) {
         ArrayList<CellBroadcastChannelRange> result = new ArrayList<>();
-        String[] ranges =
-                CellBroadcastSettings.getResources(mContext, mSubId).getStringArray(key);
+        String[] ranges = res.getStringArray(key);
+        if (ranges == null) return result;
 
         for (String range : ranges) {
             try {
-                result.add(new CellBroadcastChannelRange(mContext, mSubId, range));
-            } catch (Exception e) {
-                loge("Failed to parse \"" + range + "\". e=" + e);
+                result.add(new CellBroadcastChannelRange(defaultVibrationPattern, range));
+            } catch (IllegalArgumentException e) {
+                loge("Failed to parse channel range. e=" + e.getMessage());
             }
         }
 
@@ -261,21 +437,62 @@ public class CellBroadcastChannelManager {
     }
 
     /**
-     * Get all cell broadcast channels
+     * Get the compiled channel index of this subscription. The index is built once from the
+     * subscription's resources and shared through {@link CellBroadcastChannelRegistry} by all
+     * channel managers of the same subscription, until the carrier config changes.
      *
-     * @return all cell broadcast channels
+     * @return The channel index
      */
-    public @NonNull ArrayList<CellBroadcastChannelRange> getAllCellBroadcastChannelRanges() {
-        if (sAllCellBroadcastChannelRanges != null) return sAllCellBroadcastChannelRanges;
+    public @NonNull CellBroadcastChannelIndex getChannelIndex() {
+        return CellBroadcastChannelRegistry.getInstance().getIndex(mSubId,
+                CellBroadcastSettings.getResources(mContext, mSubId), this::buildChannelIndex);
+    }
 
-        ArrayList<CellBroadcastChannelRange> result = new ArrayList<>();
+    /**
+     * Load the channel index from the carrier's snapshot, or compile it from the resources and
+     * refresh the snapshot if there is no snapshot of the current configuration.
+     */
+    private @NonNull CellBroadcastChannelIndex buildChannelIndex(@NonNull Resources res) {
+        File snapshotFile = CellBroadcastChannelSnapshot.getSnapshotFile(mContext, mSubId);
+        if (snapshotFile == null) {
+            return compileChannelIndex(res, res.getIntArray(R.array.default_vibration_pattern));
+        }
 
-        for (int key : sCellBroadcastRangeResourceKeys) {
-            result.addAll(getCellBroadcastChannelRanges(key));
+        long fingerprint = CellBroadcastChannelSnapshot.computeFingerprint(mContext, mSubId,
+                res);
+        CellBroadcastChannelIndex index = CellBroadcastChannelSnapshot.read(snapshotFile,
+                fingerprint);
+        if (index != null) {
+            log("Loaded channel index from " + snapshotFile);
+            return index;
         }
 
-        sAllCellBroadcastChannelRanges = result;
-        return result;
+        int[] defaultVibrationPattern = res.getIntArray(R.array.default_vibration_pattern);
+        index = compileChannelIndex(res, defaultVibrationPattern);
+        CellBroadcastChannelSnapshot.write(snapshotFile, fingerprint, defaultVibrationPattern,
+                index);
+        return index;
+    }
+
+    private static @NonNull CellBroadcastChannelIndex compileChannelIndex(@NonNull Resources res,
+            int[] defaultVibrationPattern) {
+        int[] keys = new int[sCellBroadcastRangeResourceKeys.size()];
+        SparseArray<List<CellBroadcastChannelRange>> ranges = new SparseArray<>();
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = sCellBroadcastRangeResourceKeys.get(i);
+            ranges.put(keys[i],
+                    parseCellBroadcastChannelRanges(res, keys[i], defaultVibrationPattern));
+        }
+        return new CellBroadcastChannelIndex(keys, ranges);
+    }
+
+    /**
+     * Get all cell broadcast channels
+     *
+     * @return all cell broadcast channels
+     */
+    public @NonNull ArrayList<CellBroadcastChannelRange> getAllCellBroadcastChannelRanges() {
+        return new ArrayList<>(getChannelIndex().getAllRanges());
     }
 
     /**
@@ -286,15 +503,52 @@ public class CellBroadcastChannelManager {
      * return {@code FALSE} otherwise
      */
     public boolean checkCellBroadcastChannelRange(int channel, int key) {
-        ArrayList<CellBroadcastChannelRange> ranges = getCellBroadcastChannelRanges(key);
+        CellBroadcastChannelRange range = getCellBroadcastChannelRange(channel, key);
+        return range != null && checkScope(range.mScope);
+    }
+
+    /**
+     * @param channel Cell broadcast message channel
+     * @param key Resource key
+     *
+     * @return The first range defined from resource that contains the input channel, regardless
+     * of its scope. {@code null} if there is no such range.
+     */
+    public CellBroadcastChannelRange getCellBroadcastChannelRange(int channel, int key) {
+        CellBroadcastChannelIndex index = getChannelIndex();
+        if (index.isIndexed(key)) {
+            return index.getRange(channel, key);
+        }
 
-        for (CellBroadcastChannelRange range : ranges) {
+        for (CellBroadcastChannelRange range : getCellBroadcastChannelRanges(key)) {
             if (channel >= range.mStartId && channel <= range.mEndId) {
-                return checkScope(range.mScope);
+                return range;
             }
         }
+        return null;
+    }
+
+    /**
+     * @param channel Cell broadcast message channel
+     * @param key Resource key
+     *
+     * @return All ranges defined from resource that contain the input channel, in resource order,
+     * regardless of their scope.
+     */
+    public @NonNull List<CellBroadcastChannelRange> getMatchingCellBroadcastChannelRanges(
+            int channel, int key) {
+        CellBroadcastChannelIndex index = getChannelIndex();
+        if (index.isIndexed(key)) {
+            return index.getMatchingRanges(channel, key);
+        }
 
-        return false;
+        ArrayList<CellBroadcastChannelRange> result = new ArrayList<>();
+        for (CellBroadcastChannelRange range : getCellBroadcastChannelRanges(key)) {
+            if (channel >= range.mStartId && channel <= range.mEndId) {
+                result.add(range);
+            }
+        }
+        return result;
     }
 
     /**
@@ -305,36 +559,37 @@ public class CellBroadcastChannelManager {
      */
     public boolean checkScope(int rangeScope) {
         if (rangeScope == CellBroadcastChannelRange.SCOPE_UNKNOWN) return true;
-        TelephonyManager tm =
-                (TelephonyManager) mContext.getSystemService(Context.TELEPHONY_SERVICE);
-        tm = tm.createForSubscriptionId(mSubId);
-        ServiceState ss = tm.getServiceState();
-        if (ss != null) {
-            NetworkRegistrationInfo regInfo = ss.getNetworkRegistrationInfo(
-                    NetworkRegistrationInfo.DOMAIN_CS,
-                    AccessNetworkConstants.TRANSPORT_TYPE_WWAN);
-            if (regInfo != null) {
-                if (regInfo.getRegistrationState()
-                        == NetworkRegistrationInfo.REGISTRATION_STATE_HOME
-                        || regInfo.getRegistrationState()
-                        == NetworkRegistrationInfo.REGISTRATION_STATE_ROAMING
-                        || regInfo.isEmergencyEnabled()) {
-                    int voiceRoamingType = regInfo.getRoamingType();
-                    if (voiceRoamingType == ROAMING_TYPE_NOT_ROAMING) {
-                        return true;
-                    } else if (voiceRoamingType == ServiceState.ROAMING_TYPE_DOMESTIC
-                            && rangeScope == CellBroadcastChannelRange.SCOPE_DOMESTIC) {
-                        return true;
-                    } else if (voiceRoamingType == ServiceState.ROAMING_TYPE_INTERNATIONAL
-                            && rangeScope == CellBroadcastChannelRange.SCOPE_INTERNATIONAL) {
-                        return true;
-                    }
-                    return false;
-                }
-            }
+        return isInScope(rangeScope, getNetworkScope());
+    }
+
+    /**
+     * Get the current network condition, as far as range scopes are concerned. The condition is
+     * cached by {@link CellBroadcastRoamingState} and kept up to date by a service state listener.
+     *
+     * @return One of {@link #NETWORK_SCOPE_ANY}, {@link #NETWORK_SCOPE_DOMESTIC},
+     * {@link #NETWORK_SCOPE_INTERNATIONAL} or {@link #NETWORK_SCOPE_NONE}.
+     */
+    public int getNetworkScope() {
+        return CellBroadcastRoamingState.getInstance().getNetworkScope(mContext, mSubId);
+    }
+
+    /**
+     * @param rangeScope Range scope
+     * @param networkScope Network condition, as returned by {@link #getNetworkScope()}
+     * @return True if a range of the scope is within the network condition.
+     */
+    public static boolean isInScope(int rangeScope, int networkScope) {
+        if (rangeScope == CellBroadcastChannelRange.SCOPE_UNKNOWN) return true;
+        switch (networkScope) {
+            case NETWORK_SCOPE_ANY:
+                return true;
+            case NETWORK_SCOPE_DOMESTIC:
+                return rangeScope == CellBroadcastChannelRange.SCOPE_DOMESTIC;
+            case NETWORK_SCOPE_INTERNATIONAL:
+                return rangeScope == CellBroadcastChannelRange.SCOPE_INTERNATIONAL;
+            default:
+                return false;
         }
-        // If we can't determine the scope, for safe we should assume it's in.
-        return true;
     }
 
     /**
@@ -350,20 +605,12 @@ public class CellBroadcastChannelManager {
         }
 
         int channel = message.getServiceCategory();
-        ArrayList<CellBroadcastChannelRange> ranges = null;
+        CellBroadcastChannelIndex index = getChannelIndex();
 
         for (int key : sCellBroadcastRangeResourceKeys) {
-            if (checkCellBroadcastChannelRange(channel, key)) {
-                ranges = getCellBroadcastChannelRanges(key);
-                break;
-            }
-        }
-        if (ranges != null) {
-            for (CellBroadcastChannelRange range : ranges) {
-                if (range.mStartId <= message.getServiceCategory()
-                        && range.mEndId >= message.getServiceCategory()) {
-                    return range;
-                }
+            CellBroadcastChannelRange range = index.getRange(channel, key);
+            if (range != null && checkScope(range.mScope)) {
+                return range;
             }
         }
         return null;
@@ -387,25 +634,16 @@ public class CellBroadcastChannelManager {
 
         int id = message.getServiceCategory();
 
-        for (int key : sCellBroadcastRangeResourceKeys) {
-            ArrayList<CellBroadcastChannelRange> ranges =
-                    getCellBroadcastChannelRanges(key);
-            for (CellBroadcastChannelRange range : ranges) {
-                if (range.mStartId <= id && range.mEndId >= id) {
-                    switch (range.mEmergencyLevel) {
-                        case CellBroadcastChannelRange.LEVEL_EMERGENCY:
-                            Log.d(TAG, "isEmergencyMessage: true, message id = " + id);
-                            return true;
-                        case CellBroadcastChannelRange.LEVEL_NOT_EMERGENCY:
-                            Log.d(TAG, "isEmergencyMessage: false, message id = " + id);
-                            return false;
-                        case CellBroadcastChannelRange.LEVEL_UNKNOWN:
-                        default:
-                            break;
-                    }
-                    break;
-                }
-            }
+        switch (getChannelIndex().getEmergencyLevel(id)) {
+            case CellBroadcastChannelRange.LEVEL_EMERGENCY:
+                Log.d(TAG, "isEmergencyMessage: true, message id = " + id);
+                return true;
+            case CellBroadcastChannelRange.LEVEL_NOT_EMERGENCY:
+                Log.d(TAG, "isEmergencyMessage: false, message id = " + id);
+                return false;
+            case CellBroadcastChannelRange.LEVEL_UNKNOWN:
+            default:
+                break;
         }
 
         Log.d(TAG, "isEmergencyMessage: " + message.isEmergencyMessage()
@@ -0,0 +1,202 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.cellbroadcastreceiver;
+
+import android.annotation.NonNull;
+import android.content.res.Resources;
+import android.telephony.SubscriptionManager;
+import android.util.Log;
+import android.util.SparseArray;
+import android.util.SparseIntArray;
+
+import com.android.internal.annotations.GuardedBy;
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Process-wide registry of compiled channel indexes, keyed by subscription and carrier config
+ * identity.
+ *
+ * An entry is valid as long as the subscription's resources are the ones it was compiled from
+ * and no carrier config change was reported for the subscription since. Every channel manager of
+ * the same subscription shares the registry entry, so creating a
+ * {@link CellBroadcastChannelManager} is cheap and does not touch the resources.
+ */
+public final class CellBroadcastChannelRegistry {
+
+    private static final String TAG = "CBChannelRegistry";
+
+    private static final CellBroadcastChannelRegistry sInstance =
+            new CellBroadcastChannelRegistry();
+
+    /** Compiles the channel index of a subscription from its resources. */
+    interface IndexBuilder {
+        /**
+         * @param res Resources of the subscription
+         * @return The compiled index
+         */
+        @NonNull CellBroadcastChannelIndex build(@NonNull Resources res);
+    }
+
+    /** A compiled index and the identity of the configuration it was compiled from. */
+    private static final class Entry {
+        final Resources mResources;
+        final int mConfigGeneration;
+        final int mGlobalGeneration;
+        final CellBroadcastChannelIndex mIndex;
+
+        Entry(Resources resources, int configGeneration, int globalGeneration,
+                CellBroadcastChannelIndex index) {
+            mResources = resources;
+            mConfigGeneration = configGeneration;
+            mGlobalGeneration = globalGeneration;
+            mIndex = index;
+        }
+    }
+
+    private final Object mLock = new Object();
+
+    @GuardedBy("mLock")
+    private final SparseArray<Entry> mEntries = new SparseArray<>();
+
+    /** Carrier config generation per subscription, bumped on every carrier config change. */
+    @GuardedBy("mLock")
+    private final SparseIntArray mConfigGenerations = new SparseIntArray();
+
+    /**
+     * Generation of all entries, bumped by {@link #invalidateAll()}. Unlike the per-subscription
+     * generations, it also covers the subscriptions that have no entry yet.
+     */
+    @GuardedBy("mLock")
+    private int mGlobalGeneration;
+
+    private final AtomicLong mHits = new AtomicLong();
+    private final AtomicLong mMisses = new AtomicLong();
+    private final AtomicLong mRebuilds = new AtomicLong();
+
+    @VisibleForTesting
+    public CellBroadcastChannelRegistry() {
+    }
+
+    /**
+     * @return The process-wide registry
+     */
+    public static @NonNull CellBroadcastChannelRegistry getInstance() {
+        return sInstance;
+    }
+
+    /**
+     * Get the channel index of a subscription, compiling it if there is no valid entry.
+     *
+     * @param subId Subscription index
+     * @param res Current resources of the subscription
+     * @param builder Compiles the index on a miss
+     * @return The channel index
+     */
+    @NonNull CellBroadcastChannelIndex getIndex(int subId, @NonNull Resources res,
+            @NonNull IndexBuilder builder) {
+        int generation;
+        int globalGeneration;
+        boolean stale;
+        synchronized (mLock) {
+            generation = mConfigGenerations.get(subId);
+            globalGeneration = mGlobalGeneration;
+            Entry entry = mEntries.get(subId);
+            if (entry != null && entry.mResources == res
+                    && entry.mConfigGeneration == generation
+                    && entry.mGlobalGeneration == globalGeneration) {
+                mHits.incrementAndGet();
+                return entry.mIndex;
+            }
+            stale = entry != null;
+        }
+
+        // Compile outside of the lock. Two racing callers may both compile, which is harmless
+        // because the result is immutable and equivalent.
+        mMisses.incrementAndGet();
+        CellBroadcastChannelIndex index = builder.build(res);
+        if (stale) {
+            mRebuilds.incrementAndGet();
+        }
+        Log.d(TAG, "Compiled channel index for sub " + subId + ": " + index + ", " + this);
+
+        synchronized (mLock) {
+            // Don't overwrite an entry of a newer carrier config with a stale compilation.
+            if (mConfigGenerations.get(subId) == generation
+                    && mGlobalGeneration == globalGeneration) {
+                mEntries.put(subId, new Entry(res, generation, globalGeneration, index));
+            }
+        }
+        return index;
+    }
+
+    /**
+     * Invalidate the entry of a subscription after its carrier config changed. The default
+     * subscription entry is invalidated as well, since it follows whichever subscription is the
+     * default one.
+     *
+     * @param subId Subscription index
+     */
+    public void invalidate(int subId) {
+        synchronized (mLock) {
+            bumpGeneration(subId);
+            if (subId != SubscriptionManager.DEFAULT_SUBSCRIPTION_ID) {
+                bumpGeneration(SubscriptionManager.DEFAULT_SUBSCRIPTION_ID);
+            }
+        }
+    }
+
+    /**
+     * Invalidate the entries of all subscriptions, e.g. after the subscriptions changed.
+     */
+    public void invalidateAll() {
+        synchronized (mLock) {
+            mGlobalGeneration++;
+        }
+    }
+
+    /**
+     * Outdated entries are kept until they are replaced, so that replacing them is counted as a
+     * rebuild rather than a cold miss.
+     */
+    @GuardedBy("mLock")
+    private void bumpGeneration(int subId) {
+        mConfigGenerations.put(subId, mConfigGenerations.get(subId) + 1);
+    }
+
+    /** @return The number of lookups served from a valid entry. */
+    public long getHitCount() {
+        return mHits.get();
+    }
+
+    /** @return The number of lookups that had to compile an index. */
+    public long getMissCount() {
+        return mMisses.get();
+    }
+
+    /** @return The number of compilations that replaced an invalidated or outdated entry. */
+    public long getRebuildCount() {
+        return mRebuilds.get();
+    }
+
+    @Override
+    public String toString() {
+        return "CellBroadcastChannelRegistry:[hits=" + mHits.get() + ",misses=" + mMisses.get()
+                + ",rebuilds=" + mRebuilds.get() + "]";
+    }
+}
@@ -0,0 +1,426 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.cellbroadcastreceiver;
+
+import android.annotation.NonNull;
+import android.annotation.Nullable;
+import android.content.Context;
+import android.content.om.OverlayInfo;
+import android.content.om.OverlayManager;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
+import android.content.res.Configuration;
+import android.content.res.Resources;
+import android.os.Build;
+import android.os.PersistableBundle;
+import android.os.Process;
+import android.telephony.CarrierConfigManager;
+import android.telephony.TelephonyManager;
+import android.util.AtomicFile;
+import android.util.Log;
+import android.util.SparseArray;
+
+import com.android.cellbroadcastreceiver.CellBroadcastAlertService.AlertType;
+import com.android.cellbroadcastreceiver.CellBroadcastChannelManager.CellBroadcastChannelRange;
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.zip.CRC32;
+
+/**
+ * Binary snapshot of a compiled {@link CellBroadcastChannelIndex}, persisted in the app's device
+ * protected storage so that the first alert after a process restart doesn't have to load and
+ * parse every channel range resource again.
+ *
+ * Snapshots are stored per carrier id. Each snapshot records a fingerprint of the build, the app
+ * package, the runtime resource overlays of the app, the carrier part of the resource
+ * configuration and the carrier config of the subscription it was compiled from. A snapshot
+ * whose fingerprint doesn't match the current one is ignored, and the caller re-parses the
+ * resources and overwrites it.
+ *
+ * Layout, big endian:
+ * <pre>
+ * int magic, int version, long fingerprint,
+ * int defaultVibrationLength, int[] defaultVibration,
+ * int keyCount, keyCount * {int key, int rangeCount, rangeCount * range},
+ * long crc32 of everything before it
+ *
+ * range: int startId, int endId, byte alertType, byte emergencyLevel, byte ranType, byte scope,
+ *        byte flags, int alertDuration, int vibrationLength (-1 for the default), int[] vibration
+ * </pre>
+ */
+public final class CellBroadcastChannelSnapshot {
+
+    private static final String TAG = "CBChannelSnapshot";
+
+    private static final int MAGIC = 0x43424348; // "CBCH"
+
+    /** Bump whenever the layout or the meaning of a field changes. */
+    @VisibleForTesting
+    public static final int VERSION = 1;
+
+    private static final String SNAPSHOT_DIR = "channel_snapshots";
+
+    private static final int FLAG_FILTER_LANGUAGE = 1;
+    private static final int FLAG_OVERRIDE_DND = 1 << 1;
+    private static final int FLAG_WRITE_TO_SMS_INBOX = 1 << 2;
+
+    private static final AlertType[] ALERT_TYPES = AlertType.values();
+
+    // 64-bit FNV-1a, used for the configuration fingerprint
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private static volatile boolean sEnabled = true;
+
+    private CellBroadcastChannelSnapshot() {
+    }
+
+    /**
+     * Enable or disable snapshots, e.g. for tests that replace the resources with mocks the
+     * fingerprint can't tell apart.
+     */
+    @VisibleForTesting
+    public static void setEnabled(boolean enabled) {
+        sEnabled = enabled;
+    }
+
+    /**
+     * @param context Context
+     * @param subId Subscription index
+     * @return The snapshot file of the subscription's carrier, or {@code null} if snapshots are
+     * disabled or the storage is not available.
+     */
+    public static @Nullable File getSnapshotFile(@NonNull Context context, int subId) {
+        if (!sEnabled) return null;
+        Context storageContext = context.createDeviceProtectedStorageContext();
+        if (storageContext == null) return null;
+        File dir = storageContext.getNoBackupFilesDir();
+        if (dir == null) return null;
+
+        int carrierId = TelephonyManager.UNKNOWN_CARRIER_ID;
+        TelephonyManager tm = context.getSystemService(TelephonyManager.class);
+        if (tm != null) {
+            tm = tm.createForSubscriptionId(subId);
+            if (tm != null) {
+                carrierId = tm.getSimCarrierId();
+            }
+        }
+        return new File(new File(dir, SNAPSHOT_DIR), "carrier_" + carrierId + ".bin");
+    }
+
+    /**
+     * Compute the fingerprint of everything the compiled channel configuration depends on: the
+     * system image, which carries the static resource overlays, the app package, the enabled
+     * runtime resource overlays of the app, the carrier identity of the resource configuration
+     * and the carrier config of the subscription.
+     *
+     * @param context Context
+     * @param subId Subscription index
+     * @param res Resources of the subscription
+     * @return The fingerprint
+     */
+    public static long computeFingerprint(@NonNull Context context, int subId,
+            @NonNull Resources res) {
+        long hash = hash(FNV_OFFSET_BASIS, Build.FINGERPRINT);
+        PackageManager pm = context.getPackageManager();
+        if (pm != null) {
+            try {
+                PackageInfo info = pm.getPackageInfo(context.getPackageName(), 0);
+                hash = hash(hash, info.getLongVersionCode());
+                hash = hash(hash, info.lastUpdateTime);
+            } catch (PackageManager.NameNotFoundException e) {
+                Log.e(TAG, "Failed to get package info. e=" + e);
+            }
+            hash = hashOverlays(context, pm, hash);
+        }
+        Configuration config = res.getConfiguration();
+        if (config != null) {
+            hash = hash(hash, config.mcc);
+            hash = hash(hash, config.mnc);
+        }
+        CarrierConfigManager configManager =
+                (CarrierConfigManager) context.getSystemService(Context.CARRIER_CONFIG_SERVICE);
+        if (configManager != null) {
+            hash = hash(hash, configManager.getConfigForSubId(subId));
+        }
+        return hash;
+    }
+
+    /**
+     * Hash the package name, version and update time of each enabled runtime overlay of the app,
+     * so that installing, updating, enabling or disabling an overlay invalidates the snapshots.
+     */
+    private static long hashOverlays(Context context, PackageManager pm, long hash) {
+        OverlayManager overlayManager = context.getSystemService(OverlayManager.class);
+        if (overlayManager == null) return hash;
+        List<OverlayInfo> overlays;
+        try {
+            overlays = overlayManager.getOverlayInfosForTarget(context.getPackageName(),
+                    Process.myUserHandle());
+        } catch (RuntimeException e) {
+            Log.e(TAG, "Failed to get overlays. e=" + e);
+            return hash;
+        }
+        for (OverlayInfo overlay : overlays) {
+            if (!overlay.isEnabled()) continue;
+            hash = hash(hash, overlay.getPackageName());
+            try {
+                PackageInfo info = pm.getPackageInfo(overlay.getPackageName(), 0);
+                hash = hash(hash, info.getLongVersionCode());
+                hash = hash(hash, info.lastUpdateTime);
+            } catch (PackageManager.NameNotFoundException e) {
+                Log.e(TAG, "Failed to get overlay package info. e=" + e);
+            }
+        }
+        return hash;
+    }
+
+    /**
+     * Read a snapshot in one shot.
+     *
+     * @param file Snapshot file
+     * @param fingerprint Fingerprint of the current configuration
+     * @return The decoded index, or {@code null} if there is no usable snapshot.
+     */
+    public static @Nullable CellBroadcastChannelIndex read(@NonNull File file, long fingerprint) {
+        try {
+            return decode(new AtomicFile(file).readFully(), fingerprint);
+        } catch (FileNotFoundException e) {
+            return null;
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to read " + file + ". e=" + e);
+            return null;
+        }
+    }
+
+    /**
+     * Write a snapshot, replacing the previous one atomically.
+     *
+     * @param file Snapshot file
+     * @param fingerprint Fingerprint of the configuration the index was compiled from
+     * @param defaultVibrationPattern Default vibration pattern of the configuration
+     * @param index The compiled index
+     * @return {@code true} if the snapshot was written.
+     */
+    public static boolean write(@NonNull File file, long fingerprint,
+            @Nullable int[] defaultVibrationPattern, @NonNull CellBroadcastChannelIndex index) {
+        File dir = file.getParentFile();
+        if (dir != null && !dir.isDirectory() && !dir.mkdirs()) {
+            Log.e(TAG, "Failed to create " + dir);
+            return false;
+        }
+        AtomicFile atomicFile = new AtomicFile(file);
+        FileOutputStream out = null;
+        try {
+            out = atomicFile.startWrite();
+            out.write(encode(fingerprint, defaultVibrationPattern, index));
+            atomicFile.finishWrite(out);
+            return true;
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to write " + file + ". e=" + e);
+            if (out != null) {
+                atomicFile.failWrite(out);
+            }
+            return false;
+        }
+    }
+
+    /**
+     * @return The encoded snapshot
+     */
+    @VisibleForTesting
+    public static @NonNull byte[] encode(long fingerprint, @Nullable int[] defaultVibrationPattern,
+            @NonNull CellBroadcastChannelIndex index) {
+        int[] keys = index.getKeys();
+        int size = 4 + 4 + 8 + vibrationSize(defaultVibrationPattern) + 4 + 8;
+        for (int key : keys) {
+            size += 4 + 4;
+            for (CellBroadcastChannelRange range : index.getRanges(key)) {
+                size += 4 + 4 + 5 + 4 + (range.mVibrationPattern == defaultVibrationPattern
+                        ? 4 : vibrationSize(range.mVibrationPattern));
+            }
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        buffer.putInt(MAGIC);
+        buffer.putInt(VERSION);
+        buffer.putLong(fingerprint);
+        putVibration(buffer, defaultVibrationPattern);
+        buffer.putInt(keys.length);
+        for (int key : keys) {
+            List<CellBroadcastChannelRange> ranges = index.getRanges(key);
+            buffer.putInt(key);
+            buffer.putInt(ranges.size());
+            for (CellBroadcastChannelRange range : ranges) {
+                buffer.putInt(range.mStartId);
+                buffer.putInt(range.mEndId);
+                buffer.put((byte) range.mAlertType.ordinal());
+                buffer.put((byte) range.mEmergencyLevel);
+                buffer.put((byte) range.mRanType);
+                buffer.put((byte) range.mScope);
+                buffer.put((byte) ((range.mFilterLanguage ? FLAG_FILTER_LANGUAGE : 0)
+                        | (range.mOverrideDnd ? FLAG_OVERRIDE_DND : 0)
+                        | (range.mWriteToSmsInbox ? FLAG_WRITE_TO_SMS_INBOX : 0)));
+                buffer.putInt(range.mAlertDuration);
+                if (range.mVibrationPattern == defaultVibrationPattern) {
+                    buffer.putInt(-1);
+                } else {
+                    putVibration(buffer, range.mVibrationPattern);
+                }
+            }
+        }
+        buffer.putLong(crc(buffer.array(), buffer.position()));
+        return buffer.array();
+    }
+
+    /**
+     * @return The decoded index, or {@code null} if the data is not a valid snapshot of the
+     * current version and fingerprint.
+     */
+    @VisibleForTesting
+    public static @Nullable CellBroadcastChannelIndex decode(@NonNull byte[] data,
+            long fingerprint) {
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        try {
+            if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION
+                    || buffer.getLong() != fingerprint) {
+                return null;
+            }
+            if (data.length < 8 || buffer.getLong(data.length - 8) != crc(data, data.length - 8)) {
+                Log.e(TAG, "Snapshot checksum mismatch");
+                return null;
+            }
+
+            int[] defaultVibrationPattern = getVibration(buffer, buffer.getInt());
+            int[] keys = new int[buffer.getInt()];
+            SparseArray<List<CellBroadcastChannelRange>> ranges = new SparseArray<>();
+            for (int i = 0; i < keys.length; i++) {
+                keys[i] = buffer.getInt();
+                int count = buffer.getInt();
+                ArrayList<CellBroadcastChannelRange> keyRanges = new ArrayList<>(count);
+                for (int j = 0; j < count; j++) {
+                    CellBroadcastChannelRange range = new CellBroadcastChannelRange();
+                    range.mStartId = buffer.getInt();
+                    range.mEndId = buffer.getInt();
+                    range.mAlertType = ALERT_TYPES[buffer.get()];
+                    range.mEmergencyLevel = buffer.get();
+                    range.mRanType = buffer.get();
+                    range.mScope = buffer.get();
+                    int flags = buffer.get();
+                    range.mFilterLanguage = (flags & FLAG_FILTER_LANGUAGE) != 0;
+                    range.mOverrideDnd = (flags & FLAG_OVERRIDE_DND) != 0;
+                    range.mWriteToSmsInbox = (flags & FLAG_WRITE_TO_SMS_INBOX) != 0;
+                    range.mAlertDuration = buffer.getInt();
+                    int vibrationLength = buffer.getInt();
+                    range.mVibrationPattern = vibrationLength == -1
+                            ? defaultVibrationPattern : getVibration(buffer, vibrationLength);
+                    keyRanges.add(range);
+                }
+                ranges.put(keys[i], keyRanges);
+            }
+            return new CellBroadcastChannelIndex(keys, ranges);
+        } catch (BufferUnderflowException | IndexOutOfBoundsException
+                | IllegalArgumentException e) {
+            Log.e(TAG, "Corrupted snapshot. e=" + e);
+            return null;
+        }
+    }
+
+    private static int vibrationSize(int[] pattern) {
+        return 4 + (pattern != null ? pattern.length * 4 : 0);
+    }
+
+    /** A {@code null} pattern is written with length -2. */
+    private static void putVibration(ByteBuffer buffer, int[] pattern) {
+        if (pattern == null) {
+            buffer.putInt(-2);
+            return;
+        }
+        buffer.putInt(pattern.length);
+        for (int value : pattern) {
+            buffer.putInt(value);
+        }
+    }
+
+    private static int[] getVibration(ByteBuffer buffer, int length) {
+        if (length == -2) return null;
+        if (length < 0 || length > buffer.remaining() / 4) {
+            throw new IllegalArgumentException("Invalid vibration length " + length);
+        }
+        int[] pattern = new int[length];
+        for (int i = 0; i < length; i++) {
+            pattern[i] = buffer.getInt();
+        }
+        return pattern;
+    }
+
+    private static long crc(byte[] data, int length) {
+        CRC32 crc = new CRC32();
+        crc.update(data, 0, length);
+        return crc.getValue();
+    }
+
+    private static long hash(long hash, long value) {
+        for (int i = 0; i < 8; i++) {
+            hash = (hash ^ ((value >>> (i * 8)) & 0xff)) * FNV_PRIME;
+        }
+        return hash;
+    }
+
+    /** Hash the keys and values of a carrier config, in key order. */
+    private static long hash(long hash, PersistableBundle bundle) {
+        if (bundle == null) return hash(hash, 0);
+        for (String key : new TreeSet<>(bundle.keySet())) {
+            hash = hash(hash, key);
+            Object value = bundle.get(key);
+            if (value instanceof int[]) {
+                value = Arrays.toString((int[]) value);
+            } else if (value instanceof long[]) {
+                value = Arrays.toString((long[]) value);
+            } else if (value instanceof double[]) {
+                value = Arrays.toString((double[]) value);
+            } else if (value instanceof boolean[]) {
+                value = Arrays.toString((boolean[]) value);
+            } else if (value instanceof String[]) {
+                value = Arrays.toString((String[]) value);
+            } else if (value instanceof PersistableBundle) {
+                hash = hash(hash, (PersistableBundle) value);
+                continue;
+            }
+            hash = hash(hash, String.valueOf(value));
+        }
+        return hash(hash, bundle.size());
+    }
+
+    private static long hash(long hash, String value) {
+        if (value == null) return hash(hash, 0);
+        for (int i = 0; i < value.length(); i++) {
+            hash = (hash ^ value.charAt(i)) * FNV_PRIME;
+        }
+        return hash(hash, value.length());
+    }
+}
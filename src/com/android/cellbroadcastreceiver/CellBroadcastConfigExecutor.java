@@ -0,0 +1,232 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.cellbroadcastreceiver;
+
+import android.annotation.NonNull;
+import android.os.SystemClock;
+import android.util.Log;
+import android.util.SparseArray;
+
+import com.android.internal.annotations.GuardedBy;
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntConsumer;
+
+/**
+ * Runs the channel configuration of each subscription on a worker of its own.
+ *
+ * Configuring a subscription takes dozens of blocking binder calls into telephony. With one worker
+ * per subscription, the subscriptions of a multi-SIM device are configured concurrently, and a
+ * slow or hung radio on one SIM doesn't delay the emergency channels of the other. Configurations
+ * of the same subscription still run one after the other, in order.
+ *
+ * A failure is confined to the subscription it happened on. Per-subscription counters track how
+ * many configurations were started, completed and failed.
+ */
+public final class CellBroadcastConfigExecutor {
+
+    private static final String TAG = "CBConfigExecutor";
+
+    /** Idle time after which the worker thread of a subscription is released. */
+    private static final long WORKER_KEEP_ALIVE_MS = 30 * 1000;
+
+    private static final CellBroadcastConfigExecutor sInstance = new CellBroadcastConfigExecutor();
+
+    /** Configuration counters of one subscription. */
+    private static final class Worker {
+        final ThreadPoolExecutor mExecutor;
+        long mStarted;
+        long mCompleted;
+        long mFailed;
+        long mLastCompletionTime = -1;
+
+        Worker(int subId) {
+            mExecutor = new ThreadPoolExecutor(1, 1, WORKER_KEEP_ALIVE_MS, TimeUnit.MILLISECONDS,
+                    new LinkedBlockingQueue<>(), r -> new Thread(r, "CBConfig-sub" + subId));
+            mExecutor.allowCoreThreadTimeOut(true);
+        }
+    }
+
+    private final Object mLock = new Object();
+
+    @GuardedBy("mLock")
+    private final SparseArray<Worker> mWorkers = new SparseArray<>();
+
+    @VisibleForTesting
+    public CellBroadcastConfigExecutor() {
+    }
+
+    /**
+     * @return The process-wide executor
+     */
+    public static @NonNull CellBroadcastConfigExecutor getInstance() {
+        return sInstance;
+    }
+
+    /**
+     * Configure subscriptions concurrently, each on its own worker, and wait until all of them
+     * are done or the timeout expired. Configurations that didn't finish in time keep running,
+     * and later configurations of the same subscription are queued behind them.
+     *
+     * @param subIds Subscriptions to configure
+     * @param configuration Configures one subscription
+     * @param timeoutMs Maximum time to wait
+     * @return {@code true} if every configuration completed in time, successfully or not.
+     */
+    public boolean run(@NonNull int[] subIds, @NonNull IntConsumer configuration, long timeoutMs)
+            throws InterruptedException {
+        CountDownLatch done = new CountDownLatch(subIds.length);
+        for (int subId : subIds) {
+            final Worker worker;
+            synchronized (mLock) {
+                Worker w = mWorkers.get(subId);
+                if (w == null) {
+                    w = new Worker(subId);
+                    mWorkers.put(subId, w);
+                }
+                w.mStarted++;
+                worker = w;
+            }
+            worker.mExecutor.execute(() -> {
+                boolean success = false;
+                try {
+                    configuration.accept(subId);
+                    success = true;
+                } catch (RuntimeException e) {
+                    Log.e(TAG, "Failed to configure sub " + subId, e);
+                } finally {
+                    synchronized (mLock) {
+                        if (success) {
+                            worker.mCompleted++;
+                        } else {
+                            worker.mFailed++;
+                        }
+                        worker.mLastCompletionTime = SystemClock.elapsedRealtime();
+                        mLock.notifyAll();
+                    }
+                    done.countDown();
+                }
+            });
+        }
+
+        if (!done.await(timeoutMs, TimeUnit.MILLISECONDS)) {
+            Log.e(TAG, "Configuration still running after " + timeoutMs + "ms. " + this);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Wait until no configuration of the given subscriptions is queued or running anymore.
+     *
+     * @param subIds Subscriptions to wait for
+     */
+    public void awaitIdle(@NonNull int[] subIds) throws InterruptedException {
+        synchronized (mLock) {
+            while (Arrays.stream(subIds).anyMatch(subId -> getPendingCountLocked(subId) != 0)) {
+                mLock.wait();
+            }
+        }
+    }
+
+    /**
+     * Release the workers of subscriptions that are no longer active, e.g. after a SIM was
+     * removed. A worker that still has configurations queued or running is kept until a later
+     * call finds it idle.
+     *
+     * @param activeSubIds Subscriptions whose workers are kept
+     * @return The number of workers released
+     */
+    public int removeInactive(@NonNull int[] activeSubIds) {
+        int removed = 0;
+        synchronized (mLock) {
+            for (int i = mWorkers.size() - 1; i >= 0; i--) {
+                int subId = mWorkers.keyAt(i);
+                Worker worker = mWorkers.valueAt(i);
+                if (Arrays.stream(activeSubIds).anyMatch(id -> id == subId)
+                        || worker.mStarted != worker.mCompleted + worker.mFailed) {
+                    continue;
+                }
+                worker.mExecutor.shutdown();
+                mWorkers.removeAt(i);
+                removed++;
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * @param subId Subscription index
+     * @return The number of configurations of the subscription that completed successfully.
+     */
+    public long getCompletedCount(int subId) {
+        synchronized (mLock) {
+            Worker worker = mWorkers.get(subId);
+            return worker != null ? worker.mCompleted : 0;
+        }
+    }
+
+    /**
+     * @param subId Subscription index
+     * @return The number of configurations of the subscription that failed.
+     */
+    public long getFailedCount(int subId) {
+        synchronized (mLock) {
+            Worker worker = mWorkers.get(subId);
+            return worker != null ? worker.mFailed : 0;
+        }
+    }
+
+    /**
+     * @param subId Subscription index
+     * @return The number of configurations of the subscription that are queued or running.
+     */
+    public long getPendingCount(int subId) {
+        synchronized (mLock) {
+            return getPendingCountLocked(subId);
+        }
+    }
+
+    @GuardedBy("mLock")
+    private long getPendingCountLocked(int subId) {
+        Worker worker = mWorkers.get(subId);
+        return worker != null ? worker.mStarted - worker.mCompleted - worker.mFailed : 0;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("CellBroadcastConfigExecutor:[");
+        synchronized (mLock) {
+            for (int i = 0; i < mWorkers.size(); i++) {
+                Worker worker = mWorkers.valueAt(i);
+                if (i > 0) sb.append(",");
+                sb.append("sub ").append(mWorkers.keyAt(i))
+                        .append("={started=").append(worker.mStarted)
+                        .append(",completed=").append(worker.mCompleted)
+                        .append(",failed=").append(worker.mFailed)
+                        .append(",lastCompletion=").append(worker.mLastCompletionTime)
+                        .append("}");
+            }
+        }
+        return sb.append("]").toString();
+    }
+}
@@ -0,0 +1,180 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.cellbroadcastreceiver;
+
+import android.annotation.NonNull;
+import android.annotation.Nullable;
+import android.os.SystemClock;
+import android.telephony.SubscriptionManager;
+import android.util.SparseBooleanArray;
+
+import com.android.internal.annotations.GuardedBy;
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Collapses channel configuration triggers into as few configuration passes as possible.
+ *
+ * Carrier config changes, airplane mode exit, default SMS subscription changes, backup restore and
+ * settings toggles each request a configuration pass, and at boot or during SIM hot swap they
+ * arrive in bursts. Every trigger is recorded with {@link #onTrigger(int)} and queues a start of
+ * {@link CellBroadcastConfigService}. The first queued start waits until the coalescing window of
+ * the oldest pending trigger has elapsed and then takes all pending triggers with
+ * {@link #takePass()}. The starts of the collapsed triggers find nothing pending and are skipped.
+ * A trigger that arrives while a pass is running stays pending, so it always gets a trailing pass.
+ */
+public final class CellBroadcastConfigScheduler {
+
+    /** Time triggers are collected before a pass runs. */
+    private static final long DEFAULT_COALESCING_WINDOW_MS = 500;
+
+    private static final CellBroadcastConfigScheduler sInstance =
+            new CellBroadcastConfigScheduler();
+
+    /** Subscriptions a configuration pass has to configure. */
+    public static final class Pass {
+        /** {@code true} if all active subscriptions have to be configured. */
+        public final boolean mAllSubscriptions;
+
+        /** Subscriptions to configure if not all of them have to. */
+        public final @NonNull int[] mSubIds;
+
+        Pass(boolean allSubscriptions, @NonNull int[] subIds) {
+            mAllSubscriptions = allSubscriptions;
+            mSubIds = subIds;
+        }
+
+        /**
+         * @param subId Subscription index
+         * @return {@code true} if the subscription has to be configured by this pass.
+         */
+        public boolean includes(int subId) {
+            if (mAllSubscriptions) return true;
+            for (int id : mSubIds) {
+                if (id == subId) return true;
+            }
+            return false;
+        }
+    }
+
+    private final Object mLock = new Object();
+
+    @GuardedBy("mLock")
+    private boolean mAllPending;
+
+    @GuardedBy("mLock")
+    private final SparseBooleanArray mPendingSubIds = new SparseBooleanArray();
+
+    /** Elapsed realtime of the oldest pending trigger, -1 if nothing is pending. */
+    @GuardedBy("mLock")
+    private long mFirstTriggerTime = -1;
+
+    private volatile long mCoalescingWindowMs = DEFAULT_COALESCING_WINDOW_MS;
+
+    private final AtomicLong mTriggers = new AtomicLong();
+    private final AtomicLong mPasses = new AtomicLong();
+
+    @VisibleForTesting
+    public CellBroadcastConfigScheduler() {
+    }
+
+    /**
+     * @return The process-wide scheduler
+     */
+    public static @NonNull CellBroadcastConfigScheduler getInstance() {
+        return sInstance;
+    }
+
+    /**
+     * Set the coalescing window, e.g. to 0 in tests.
+     *
+     * @param windowMs Time triggers are collected before a pass runs
+     */
+    @VisibleForTesting
+    public void setCoalescingWindow(long windowMs) {
+        mCoalescingWindowMs = windowMs;
+    }
+
+    /**
+     * Record a configuration trigger.
+     *
+     * @param subId Subscription whose configuration is outdated, or
+     * {@link SubscriptionManager#INVALID_SUBSCRIPTION_ID} for all of them
+     */
+    public void onTrigger(int subId) {
+        mTriggers.incrementAndGet();
+        synchronized (mLock) {
+            if (mFirstTriggerTime == -1) {
+                mFirstTriggerTime = SystemClock.elapsedRealtime();
+            }
+            if (SubscriptionManager.isValidSubscriptionId(subId)) {
+                mPendingSubIds.put(subId, true);
+            } else {
+                mAllPending = true;
+            }
+        }
+    }
+
+    /**
+     * Wait until the coalescing window of the oldest pending trigger has elapsed, then take all
+     * pending triggers. Must be called on a worker thread.
+     *
+     * @return The pass to run, or {@code null} if the triggers were already collapsed into an
+     * earlier pass.
+     */
+    public @Nullable Pass takePass() throws InterruptedException {
+        long delay;
+        synchronized (mLock) {
+            if (mFirstTriggerTime == -1) return null;
+            delay = mFirstTriggerTime + mCoalescingWindowMs - SystemClock.elapsedRealtime();
+        }
+        if (delay > 0) {
+            Thread.sleep(delay);
+        }
+
+        synchronized (mLock) {
+            if (mFirstTriggerTime == -1) return null;
+            int[] subIds = new int[mPendingSubIds.size()];
+            for (int i = 0; i < subIds.length; i++) {
+                subIds[i] = mPendingSubIds.keyAt(i);
+            }
+            Pass pass = new Pass(mAllPending, subIds);
+            mAllPending = false;
+            mPendingSubIds.clear();
+            mFirstTriggerTime = -1;
+            mPasses.incrementAndGet();
+            return pass;
+        }
+    }
+
+    /** @return The number of triggers received. */
+    public long getTriggerCount() {
+        return mTriggers.get();
+    }
+
+    /** @return The number of configuration passes executed for them. */
+    public long getPassCount() {
+        return mPasses.get();
+    }
+
+    @Override
+    public String toString() {
+        return "CellBroadcastConfigScheduler:[triggers=" + mTriggers.get() + ",passes="
+                + mPasses.get() + "]";
+    }
+}
@@ -21,23 +21,24 @@ import static com.android.cellbroadcastreceiver.CellBroadcastReceiver.VDBG;
 import android.app.IntentService;
 import android.content.Context;
 import android.content.Intent;
-import android.content.SharedPreferences;
 import android.content.res.Resources;
-import android.preference.PreferenceManager;
 import android.telephony.SmsManager;
 import android.telephony.SubscriptionInfo;
 import android.telephony.SubscriptionManager;
 import android.util.Log;
+import android.util.SparseArray;
 
 import androidx.annotation.NonNull;
 
 import com.android.cellbroadcastreceiver.CellBroadcastChannelManager.CellBroadcastChannelRange;
+import com.android.internal.annotations.GuardedBy;
 import com.android.internal.annotations.VisibleForTesting;
 
 import java.lang.reflect.Method;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
 
 /**
  * This service manages enabling and disabling ranges of message identifiers
@@ -56,14 +57,49 @@ public class CellBroadcastConfigService extends IntentService {
     @VisibleForTesting
     public static final String ACTION_ENABLE_CHANNELS = "ACTION_ENABLE_CHANNELS";
 
+    /**
+     * Time after which a configuration pass logs the subscriptions that are still being
+     * configured. The pass keeps waiting for them, so that the service isn't stopped while
+     * channels are only partly configured.
+     */
+    private static final long CONFIGURATION_TIMEOUT_MS = 5 * 1000;
+
+    private static final Object sAppliedChannelsLock = new Object();
+
+    /**
+     * Channels last applied to each subscription, as returned by
+     * {@link CellBroadcastChannelConfig#getEnabledRanges()}. Absent if unknown.
+     */
+    @GuardedBy("sAppliedChannelsLock")
+    private static final SparseArray<Map<CellBroadcastChannelConfig.Range, Integer>>
+            sAppliedChannels = new SparseArray<>();
+
     public CellBroadcastConfigService() {
         super(TAG);          // use class name for worker thread name
     }
 
+    @Override
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        if (intent != null && ACTION_ENABLE_CHANNELS.equals(intent.getAction())) {
+            CellBroadcastConfigScheduler.getInstance().onTrigger(intent.getIntExtra(
+                    SubscriptionManager.EXTRA_SUBSCRIPTION_INDEX,
+                    SubscriptionManager.INVALID_SUBSCRIPTION_ID));
+        }
+        return super.onStartCommand(intent, flags, startId);
+    }
+
     @Override
     protected void onHandleIntent(Intent intent) {
         if (ACTION_ENABLE_CHANNELS.equals(intent.getAction())) {
             try {
+                CellBroadcastConfigScheduler scheduler = CellBroadcastConfigScheduler.getInstance();
+                CellBroadcastConfigScheduler.Pass pass = scheduler.takePass();
+                if (pass == null) {
+                    if (VDBG) log("Trigger collapsed into an earlier pass. " + scheduler);
+                    return;
+                }
+                log("Configuration pass. " + scheduler);
+
                 SubscriptionManager subManager = (SubscriptionManager) getApplicationContext()
                         .getSystemService(Context.TELEPHONY_SUBSCRIPTION_SERVICE);
 
@@ -72,14 +108,25 @@ public class CellBroadcastConfigService extends IntentService {
                     // messages on all subs. The duplication detection will be done at the
                     // frameworks.
                     int[] subIds = getActiveSubIdList(subManager);
+                    int[] passSubIds;
                     if (subIds.length != 0) {
-                        for (int subId : subIds) {
-                            log("Enable CellBroadcast on sub " + subId);
-                            enableCellBroadcastChannels(subId);
-                        }
+                        passSubIds = Arrays.stream(subIds).filter(pass::includes).toArray();
+                        log("Enable CellBroadcast on subs " + Arrays.toString(passSubIds));
                     } else {
                         // For no sim scenario.
-                        enableCellBroadcastChannels(SubscriptionManager.DEFAULT_SUBSCRIPTION_ID);
+                        passSubIds = new int[]{SubscriptionManager.DEFAULT_SUBSCRIPTION_ID};
+                    }
+                    // Each subscription is configured on its own worker, so that a slow radio
+                    // on one SIM doesn't hold up the other.
+                    CellBroadcastConfigExecutor executor =
+                            CellBroadcastConfigExecutor.getInstance();
+                    int[] activeSubIds = subIds.length != 0 ? subIds : passSubIds;
+                    executor.removeInactive(activeSubIds);
+                    CellBroadcastRoamingState.getInstance().removeInactive(activeSubIds);
+                    if (!executor.run(passSubIds, this::enableCellBroadcastChannels,
+                            CONFIGURATION_TIMEOUT_MS)) {
+                        executor.awaitIdle(passSubIds);
+                        log("Configuration pass finished late. " + executor);
                     }
                 }
             } catch (Exception ex) {
@@ -99,13 +146,16 @@ public class CellBroadcastConfigService extends IntentService {
         return subIds;
     }
 
-    private void resetCellBroadcastChannels(int subId) {
-        SmsManager manager;
+    private static SmsManager getSmsManager(int subId) {
         if (subId != SubscriptionManager.DEFAULT_SUBSCRIPTION_ID) {
-            manager = SmsManager.getSmsManagerForSubscriptionId(subId);
+            return SmsManager.getSmsManagerForSubscriptionId(subId);
         } else {
-            manager = SmsManager.getDefault();
+            return SmsManager.getDefault();
         }
+    }
+
+    private void resetCellBroadcastChannels(int subId) {
+        SmsManager manager = getSmsManager(subId);
 
         // TODO: Call manager.resetAllCellBroadcastRanges() in Android S.
         try {
@@ -124,17 +174,14 @@ public class CellBroadcastConfigService extends IntentService {
      */
     @VisibleForTesting
     public void enableCellBroadcastChannels(int subId) {
-        resetCellBroadcastChannels(subId);
-
-        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(this);
+        CellBroadcastAlertPreferences prefs = CellBroadcastAlertPreferences.get(this);
         Resources res = CellBroadcastSettings.getResources(this, subId);
 
         // boolean for each user preference checkbox, true for checked, false for unchecked
         // Note: If enableAlertsMasterToggle is false, it disables ALL emergency broadcasts
         // except for CMAS presidential. i.e. to receive CMAS severe alerts, both
         // enableAlertsMasterToggle AND enableCmasSevereAlerts must be true.
-        boolean enableAlertsMasterToggle = prefs.getBoolean(
-                CellBroadcastSettings.KEY_ENABLE_ALERTS_MASTER_TOGGLE, true);
+        boolean enableAlertsMasterToggle = prefs.mAlertsMasterToggle;
 
         boolean enableEtwsAlerts = enableAlertsMasterToggle;
 
@@ -142,32 +189,26 @@ public class CellBroadcastConfigService extends IntentService {
         // user's preference
         boolean enablePresidential = true;
 
-        boolean enableCmasExtremeAlerts = enableAlertsMasterToggle && prefs.getBoolean(
-                CellBroadcastSettings.KEY_ENABLE_CMAS_EXTREME_THREAT_ALERTS, true);
+        boolean enableCmasExtremeAlerts = enableAlertsMasterToggle && prefs.mCmasExtremeAlerts;
 
-        boolean enableCmasSevereAlerts = enableAlertsMasterToggle && prefs.getBoolean(
-                CellBroadcastSettings.KEY_ENABLE_CMAS_SEVERE_THREAT_ALERTS, true);
+        boolean enableCmasSevereAlerts = enableAlertsMasterToggle && prefs.mCmasSevereAlerts;
 
-        boolean enableCmasAmberAlerts = enableAlertsMasterToggle && prefs.getBoolean(
-                CellBroadcastSettings.KEY_ENABLE_CMAS_AMBER_ALERTS, true);
+        boolean enableCmasAmberAlerts = enableAlertsMasterToggle && prefs.mCmasAmberAlerts;
 
         boolean enableTestAlerts = enableAlertsMasterToggle
                 && CellBroadcastSettings.isTestAlertsToggleVisible(getApplicationContext())
-                && prefs.getBoolean(CellBroadcastSettings.KEY_ENABLE_TEST_ALERTS, false);
+                && prefs.mTestAlerts;
 
         boolean enableAreaUpdateInfoAlerts =
-                CellBroadcastSettings.isAreaUpdateInfoSettingsEnabled(this) &&
-                prefs.getBoolean(CellBroadcastSettings.KEY_ENABLE_AREA_UPDATE_INFO_ALERTS, false);
+                CellBroadcastSettings.isAreaUpdateInfoSettingsEnabled(this)
+                && prefs.mAreaUpdateInfoAlerts;
 
         boolean enablePublicSafetyMessagesChannelAlerts = enableAlertsMasterToggle
-                && prefs.getBoolean(CellBroadcastSettings.KEY_ENABLE_PUBLIC_SAFETY_MESSAGES,
-                true);
+                && prefs.mPublicSafetyMessages;
         boolean enableStateLocalTestAlerts = enableAlertsMasterToggle
-                && prefs.getBoolean(CellBroadcastSettings.KEY_ENABLE_STATE_LOCAL_TEST_ALERTS,
-                false);
+                && prefs.mStateLocalTestAlerts;
 
-        boolean enableEmergencyAlerts = enableAlertsMasterToggle && prefs.getBoolean(
-                CellBroadcastSettings.KEY_ENABLE_EMERGENCY_ALERTS, true);
+        boolean enableEmergencyAlerts = enableAlertsMasterToggle && prefs.mEmergencyAlerts;
 
         boolean enableGeoFencingTriggerMessage = true;
 
@@ -189,72 +230,73 @@ public class CellBroadcastConfigService extends IntentService {
 
         CellBroadcastChannelManager channelManager = new CellBroadcastChannelManager(
                 getApplicationContext(), subId);
+        CellBroadcastChannelConfig config = new CellBroadcastChannelConfig();
 
         /** Enable CMAS series messages. */
 
         // Enable/Disable Presidential messages.
-        setCellBroadcastRange(subId, enablePresidential,
+        config.add(enablePresidential,
                 channelManager.getCellBroadcastChannelRanges(
                         R.array.cmas_presidential_alerts_channels_range_strings));
 
         // Enable/Disable CMAS extreme messages.
-        setCellBroadcastRange(subId, enableCmasExtremeAlerts,
+        config.add(enableCmasExtremeAlerts,
                 channelManager.getCellBroadcastChannelRanges(
                         R.array.cmas_alert_extreme_channels_range_strings));
 
         // Enable/Disable CMAS severe messages.
-        setCellBroadcastRange(subId, enableCmasSevereAlerts,
+        config.add(enableCmasSevereAlerts,
                 channelManager.getCellBroadcastChannelRanges(
                         R.array.cmas_alerts_severe_range_strings));
 
         // Enable/Disable CMAS amber alert messages.
-        setCellBroadcastRange(subId, enableCmasAmberAlerts,
+        config.add(enableCmasAmberAlerts,
                 channelManager.getCellBroadcastChannelRanges(
                         R.array.cmas_amber_alerts_channels_range_strings));
 
         // Enable/Disable test messages.
-        setCellBroadcastRange(subId, enableTestAlerts,
+        config.add(enableTestAlerts,
                 channelManager.getCellBroadcastChannelRanges(
                         R.array.required_monthly_test_range_strings));
 
         // Exercise is part of test toggle with monthly test and operator defined. some carriers
         // mandate to show test settings in UI but always enable exercise alert.
-        setCellBroadcastRange(subId, enableTestAlerts ||
+        config.add(enableTestAlerts ||
                         res.getBoolean(R.bool.always_enable_exercise_alert),
                 channelManager.getCellBroadcastChannelRanges(
                         R.array.exercise_alert_range_strings));
 
-        setCellBroadcastRange(subId, enableTestAlerts,
+        config.add(enableTestAlerts,
                 channelManager.getCellBroadcastChannelRanges(
                         R.array.operator_defined_alert_range_strings));
 
         // Enable/Disable GSM ETWS messages.
-        setCellBroadcastRange(subId, enableEtwsAlerts,
+        config.add(enableEtwsAlerts,
                 channelManager.getCellBroadcastChannelRanges(
                         R.array.etws_alerts_range_strings));
 
         // Enable/Disable GSM ETWS test messages.
-        setCellBroadcastRange(subId, enableTestAlerts,
+        config.add(enableTestAlerts,
                 channelManager.getCellBroadcastChannelRanges(
                         R.array.etws_test_alerts_range_strings));
 
         // Enable/Disable GSM public safety messages.
-        setCellBroadcastRange(subId, enablePublicSafetyMessagesChannelAlerts,
+        config.add(enablePublicSafetyMessagesChannelAlerts,
                 channelManager.getCellBroadcastChannelRanges(
                         R.array.public_safety_messages_channels_range_strings));
 
         // Enable/Disable GSM state/local test alerts.
-        setCellBroadcastRange(subId, enableStateLocalTestAlerts,
+        config.add(enableStateLocalTestAlerts,
                 channelManager.getCellBroadcastChannelRanges(
                         R.array.state_local_test_alert_range_strings));
 
         // Enable/Disable GSM geo-fencing trigger messages.
-        setCellBroadcastRange(subId, enableGeoFencingTriggerMessage,
+        config.add(enableGeoFencingTriggerMessage,
                 channelManager.getCellBroadcastChannelRanges(
                         R.array.geo_fencing_trigger_messages_range_strings));
 
         // Enable non-CMAS series messages.
-        setCellBroadcastRange(subId, enableEmergencyAlerts,
+        config.add(enableEmergencyAlerts,
                 channelManager.getCellBroadcastChannelRanges(
                         R.array.emergency_alerts_channels_range_strings));
 
@@ -263,6 +305,10 @@ public class CellBroadcastConfigService extends IntentService {
                 channelManager.getCellBroadcastChannelRanges(
                         R.array.additional_cbs_channels_strings);
 
+        // Consecutive ranges with the same enable state are added together, so that they can be
+        // coalesced.
+        ArrayList<CellBroadcastChannelRange> group = new ArrayList<>();
+        boolean groupEnabled = false;
         for (CellBroadcastChannelRange range: ranges) {
             boolean enableAlerts;
             switch (range.mAlertType) {
@@ -275,31 +321,81 @@ public class CellBroadcastConfigService extends IntentService {
                 default:
                     enableAlerts = enableAlertsMasterToggle;
             }
-            setCellBroadcastRange(subId, enableAlerts, new ArrayList<>(Arrays.asList(range)));
+            if (!group.isEmpty() && enableAlerts != groupEnabled) {
+                config.add(groupEnabled, group);
+                group = new ArrayList<>();
+            }
+            groupEnabled = enableAlerts;
+            group.add(range);
         }
+        config.add(groupEnabled, group);
+
+        applyChannelConfig(subId, config);
     }
+
+    /**
+     * Forget the channel state applied to all subscriptions, so that the next configuration
+     * starts with a full reset. Must be called when the lower layer is known to have lost its
+     * channel configuration, e.g. after exiting airplane mode.
+     */
+    public static void resetChannelState() {
+        synchronized (sAppliedChannelsLock) {
+            sAppliedChannels.clear();
+        }
+    }
+
     /**
-     * Enable/disable cell broadcast with messages id range
+     * Apply a channel configuration. If the state applied to the subscription is known, only the
+     * calls that differ from it are issued. Otherwise the channels are reset and the whole
+     * configuration is sent.
+     *
+     * The applied state is only recorded when every call that matters succeeded. After a failure
+     * the state of the lower layer is unknown and the next configuration starts over.
+     *
      * @param subId Subscription index
-     * @param enable True for enabling cell broadcast with id range, otherwise for disabling.
-     * @param ranges Cell broadcast id ranges
+     * @param config Desired channel configuration
      */
-    private void setCellBroadcastRange(int subId, boolean enable,
-                                       List<CellBroadcastChannelRange> ranges) {
-        SmsManager manager;
-        if (subId != SubscriptionManager.DEFAULT_SUBSCRIPTION_ID) {
-            manager = SmsManager.getSmsManagerForSubscriptionId(subId);
+    private void applyChannelConfig(int subId, CellBroadcastChannelConfig config) {
+        Map<CellBroadcastChannelConfig.Range, Integer> desired = config.getEnabledRanges();
+        Map<CellBroadcastChannelConfig.Range, Integer> applied;
+        synchronized (sAppliedChannelsLock) {
+            applied = sAppliedChannels.get(subId);
+            sAppliedChannels.remove(subId);
+        }
+
+        List<CellBroadcastChannelConfig.Operation> operations;
+        int coalescedCount = config.getOperations().size();
+        if (applied == null) {
+            log("Reset and apply " + coalescedCount + " operations on sub " + subId
+                    + ", coalescing saved " + (config.getRequestedCount() - coalescedCount));
+            resetCellBroadcastChannels(subId);
+            operations = config.getOperations();
         } else {
-            manager = SmsManager.getDefault();
+            operations = CellBroadcastChannelConfig.diff(applied, desired);
+            log("Apply " + operations.size() + " changed of " + coalescedCount
+                    + " operations on sub " + subId + ", coalescing saved "
+                    + (config.getRequestedCount() - coalescedCount));
         }
 
-        if (ranges != null) {
-            for (CellBroadcastChannelRange range: ranges) {
-                if (enable) {
-                    manager.enableCellBroadcastRange(range.mStartId, range.mEndId, range.mRanType);
-                } else {
-                    manager.disableCellBroadcastRange(range.mStartId, range.mEndId, range.mRanType);
-                }
+        SmsManager manager = getSmsManager(subId);
+        boolean success = true;
+        for (CellBroadcastChannelConfig.Operation op : operations) {
+            CellBroadcastChannelConfig.Range range = op.mRange;
+            boolean result = op.mEnable
+                    ? manager.enableCellBroadcastRange(range.mStartId, range.mEndId,
+                            range.mRanType)
+                    : manager.disableCellBroadcastRange(range.mStartId, range.mEndId,
+                            range.mRanType);
+            // After a reset, disabling a range that was never enabled is expected to fail.
+            if (!result && (op.mEnable || applied != null)) {
+                if (VDBG) log("Failed to " + op + " on sub " + subId);
+                success = false;
+            }
+        }
+
+        if (success) {
+            synchronized (sAppliedChannelsLock) {
+                sAppliedChannels.put(subId, desired);
             }
         }
     }
@@ -16,17 +16,23 @@
 
 package com.android.cellbroadcastreceiver;
 
+import android.annotation.NonNull;
 import android.content.ContentProvider;
-import android.content.ContentProviderClient;
-import android.content.ContentResolver;
 import android.content.ContentValues;
+import android.content.Context;
 import android.content.UriMatcher;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.MatrixCursor;
+import android.database.sqlite.SQLiteConstraintException;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.database.sqlite.SQLiteQueryBuilder;
+import android.database.sqlite.SQLiteStatement;
 import android.net.Uri;
-import android.os.AsyncTask;
+import android.os.Binder;
+import android.os.Bundle;
+import android.os.Process;
 import android.provider.Telephony;
 import android.telephony.SmsCbCmasInfo;
 import android.telephony.SmsCbEtwsInfo;
@@ -36,6 +42,13 @@ import android.text.TextUtils;
 import android.util.Log;
 import com.android.internal.annotations.VisibleForTesting;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
 /**
  * ContentProvider for the database of received cell broadcasts.
  */
@@ -57,21 +70,173 @@ public class CellBroadcastContentProvider extends ContentProvider {
     /** URI matcher type to get a cell broadcast by ID. */
     private static final int CB_ALL_ID = 1;
 
+    /** URI matcher type to search the cell broadcasts. */
+    private static final int CB_SEARCH = 2;
+
+    /**
+     * URI to search the message bodies, with the words to search as {@link #SEARCH_QUERY}
+     * parameter. Each word matches the words it is a prefix of, and a broadcast matches if it
+     * has all of them. All matching broadcasts are ranked by the number of matches, then by
+     * delivery time, and the best ranked ones are returned.
+     */
+    public static final Uri SEARCH_URI = Uri.withAppendedPath(CONTENT_URI, "search");
+
+    /** Parameter of {@link #SEARCH_URI}: the words to search. */
+    public static final String SEARCH_QUERY = "q";
+
+    /**
+     * Parameter of {@link #SEARCH_URI}: maximum number of results, by default 100. A higher limit
+     * than {@link #MAX_SEARCH_LIMIT} is lowered to it.
+     */
+    public static final String SEARCH_LIMIT = "limit";
+
+    private static final int DEFAULT_SEARCH_LIMIT = 100;
+
+    /** Maximum number of results of a search. */
+    public static final int MAX_SEARCH_LIMIT = 500;
+
+    /**
+     * Column of the {@link #SEARCH_URI} results: excerpt of the message body around the matches,
+     * each match surrounded by {@link #SNIPPET_MATCH_START} and {@link #SNIPPET_MATCH_END}. The
+     * body is not escaped, so the excerpt is plain text and not markup.
+     * {@link CellBroadcastResources#getSnippetText(String)} turns it into displayable text.
+     */
+    public static final String SEARCH_SNIPPET = "snippet";
+
+    /** Column of the {@link #SEARCH_URI} results: the number of matches in the message body. */
+    public static final String SEARCH_RANK = "rank";
+
+    /** Control characters marking the matches in snippets, which do not occur in messages. */
+    public static final String SNIPPET_MATCH_START = "\u0002";
+    public static final String SNIPPET_MATCH_END = "\u0003";
+
+    /** Maximum number of words of a snippet. */
+    private static final int SNIPPET_WORDS = 16;
+
+    /**
+     * Number of matches in a row of the search index. offsets() returns 4 integers separated
+     * by spaces per match.
+     */
+    private static final String RANK_EXPRESSION = "((LENGTH(offsets("
+            + CellBroadcastDatabaseHelper.SEARCH_TABLE_NAME + "))-LENGTH(REPLACE(offsets("
+            + CellBroadcastDatabaseHelper.SEARCH_TABLE_NAME + "),' ',''))+1)/4)";
+
+    /** Columns of the {@link #SEARCH_URI} results by default. */
+    private static final String[] SEARCH_COLUMNS;
+
+    /** Columns of the {@link #SEARCH_URI} results, to their expression on the joined tables. */
+    private static final Map<String, String> sSearchProjectionMap = new HashMap<>();
+
     /** MIME type for the list of all cell broadcasts. */
     private static final String CB_LIST_TYPE = "vnd.android.cursor.dir/cellbroadcast";
 
     /** MIME type for an individual cell broadcast. */
     private static final String CB_TYPE = "vnd.android.cursor.item/cellbroadcast";
 
+    /** Provider method to insert a batch of broadcasts, see {@link #call}. */
+    public static final String METHOD_INSERT_BROADCASTS = "insert_broadcasts";
+
+    /** Extra for {@link #METHOD_INSERT_BROADCASTS}: ArrayList of the SmsCbMessages to insert. */
+    public static final String EXTRA_MESSAGES = "messages";
+
+    /** Provider method to mark broadcasts read by row ID, see {@link #call}. */
+    public static final String METHOD_MARK_READ = "mark_read";
+
+    /**
+     * Result of {@link #METHOD_INSERT_BROADCASTS}: long array of the inserted row IDs. Argument
+     * of {@link #METHOD_MARK_READ}: long array of the row IDs to mark read.
+     */
+    public static final String EXTRA_ROW_IDS = "row_ids";
+
+    /**
+     * Provider method to mark all broadcasts read by moving the read watermark, see
+     * {@link #call}. The argument is the delivery time up to which broadcasts are read, by
+     * default the latest delivery time.
+     */
+    public static final String METHOD_MARK_ALL_READ = "mark_all_read";
+
+    /** Provider method to get the read watermark, see {@link #call}. */
+    public static final String METHOD_GET_READ_WATERMARK = "get_read_watermark";
+
+    /** Provider method to count the unread broadcasts, see {@link #call}. */
+    public static final String METHOD_COUNT_UNREAD = "count_unread";
+
+    /**
+     * Result of {@link #METHOD_MARK_ALL_READ} and {@link #METHOD_GET_READ_WATERMARK}: the read
+     * watermark as a long.
+     */
+    public static final String EXTRA_READ_WATERMARK = "read_watermark";
+
+    /**
+     * Provider method to get the number of broadcasts and of unread broadcasts, in total and per
+     * value of each of {@link CellBroadcastDatabaseHelper#COUNTED_COLUMNS}, see {@link #call}.
+     */
+    public static final String METHOD_GET_COUNTERS = "get_counters";
+
+    /**
+     * Result of {@link #METHOD_COUNT_UNREAD} and {@link #METHOD_GET_COUNTERS}: the number of
+     * unread broadcasts as an int.
+     */
+    public static final String EXTRA_UNREAD_COUNT = "unread_count";
+
+    /** Result of {@link #METHOD_GET_COUNTERS}: the number of broadcasts as an int. */
+    public static final String EXTRA_TOTAL_COUNT = "total_count";
+
+    /** Columns written by {@link #insertNewBroadcasts}, in binding order. */
+    private static final String[] INSERT_COLUMNS = {
+            Telephony.CellBroadcasts.SLOT_INDEX,
+            Telephony.CellBroadcasts.GEOGRAPHICAL_SCOPE,
+            Telephony.CellBroadcasts.PLMN,
+            Telephony.CellBroadcasts.LAC,
+            Telephony.CellBroadcasts.CID,
+            Telephony.CellBroadcasts.SERIAL_NUMBER,
+            Telephony.CellBroadcasts.SERVICE_CATEGORY,
+            Telephony.CellBroadcasts.LANGUAGE_CODE,
+            Telephony.CellBroadcasts.MESSAGE_BODY,
+            Telephony.CellBroadcasts.DELIVERY_TIME,
+            Telephony.CellBroadcasts.MESSAGE_FORMAT,
+            Telephony.CellBroadcasts.MESSAGE_PRIORITY,
+            Telephony.CellBroadcasts.ETWS_WARNING_TYPE,
+            Telephony.CellBroadcasts.CMAS_MESSAGE_CLASS,
+            Telephony.CellBroadcasts.CMAS_CATEGORY,
+            Telephony.CellBroadcasts.CMAS_RESPONSE_TYPE,
+            Telephony.CellBroadcasts.CMAS_SEVERITY,
+            Telephony.CellBroadcasts.CMAS_URGENCY,
+            Telephony.CellBroadcasts.CMAS_CERTAINTY
+    };
+
+    private static final String INSERT_BROADCAST_SQL = "INSERT INTO "
+            + CellBroadcastDatabaseHelper.TABLE_NAME + " (" + TextUtils.join(",", INSERT_COLUMNS)
+            + ") VALUES (" + TextUtils.join(",", Collections.nCopies(INSERT_COLUMNS.length, "?"))
+            + ")";
+
     static {
         sUriMatcher.addURI(CB_AUTHORITY, null, CB_ALL);
         sUriMatcher.addURI(CB_AUTHORITY, "#", CB_ALL_ID);
+        sUriMatcher.addURI(CB_AUTHORITY, "search", CB_SEARCH);
+
+        for (String column : CellBroadcastDatabaseHelper.QUERY_COLUMNS) {
+            sSearchProjectionMap.put(column, CellBroadcastDatabaseHelper.TABLE_NAME + "."
+                    + column + " AS " + column);
+        }
+        sSearchProjectionMap.put(SEARCH_SNIPPET, "snippet("
+                + CellBroadcastDatabaseHelper.SEARCH_TABLE_NAME + ",'" + SNIPPET_MATCH_START
+                + "','" + SNIPPET_MATCH_END + "','\u2026',-1," + SNIPPET_WORDS + ") AS "
+                + SEARCH_SNIPPET);
+        sSearchProjectionMap.put(SEARCH_RANK, RANK_EXPRESSION + " AS " + SEARCH_RANK);
+        SEARCH_COLUMNS = Arrays.copyOf(CellBroadcastDatabaseHelper.QUERY_COLUMNS,
+                CellBroadcastDatabaseHelper.QUERY_COLUMNS.length + 2);
+        SEARCH_COLUMNS[SEARCH_COLUMNS.length - 2] = SEARCH_SNIPPET;
+        SEARCH_COLUMNS[SEARCH_COLUMNS.length - 1] = SEARCH_RANK;
     }
 
     /** The database for this content provider. */
     @VisibleForTesting
     public SQLiteOpenHelper mOpenHelper;
 
+    /** Cached read watermark, -1 until it is read from the metadata table. */
+    private volatile long mReadWatermark = -1;
+
     /**
      * Initialize content provider.
      * @return true if the provider was successfully loaded, false otherwise
@@ -114,6 +279,9 @@ public class CellBroadcastContentProvider extends ContentProvider {
                 qb.appendWhere("(_id=" + uri.getPathSegments().get(0) + ')');
                 break;
 
+            case CB_SEARCH:
+                return search(uri, projection, selection, selectionArgs);
+
             default:
                 Log.e(TAG, "Invalid query: " + uri);
                 throw new IllegalArgumentException("Unknown URI: " + uri);
@@ -134,6 +302,80 @@ public class CellBroadcastContentProvider extends ContentProvider {
         return c;
     }
 
+    /**
+     * Search the message bodies through the full-text index.
+     * @param uri the {@link #SEARCH_URI} with its parameters
+     * @param projection columns of the broadcasts table, {@link #SEARCH_SNIPPET} and
+     *  {@link #SEARCH_RANK}, or null for all of them
+     * @param selection the selection criteria to apply on top of the search, or null
+     * @param selectionArgs values to replace ?s in selection string
+     * @return the matching broadcasts, best ranked first
+     */
+    private Cursor search(Uri uri, String[] projection, String selection,
+            String[] selectionArgs) {
+        if (projection == null) {
+            projection = SEARCH_COLUMNS;
+        }
+        String match = toSearchExpression(uri.getQueryParameter(SEARCH_QUERY));
+        if (match == null) {
+            return new MatrixCursor(projection, 0);
+        }
+        String limitParameter = uri.getQueryParameter(SEARCH_LIMIT);
+        int limit;
+        try {
+            limit = limitParameter != null ? Integer.parseInt(limitParameter)
+                    : DEFAULT_SEARCH_LIMIT;
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid limit: " + limitParameter);
+        }
+        if (limit < 1) {
+            throw new IllegalArgumentException("Invalid limit: " + limitParameter);
+        }
+        limit = Math.min(limit, MAX_SEARCH_LIMIT);
+
+        SQLiteQueryBuilder qb = new SQLiteQueryBuilder();
+        qb.setTables(CellBroadcastDatabaseHelper.SEARCH_TABLE_NAME + " JOIN "
+                + CellBroadcastDatabaseHelper.TABLE_NAME + " ON "
+                + CellBroadcastDatabaseHelper.TABLE_NAME + "." + Telephony.CellBroadcasts._ID
+                + "=" + CellBroadcastDatabaseHelper.SEARCH_TABLE_NAME + ".docid");
+        qb.setProjectionMap(sSearchProjectionMap);
+        qb.setStrict(true);
+        qb.appendWhere(CellBroadcastDatabaseHelper.SEARCH_TABLE_NAME + " MATCH ");
+        qb.appendWhereEscapeString(match);
+
+        SQLiteDatabase db = mOpenHelper.getReadableDatabase();
+        Cursor c = qb.query(db, projection, selection, selectionArgs, null, null,
+                RANK_EXPRESSION + " DESC," + CellBroadcastDatabaseHelper.TABLE_NAME + "."
+                        + Telephony.CellBroadcasts.DELIVERY_TIME + " DESC",
+                Integer.toString(limit));
+        if (c != null) {
+            c.setNotificationUri(getContext().getContentResolver(), CONTENT_URI);
+        }
+        return c;
+    }
+
+    /**
+     * Turn the words entered by the user into a full-text query: every word is quoted, so that
+     * the query syntax is not interpreted, and matches as a prefix. Double quotes cannot be
+     * escaped within a quoted word, and separate words for the tokenizer anyway, so they are
+     * treated as white space.
+     * @param query the words to search, or null
+     * @return the full-text query, or null if there are no words to search
+     */
+    @VisibleForTesting
+    public static String toSearchExpression(String query) {
+        if (query == null) {
+            return null;
+        }
+        StringBuilder expression = new StringBuilder();
+        for (String word : query.split("[\\s\"]+")) {
+            if (word.isEmpty()) continue;
+            if (expression.length() > 0) expression.append(' ');
+            expression.append('"').append(word).append("*\"");
+        }
+        return expression.length() > 0 ? expression.toString() : null;
+    }
+
     /**
      * Return the MIME type of the data at the specified URI.
      * @param uri the URI to query.
@@ -144,6 +386,7 @@ public class CellBroadcastContentProvider extends ContentProvider {
         int match = sUriMatcher.match(uri);
         switch (match) {
             case CB_ALL:
+            case CB_SEARCH:
                 return CB_LIST_TYPE;
 
             case CB_ALL_ID:
@@ -255,6 +498,160 @@ public class CellBroadcastContentProvider extends ContentProvider {
         return true;    // broadcast is not a duplicate
     }
 
+    /**
+     * Internal method to insert several new Cell Broadcasts into the database in one transaction.
+     * The insert statement is compiled once and bound again for each message, instead of
+     * building {@link ContentValues} for each row.
+     * @param messages the messages to insert, in order
+     * @return the row ID of each message, in order, or -1 where a constraint rejected the message
+     * @throws android.database.SQLException if the batch could not be written, in which case
+     *  none of the messages is
+     */
+    @VisibleForTesting
+    public long[] insertNewBroadcasts(List<SmsCbMessage> messages) {
+        long[] rowIds = new long[messages.size()];
+        if (messages.isEmpty()) {
+            return rowIds;
+        }
+        SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        db.beginTransaction();
+        try (SQLiteStatement statement = db.compileStatement(INSERT_BROADCAST_SQL)) {
+            for (int i = 0; i < rowIds.length; i++) {
+                bindBroadcast(statement, messages.get(i));
+                try {
+                    rowIds[i] = statement.executeInsert();
+                } catch (SQLiteConstraintException e) {
+                    // Only this row is rejected, the rest of the batch is still written. Still
+                    // notify the user, see insertNewBroadcast(). Any other failure aborts the
+                    // whole batch.
+                    Log.e(TAG, "failed to insert new broadcast into database", e);
+                    rowIds[i] = -1;
+                }
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        return rowIds;
+    }
+
+    /**
+     * Bind the columns of {@link #INSERT_BROADCAST_SQL}. This matches the values of
+     * {@link #getContentValues(SmsCbMessage)}, with NULL for the values that are left out there.
+     */
+    private static void bindBroadcast(SQLiteStatement statement, SmsCbMessage message) {
+        statement.clearBindings();
+        SmsCbLocation location = message.getLocation();
+        SmsCbEtwsInfo etwsInfo = message.getEtwsWarningInfo();
+        SmsCbCmasInfo cmasInfo = message.getCmasWarningInfo();
+        int index = 1;
+        statement.bindLong(index++, message.getSlotIndex());
+        statement.bindLong(index++, message.getGeographicalScope());
+        bindString(statement, index++, location.getPlmn());
+        if (location.getLac() != -1) {
+            statement.bindLong(index, location.getLac());
+        }
+        index++;
+        if (location.getCid() != -1) {
+            statement.bindLong(index, location.getCid());
+        }
+        index++;
+        statement.bindLong(index++, message.getSerialNumber());
+        statement.bindLong(index++, message.getServiceCategory());
+        bindString(statement, index++, message.getLanguageCode());
+        bindString(statement, index++, message.getMessageBody());
+        statement.bindLong(index++, message.getReceivedTime());
+        statement.bindLong(index++, message.getMessageFormat());
+        statement.bindLong(index++, message.getMessagePriority());
+        if (etwsInfo != null) {
+            statement.bindLong(index, etwsInfo.getWarningType());
+        }
+        index++;
+        if (cmasInfo != null) {
+            statement.bindLong(index++, cmasInfo.getMessageClass());
+            statement.bindLong(index++, cmasInfo.getCategory());
+            statement.bindLong(index++, cmasInfo.getResponseType());
+            statement.bindLong(index++, cmasInfo.getSeverity());
+            statement.bindLong(index++, cmasInfo.getUrgency());
+            statement.bindLong(index, cmasInfo.getCertainty());
+        }
+    }
+
+    private static void bindString(SQLiteStatement statement, int index, String value) {
+        if (value != null) {
+            statement.bindString(index, value);
+        }
+    }
+
+    /**
+     * Provider methods, only available to the app itself:
+     * {@link #METHOD_INSERT_BROADCASTS} inserts {@link #EXTRA_MESSAGES} in one transaction and
+     * returns their {@link #EXTRA_ROW_IDS}. {@link #METHOD_MARK_READ} marks the broadcasts of
+     * {@link #EXTRA_ROW_IDS} as read. {@link #METHOD_MARK_ALL_READ} marks the broadcasts
+     * delivered up to the time given as argument as read, and {@link #METHOD_GET_READ_WATERMARK}
+     * returns that time as {@link #EXTRA_READ_WATERMARK}. {@link #METHOD_COUNT_UNREAD} returns
+     * {@link #EXTRA_UNREAD_COUNT}, and {@link #METHOD_GET_COUNTERS} the result of
+     * {@link #getCounters()}.
+     * @param method the method to call
+     * @param arg the delivery time for {@link #METHOD_MARK_ALL_READ}, unused otherwise
+     * @param extras the arguments of the method
+     * @return the result of the method
+     */
+    @Override
+    public Bundle call(String method, String arg, Bundle extras) {
+        switch (method) {
+            case METHOD_INSERT_BROADCASTS:
+            case METHOD_MARK_READ:
+            case METHOD_MARK_ALL_READ:
+            case METHOD_GET_READ_WATERMARK:
+            case METHOD_COUNT_UNREAD:
+            case METHOD_GET_COUNTERS:
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown method: " + method);
+        }
+        if (Binder.getCallingUid() != Process.myUid()) {
+            throw new SecurityException(method + " not allowed");
+        }
+        Bundle result = new Bundle();
+        boolean changed = false;
+        if (METHOD_INSERT_BROADCASTS.equals(method)) {
+            ArrayList<SmsCbMessage> messages = extras != null
+                    ? extras.getParcelableArrayList(EXTRA_MESSAGES) : null;
+            if (messages == null) {
+                throw new IllegalArgumentException("No messages to insert");
+            }
+            long[] rowIds = insertNewBroadcasts(messages);
+            result.putLongArray(EXTRA_ROW_IDS, rowIds);
+            changed = rowIds.length > 0;
+        } else if (METHOD_MARK_READ.equals(method)) {
+            long[] rowIds = extras != null ? extras.getLongArray(EXTRA_ROW_IDS) : null;
+            if (rowIds == null) {
+                throw new IllegalArgumentException("No broadcasts to mark read");
+            }
+            changed = markBroadcastsRead(rowIds);
+        } else if (METHOD_MARK_ALL_READ.equals(method)) {
+            long deliveryTime;
+            try {
+                deliveryTime = arg != null ? Long.parseLong(arg) : getLatestDeliveryTime();
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid delivery time: " + arg);
+            }
+            changed = markAllBroadcastsRead(deliveryTime);
+            result.putLong(EXTRA_READ_WATERMARK, getReadWatermark());
+        } else if (METHOD_GET_READ_WATERMARK.equals(method)) {
+            result.putLong(EXTRA_READ_WATERMARK, getReadWatermark());
+        } else if (METHOD_COUNT_UNREAD.equals(method)) {
+            result.putInt(EXTRA_UNREAD_COUNT, countUnreadBroadcasts());
+        } else {
+            result = getCounters();
+        }
+        if (changed) {
+            getContext().getContentResolver().notifyChange(CONTENT_URI, null, false);
+        }
+        return result;
+    }
+
     /**
      * Internal method to delete a cell broadcast by row ID and notify observers.
      * @param rowId the row ID of the broadcast to delete
@@ -319,56 +716,221 @@ public class CellBroadcastContentProvider extends ContentProvider {
         }
     }
 
-    /** Callback for users of AsyncCellBroadcastOperation. */
-    interface CellBroadcastOperation {
-        /**
-         * Perform an operation using the specified provider.
-         * @param provider the CellBroadcastContentProvider to use
-         * @return true if any rows were changed, false otherwise
-         */
-        boolean execute(CellBroadcastContentProvider provider);
+    /**
+     * Internal method to mark broadcasts as read by row ID. Each row is a primary key update of
+     * the same compiled statement, in one transaction. The caller is responsible for notifying
+     * observers.
+     *
+     * @param rowIds the row IDs of the broadcasts to mark read
+     * @return true if the database was updated, false otherwise
+     */
+    public boolean markBroadcastsRead(long... rowIds) {
+        if (rowIds.length == 0) {
+            return false;
+        }
+        SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        int rowCount = 0;
+        db.beginTransaction();
+        try (SQLiteStatement statement = db.compileStatement("UPDATE "
+                + CellBroadcastDatabaseHelper.TABLE_NAME + " SET "
+                + Telephony.CellBroadcasts.MESSAGE_READ + "=1 WHERE "
+                + Telephony.CellBroadcasts._ID + "=?")) {
+            for (long rowId : rowIds) {
+                statement.bindLong(1, rowId);
+                rowCount += statement.executeUpdateDelete();
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        if (rowCount != 0) {
+            return true;
+        } else {
+            Log.e(TAG, "failed to mark broadcasts read: " + Arrays.toString(rowIds));
+            return false;
+        }
+    }
+
+    /**
+     * Read watermark: every broadcast delivered at or before it is read, whatever its read
+     * column says. The read column only records the broadcasts marked read one by one after the
+     * watermark, so marking all broadcasts read does not touch their rows.
+     *
+     * @return the delivery time up to which all broadcasts are read, 0 if none
+     */
+    public long getReadWatermark() {
+        long watermark = mReadWatermark;
+        if (watermark < 0) {
+            watermark = cacheReadWatermark(queryReadWatermark(mOpenHelper.getReadableDatabase()));
+        }
+        return watermark;
+    }
+
+    /** @return the read watermark written in the database */
+    private static long queryReadWatermark(SQLiteDatabase db) {
+        return DatabaseUtils.longForQuery(db, "SELECT IFNULL(MAX("
+                + CellBroadcastDatabaseHelper.METADATA_VALUE + "),0) FROM "
+                + CellBroadcastDatabaseHelper.METADATA_TABLE_NAME + " WHERE "
+                + CellBroadcastDatabaseHelper.METADATA_NAME + "=?",
+                new String[]{CellBroadcastDatabaseHelper.METADATA_READ_WATERMARK});
     }
 
     /**
-     * Async task to call this content provider's internal methods on a background thread.
-     * The caller supplies the CellBroadcastOperation object to call for this provider.
+     * Update the cached read watermark, unless it is already further, e.g. after a concurrent
+     * call read an older watermark.
+     *
+     * @return the cached read watermark
      */
-    static class AsyncCellBroadcastTask extends AsyncTask<CellBroadcastOperation, Void, Void> {
-        /** Reference to this app's content resolver. */
-        private ContentResolver mContentResolver;
+    private synchronized long cacheReadWatermark(long watermark) {
+        if (watermark > mReadWatermark) {
+            mReadWatermark = watermark;
+        }
+        return mReadWatermark;
+    }
 
-        AsyncCellBroadcastTask(ContentResolver contentResolver) {
-            mContentResolver = contentResolver;
+    /**
+     * Internal method to mark all broadcasts delivered up to a time as read, with a single write
+     * of the read watermark. The watermark never moves back: it is compared with the one written
+     * in the database within the write transaction, so that concurrent calls are serialized by
+     * the database. The caller is responsible for notifying observers.
+     *
+     * @param deliveryTime the delivery time up to which broadcasts are read
+     * @return true if the watermark moved, false otherwise
+     */
+    public boolean markAllBroadcastsRead(long deliveryTime) {
+        // The cached watermark is never ahead of the written one
+        if (deliveryTime <= getReadWatermark()) {
+            return false;
+        }
+        SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        ContentValues cv = new ContentValues(2);
+        cv.put(CellBroadcastDatabaseHelper.METADATA_NAME,
+                CellBroadcastDatabaseHelper.METADATA_READ_WATERMARK);
+        cv.put(CellBroadcastDatabaseHelper.METADATA_VALUE, deliveryTime);
+        db.beginTransaction();
+        try {
+            long watermark = queryReadWatermark(db);
+            if (deliveryTime <= watermark) {
+                cacheReadWatermark(watermark);
+                return false;
+            }
+            CellBroadcastDatabaseHelper.markCountersRead(db, watermark, deliveryTime);
+            if (db.insertWithOnConflict(CellBroadcastDatabaseHelper.METADATA_TABLE_NAME, null,
+                    cv, SQLiteDatabase.CONFLICT_REPLACE) < 0) {
+                Log.e(TAG, "failed to move the read watermark to " + deliveryTime);
+                return false;
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
         }
+        cacheReadWatermark(deliveryTime);
+        return true;
+    }
 
-        /**
-         * Perform a generic operation on the CellBroadcastContentProvider.
-         * @param params the CellBroadcastOperation object to call for this provider
-         * @return void
-         */
-        @Override
-        protected Void doInBackground(CellBroadcastOperation... params) {
-            ContentProviderClient cpc = mContentResolver.acquireContentProviderClient(
-                    CellBroadcastContentProvider.CB_AUTHORITY);
-            CellBroadcastContentProvider provider = (CellBroadcastContentProvider)
-                    cpc.getLocalContentProvider();
-
-            if (provider != null) {
-                try {
-                    boolean changed = params[0].execute(provider);
-                    if (changed) {
-                        Log.d(TAG, "database changed: notifying observers...");
-                        mContentResolver.notifyChange(CONTENT_URI, null, false);
-                    }
-                } finally {
-                    cpc.release();
+    /**
+     * @return the number of unread broadcasts, i.e. not marked read and delivered after the read
+     * watermark, from the counters
+     */
+    public int countUnreadBroadcasts() {
+        // Every broadcast has a slot index, so the slot counters add up to all broadcasts
+        return (int) DatabaseUtils.longForQuery(mOpenHelper.getReadableDatabase(),
+                "SELECT IFNULL(SUM(" + CellBroadcastDatabaseHelper.COUNTERS_UNREAD + "),0) FROM "
+                + CellBroadcastDatabaseHelper.COUNTERS_TABLE_NAME + " WHERE "
+                + CellBroadcastDatabaseHelper.COUNTERS_COLUMN + "=?",
+                new String[]{Telephony.CellBroadcasts.SLOT_INDEX});
+    }
+
+    /**
+     * Get the counters maintained on write, from the few rows of the counters table rather than
+     * from the broadcasts table. The result holds {@link #EXTRA_TOTAL_COUNT} and
+     * {@link #EXTRA_UNREAD_COUNT} over all broadcasts, and for each of
+     * {@link CellBroadcastDatabaseHelper#COUNTED_COLUMNS} a Bundle under the column name, which
+     * maps each value of the column (as a string, -1 for null) to an int array of the number of
+     * broadcasts and of unread broadcasts.
+     *
+     * @return the counters
+     */
+    public @NonNull Bundle getCounters() {
+        Bundle result = new Bundle();
+        int total = 0;
+        int unread = 0;
+        try (Cursor cursor = mOpenHelper.getReadableDatabase().query(
+                CellBroadcastDatabaseHelper.COUNTERS_TABLE_NAME,
+                new String[]{CellBroadcastDatabaseHelper.COUNTERS_COLUMN,
+                        CellBroadcastDatabaseHelper.COUNTERS_VALUE,
+                        CellBroadcastDatabaseHelper.COUNTERS_TOTAL,
+                        CellBroadcastDatabaseHelper.COUNTERS_UNREAD},
+                null, null, null, null, null)) {
+            while (cursor.moveToNext()) {
+                String column = cursor.getString(0);
+                Bundle counters = result.getBundle(column);
+                if (counters == null) {
+                    counters = new Bundle();
+                    result.putBundle(column, counters);
+                }
+                counters.putIntArray(Long.toString(cursor.getLong(1)),
+                        new int[]{cursor.getInt(2), cursor.getInt(3)});
+                if (Telephony.CellBroadcasts.SLOT_INDEX.equals(column)) {
+                    total += cursor.getInt(2);
+                    unread += cursor.getInt(3);
                 }
-            } else {
-                Log.e(TAG, "getLocalContentProvider() returned null");
             }
+        }
+        result.putInt(EXTRA_TOTAL_COUNT, total);
+        result.putInt(EXTRA_UNREAD_COUNT, unread);
+        return result;
+    }
 
-            mContentResolver = null;    // free reference to content resolver
-            return null;
+    /** @return the latest delivery time of the broadcasts, 0 if there are none */
+    private long getLatestDeliveryTime() {
+        return DatabaseUtils.longForQuery(mOpenHelper.getReadableDatabase(), "SELECT IFNULL(MAX("
+                + Telephony.CellBroadcasts.DELIVERY_TIME + "),0) FROM "
+                + CellBroadcastDatabaseHelper.TABLE_NAME, null);
+    }
+
+    /**
+     * Get the read watermark of the app's provider, see {@link #getReadWatermark()}.
+     *
+     * @param context Context
+     * @return the delivery time up to which all broadcasts are read, 0 if none or if the provider
+     * is not available
+     */
+    public static long getReadWatermark(@NonNull Context context) {
+        try {
+            Bundle result = context.getContentResolver().call(CONTENT_URI,
+                    METHOD_GET_READ_WATERMARK, null, null);
+            return result != null ? result.getLong(EXTRA_READ_WATERMARK) : 0;
+        } catch (RuntimeException e) {
+            Log.e(TAG, "failed to get the read watermark: " + e);
+            return 0;
         }
     }
+
+    /**
+     * Count the unread broadcasts of the app's provider, see {@link #countUnreadBroadcasts()}.
+     *
+     * @param context Context
+     * @return the number of unread broadcasts, 0 if the provider is not available
+     */
+    public static int countUnreadBroadcasts(@NonNull Context context) {
+        try {
+            Bundle result = context.getContentResolver().call(CONTENT_URI,
+                    METHOD_COUNT_UNREAD, null, null);
+            return result != null ? result.getInt(EXTRA_UNREAD_COUNT) : 0;
+        } catch (RuntimeException e) {
+            Log.e(TAG, "failed to count the unread broadcasts: " + e);
+            return 0;
+        }
+    }
+
+    /** Callback for users of {@link CellBroadcastDatabaseExecutor}. */
+    public interface CellBroadcastOperation {
+        /**
+         * Perform an operation using the specified provider.
+         * @param provider the CellBroadcastContentProvider to use
+         * @return true if any rows were changed, false otherwise
+         */
+        boolean execute(CellBroadcastContentProvider provider);
+    }
 }
@@ -34,11 +34,38 @@ import android.widget.CursorAdapter;
  */
 public class CellBroadcastCursorAdapter extends CursorAdapter {
 
+    /** Read watermark of the cursor's broadcasts, see {@link #setReadWatermark}. */
+    private long mReadWatermark;
+
     public CellBroadcastCursorAdapter(Context context) {
         // don't set FLAG_AUTO_REQUERY or FLAG_REGISTER_CONTENT_OBSERVER
         super(context, null, 0);
     }
 
+    /**
+     * Set the read watermark loaded along with the cursor, so that binding a row does not query
+     * it. See {@link CellBroadcastContentProvider#getReadWatermark()}.
+     *
+     * @param readWatermark the delivery time up to which all broadcasts are read
+     */
+    public void setReadWatermark(long readWatermark) {
+        mReadWatermark = readWatermark;
+    }
+
+    /**
+     * @return whether the broadcast at the cursor's position was read, from its row, the read
+     * watermark and the pending read marks. Always false for cursors without read state, i.e.
+     * the history from cell broadcast service.
+     */
+    private boolean isRead(Context context, Cursor cursor, SmsCbMessage message) {
+        int readIndex = cursor.getColumnIndex(Telephony.CellBroadcasts.MESSAGE_READ);
+        if (readIndex < 0) return false;
+        return cursor.getInt(readIndex) != 0 || message.getReceivedTime() <= mReadWatermark
+                || CellBroadcastMarkBuffer.getInstance().isReadPending(context,
+                        cursor.getLong(cursor.getColumnIndexOrThrow(Telephony.CellBroadcasts._ID)),
+                        message.getReceivedTime());
+    }
+
     /**
      * Makes a new view to hold the data pointed to by cursor.
      * @param context Interface to application's global information
@@ -55,7 +82,7 @@ public class CellBroadcastCursorAdapter extends CursorAdapter {
         CellBroadcastListItem listItem = (CellBroadcastListItem) factory.inflate(
                     R.layout.cell_broadcast_list_item, parent, false);
 
-        listItem.bind(message);
+        listItem.bind(message, isRead(context, cursor, message));
         return listItem;
     }
 
@@ -215,6 +242,6 @@ public class CellBroadcastCursorAdapter extends CursorAdapter {
     public void bindView(View view, Context context, Cursor cursor) {
         SmsCbMessage message = createFromCursor(context, cursor);
         CellBroadcastListItem listItem = (CellBroadcastListItem) view;
-        listItem.bind(message);
+        listItem.bind(message, isRead(context, cursor, message));
     }
 }
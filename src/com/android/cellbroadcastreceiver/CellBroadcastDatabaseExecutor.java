@@ -0,0 +1,337 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.cellbroadcastreceiver;
+
+import android.annotation.NonNull;
+import android.annotation.Nullable;
+import android.content.ContentProviderClient;
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.sqlite.SQLiteDatabase;
+import android.util.Log;
+
+import com.android.cellbroadcastreceiver.CellBroadcastContentProvider.CellBroadcastOperation;
+import com.android.internal.annotations.GuardedBy;
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Single writer for the database of {@link CellBroadcastContentProvider}.
+ *
+ * Operations are queued and run on one long-lived worker thread, bound to the app's local
+ * provider. The operations queued while the worker is busy are flushed together: they run in one
+ * shared transaction, and observers are notified once per flush instead of once per operation.
+ * If an operation of a flush fails, the shared transaction is rolled back and the operations of
+ * the flush are run again one by one, so that a failure only affects its own operation.
+ *
+ * Urgent operations, i.e. writing received alerts, are queued in a lane of their own and go first
+ * into the next flush, ahead of the bulk deletes and maintenance steps queued before them.
+ *
+ * Exclusive operations, i.e. statements which cannot run in a transaction, run in a flush of
+ * their own once no urgent operation is queued.
+ *
+ * The provider client is released whenever the queue runs empty.
+ */
+public final class CellBroadcastDatabaseExecutor {
+
+    private static final String TAG = "CBDatabaseExecutor";
+
+    /** Maximum number of operations sharing a transaction. */
+    private static final int MAX_FLUSH_SIZE = 64;
+
+    /** Idle time after which the worker thread is released. */
+    private static final long WORKER_KEEP_ALIVE_MS = 30 * 1000;
+
+    private static final CellBroadcastDatabaseExecutor sInstance =
+            new CellBroadcastDatabaseExecutor();
+
+    /** A queued operation. */
+    private static final class Request {
+        final ContentResolver mResolver;
+        final CellBroadcastOperation mOperation;
+        final boolean mExclusive;
+        final CompletableFuture<Boolean> mFuture = new CompletableFuture<>();
+
+        Request(ContentResolver resolver, CellBroadcastOperation operation, boolean exclusive) {
+            mResolver = resolver;
+            mOperation = operation;
+            mExclusive = exclusive;
+        }
+    }
+
+    private final Object mLock = new Object();
+
+    @GuardedBy("mLock")
+    private final ArrayDeque<Request> mQueue = new ArrayDeque<>();
+
+    @GuardedBy("mLock")
+    private final ArrayDeque<Request> mUrgentQueue = new ArrayDeque<>();
+
+    @GuardedBy("mLock")
+    private boolean mFlushScheduled;
+
+    @GuardedBy("mLock")
+    private long mFlushCount;
+
+    @GuardedBy("mLock")
+    private long mOperationCount;
+
+    private final ThreadPoolExecutor mExecutor;
+
+    // Only accessed on the worker thread
+    private ContentResolver mBoundResolver;
+    private ContentProviderClient mClient;
+
+    @VisibleForTesting
+    public CellBroadcastDatabaseExecutor() {
+        mExecutor = new ThreadPoolExecutor(1, 1, WORKER_KEEP_ALIVE_MS, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<>(), r -> new Thread(r, "CBDatabase"));
+        mExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * @return The process-wide executor
+     */
+    public static @NonNull CellBroadcastDatabaseExecutor getInstance() {
+        return sInstance;
+    }
+
+    /**
+     * Queue an operation on this app's provider.
+     *
+     * @param context Context
+     * @param operation The operation, run on the worker thread
+     * @return Completed with the result of the operation, i.e. whether any rows were changed,
+     * once it ran. Completed exceptionally if the operation failed or the provider is not
+     * available.
+     */
+    public @NonNull CompletableFuture<Boolean> execute(@NonNull Context context,
+            @NonNull CellBroadcastOperation operation) {
+        return enqueue(context, operation, false, false);
+    }
+
+    /**
+     * Queue an operation on this app's provider ahead of the operations that are not urgent. It
+     * still waits for the flush that is running, if any.
+     *
+     * @param context Context
+     * @param operation The operation, run on the worker thread
+     * @return Completed like the future returned by {@link #execute(Context,
+     * CellBroadcastOperation)}
+     */
+    public @NonNull CompletableFuture<Boolean> executeUrgent(@NonNull Context context,
+            @NonNull CellBroadcastOperation operation) {
+        return enqueue(context, operation, true, false);
+    }
+
+    /**
+     * Queue an operation on this app's provider which runs alone and outside of a transaction,
+     * e.g. VACUUM. It waits for the urgent operations queued before it starts, but the ones
+     * queued while it runs wait for it to complete.
+     *
+     * @param context Context
+     * @param operation The operation, run on the worker thread
+     * @return Completed like the future returned by {@link #execute(Context,
+     * CellBroadcastOperation)}
+     */
+    public @NonNull CompletableFuture<Boolean> executeExclusive(@NonNull Context context,
+            @NonNull CellBroadcastOperation operation) {
+        return enqueue(context, operation, false, true);
+    }
+
+    private CompletableFuture<Boolean> enqueue(Context context, CellBroadcastOperation operation,
+            boolean urgent, boolean exclusive) {
+        Request request = new Request(context.getContentResolver(), operation, exclusive);
+        synchronized (mLock) {
+            (urgent ? mUrgentQueue : mQueue).add(request);
+            if (!mFlushScheduled) {
+                mFlushScheduled = true;
+                mExecutor.execute(this::flush);
+            }
+        }
+        return request.mFuture;
+    }
+
+    private void flush() {
+        ArrayList<Request> requests = new ArrayList<>();
+        synchronized (mLock) {
+            while (!mUrgentQueue.isEmpty() && requests.size() < MAX_FLUSH_SIZE) {
+                requests.add(mUrgentQueue.poll());
+            }
+            if (requests.isEmpty() && !mQueue.isEmpty() && mQueue.peek().mExclusive) {
+                requests.add(mQueue.poll());
+            } else {
+                while (!mQueue.isEmpty() && !mQueue.peek().mExclusive
+                        && requests.size() < MAX_FLUSH_SIZE) {
+                    requests.add(mQueue.poll());
+                }
+            }
+            if (mQueue.isEmpty() && mUrgentQueue.isEmpty()) {
+                mFlushScheduled = false;
+            } else {
+                // The rest goes into the next flush, queued behind this one.
+                mExecutor.execute(this::flush);
+            }
+            mFlushCount++;
+            mOperationCount += requests.size();
+        }
+
+        // Run consecutive operations on the same resolver together.
+        int start = 0;
+        while (start < requests.size()) {
+            ContentResolver resolver = requests.get(start).mResolver;
+            int end = start + 1;
+            while (end < requests.size() && requests.get(end).mResolver == resolver) {
+                end++;
+            }
+            run(resolver, requests.subList(start, end));
+            start = end;
+        }
+
+        synchronized (mLock) {
+            if (mFlushScheduled) return;
+        }
+        // Nothing is queued. A request queued from now on schedules a flush behind this one,
+        // which binds again.
+        unbind();
+    }
+
+    private void run(ContentResolver resolver, List<Request> requests) {
+        CellBroadcastContentProvider provider = bind(resolver);
+        if (provider == null) {
+            Log.e(TAG, "getLocalContentProvider() returned null");
+            for (Request request : requests) {
+                request.mFuture.completeExceptionally(
+                        new IllegalStateException("Provider not available"));
+            }
+            return;
+        }
+
+        if (requests.size() == 1 && requests.get(0).mExclusive) {
+            runExclusive(resolver, provider, requests.get(0));
+            return;
+        }
+        boolean[] results = new boolean[requests.size()];
+        boolean committed = true;
+        try {
+            runInTransaction(provider, requests, results);
+        } catch (RuntimeException e) {
+            Log.e(TAG, "Flush of " + requests.size()
+                    + " operations failed, running them one by one", e);
+            committed = false;
+        }
+
+        boolean changed = false;
+        boolean[] result = new boolean[1];
+        for (int i = 0; i < results.length; i++) {
+            Request request = requests.get(i);
+            if (!committed) {
+                try {
+                    runInTransaction(provider, requests.subList(i, i + 1), result);
+                    results[i] = result[0];
+                } catch (RuntimeException e) {
+                    Log.e(TAG, "Operation failed", e);
+                    request.mFuture.completeExceptionally(e);
+                    continue;
+                }
+            }
+            changed |= results[i];
+            request.mFuture.complete(results[i]);
+        }
+
+        if (changed) {
+            Log.d(TAG, "database changed: notifying observers...");
+            resolver.notifyChange(CellBroadcastContentProvider.CONTENT_URI, null, false);
+        }
+    }
+
+    private static void runExclusive(ContentResolver resolver,
+            CellBroadcastContentProvider provider, Request request) {
+        boolean changed;
+        try {
+            changed = request.mOperation.execute(provider);
+        } catch (RuntimeException e) {
+            Log.e(TAG, "Exclusive operation failed", e);
+            request.mFuture.completeExceptionally(e);
+            return;
+        }
+        request.mFuture.complete(changed);
+        if (changed) {
+            resolver.notifyChange(CellBroadcastContentProvider.CONTENT_URI, null, false);
+        }
+    }
+
+    /**
+     * Run operations in one transaction, which is rolled back if any of them throws.
+     *
+     * @param results Receives the result of the i-th operation at index i
+     */
+    private static void runInTransaction(CellBroadcastContentProvider provider,
+            List<Request> requests, boolean[] results) {
+        SQLiteDatabase db = provider.mOpenHelper.getWritableDatabase();
+        db.beginTransaction();
+        try {
+            for (int i = 0; i < requests.size(); i++) {
+                results[i] = requests.get(i).mOperation.execute(provider);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * Get the local provider of a resolver, keeping the provider client acquired while the same
+     * resolver is used.
+     */
+    private @Nullable CellBroadcastContentProvider bind(ContentResolver resolver) {
+        if (mClient == null || mBoundResolver != resolver) {
+            if (mClient != null) {
+                mClient.release();
+            }
+            mBoundResolver = resolver;
+            mClient = resolver.acquireContentProviderClient(
+                    CellBroadcastContentProvider.CB_AUTHORITY);
+        }
+        return mClient != null
+                ? (CellBroadcastContentProvider) mClient.getLocalContentProvider() : null;
+    }
+
+    private void unbind() {
+        if (mClient != null) {
+            mClient.release();
+            mClient = null;
+        }
+        mBoundResolver = null;
+    }
+
+    @Override
+    public String toString() {
+        synchronized (mLock) {
+            return "CellBroadcastDatabaseExecutor:[queued=" + mQueue.size()
+                    + ",urgent=" + mUrgentQueue.size()
+                    + ",flushes=" + mFlushCount + ",operations=" + mOperationCount + "]";
+        }
+    }
+}
@@ -21,11 +21,13 @@ import android.content.ContentProviderClient;
 import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.os.RemoteException;
 import android.provider.Telephony;
 import android.provider.Telephony.CellBroadcasts;
+import android.text.TextUtils;
 import android.util.Log;
 import com.android.internal.annotations.VisibleForTesting;
 
@@ -43,6 +45,60 @@ public class CellBroadcastDatabaseHelper extends SQLiteOpenHelper {
     @VisibleForTesting
     public static final String TABLE_NAME = "broadcasts";
 
+    /** Table of named values describing the broadcasts table as a whole. */
+    @VisibleForTesting
+    public static final String METADATA_TABLE_NAME = "metadata";
+
+    /** Column of {@link #METADATA_TABLE_NAME}: name of the value. */
+    public static final String METADATA_NAME = "name";
+
+    /** Column of {@link #METADATA_TABLE_NAME}: the value. */
+    public static final String METADATA_VALUE = "value";
+
+    /**
+     * Name of the read watermark in {@link #METADATA_TABLE_NAME}: every broadcast delivered at
+     * or before it is read.
+     */
+    public static final String METADATA_READ_WATERMARK = "read_watermark";
+
+    /**
+     * Table of the number of broadcasts and of unread broadcasts per value of each of the
+     * {@link #COUNTED_COLUMNS}, kept up to date by triggers on the broadcasts table.
+     */
+    @VisibleForTesting
+    public static final String COUNTERS_TABLE_NAME = "counters";
+
+    /** Column of {@link #COUNTERS_TABLE_NAME}: name of the counted column. */
+    public static final String COUNTERS_COLUMN = "counted_column";
+
+    /** Column of {@link #COUNTERS_TABLE_NAME}: value of the counted column, -1 for null. */
+    public static final String COUNTERS_VALUE = "value";
+
+    /** Column of {@link #COUNTERS_TABLE_NAME}: number of broadcasts. */
+    public static final String COUNTERS_TOTAL = "total";
+
+    /** Column of {@link #COUNTERS_TABLE_NAME}: number of unread broadcasts. */
+    public static final String COUNTERS_UNREAD = "unread";
+
+    /** Columns of the broadcasts table the broadcasts are counted by. */
+    public static final String[] COUNTED_COLUMNS = {
+            Telephony.CellBroadcasts.SERVICE_CATEGORY,
+            Telephony.CellBroadcasts.SLOT_INDEX,
+            Telephony.CellBroadcasts.CMAS_MESSAGE_CLASS
+    };
+
+    /**
+     * Full-text index of the message bodies of the broadcasts table, an FTS4 table with the
+     * broadcasts table as external content. The docid of a row is the row ID of its broadcast.
+     */
+    @VisibleForTesting
+    public static final String SEARCH_TABLE_NAME = "broadcasts_fts";
+
+    /** The read watermark, 0 if none. */
+    private static final String READ_WATERMARK_QUERY = "(SELECT IFNULL(MAX(" + METADATA_VALUE
+            + "),0) FROM " + METADATA_TABLE_NAME + " WHERE " + METADATA_NAME + "='"
+            + METADATA_READ_WATERMARK + "')";
+
     /*
      * Query columns for instantiating SmsCbMessage.
      */
@@ -107,25 +163,218 @@ public class CellBroadcastDatabaseHelper extends SQLiteOpenHelper {
      * Database version 10: adds ETWS and CMAS columns and CDMA support (support removed)
      * Database version 11: adds delivery time index
      * Database version 12: add slotIndex
+     * Database version 13: replace the delivery time index with indexes matching the queries
+     * Database version 14: add the metadata table
+     * Database version 15: add the counters table
+     * Database version 16: add the full-text search index
      */
-    private static final int DATABASE_VERSION = 12;
+    private static final int DATABASE_VERSION = 16;
+
+    /**
+     * Page size of new databases. Rows are a few hundred bytes, so the default page size of the
+     * file system keeps a page per read without wasting cache on large pages.
+     */
+    private static final int PAGE_SIZE = 4096;
+
+    /** Page cache of each connection, in KiB (negative values of cache_size are KiB). */
+    private static final int CACHE_SIZE_KIB = 1024;
+
+    /**
+     * Number of WAL pages after which a commit checkpoints the log into the database. Larger than
+     * the platform default so that a burst of alerts is not slowed down by checkpoints, while
+     * keeping the log at about 1MB.
+     */
+    private static final int WAL_AUTOCHECKPOINT_PAGES = 256;
 
     private final Context mContext;
     final boolean mLegacyProvider;
 
     @VisibleForTesting
     public CellBroadcastDatabaseHelper(Context context, boolean legacyProvider) {
-        super(context, DATABASE_NAME, null, DATABASE_VERSION);
+        this(context, legacyProvider, DATABASE_NAME);
+    }
+
+    @VisibleForTesting
+    public CellBroadcastDatabaseHelper(Context context, boolean legacyProvider,
+            String databaseName) {
+        super(context, databaseName, null, DATABASE_VERSION);
         mContext = context;
         mLegacyProvider = legacyProvider;
     }
 
+    /**
+     * Configure the connection before the database is created or upgraded. Write-ahead logging
+     * lets the history list read while alerts are inserted, instead of serializing the two. With
+     * WAL, synchronous=NORMAL only syncs at checkpoints: a commit survives an app crash, and at
+     * worst the last commits are lost on power loss, which is acceptable since alerts are
+     * displayed from the broadcast intent rather than from the database.
+     */
+    @Override
+    public void onConfigure(SQLiteDatabase db) {
+        // Only effective before the database is first written, or the table is created. Existing
+        // databases are converted to incremental auto-vacuum by the maintenance job.
+        db.setPageSize(PAGE_SIZE);
+        db.execSQL("PRAGMA auto_vacuum=INCREMENTAL;");
+        db.enableWriteAheadLogging();
+        db.execSQL("PRAGMA synchronous=NORMAL;");
+        db.execSQL("PRAGMA cache_size=-" + CACHE_SIZE_KIB + ";");
+        // This pragma returns the new value, so it cannot go through execSQL()
+        DatabaseUtils.longForQuery(db, "PRAGMA wal_autocheckpoint=" + WAL_AUTOCHECKPOINT_PAGES
+                + ";", null);
+    }
+
+    /**
+     * Create the indexes of the cell broadcast table. This is exposed so the unit test can
+     * construct its own in-memory database to match the cell broadcast db.
+     *
+     * Delivery time identifies a message for the history list items and the read marks, and
+     * orders the history list; the read flag is included so that list items read it from the
+     * index alone. Service category and delivery time select the oldest messages of a category
+     * for the retention policy.
+     */
+    @VisibleForTesting
+    public static void createIndexes(SQLiteDatabase db) {
+        db.execSQL("CREATE INDEX IF NOT EXISTS deliveryTimeReadIndex ON " + TABLE_NAME
+                + " (" + Telephony.CellBroadcasts.DELIVERY_TIME + ","
+                + Telephony.CellBroadcasts.MESSAGE_READ + ");");
+        db.execSQL("CREATE INDEX IF NOT EXISTS serviceCategoryIndex ON " + TABLE_NAME
+                + " (" + Telephony.CellBroadcasts.SERVICE_CATEGORY + ","
+                + Telephony.CellBroadcasts.DELIVERY_TIME + ");");
+    }
+
+    /**
+     * Create the metadata table. This is exposed so the unit test can construct its own
+     * in-memory database to match the cell broadcast db.
+     */
+    @VisibleForTesting
+    public static void createMetadataTable(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE IF NOT EXISTS " + METADATA_TABLE_NAME + " ("
+                + METADATA_NAME + " TEXT PRIMARY KEY,"
+                + METADATA_VALUE + " INTEGER);");
+    }
+
+    /**
+     * Create the counters table and the triggers which maintain it, within the transactions
+     * changing the broadcasts table, and count the existing broadcasts. This is exposed so the
+     * unit test can construct its own in-memory database to match the cell broadcast db. The
+     * metadata table must exist.
+     */
+    @VisibleForTesting
+    public static void createCounters(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE IF NOT EXISTS " + COUNTERS_TABLE_NAME + " ("
+                + COUNTERS_COLUMN + " TEXT NOT NULL,"
+                + COUNTERS_VALUE + " INTEGER NOT NULL,"
+                + COUNTERS_TOTAL + " INTEGER NOT NULL DEFAULT 0,"
+                + COUNTERS_UNREAD + " INTEGER NOT NULL DEFAULT 0,"
+                + "PRIMARY KEY (" + COUNTERS_COLUMN + "," + COUNTERS_VALUE + ")) WITHOUT ROWID;");
+        db.delete(COUNTERS_TABLE_NAME, null, null);
+        for (String column : COUNTED_COLUMNS) {
+            db.execSQL("INSERT INTO " + COUNTERS_TABLE_NAME + " SELECT '" + column + "',"
+                    + "IFNULL(" + column + ",-1),COUNT(*),SUM(" + isUnread("") + ") FROM "
+                    + TABLE_NAME + " GROUP BY 2;");
+        }
+
+        StringBuilder insert = new StringBuilder();
+        StringBuilder delete = new StringBuilder();
+        StringBuilder update = new StringBuilder();
+        for (String column : COUNTED_COLUMNS) {
+            insert.append(addToCounter(column, "NEW.", "+"));
+            delete.append(addToCounter(column, "OLD.", "-"));
+            update.append(addToCounter(column, "OLD.", "-"))
+                    .append(addToCounter(column, "NEW.", "+"));
+        }
+        String removeEmpty = "DELETE FROM " + COUNTERS_TABLE_NAME + " WHERE "
+                + COUNTERS_TOTAL + "<=0;";
+        db.execSQL("CREATE TRIGGER IF NOT EXISTS countersInsert AFTER INSERT ON " + TABLE_NAME
+                + " BEGIN " + insert + " END;");
+        db.execSQL("CREATE TRIGGER IF NOT EXISTS countersDelete AFTER DELETE ON " + TABLE_NAME
+                + " BEGIN " + delete + removeEmpty + " END;");
+        db.execSQL("CREATE TRIGGER IF NOT EXISTS countersUpdate AFTER UPDATE OF "
+                + Telephony.CellBroadcasts.MESSAGE_READ + ","
+                + Telephony.CellBroadcasts.DELIVERY_TIME + ","
+                + TextUtils.join(",", COUNTED_COLUMNS) + " ON " + TABLE_NAME
+                + " BEGIN " + update + removeEmpty + " END;");
+    }
+
+    /**
+     * Create the full-text search index and the triggers which keep it in sync with the
+     * broadcasts table, and index the existing broadcasts. This is exposed so the unit test can
+     * construct its own in-memory database to match the cell broadcast db.
+     *
+     * The index has no copy of the text, so an indexed row is removed before its broadcast is
+     * deleted or its body changes, while the old body can still be read from the broadcasts
+     * table. Other updates, such as read marks, do not touch the index.
+     */
+    @VisibleForTesting
+    public static void createSearchIndex(SQLiteDatabase db) {
+        String body = Telephony.CellBroadcasts.MESSAGE_BODY;
+        db.execSQL("CREATE VIRTUAL TABLE IF NOT EXISTS " + SEARCH_TABLE_NAME + " USING fts4("
+                + "content=" + TABLE_NAME + "," + body + ");");
+        String remove = " BEGIN DELETE FROM " + SEARCH_TABLE_NAME + " WHERE docid=OLD."
+                + Telephony.CellBroadcasts._ID + "; END;";
+        String add = " BEGIN INSERT INTO " + SEARCH_TABLE_NAME + " (docid," + body
+                + ") VALUES (NEW." + Telephony.CellBroadcasts._ID + ",NEW." + body + "); END;";
+        db.execSQL("CREATE TRIGGER IF NOT EXISTS searchIndexDelete BEFORE DELETE ON "
+                + TABLE_NAME + remove);
+        db.execSQL("CREATE TRIGGER IF NOT EXISTS searchIndexUpdateBefore BEFORE UPDATE OF "
+                + body + " ON " + TABLE_NAME + remove);
+        db.execSQL("CREATE TRIGGER IF NOT EXISTS searchIndexUpdateAfter AFTER UPDATE OF "
+                + body + " ON " + TABLE_NAME + add);
+        db.execSQL("CREATE TRIGGER IF NOT EXISTS searchIndexInsert AFTER INSERT ON "
+                + TABLE_NAME + add);
+        db.execSQL("INSERT INTO " + SEARCH_TABLE_NAME + " (" + SEARCH_TABLE_NAME
+                + ") VALUES ('rebuild');");
+    }
+
+    /**
+     * Subtract the unread broadcasts delivered within a time range from the unread counters,
+     * when the read watermark moves over them. Must be called before the read watermark is
+     * written, in the same transaction.
+     *
+     * @param db the database
+     * @param fromTime the current read watermark
+     * @param toTime the new read watermark
+     */
+    static void markCountersRead(SQLiteDatabase db, long fromTime, long toTime) {
+        for (String column : COUNTED_COLUMNS) {
+            db.execSQL("UPDATE " + COUNTERS_TABLE_NAME + " SET " + COUNTERS_UNREAD + "="
+                    + COUNTERS_UNREAD + "-(SELECT COUNT(*) FROM " + TABLE_NAME + " WHERE "
+                    + "IFNULL(" + Telephony.CellBroadcasts.MESSAGE_READ + ",0)=0 AND "
+                    + Telephony.CellBroadcasts.DELIVERY_TIME + ">? AND "
+                    + Telephony.CellBroadcasts.DELIVERY_TIME + "<=? AND IFNULL(" + column
+                    + ",-1)=" + COUNTERS_TABLE_NAME + "." + COUNTERS_VALUE + ") WHERE "
+                    + COUNTERS_COLUMN + "=?;",
+                    new Object[]{fromTime, toTime, column});
+        }
+    }
+
+    /** Statements of a trigger adding or subtracting a row of the broadcasts table. */
+    private static String addToCounter(String column, String row, String operator) {
+        String where = " WHERE " + COUNTERS_COLUMN + "='" + column + "' AND " + COUNTERS_VALUE
+                + "=IFNULL(" + row + column + ",-1);";
+        return ("+".equals(operator) ? "INSERT OR IGNORE INTO " + COUNTERS_TABLE_NAME + " ("
+                + COUNTERS_COLUMN + "," + COUNTERS_VALUE + ") VALUES ('" + column + "',IFNULL("
+                + row + column + ",-1));" : "")
+                + "UPDATE " + COUNTERS_TABLE_NAME + " SET "
+                + COUNTERS_TOTAL + "=" + COUNTERS_TOTAL + operator + "1,"
+                + COUNTERS_UNREAD + "=" + COUNTERS_UNREAD + operator + isUnread(row) + where;
+    }
+
+    /** Expression which is 1 if a row of the broadcasts table is unread, 0 otherwise. */
+    private static String isUnread(String row) {
+        return "(IFNULL(" + row + Telephony.CellBroadcasts.MESSAGE_READ + ",0)=0 AND IFNULL("
+                + row + Telephony.CellBroadcasts.DELIVERY_TIME + ",0)>" + READ_WATERMARK_QUERY
+                + ")";
+    }
+
     @Override
     public void onCreate(SQLiteDatabase db) {
         db.execSQL(getStringForCellBroadcastTableCreation(TABLE_NAME));
 
-        db.execSQL("CREATE INDEX IF NOT EXISTS deliveryTimeIndex ON " + TABLE_NAME
-                + " (" + Telephony.CellBroadcasts.DELIVERY_TIME + ");");
+        createIndexes(db);
+        createMetadataTable(db);
+        createCounters(db);
+        createSearchIndex(db);
         if (!mLegacyProvider) {
             migrateFromLegacy(db);
         }
@@ -143,6 +392,21 @@ public class CellBroadcastDatabaseHelper extends SQLiteOpenHelper {
             db.execSQL("ALTER TABLE " + TABLE_NAME + " ADD COLUMN "
                     + Telephony.CellBroadcasts.SLOT_INDEX + " INTEGER DEFAULT 0;");
         }
+
+        if (oldVersion < 13) {
+            // deliveryTimeReadIndex starts with the delivery time
+            db.execSQL("DROP INDEX IF EXISTS deliveryTimeIndex;");
+            createIndexes(db);
+        }
+        if (oldVersion < 14) {
+            createMetadataTable(db);
+        }
+        if (oldVersion < 15) {
+            createCounters(db);
+        }
+        if (oldVersion < 16) {
+            createSearchIndex(db);
+        }
     }
 
     /**
@@ -0,0 +1,525 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.cellbroadcastreceiver;
+
+import android.annotation.NonNull;
+import android.annotation.Nullable;
+import android.content.Context;
+import android.telephony.SmsCbLocation;
+import android.telephony.SmsCbMessage;
+import android.util.AtomicFile;
+import android.util.Log;
+
+import com.android.internal.annotations.GuardedBy;
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * Drops retransmissions of cell broadcast messages that were already shown to the user.
+ *
+ * A message is identified by a 64-bit hash of its PLMN, the part of its location that its
+ * geographical scope covers (LAC and CID for cell wide messages, LAC for location area wide ones),
+ * serial number, service category and body. The hashes of the messages seen within the last
+ * {@link #DEFAULT_WINDOW_MS} are kept in an open addressing table of primitive longs, so a lookup
+ * neither allocates nor boxes. The table holds at most {@link #DEFAULT_MAX_ENTRIES} messages; when
+ * it is full, expired entries are dropped first, then the one closest to expiring.
+ *
+ * The table is written to the app's device protected storage after every change, off the caller's
+ * thread, so a retransmission received after the process was restarted is still detected. Expiry
+ * times are wall clock times for the same reason. The persisted table is read on the same thread
+ * through {@link #preload(Context)} when the alert service starts, so the first check usually
+ * finds it loaded.
+ *
+ * Layout of the persisted table, big endian:
+ * <pre>
+ * int magic, int version, int count, count * {long key, long expiry},
+ * long crc32 of everything before it
+ * </pre>
+ */
+public final class CellBroadcastDuplicateDetector {
+
+    private static final String TAG = "CBDuplicateDetector";
+
+    /** Time a message is remembered for. */
+    public static final long DEFAULT_WINDOW_MS = 24 * 60 * 60 * 1000;
+
+    /** Maximum number of messages remembered. */
+    public static final int DEFAULT_MAX_ENTRIES = 1024;
+
+    private static final int MAGIC = 0x43424450; // "CBDP"
+
+    /** Bump whenever the layout or the key computation changes. */
+    @VisibleForTesting
+    public static final int VERSION = 1;
+
+    private static final String FILE_NAME = "cb_duplicates.bin";
+
+    /** Marks a free slot. A message hashing to it uses {@link #EMPTY_REPLACEMENT} instead. */
+    private static final long EMPTY = 0;
+    private static final long EMPTY_REPLACEMENT = 1;
+
+    /** Idle time after which the writer thread is released. */
+    private static final long WRITER_KEEP_ALIVE_MS = 10 * 1000;
+
+    // 64-bit FNV-1a, used for the message key
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private static final CellBroadcastDuplicateDetector sInstance =
+            new CellBroadcastDuplicateDetector(DEFAULT_MAX_ENTRIES, DEFAULT_WINDOW_MS);
+
+    private static volatile boolean sPersistenceEnabled = true;
+
+    private final Object mLock = new Object();
+
+    private final int mMaxEntries;
+
+    private final long mWindowMs;
+
+    /** Message keys, {@link #EMPTY} for free slots. Linear probing, the length is a power of 2. */
+    @GuardedBy("mLock")
+    private final long[] mKeys;
+
+    /** Wall clock time at which the message in the same slot of {@link #mKeys} expires. */
+    @GuardedBy("mLock")
+    private final long[] mExpiry;
+
+    @GuardedBy("mLock")
+    private int mSize;
+
+    @GuardedBy("mLock")
+    private boolean mLoaded;
+
+    @GuardedBy("mLock")
+    private @Nullable File mFile;
+
+    @GuardedBy("mLock")
+    private boolean mWritePending;
+
+    private final ThreadPoolExecutor mWriter;
+
+    /**
+     * @param maxEntries Maximum number of messages remembered
+     * @param windowMs Time a message is remembered for
+     */
+    @VisibleForTesting
+    public CellBroadcastDuplicateDetector(int maxEntries, long windowMs) {
+        mMaxEntries = maxEntries;
+        mWindowMs = windowMs;
+        // Keep the load factor at or below 1/2 so that probe sequences stay short.
+        int capacity = Integer.highestOneBit(Math.max(maxEntries, 1) * 2 - 1) << 1;
+        mKeys = new long[capacity];
+        mExpiry = new long[capacity];
+        mWriter = new ThreadPoolExecutor(1, 1, WRITER_KEEP_ALIVE_MS, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<>(), r -> new Thread(r, "CBDuplicateWriter"));
+        mWriter.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * @return The process-wide detector
+     */
+    public static @NonNull CellBroadcastDuplicateDetector getInstance() {
+        return sInstance;
+    }
+
+    /**
+     * Enable or disable reading and writing the persisted table, e.g. for tests that must not
+     * see the messages of earlier runs.
+     */
+    @VisibleForTesting
+    public static void setPersistenceEnabled(boolean enabled) {
+        sPersistenceEnabled = enabled;
+    }
+
+    /**
+     * Read the persisted table in the background, if it was not read yet.
+     *
+     * @param context Context
+     */
+    public void preload(@NonNull Context context) {
+        synchronized (mLock) {
+            if (mLoaded) return;
+        }
+        mWriter.execute(() -> {
+            synchronized (mLock) {
+                loadIfNeededLocked(context);
+            }
+        });
+    }
+
+    /**
+     * Check if a message was already seen within the window, and remember it if not. If the
+     * persisted table was not preloaded, it is read first.
+     *
+     * @param context Context
+     * @param message The received message
+     * @return {@code true} if the message is a duplicate and should be dropped.
+     */
+    public boolean checkAndAdd(@NonNull Context context, @NonNull SmsCbMessage message) {
+        long key = computeKey(message);
+        boolean duplicate;
+        synchronized (mLock) {
+            loadIfNeededLocked(context);
+            duplicate = checkAndAdd(key, System.currentTimeMillis());
+            if (!duplicate) {
+                scheduleWriteLocked();
+            }
+        }
+        return duplicate;
+    }
+
+    /**
+     * Check if a key was already added and has not expired yet, and add it if not.
+     *
+     * @param key Message key, as returned by {@link #computeKey(SmsCbMessage)}
+     * @param now Current wall clock time
+     * @return {@code true} if the key was present.
+     */
+    @VisibleForTesting
+    public boolean checkAndAdd(long key, long now) {
+        synchronized (mLock) {
+            if (key == EMPTY) key = EMPTY_REPLACEMENT;
+            int slot = findSlotLocked(key);
+            if (mKeys[slot] == key) {
+                if (!isExpiredLocked(slot, now)) {
+                    return true;
+                }
+                // Seen before, but too long ago. Restart the window.
+                mExpiry[slot] = now + mWindowMs;
+                return false;
+            }
+
+            if (mSize >= mMaxEntries) {
+                makeRoomLocked(now);
+                slot = findSlotLocked(key);
+            }
+            mKeys[slot] = key;
+            mExpiry[slot] = now + mWindowMs;
+            mSize++;
+            return false;
+        }
+    }
+
+    /**
+     * @return The number of messages remembered, including expired ones not dropped yet.
+     */
+    public int size() {
+        synchronized (mLock) {
+            return mSize;
+        }
+    }
+
+    /**
+     * Forget all messages, without touching the persisted table. The persisted table is read
+     * again on the next check.
+     */
+    @VisibleForTesting
+    public void reset() {
+        synchronized (mLock) {
+            clearLocked();
+            mLoaded = false;
+        }
+    }
+
+    /**
+     * Compute the key a message is identified by.
+     *
+     * @param message The message
+     * @return The 64-bit key
+     */
+    public static long computeKey(@NonNull SmsCbMessage message) {
+        SmsCbLocation location = message.getLocation();
+        int lac = -1;
+        int cid = -1;
+        switch (message.getGeographicalScope()) {
+            case SmsCbMessage.GEOGRAPHICAL_SCOPE_CELL_WIDE_IMMEDIATE:
+            case SmsCbMessage.GEOGRAPHICAL_SCOPE_CELL_WIDE:
+                cid = location.getCid();
+                // fall through
+            case SmsCbMessage.GEOGRAPHICAL_SCOPE_LOCATION_AREA_WIDE:
+                lac = location.getLac();
+                break;
+            default:
+                // PLMN wide
+                break;
+        }
+        long hash = hash(FNV_OFFSET_BASIS, location.getPlmn());
+        hash = hash(hash, lac);
+        hash = hash(hash, cid);
+        hash = hash(hash, message.getSerialNumber());
+        hash = hash(hash, message.getServiceCategory());
+        return hash(hash, message.getMessageBody());
+    }
+
+    /**
+     * @return The slot holding the key, or the free slot it would be added at.
+     */
+    @GuardedBy("mLock")
+    private int findSlotLocked(long key) {
+        int mask = mKeys.length - 1;
+        int slot = homeSlot(key, mask);
+        while (mKeys[slot] != EMPTY && mKeys[slot] != key) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private static int homeSlot(long key, int mask) {
+        // The key is a hash already, fold its high bits in.
+        return (int) (key ^ (key >>> 32)) & mask;
+    }
+
+    @GuardedBy("mLock")
+    private boolean isExpiredLocked(int slot, long now) {
+        // An expiry too far in the future means the wall clock was set back.
+        return mExpiry[slot] <= now || mExpiry[slot] > now + mWindowMs;
+    }
+
+    /**
+     * Drop the expired entries, or the one closest to expiring if none has.
+     */
+    @GuardedBy("mLock")
+    private void makeRoomLocked(long now) {
+        int slot = 0;
+        while (slot < mKeys.length) {
+            if (mKeys[slot] != EMPTY && isExpiredLocked(slot, now)) {
+                // Another entry may be shifted into the slot, check it again.
+                removeAtLocked(slot);
+            } else {
+                slot++;
+            }
+        }
+        if (mSize < mMaxEntries) return;
+
+        int oldest = -1;
+        for (slot = 0; slot < mKeys.length; slot++) {
+            if (mKeys[slot] != EMPTY && (oldest < 0 || mExpiry[slot] < mExpiry[oldest])) {
+                oldest = slot;
+            }
+        }
+        removeAtLocked(oldest);
+    }
+
+    /**
+     * Remove the entry in a slot, shifting back the entries of its probe sequence so that no
+     * tombstone is needed.
+     */
+    @GuardedBy("mLock")
+    private void removeAtLocked(int slot) {
+        int mask = mKeys.length - 1;
+        int hole = slot;
+        int i = slot;
+        while (true) {
+            i = (i + 1) & mask;
+            long key = mKeys[i];
+            if (key == EMPTY) break;
+            // The entry can fill the hole unless its home slot lies cyclically in (hole, i].
+            int home = homeSlot(key, mask);
+            if (((i - home) & mask) >= ((i - hole) & mask)) {
+                mKeys[hole] = key;
+                mExpiry[hole] = mExpiry[i];
+                hole = i;
+            }
+        }
+        mKeys[hole] = EMPTY;
+        mExpiry[hole] = 0;
+        mSize--;
+    }
+
+    @GuardedBy("mLock")
+    private void clearLocked() {
+        for (int i = 0; i < mKeys.length; i++) {
+            mKeys[i] = EMPTY;
+            mExpiry[i] = 0;
+        }
+        mSize = 0;
+    }
+
+    @GuardedBy("mLock")
+    private void loadIfNeededLocked(Context context) {
+        if (mLoaded) return;
+        mLoaded = true;
+        load(context);
+    }
+
+    @GuardedBy("mLock")
+    private void load(Context context) {
+        mFile = getFile(context);
+        if (mFile == null) return;
+        try {
+            if (!decodeLocked(new AtomicFile(mFile).readFully(), System.currentTimeMillis())) {
+                clearLocked();
+            }
+        } catch (FileNotFoundException e) {
+            // Nothing persisted yet
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to read " + mFile + ". e=" + e);
+        }
+    }
+
+    @GuardedBy("mLock")
+    private void scheduleWriteLocked() {
+        if (mFile == null || mWritePending) return;
+        mWritePending = true;
+        final File file = mFile;
+        // Changes made until the write starts are written along, so a burst of messages results
+        // in few writes.
+        mWriter.execute(() -> {
+            byte[] data;
+            synchronized (mLock) {
+                mWritePending = false;
+                data = encode();
+            }
+            write(file, data);
+        });
+    }
+
+    private static @Nullable File getFile(@NonNull Context context) {
+        if (!sPersistenceEnabled) return null;
+        Context storageContext = context.createDeviceProtectedStorageContext();
+        if (storageContext == null) return null;
+        File dir = storageContext.getNoBackupFilesDir();
+        if (dir == null) return null;
+        return new File(dir, FILE_NAME);
+    }
+
+    private static void write(@NonNull File file, @NonNull byte[] data) {
+        AtomicFile atomicFile = new AtomicFile(file);
+        FileOutputStream out = null;
+        try {
+            out = atomicFile.startWrite();
+            out.write(data);
+            atomicFile.finishWrite(out);
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to write " + file + ". e=" + e);
+            if (out != null) {
+                atomicFile.failWrite(out);
+            }
+        }
+    }
+
+    /**
+     * @return The encoded table
+     */
+    @VisibleForTesting
+    public @NonNull byte[] encode() {
+        synchronized (mLock) {
+            ByteBuffer buffer = ByteBuffer.allocate(4 + 4 + 4 + mSize * 16 + 8);
+            buffer.putInt(MAGIC);
+            buffer.putInt(VERSION);
+            buffer.putInt(mSize);
+            for (int i = 0; i < mKeys.length; i++) {
+                if (mKeys[i] != EMPTY) {
+                    buffer.putLong(mKeys[i]);
+                    buffer.putLong(mExpiry[i]);
+                }
+            }
+            buffer.putLong(crc(buffer.array(), buffer.position()));
+            return buffer.array();
+        }
+    }
+
+    /**
+     * Replace the table with a decoded one, dropping the entries expired by now.
+     *
+     * @param data Encoded table
+     * @param now Current wall clock time
+     * @return {@code true} if the data is a valid table of the current version.
+     */
+    @VisibleForTesting
+    public boolean decode(@NonNull byte[] data, long now) {
+        synchronized (mLock) {
+            mLoaded = true;
+            if (decodeLocked(data, now)) return true;
+            clearLocked();
+            return false;
+        }
+    }
+
+    @GuardedBy("mLock")
+    private boolean decodeLocked(byte[] data, long now) {
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        try {
+            if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+                return false;
+            }
+            if (data.length < 8 || buffer.getLong(data.length - 8) != crc(data, data.length - 8)) {
+                Log.e(TAG, "Checksum mismatch");
+                return false;
+            }
+            int count = buffer.getInt();
+            clearLocked();
+            for (int i = 0; i < count; i++) {
+                long key = buffer.getLong();
+                long expiry = buffer.getLong();
+                if (key == EMPTY || expiry <= now || expiry > now + mWindowMs) continue;
+                int slot = findSlotLocked(key);
+                if (mKeys[slot] == key) continue;
+                if (mSize >= mMaxEntries) {
+                    makeRoomLocked(now);
+                    slot = findSlotLocked(key);
+                }
+                mKeys[slot] = key;
+                mExpiry[slot] = expiry;
+                mSize++;
+            }
+            return true;
+        } catch (BufferUnderflowException | IndexOutOfBoundsException e) {
+            Log.e(TAG, "Corrupted table. e=" + e);
+            return false;
+        }
+    }
+
+    private static long crc(byte[] data, int length) {
+        CRC32 crc = new CRC32();
+        crc.update(data, 0, length);
+        return crc.getValue();
+    }
+
+    private static long hash(long hash, long value) {
+        for (int i = 0; i < 8; i++) {
+            hash = (hash ^ ((value >>> (i * 8)) & 0xff)) * FNV_PRIME;
+        }
+        return hash;
+    }
+
+    private static long hash(long hash, String value) {
+        if (value == null) return hash(hash, -1);
+        for (int i = 0; i < value.length(); i++) {
+            hash = (hash ^ value.charAt(i)) * FNV_PRIME;
+        }
+        return hash(hash, value.length());
+    }
+
+    @Override
+    public String toString() {
+        synchronized (mLock) {
+            return "CellBroadcastDuplicateDetector:[size=" + mSize + ",capacity=" + mKeys.length
+                    + ",window=" + mWindowMs + "]";
+        }
+    }
+}
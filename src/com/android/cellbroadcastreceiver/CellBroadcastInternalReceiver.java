@@ -19,7 +19,6 @@ package com.android.cellbroadcastreceiver;
 import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
-import android.provider.Telephony;
 
 import com.android.internal.annotations.VisibleForTesting;
 
@@ -31,26 +30,22 @@ public class CellBroadcastInternalReceiver extends BroadcastReceiver {
 
     /**
      * helper method for easier testing. To generate a new CellBroadcastTask
-     * @param deliveryTime message delivery time
+     * @param rowId message row ID, or {@link CellBroadcastRowIds#UNKNOWN}
+     * @param deliveryTime message delivery time, used if the row ID is unknown
      */
     @VisibleForTesting
-    public void getCellBroadcastTask(Context context, long deliveryTime) {
-        new CellBroadcastContentProvider.AsyncCellBroadcastTask(context.getContentResolver())
-                .execute(new CellBroadcastContentProvider.CellBroadcastOperation() {
-                    @Override
-                    public boolean execute(CellBroadcastContentProvider provider) {
-                        return provider.markBroadcastRead(Telephony.CellBroadcasts.DELIVERY_TIME,
-                                deliveryTime);
-                    }
-                });
+    public void getCellBroadcastTask(Context context, long rowId, long deliveryTime) {
+        CellBroadcastMarkBuffer.getInstance().markRead(context, rowId, deliveryTime);
     }
 
     @Override
     public void onReceive(Context context, Intent intent) {
         if (CellBroadcastReceiver.ACTION_MARK_AS_READ.equals(intent.getAction())) {
+            final long rowId = intent.getLongExtra(CellBroadcastRowIds.EXTRA_ROW_ID,
+                    CellBroadcastRowIds.UNKNOWN);
             final long deliveryTime = intent.getLongExtra(
                     CellBroadcastReceiver.EXTRA_DELIVERY_TIME, -1);
-            getCellBroadcastTask(context, deliveryTime);
+            getCellBroadcastTask(context, rowId, deliveryTime);
         }
     }
 }
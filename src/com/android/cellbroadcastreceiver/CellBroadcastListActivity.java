@@ -93,6 +93,13 @@ public class CellBroadcastListActivity extends Activity {
         getWindow().addSystemFlags(SYSTEM_FLAG_HIDE_NON_SYSTEM_OVERLAY_WINDOWS);
     }
 
+    @Override
+    protected void onStop() {
+        // Write the marks shown through the overlay so far
+        CellBroadcastMarkBuffer.getInstance().flush(this);
+        super.onStop();
+    }
+
     @Override
     public boolean onOptionsItemSelected(MenuItem item) {
         switch (item.getItemId()) {
@@ -263,9 +270,7 @@ public class CellBroadcastListActivity extends Activity {
             mCurrentLoaderId = id;
             if (id == LOADER_NORMAL_HISTORY) {
                 Log.d(TAG, "onCreateLoader: normal history.");
-                return new CursorLoader(getActivity(), CellBroadcastContentProvider.CONTENT_URI,
-                        CellBroadcastDatabaseHelper.QUERY_COLUMNS, null, null,
-                        Telephony.CellBroadcasts.DELIVERY_TIME + " DESC");
+                return new HistoryLoader(getActivity());
             } else if (id == LOADER_HISTORY_FROM_CBS) {
                 Log.d(TAG, "onCreateLoader: history from cell broadcast service");
                 return new CursorLoader(getActivity(), CONTENT_URI,
@@ -279,6 +284,11 @@ public class CellBroadcastListActivity extends Activity {
         @Override
         public void onLoadFinished(Loader<Cursor> loader, Cursor data) {
             if (DBG) Log.d(TAG, "onLoadFinished");
+            if (mAdapter instanceof CellBroadcastCursorAdapter) {
+                ((CellBroadcastCursorAdapter) mAdapter).setReadWatermark(
+                        loader instanceof HistoryLoader
+                                ? ((HistoryLoader) loader).mReadWatermark : 0);
+            }
             // Swap the new cursor in.  (The framework will take care of closing the
             // old cursor once we return.)
             mAdapter.swapCursor(data);
@@ -295,6 +305,29 @@ public class CellBroadcastListActivity extends Activity {
             mAdapter.swapCursor(null);
         }
 
+        /**
+         * Loads the history from cell broadcast receiver database, and the read watermark along
+         * with it off the main thread.
+         */
+        private static class HistoryLoader extends CursorLoader {
+            private volatile long mReadWatermark;
+
+            HistoryLoader(Context context) {
+                super(context, CellBroadcastContentProvider.CONTENT_URI,
+                        CellBroadcastDatabaseHelper.QUERY_COLUMNS, null, null,
+                        Telephony.CellBroadcasts.DELIVERY_TIME + " DESC");
+            }
+
+            @Override
+            public Cursor loadInBackground() {
+                // Once per load, instead of once per bound row
+                long readWatermark = CellBroadcastContentProvider.getReadWatermark(getContext());
+                Cursor cursor = super.loadInBackground();
+                mReadWatermark = readWatermark;
+                return cursor;
+            }
+        }
+
         private void showDialogAndMarkRead(SmsCbMessage message) {
             // show emergency alerts with the warning icon, but don't play alert tone
             Intent i = new Intent(getActivity(), CellBroadcastAlertDialog.class);
@@ -366,7 +399,10 @@ public class CellBroadcastListActivity extends Activity {
         private boolean wasMessageDisplayed(Cursor cursor) {
             if (mCurrentLoaderId != LOADER_HISTORY_FROM_CBS) return true;
             return cursor.getInt(cursor.getColumnIndex(
-                    Telephony.CellBroadcasts.MESSAGE_DISPLAYED)) != 0;
+                    Telephony.CellBroadcasts.MESSAGE_DISPLAYED)) != 0
+                    || CellBroadcastMarkBuffer.getInstance().isDisplayedPending(getActivity(),
+                            cursor.getLong(cursor.getColumnIndex(
+                                    Telephony.CellBroadcasts.RECEIVED_TIME)));
         }
 
         /**
@@ -466,15 +502,13 @@ public class CellBroadcastListActivity extends Activity {
             @Override
             public void onClick(DialogInterface dialog, int whichButton) {
                 // delete from database on a background thread
-                new CellBroadcastContentProvider.AsyncCellBroadcastTask(
-                        getActivity().getContentResolver()).execute(
-                                (CellBroadcastContentProvider.CellBroadcastOperation) provider -> {
-                                    if (mRowId != -1) {
-                                        return provider.deleteBroadcast(mRowId);
-                                    } else {
-                                        return provider.deleteAllBroadcasts();
-                                    }
-                                });
+                CellBroadcastDatabaseExecutor.getInstance().execute(getActivity(), provider -> {
+                    if (mRowId != -1) {
+                        return provider.deleteBroadcast(mRowId);
+                    } else {
+                        return provider.deleteAllBroadcasts();
+                    }
+                });
 
                 dialog.dismiss();
             }
@@ -17,9 +17,7 @@
 package com.android.cellbroadcastreceiver;
 
 import android.content.Context;
-import android.database.Cursor;
 import android.graphics.Typeface;
-import android.provider.Telephony;
 import android.telephony.SmsCbMessage;
 import android.text.Spannable;
 import android.text.SpannableStringBuilder;
@@ -63,8 +61,9 @@ public class CellBroadcastListItem extends RelativeLayout {
     /**
      * Only used for header binding.
      * @param message the message contents to bind
+     * @param read whether the message was read
      */
-    public void bind(SmsCbMessage message) {
+    public void bind(SmsCbMessage message, boolean read) {
         mCbMessage = message;
         mChannelView.setText(CellBroadcastResources.getDialogTitleResource(mContext, message));
         mDateView.setText(DateUtils.formatDateTime(getContext(), message.getReceivedTime(),
@@ -73,24 +72,10 @@ public class CellBroadcastListItem extends RelativeLayout {
                         | DateUtils.FORMAT_CAP_AMPM));
 
         SpannableStringBuilder messageText = new SpannableStringBuilder(message.getMessageBody());
-        try (Cursor cursor = mContext.getContentResolver().query(
-                CellBroadcastContentProvider.CONTENT_URI,
-                CellBroadcastDatabaseHelper.QUERY_COLUMNS,
-                Telephony.CellBroadcasts.DELIVERY_TIME + "=?",
-                new String[] {Long.toString(message.getReceivedTime())},
-                null)) {
-            if (cursor != null) {
-                while (cursor.moveToNext()) {
-                    if (cursor.getInt(cursor.getColumnIndexOrThrow(
-                            Telephony.CellBroadcasts.MESSAGE_READ)) != 0) {
-                        messageText.setSpan(new StyleSpan(Typeface.BOLD), 0, messageText.length(),
-                                Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
-                        break;
-                    }
-                }
-            }
+        if (read) {
+            messageText.setSpan(new StyleSpan(Typeface.BOLD), 0, messageText.length(),
+                    Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
         }
-
         mMessageView.setText(messageText);
     }
 
@@ -0,0 +1,199 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.cellbroadcastreceiver;
+
+import android.annotation.NonNull;
+import android.app.job.JobInfo;
+import android.app.job.JobParameters;
+import android.app.job.JobScheduler;
+import android.app.job.JobService;
+import android.content.ComponentName;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.telephony.SubscriptionManager;
+import android.util.Log;
+
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Maintenance job of the message history, run while the device is idle and charging. It deletes
+ * the messages not retained by the {@link CellBroadcastRetentionPolicy}, then returns the freed
+ * pages to the file system with incremental vacuum steps.
+ *
+ * Each step is a short operation on the {@link CellBroadcastDatabaseExecutor}, so an alert that
+ * arrives meanwhile waits for at most one step before it is written.
+ */
+public class CellBroadcastMaintenanceService extends JobService {
+
+    private static final String TAG = "CBMaintenance";
+
+    @VisibleForTesting
+    public static final int JOB_ID = 0x4342;
+
+    private static final long MAINTENANCE_INTERVAL_MS = TimeUnit.DAYS.toMillis(1);
+
+    /** Maximum number of messages deleted by one step. */
+    private static final int PRUNE_STEP_MESSAGES = 100;
+
+    /** Maximum number of pages released by one step. */
+    private static final int VACUUM_STEP_PAGES = 64;
+
+    /** Maximum number of steps of each kind per run. The rest is left for the next run. */
+    private static final int MAX_STEPS = 100;
+
+    /** auto_vacuum value of incremental auto-vacuum. */
+    private static final int AUTO_VACUUM_INCREMENTAL = 2;
+
+    private static final ThreadPoolExecutor sExecutor = new ThreadPoolExecutor(1, 1, 0,
+            TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(),
+            r -> new Thread(r, "CBMaintenance"));
+
+    static {
+        sExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    private volatile boolean mStopped;
+
+    /**
+     * Schedule the periodic maintenance job, if it is not scheduled yet.
+     *
+     * @param context Context
+     */
+    public static void schedule(@NonNull Context context) {
+        JobScheduler jobScheduler = context.getSystemService(JobScheduler.class);
+        if (jobScheduler == null || jobScheduler.getPendingJob(JOB_ID) != null) {
+            return;
+        }
+        jobScheduler.schedule(new JobInfo.Builder(JOB_ID,
+                new ComponentName(context, CellBroadcastMaintenanceService.class))
+                .setPeriodic(MAINTENANCE_INTERVAL_MS)
+                .setRequiresDeviceIdle(true)
+                .setRequiresCharging(true)
+                .build());
+    }
+
+    @Override
+    public boolean onStartJob(JobParameters params) {
+        mStopped = false;
+        CellBroadcastRetentionPolicy policy = CellBroadcastRetentionPolicy.fromResources(
+                CellBroadcastSettings.getResources(this,
+                        SubscriptionManager.DEFAULT_SUBSCRIPTION_ID));
+        sExecutor.execute(() -> {
+            try {
+                runMaintenance(this, policy, () -> mStopped);
+            } catch (RuntimeException e) {
+                Log.e(TAG, "Maintenance failed", e);
+            }
+            jobFinished(params, false);
+        });
+        return true;
+    }
+
+    @Override
+    public boolean onStopJob(JobParameters params) {
+        // The steps done so far are committed, the next run continues from there.
+        mStopped = true;
+        return false;
+    }
+
+    /**
+     * Apply the retention policy and release the free pages of the database.
+     *
+     * @param context Context
+     * @param policy Retention policy
+     * @param stopped Checked before each step, the maintenance stops once it returns true
+     * @return The number of messages deleted
+     */
+    @VisibleForTesting
+    public static int runMaintenance(@NonNull Context context,
+            @NonNull CellBroadcastRetentionPolicy policy, @NonNull BooleanSupplier stopped) {
+        CellBroadcastDatabaseExecutor executor = CellBroadcastDatabaseExecutor.getInstance();
+        int deleted = 0;
+        int[] result = new int[1];
+        for (int i = 0; i < MAX_STEPS && !stopped.getAsBoolean(); i++) {
+            executor.execute(context, provider -> {
+                result[0] = policy.prune(provider.mOpenHelper.getWritableDatabase(),
+                        System.currentTimeMillis(), PRUNE_STEP_MESSAGES);
+                return result[0] > 0;
+            }).join();
+            deleted += result[0];
+            if (result[0] < PRUNE_STEP_MESSAGES) break;
+        }
+
+        if (!stopped.getAsBoolean()
+                && CellBroadcastAlertPipeline.getInstance().getQueuedCount() == 0) {
+            try {
+                executor.executeExclusive(context, provider -> {
+                    convertToIncrementalVacuum(provider.mOpenHelper.getWritableDatabase());
+                    return false;
+                }).join();
+            } catch (CompletionException e) {
+                Log.e(TAG, "Failed to convert the database", e);
+            }
+        }
+        for (int i = 0; i < MAX_STEPS && !stopped.getAsBoolean(); i++) {
+            executor.execute(context, provider -> {
+                result[0] = incrementalVacuum(provider.mOpenHelper.getWritableDatabase(),
+                        VACUUM_STEP_PAGES);
+                return false;
+            }).join();
+            if (result[0] == 0) break;
+        }
+        Log.d(TAG, "Deleted " + deleted + " messages, " + policy);
+        return deleted;
+    }
+
+    /**
+     * Release free pages of the database.
+     *
+     * @param db Database with incremental auto-vacuum
+     * @param pages Maximum number of pages to release
+     * @return The number of free pages left
+     */
+    @VisibleForTesting
+    public static int incrementalVacuum(@NonNull SQLiteDatabase db, int pages) {
+        // Each released page is returned as a row, so the pragma cannot go through execSQL().
+        try (Cursor c = db.rawQuery("PRAGMA incremental_vacuum(" + pages + ");", null)) {
+            while (c.moveToNext()) {
+                // Step through all pages
+            }
+        }
+        return (int) DatabaseUtils.longForQuery(db, "PRAGMA freelist_count;", null);
+    }
+
+    /**
+     * Databases created before incremental auto-vacuum was enabled are rebuilt once. VACUUM
+     * cannot run in a transaction nor be split into steps, so it runs as an exclusive operation
+     * of the database executor, and only when no alert is being processed.
+     */
+    private static void convertToIncrementalVacuum(SQLiteDatabase db) {
+        if (DatabaseUtils.longForQuery(db, "PRAGMA auto_vacuum;", null)
+                != AUTO_VACUUM_INCREMENTAL) {
+            Log.d(TAG, "Converting the database to incremental auto-vacuum");
+            db.execSQL("PRAGMA auto_vacuum=INCREMENTAL;");
+            db.execSQL("VACUUM;");
+        }
+    }
+}
@@ -0,0 +1,527 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.cellbroadcastreceiver;
+
+import android.annotation.NonNull;
+import android.annotation.Nullable;
+import android.content.ContentValues;
+import android.content.Context;
+import android.provider.Telephony;
+import android.telephony.SmsCbMessage;
+import android.util.AtomicFile;
+import android.util.Log;
+
+import com.android.internal.annotations.GuardedBy;
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * Write-behind buffer of the read and displayed marks of received messages.
+ *
+ * A mark is visible right away to {@link #isReadPending} and {@link #isDisplayedPending}, which
+ * the message history consults on top of the database. The marks collected within
+ * {@link #DEFAULT_FLUSH_DELAY_MS}, or until {@link #flush} is called on a lifecycle event, are
+ * written together: the read marks in one transaction of the {@link CellBroadcastDatabaseExecutor},
+ * which notifies the observers once, and the displayed marks with one update of the telephony
+ * provider.
+ *
+ * The pending marks are kept in the app's device protected storage, so that the marks left by a
+ * process that died are flushed by the next process that uses the buffer. The file is read and
+ * written on the worker thread, never on the caller's: it is written right after a mark, and
+ * marks which could not be flushed are written before the flush completes.
+ *
+ * Layout of the persisted marks, big endian:
+ * <pre>
+ * int magic, int version, int count, count * {long row ID, long delivery time},
+ * int count, count * {long received time}, long crc32 of everything before it
+ * </pre>
+ */
+public final class CellBroadcastMarkBuffer {
+
+    private static final String TAG = "CBMarkBuffer";
+
+    /** Time the marks are collected for before they are written. */
+    public static final long DEFAULT_FLUSH_DELAY_MS = 1000;
+
+    private static final int MAGIC = 0x43424d4b; // "CBMK"
+
+    /** Bump whenever the layout changes. */
+    @VisibleForTesting
+    public static final int VERSION = 1;
+
+    private static final String FILE_NAME = "cb_pending_marks.bin";
+
+    /** Idle time after which the worker thread is released. */
+    private static final long WORKER_KEEP_ALIVE_MS = 10 * 1000;
+
+    private static final CellBroadcastMarkBuffer sInstance =
+            new CellBroadcastMarkBuffer(DEFAULT_FLUSH_DELAY_MS);
+
+    private static volatile boolean sPersistenceEnabled = true;
+
+    private final Object mLock = new Object();
+
+    private final long mFlushDelayMs;
+
+    /** Pending read marks of messages with a known row ID: row ID to delivery time. */
+    @GuardedBy("mLock")
+    private final Map<Long, Long> mReadRows = new HashMap<>();
+
+    /** Delivery times of the pending read marks of messages with an unknown row ID. */
+    @GuardedBy("mLock")
+    private final Set<Long> mReadTimes = new HashSet<>();
+
+    /** Received times of the pending displayed marks. */
+    @GuardedBy("mLock")
+    private final Set<Long> mDisplayedTimes = new HashSet<>();
+
+    /** Whether the persisted marks are read, or being read on the worker thread. */
+    @GuardedBy("mLock")
+    private boolean mLoaded;
+
+    /** Only accessed on the worker thread once the persisted marks are read. */
+    private @Nullable File mFile;
+
+    @GuardedBy("mLock")
+    private Context mContext;
+
+    @GuardedBy("mLock")
+    private boolean mFlushScheduled;
+
+    @GuardedBy("mLock")
+    private boolean mPersistScheduled;
+
+    private final ScheduledThreadPoolExecutor mWorker;
+
+    /**
+     * @param flushDelayMs Time the marks are collected for before they are written
+     */
+    @VisibleForTesting
+    public CellBroadcastMarkBuffer(long flushDelayMs) {
+        mFlushDelayMs = flushDelayMs;
+        mWorker = new ScheduledThreadPoolExecutor(1, r -> new Thread(r, "CBMarkBuffer"));
+        mWorker.setKeepAliveTime(WORKER_KEEP_ALIVE_MS, TimeUnit.MILLISECONDS);
+        mWorker.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * @return The process-wide buffer
+     */
+    public static @NonNull CellBroadcastMarkBuffer getInstance() {
+        return sInstance;
+    }
+
+    /**
+     * Enable or disable reading and writing the persisted marks, e.g. for tests whose context
+     * has no storage.
+     */
+    @VisibleForTesting
+    public static void setPersistenceEnabled(boolean enabled) {
+        sPersistenceEnabled = enabled;
+    }
+
+    /**
+     * Mark a message as read.
+     *
+     * @param context Context
+     * @param rowId Row ID of the message, or {@link CellBroadcastRowIds#UNKNOWN}
+     * @param deliveryTime Delivery time of the message, which identifies it if the row ID is
+     * unknown
+     */
+    public void markRead(@NonNull Context context, long rowId, long deliveryTime) {
+        synchronized (mLock) {
+            loadLocked(context);
+            if (rowId != CellBroadcastRowIds.UNKNOWN) {
+                mReadRows.put(rowId, deliveryTime);
+            } else {
+                mReadTimes.add(deliveryTime);
+            }
+            scheduleFlushLocked();
+            schedulePersistLocked();
+        }
+    }
+
+    /**
+     * Mark messages as displayed to the user.
+     *
+     * @param context Context
+     * @param messages The messages
+     */
+    public void markDisplayed(@NonNull Context context, @NonNull List<SmsCbMessage> messages) {
+        synchronized (mLock) {
+            loadLocked(context);
+            for (SmsCbMessage message : messages) {
+                mDisplayedTimes.add(message.getReceivedTime());
+            }
+            scheduleFlushLocked();
+            schedulePersistLocked();
+        }
+    }
+
+    /**
+     * @param context Context
+     * @param rowId Row ID of a message
+     * @param deliveryTime Delivery time of the message, for the marks made while its row ID was
+     * unknown
+     * @return {@code true} if the message was marked read, but the mark is not written yet
+     */
+    public boolean isReadPending(@NonNull Context context, long rowId, long deliveryTime) {
+        synchronized (mLock) {
+            loadLocked(context);
+            return mReadRows.containsKey(rowId) || mReadTimes.contains(deliveryTime);
+        }
+    }
+
+    /**
+     * @param context Context
+     * @param receivedTime Received time of a message
+     * @return {@code true} if the message was marked displayed, but the mark is not written yet
+     */
+    public boolean isDisplayedPending(@NonNull Context context, long receivedTime) {
+        synchronized (mLock) {
+            loadLocked(context);
+            return mDisplayedTimes.contains(receivedTime);
+        }
+    }
+
+    /**
+     * @return The number of pending marks
+     */
+    public int size() {
+        synchronized (mLock) {
+            return mReadRows.size() + mReadTimes.size() + mDisplayedTimes.size();
+        }
+    }
+
+    /**
+     * Write the pending marks now, e.g. when the UI goes to the background.
+     *
+     * @param context Context
+     * @return Completed once the marks pending at the time of the call were written, or kept
+     * pending and persisted because they could not be
+     */
+    public @NonNull CompletableFuture<Void> flush(@NonNull Context context) {
+        synchronized (mLock) {
+            loadLocked(context);
+        }
+        return CompletableFuture.runAsync(this::flushPending, mWorker);
+    }
+
+    /**
+     * Read the persisted marks on the worker thread, when the buffer is first used. The marks
+     * made meanwhile are kept, and the ones read are added to them.
+     */
+    @GuardedBy("mLock")
+    private void loadLocked(Context context) {
+        Context appContext = context.getApplicationContext();
+        mContext = appContext != null ? appContext : context;
+        if (mLoaded) return;
+        mLoaded = true;
+        final Context loadContext = mContext;
+        mWorker.execute(() -> load(loadContext));
+    }
+
+    /** Read the persisted marks. Runs on the worker thread. */
+    private void load(Context context) {
+        mFile = getFile(context);
+        if (mFile == null) return;
+        byte[] data;
+        try {
+            data = new AtomicFile(mFile).readFully();
+        } catch (FileNotFoundException e) {
+            // Nothing pending
+            return;
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to read " + mFile + ". e=" + e);
+            return;
+        }
+        synchronized (mLock) {
+            if (!decodeLocked(data, true)) return;
+            if (size() > 0) {
+                Log.d(TAG, "Flushing " + size() + " marks left by a previous process");
+                scheduleFlushLocked();
+            }
+        }
+    }
+
+    @GuardedBy("mLock")
+    private void scheduleFlushLocked() {
+        if (mFlushScheduled) return;
+        mFlushScheduled = true;
+        mWorker.schedule(this::flushPending, mFlushDelayMs, TimeUnit.MILLISECONDS);
+    }
+
+    @GuardedBy("mLock")
+    private void schedulePersistLocked() {
+        if (mPersistScheduled) return;
+        mPersistScheduled = true;
+        mWorker.execute(this::persist);
+    }
+
+    /** Write the pending marks. Runs on the worker thread. */
+    private void flushPending() {
+        final Context context;
+        final long[] rowIds;
+        final long[] readTimes;
+        final long[] displayedTimes;
+        synchronized (mLock) {
+            mFlushScheduled = false;
+            context = mContext;
+            rowIds = toArray(mReadRows.keySet());
+            readTimes = toArray(mReadTimes);
+            displayedTimes = toArray(mDisplayedTimes);
+        }
+        if (context == null) return;
+
+        boolean readWritten = rowIds.length == 0 && readTimes.length == 0;
+        if (!readWritten) {
+            try {
+                CellBroadcastDatabaseExecutor.getInstance().execute(context, provider -> {
+                    boolean changed = rowIds.length > 0 && provider.markBroadcastsRead(rowIds);
+                    for (long deliveryTime : readTimes) {
+                        changed |= provider.markBroadcastRead(
+                                Telephony.CellBroadcasts.DELIVERY_TIME, deliveryTime);
+                    }
+                    return changed;
+                }).join();
+                readWritten = true;
+            } catch (CompletionException e) {
+                Log.e(TAG, "Failed to write " + (rowIds.length + readTimes.length)
+                        + " read marks", e);
+            }
+        }
+
+        boolean displayedWritten = displayedTimes.length == 0;
+        if (!displayedWritten) {
+            try {
+                markDisplayed(context, displayedTimes);
+                displayedWritten = true;
+            } catch (RuntimeException e) {
+                Log.e(TAG, "Failed to write " + displayedTimes.length + " displayed marks", e);
+            }
+        }
+
+        synchronized (mLock) {
+            if (readWritten) {
+                for (long rowId : rowIds) {
+                    mReadRows.remove(rowId);
+                }
+                for (long deliveryTime : readTimes) {
+                    mReadTimes.remove(deliveryTime);
+                }
+            }
+            if (displayedWritten) {
+                for (long receivedTime : displayedTimes) {
+                    mDisplayedTimes.remove(receivedTime);
+                }
+            }
+        }
+        persist();
+    }
+
+    /**
+     * Mark messages as displayed in cell broadcast service's database, with one update.
+     */
+    private static void markDisplayed(Context context, long[] receivedTimes) {
+        ContentValues cv = new ContentValues();
+        cv.put(Telephony.CellBroadcasts.MESSAGE_DISPLAYED, 1);
+        StringBuilder where = new StringBuilder(Telephony.CellBroadcasts.RECEIVED_TIME)
+                .append(" IN (");
+        String[] whereArgs = new String[receivedTimes.length];
+        for (int i = 0; i < whereArgs.length; i++) {
+            where.append(i == 0 ? "?" : ",?");
+            whereArgs[i] = Long.toString(receivedTimes[i]);
+        }
+        where.append(")");
+        context.getContentResolver().update(Telephony.CellBroadcasts.CONTENT_URI, cv,
+                where.toString(), whereArgs);
+    }
+
+    /** Write the pending marks to storage. Runs on the worker thread. */
+    private void persist() {
+        byte[] data;
+        synchronized (mLock) {
+            mPersistScheduled = false;
+            if (mFile == null) return;
+            data = mReadRows.isEmpty() && mReadTimes.isEmpty() && mDisplayedTimes.isEmpty()
+                    ? null : encode();
+        }
+        AtomicFile atomicFile = new AtomicFile(mFile);
+        if (data == null) {
+            atomicFile.delete();
+            return;
+        }
+        FileOutputStream out = null;
+        try {
+            out = atomicFile.startWrite();
+            out.write(data);
+            atomicFile.finishWrite(out);
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to write " + mFile + ". e=" + e);
+            if (out != null) {
+                atomicFile.failWrite(out);
+            }
+        }
+    }
+
+    private static @Nullable File getFile(@NonNull Context context) {
+        if (!sPersistenceEnabled) return null;
+        Context storageContext = context.createDeviceProtectedStorageContext();
+        if (storageContext == null) return null;
+        File dir = storageContext.getNoBackupFilesDir();
+        if (dir == null) return null;
+        return new File(dir, FILE_NAME);
+    }
+
+    /**
+     * @return The encoded pending marks
+     */
+    @VisibleForTesting
+    public @NonNull byte[] encode() {
+        synchronized (mLock) {
+            int readCount = mReadRows.size() + mReadTimes.size();
+            ByteBuffer buffer = ByteBuffer.allocate(4 + 4 + 4 + readCount * 16 + 4
+                    + mDisplayedTimes.size() * 8 + 8);
+            buffer.putInt(MAGIC);
+            buffer.putInt(VERSION);
+            buffer.putInt(readCount);
+            for (Map.Entry<Long, Long> entry : mReadRows.entrySet()) {
+                buffer.putLong(entry.getKey());
+                buffer.putLong(entry.getValue());
+            }
+            for (long deliveryTime : mReadTimes) {
+                buffer.putLong(CellBroadcastRowIds.UNKNOWN);
+                buffer.putLong(deliveryTime);
+            }
+            buffer.putInt(mDisplayedTimes.size());
+            for (long receivedTime : mDisplayedTimes) {
+                buffer.putLong(receivedTime);
+            }
+            buffer.putLong(crc(buffer.array(), buffer.position()));
+            return buffer.array();
+        }
+    }
+
+    /**
+     * Replace the pending marks with decoded ones.
+     *
+     * @param data Encoded marks
+     * @return {@code true} if the data are valid marks of the current version.
+     */
+    @VisibleForTesting
+    public boolean decode(@NonNull byte[] data) {
+        synchronized (mLock) {
+            mLoaded = true;
+            if (decodeLocked(data, false)) return true;
+            clearLocked();
+            return false;
+        }
+    }
+
+    /**
+     * @param merge {@code true} to add the decoded marks to the pending ones, {@code false} to
+     * replace them
+     * @return {@code true} if the data are valid marks of the current version, which were
+     * applied. The pending marks are left unchanged otherwise.
+     */
+    @GuardedBy("mLock")
+    private boolean decodeLocked(byte[] data, boolean merge) {
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        Map<Long, Long> readRows = new HashMap<>();
+        Set<Long> readTimes = new HashSet<>();
+        Set<Long> displayedTimes = new HashSet<>();
+        try {
+            if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+                return false;
+            }
+            if (data.length < 8 || buffer.getLong(data.length - 8) != crc(data, data.length - 8)) {
+                Log.e(TAG, "Checksum mismatch");
+                return false;
+            }
+            int readCount = buffer.getInt();
+            for (int i = 0; i < readCount; i++) {
+                long rowId = buffer.getLong();
+                long deliveryTime = buffer.getLong();
+                if (rowId != CellBroadcastRowIds.UNKNOWN) {
+                    readRows.put(rowId, deliveryTime);
+                } else {
+                    readTimes.add(deliveryTime);
+                }
+            }
+            int displayedCount = buffer.getInt();
+            for (int i = 0; i < displayedCount; i++) {
+                displayedTimes.add(buffer.getLong());
+            }
+        } catch (BufferUnderflowException | IndexOutOfBoundsException e) {
+            Log.e(TAG, "Corrupted marks. e=" + e);
+            return false;
+        }
+        if (!merge) {
+            clearLocked();
+        }
+        mReadRows.putAll(readRows);
+        mReadTimes.addAll(readTimes);
+        mDisplayedTimes.addAll(displayedTimes);
+        return true;
+    }
+
+    @GuardedBy("mLock")
+    private void clearLocked() {
+        mReadRows.clear();
+        mReadTimes.clear();
+        mDisplayedTimes.clear();
+    }
+
+    private static long[] toArray(Set<Long> values) {
+        long[] array = new long[values.size()];
+        int i = 0;
+        for (long value : values) {
+            array[i++] = value;
+        }
+        return array;
+    }
+
+    private static long crc(byte[] data, int length) {
+        CRC32 crc = new CRC32();
+        crc.update(data, 0, length);
+        return crc.getValue();
+    }
+
+    @Override
+    public String toString() {
+        synchronized (mLock) {
+            return "CellBroadcastMarkBuffer:[read=" + (mReadRows.size() + mReadTimes.size())
+                    + ",displayed=" + mDisplayedTimes.size() + "]";
+        }
+    }
+}
@@ -0,0 +1,220 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.cellbroadcastreceiver;
+
+import android.annotation.NonNull;
+import android.annotation.Nullable;
+import android.util.SparseIntArray;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Compiled list of keyword filters, as configured by the comma separated
+ * {@code persist.cellbroadcast.message_filter} property.
+ *
+ * The keywords are compiled into an Aho-Corasick automaton, so a message body is checked against
+ * all of them in a single pass without allocating. The body is case folded one char at a time
+ * while it is scanned, and the keywords are matched as they are configured, so a keyword
+ * containing upper case letters never matches.
+ *
+ * The filter compiled for the latest property value is cached.
+ */
+public final class CellBroadcastMessageFilter {
+
+    /** Returned by {@link #match(CharSequence)} if no keyword matches. */
+    public static final int NO_MATCH = -1;
+
+    private static final int ROOT = 0;
+
+    private static volatile CellBroadcastMessageFilter sCached;
+
+    /** Property value the filter was compiled from. */
+    private final String mSource;
+
+    private final String[] mPatterns;
+
+    /**
+     * The transitions of node n are mLabels/mTargets[mFirstEdge[n], mFirstEdge[n + 1]), sorted
+     * by label.
+     */
+    private final int[] mFirstEdge;
+    private final char[] mLabels;
+    private final int[] mTargets;
+
+    /** Node of the longest proper suffix of each node that is in the trie. */
+    private final int[] mFailure;
+
+    /** Index of the pattern reported when a node is reached, or {@link #NO_MATCH}. */
+    private final int[] mOutput;
+
+    private CellBroadcastMessageFilter(@NonNull String source) {
+        mSource = source;
+
+        ArrayList<String> patterns = new ArrayList<>();
+        for (String filter : source.split(",")) {
+            if (!filter.isEmpty()) {
+                patterns.add(filter);
+            }
+        }
+        mPatterns = patterns.toArray(new String[0]);
+
+        // Build the trie
+        ArrayList<SparseIntArray> children = new ArrayList<>();
+        ArrayList<Integer> terminal = new ArrayList<>();
+        children.add(new SparseIntArray());
+        terminal.add(NO_MATCH);
+        for (int p = 0; p < mPatterns.length; p++) {
+            String pattern = mPatterns[p];
+            int node = ROOT;
+            for (int i = 0; i < pattern.length(); i++) {
+                char c = pattern.charAt(i);
+                int next = children.get(node).get(c, -1);
+                if (next < 0) {
+                    next = children.size();
+                    children.add(new SparseIntArray());
+                    terminal.add(NO_MATCH);
+                    children.get(node).put(c, next);
+                }
+                node = next;
+            }
+            if (terminal.get(node) == NO_MATCH) {
+                terminal.set(node, p);
+            }
+        }
+
+        // Flatten the transitions
+        int nodes = children.size();
+        mFirstEdge = new int[nodes + 1];
+        int edges = 0;
+        for (int n = 0; n < nodes; n++) {
+            mFirstEdge[n] = edges;
+            edges += children.get(n).size();
+        }
+        mFirstEdge[nodes] = edges;
+        mLabels = new char[edges];
+        mTargets = new int[edges];
+        for (int n = 0; n < nodes; n++) {
+            SparseIntArray edgesOfNode = children.get(n);
+            for (int e = 0; e < edgesOfNode.size(); e++) {
+                mLabels[mFirstEdge[n] + e] = (char) edgesOfNode.keyAt(e);
+                mTargets[mFirstEdge[n] + e] = edgesOfNode.valueAt(e);
+            }
+        }
+
+        // Compute failure links and outputs breadth first, so that the links of shorter prefixes
+        // are known first.
+        mFailure = new int[nodes];
+        mOutput = new int[nodes];
+        mOutput[ROOT] = NO_MATCH;
+        int[] queue = new int[nodes];
+        int head = 0;
+        int tail = 0;
+        queue[tail++] = ROOT;
+        while (head < tail) {
+            int node = queue[head++];
+            for (int e = mFirstEdge[node]; e < mFirstEdge[node + 1]; e++) {
+                int child = mTargets[e];
+                int failure = ROOT;
+                if (node != ROOT) {
+                    int state = mFailure[node];
+                    int next;
+                    while ((next = transition(state, mLabels[e])) < 0 && state != ROOT) {
+                        state = mFailure[state];
+                    }
+                    failure = next < 0 ? ROOT : next;
+                }
+                mFailure[child] = failure;
+                mOutput[child] = terminal.get(child) != NO_MATCH ? terminal.get(child)
+                        : mOutput[failure];
+                queue[tail++] = child;
+            }
+        }
+    }
+
+    /**
+     * Get the filter for a property value, compiling it unless it is the cached one.
+     *
+     * @param filters Comma separated keywords, empty ones are ignored
+     * @return The compiled filter
+     */
+    public static @NonNull CellBroadcastMessageFilter get(@NonNull String filters) {
+        CellBroadcastMessageFilter filter = sCached;
+        if (filter == null || !filter.mSource.equals(filters)) {
+            filter = new CellBroadcastMessageFilter(filters);
+            sCached = filter;
+        }
+        return filter;
+    }
+
+    /**
+     * @return {@code true} if there are no keywords to filter on.
+     */
+    public boolean isEmpty() {
+        return mPatterns.length == 0;
+    }
+
+    /**
+     * Find the first keyword contained in a text.
+     *
+     * @param text Message body
+     * @return The index of the keyword that ends first in the text, the longest one if several
+     * end at the same position. {@link #NO_MATCH} if the text contains none.
+     */
+    public int match(@Nullable CharSequence text) {
+        if (text == null || mPatterns.length == 0) return NO_MATCH;
+        int state = ROOT;
+        for (int i = 0; i < text.length(); i++) {
+            char c = Character.toLowerCase(text.charAt(i));
+            int next;
+            while ((next = transition(state, c)) < 0 && state != ROOT) {
+                state = mFailure[state];
+            }
+            state = next < 0 ? ROOT : next;
+            if (mOutput[state] != NO_MATCH) {
+                return mOutput[state];
+            }
+        }
+        return NO_MATCH;
+    }
+
+    /**
+     * @param index Keyword index, as returned by {@link #match(CharSequence)}
+     * @return The keyword
+     */
+    public @NonNull String getPattern(int index) {
+        return mPatterns[index];
+    }
+
+    /**
+     * @return The number of keywords.
+     */
+    public int getPatternCount() {
+        return mPatterns.length;
+    }
+
+    private int transition(int node, char c) {
+        int pos = Arrays.binarySearch(mLabels, mFirstEdge[node], mFirstEdge[node + 1], c);
+        return pos >= 0 ? mTargets[pos] : -1;
+    }
+
+    @Override
+    public String toString() {
+        return "CellBroadcastMessageFilter:[patterns=" + mPatterns.length + ",nodes="
+                + mFailure.length + "]";
+    }
+}
@@ -87,22 +87,6 @@ public class CellBroadcastReceiver extends BroadcastReceiver {
 
     private Context mContext;
 
-    /**
-     * helper method for easier testing. To generate a new CellBroadcastTask
-     * @param deliveryTime message delivery time
-     */
-    @VisibleForTesting
-    public void getCellBroadcastTask(final long deliveryTime) {
-        new CellBroadcastContentProvider.AsyncCellBroadcastTask(mContext.getContentResolver())
-                .execute(new CellBroadcastContentProvider.CellBroadcastOperation() {
-                    @Override
-                    public boolean execute(CellBroadcastContentProvider provider) {
-                        return provider.markBroadcastRead(CellBroadcasts.DELIVERY_TIME,
-                                deliveryTime);
-                    }
-                });
-    }
-
     /**
      * this method is to make this class unit-testable, because CellBroadcastSettings.getResources()
      * is a static method and cannot be stubbed.
@@ -127,9 +111,25 @@ public class CellBroadcastReceiver extends BroadcastReceiver {
             // read. Log an event.
             EventLog.writeEvent(0x534e4554, "162741784", -1, null);
         } else if (CarrierConfigManager.ACTION_CARRIER_CONFIG_CHANGED.equals(action)) {
+            // Compiled channel ranges of the subscription are outdated with the new config.
+            int subId = intent.getIntExtra(CarrierConfigManager.EXTRA_SUBSCRIPTION_INDEX,
+                    SubscriptionManager.INVALID_SUBSCRIPTION_ID);
+            if (SubscriptionManager.isValidSubscriptionId(subId)) {
+                CellBroadcastChannelRegistry.getInstance().invalidate(subId);
+            } else {
+                CellBroadcastChannelRegistry.getInstance().invalidateAll();
+            }
+            CellBroadcastAlertFilter.invalidate();
             initializeSharedPreference();
             enableLauncher();
-            startConfigService();
+            CellBroadcastMaintenanceService.schedule(mContext);
+            // Write the marks left pending by a previous process, if any
+            CellBroadcastMarkBuffer.getInstance().flush(mContext);
+            if (SubscriptionManager.isValidSubscriptionId(subId)) {
+                startConfigService(subId);
+            } else {
+                startConfigService();
+            }
         } else if (ACTION_SERVICE_STATE.equals(action)) {
             // lower layer clears channel configurations under APM, thus need to resend
             // configurations once moving back from APM. This should be fixed in lower layer
@@ -137,11 +137,18 @@ public class CellBroadcastReceiver extends BroadcastReceiver {
             int ss = intent.getIntExtra(EXTRA_VOICE_REG_STATE, ServiceState.STATE_IN_SERVICE);
             if (ss != ServiceState.STATE_POWER_OFF
                     && getServiceState(context) == ServiceState.STATE_POWER_OFF) {
+                CellBroadcastConfigService.resetChannelState();
                 startConfigService();
             }
             setServiceState(ss);
         } else if (CELLBROADCAST_START_CONFIG_ACTION.equals(action)
                 || SubscriptionManager.ACTION_DEFAULT_SMS_SUBSCRIPTION_CHANGED.equals(action)) {
+            if (SubscriptionManager.ACTION_DEFAULT_SMS_SUBSCRIPTION_CHANGED.equals(action)) {
+                CellBroadcastChannelRegistry.getInstance().invalidateAll();
+                CellBroadcastAlertFilter.invalidate();
+                CellBroadcastRoamingState.getInstance().invalidate(
+                        SubscriptionManager.DEFAULT_SUBSCRIPTION_ID);
+            }
             startConfigService();
         } else if (Telephony.Sms.Intents.ACTION_SMS_EMERGENCY_CB_RECEIVED.equals(action) ||
                 Telephony.Sms.Intents.SMS_CB_RECEIVED_ACTION.equals(action)) {
@@ -443,6 +450,16 @@ public class CellBroadcastReceiver extends BroadcastReceiver {
         startConfigService(mContext);
     }
 
+    /**
+     * This method's purpose if to enable unit testing
+     *
+     * @param subId Subscription whose channel configuration is outdated
+     */
+    @VisibleForTesting
+    public void startConfigService(int subId) {
+        startConfigService(mContext, subId);
+    }
+
     /**
      * Check if user from context is system user
      * @param context
@@ -458,10 +475,24 @@ public class CellBroadcastReceiver extends BroadcastReceiver {
      * @param context the broadcast receiver context
      */
     static void startConfigService(Context context) {
+        startConfigService(context, SubscriptionManager.INVALID_SUBSCRIPTION_ID);
+    }
+
+    /**
+     * Tell {@link CellBroadcastConfigService} to enable the CB channels. Requests arriving in a
+     * burst are collapsed by {@link CellBroadcastConfigScheduler}.
+     * @param context the broadcast receiver context
+     * @param subId the subscription to configure, or
+     * {@link SubscriptionManager#INVALID_SUBSCRIPTION_ID} for all of them
+     */
+    static void startConfigService(Context context, int subId) {
         if (isSystemUser(context)) {
             Intent serviceIntent = new Intent(CellBroadcastConfigService.ACTION_ENABLE_CHANNELS,
                     null, context, CellBroadcastConfigService.class);
-            Log.d(TAG, "Start Cell Broadcast configuration.");
+            if (SubscriptionManager.isValidSubscriptionId(subId)) {
+                serviceIntent.putExtra(SubscriptionManager.EXTRA_SUBSCRIPTION_INDEX, subId);
+            }
+            Log.d(TAG, "Start Cell Broadcast configuration for sub " + subId);
             context.startService(serviceIntent);
         } else {
             Log.e(TAG, "startConfigService: Not system user.");
@@ -37,6 +37,15 @@ public class CellBroadcastReceiverApp extends Application {
         return sNewMessageList;
     }
 
+    /**
+     * Removes the messages delivered at or before the read watermark, which were marked read
+     * all at once, and returns the current list.
+     */
+    static ArrayList<SmsCbMessage> removeReadMessages(long readWatermark) {
+        sNewMessageList.removeIf(message -> message.getReceivedTime() <= readWatermark);
+        return sNewMessageList;
+    }
+
     /** Clears the list of unread non-emergency messages. */
     static void clearNewMessageList() {
         sNewMessageList.clear();
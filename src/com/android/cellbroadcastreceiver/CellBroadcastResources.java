@@ -29,7 +29,6 @@ import android.text.style.StyleSpan;
 import com.android.cellbroadcastreceiver.CellBroadcastChannelManager.CellBroadcastChannelRange;
 
 import java.text.DateFormat;
-import java.util.ArrayList;
 
 /**
  * Returns the string resource ID's for CMAS and ETWS emergency alerts.
@@ -147,6 +146,36 @@ public class CellBroadcastResources {
         buf.append(value);
     }
 
+    /**
+     * Returns a styled CharSequence of a search snippet, with the matches in bold.
+     * @param snippet The {@link CellBroadcastContentProvider#SEARCH_SNIPPET} of a search result
+     *
+     * @return a CharSequence for display in the search results
+     */
+    public static CharSequence getSnippetText(String snippet) {
+        SpannableStringBuilder buf = new SpannableStringBuilder();
+        int index = 0;
+        while (index < snippet.length()) {
+            int start = snippet.indexOf(CellBroadcastContentProvider.SNIPPET_MATCH_START, index);
+            if (start < 0) {
+                break;
+            }
+            int end = snippet.indexOf(CellBroadcastContentProvider.SNIPPET_MATCH_END, start);
+            if (end < 0) {
+                break;
+            }
+            buf.append(snippet, index, start);
+            int spanStart = buf.length();
+            buf.append(snippet, start + CellBroadcastContentProvider.SNIPPET_MATCH_START.length(),
+                    end);
+            buf.setSpan(new StyleSpan(Typeface.BOLD), spanStart, buf.length(),
+                    Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
+            index = end + CellBroadcastContentProvider.SNIPPET_MATCH_END.length();
+        }
+        buf.append(snippet, index, snippet.length());
+        return buf;
+    }
+
     /**
      * Returns the string resource ID for the CMAS category.
      * @return a string resource ID, or 0 if the CMAS category is unknown or not present
@@ -361,29 +390,23 @@ public class CellBroadcastResources {
         }
 
         if (channelManager.isEmergencyMessage(message)) {
-            ArrayList<CellBroadcastChannelRange> ranges =
-                    channelManager.getCellBroadcastChannelRanges(
-                            R.array.additional_cbs_channels_strings);
-            if (ranges != null) {
-                for (CellBroadcastChannelRange range : ranges) {
-                    if (serviceCategory >= range.mStartId && serviceCategory <= range.mEndId) {
-                        // Apply the closest title to the specified tones.
-                        switch (range.mAlertType) {
-                            case DEFAULT:
-                                return R.string.pws_other_message_identifiers;
-                            case ETWS_EARTHQUAKE:
-                                return R.string.etws_earthquake_warning;
-                            case ETWS_TSUNAMI:
-                                return R.string.etws_tsunami_warning;
-                            case TEST:
-                                return R.string.etws_test_message;
-                            case ETWS_DEFAULT:
-                            case OTHER:
-                                return R.string.etws_other_emergency_type;
-                        }
-                    }
+            for (CellBroadcastChannelRange range
+                    : channelManager.getMatchingCellBroadcastChannelRanges(serviceCategory,
+                            R.array.additional_cbs_channels_strings)) {
+                // Apply the closest title to the specified tones.
+                switch (range.mAlertType) {
+                    case DEFAULT:
+                        return R.string.pws_other_message_identifiers;
+                    case ETWS_EARTHQUAKE:
+                        return R.string.etws_earthquake_warning;
+                    case ETWS_TSUNAMI:
+                        return R.string.etws_tsunami_warning;
+                    case TEST:
+                        return R.string.etws_test_message;
+                    case ETWS_DEFAULT:
+                    case OTHER:
+                        return R.string.etws_other_emergency_type;
                 }
-
             }
             return R.string.pws_other_message_identifiers;
         } else {
@@ -416,18 +439,15 @@ public class CellBroadcastResources {
         CellBroadcastChannelManager channelManager = new CellBroadcastChannelManager(
                 context, subId);
         if (channelManager.isEmergencyMessage(message)) {
-            ArrayList<CellBroadcastChannelRange> ranges =
-                    channelManager.getCellBroadcastChannelRanges(
-                            R.array.additional_cbs_channels_strings);
-            for (CellBroadcastChannelRange range : ranges) {
-                if (serviceCategory >= range.mStartId && serviceCategory <= range.mEndId) {
-                    // Apply the closest title to the specified tones.
-                    switch (range.mAlertType) {
-                        case ETWS_EARTHQUAKE:
-                            return R.drawable.pict_icon_earthquake;
-                        case ETWS_TSUNAMI:
-                            return R.drawable.pict_icon_tsunami;
-                    }
+            for (CellBroadcastChannelRange range
+                    : channelManager.getMatchingCellBroadcastChannelRanges(serviceCategory,
+                            R.array.additional_cbs_channels_strings)) {
+                // Apply the closest title to the specified tones.
+                switch (range.mAlertType) {
+                    case ETWS_EARTHQUAKE:
+                        return R.drawable.pict_icon_earthquake;
+                    case ETWS_TSUNAMI:
+                        return R.drawable.pict_icon_tsunami;
                 }
             }
             return -1;
@@ -0,0 +1,179 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.cellbroadcastreceiver;
+
+import android.annotation.NonNull;
+import android.annotation.Nullable;
+import android.content.res.Resources;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.provider.Telephony;
+import android.util.Log;
+
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Retention policy of the message history: a maximum age, a maximum number of messages, and a
+ * maximum number of messages per service category range, e.g. to keep only the latest monthly
+ * tests. The oldest messages are deleted first.
+ */
+public final class CellBroadcastRetentionPolicy {
+
+    private static final String TAG = "CBRetentionPolicy";
+
+    /** Maximum number of messages of a service category range. */
+    @VisibleForTesting
+    public static final class CategoryCap {
+        public final int mFirstCategory;
+        public final int mLastCategory;
+        public final int mMaxMessages;
+
+        CategoryCap(int firstCategory, int lastCategory, int maxMessages) {
+            mFirstCategory = firstCategory;
+            mLastCategory = lastCategory;
+            mMaxMessages = maxMessages;
+        }
+    }
+
+    /** Maximum age of a message in ms, 0 for no limit. */
+    private final long mMaxAgeMs;
+
+    /** Maximum number of messages, 0 for no limit. */
+    private final int mMaxMessages;
+
+    private final List<CategoryCap> mCategoryCaps;
+
+    /**
+     * @param maxAgeMs Maximum age of a message in ms, 0 for no limit
+     * @param maxMessages Maximum number of messages, 0 for no limit
+     * @param categoryCaps Caps formatted as
+     * "&lt;first category&gt;[-&lt;last category&gt;]:&lt;maximum number of messages&gt;"
+     */
+    @VisibleForTesting
+    public CellBroadcastRetentionPolicy(long maxAgeMs, int maxMessages,
+            @NonNull String[] categoryCaps) {
+        mMaxAgeMs = maxAgeMs;
+        mMaxMessages = maxMessages;
+        mCategoryCaps = new ArrayList<>(categoryCaps.length);
+        for (String cap : categoryCaps) {
+            CategoryCap categoryCap = parseCategoryCap(cap);
+            if (categoryCap != null) {
+                mCategoryCaps.add(categoryCap);
+            } else {
+                Log.e(TAG, "Invalid category cap: " + cap);
+            }
+        }
+    }
+
+    /**
+     * @param res Resources of the app
+     * @return The configured retention policy
+     */
+    public static @NonNull CellBroadcastRetentionPolicy fromResources(@NonNull Resources res) {
+        return new CellBroadcastRetentionPolicy(
+                TimeUnit.DAYS.toMillis(res.getInteger(R.integer.message_history_max_age_days)),
+                res.getInteger(R.integer.message_history_max_messages),
+                res.getStringArray(R.array.message_history_category_caps));
+    }
+
+    /**
+     * @param cap "&lt;first category&gt;[-&lt;last category&gt;]:&lt;maximum number&gt;"
+     * @return The parsed cap, or null if the cap is invalid
+     */
+    @VisibleForTesting
+    public static @Nullable CategoryCap parseCategoryCap(@NonNull String cap) {
+        int colon = cap.indexOf(':');
+        if (colon < 0) return null;
+        String range = cap.substring(0, colon).trim();
+        int dash = range.indexOf('-');
+        try {
+            int first = Integer.decode(dash < 0 ? range : range.substring(0, dash).trim());
+            int last = dash < 0 ? first : Integer.decode(range.substring(dash + 1).trim());
+            int maxMessages = Integer.parseInt(cap.substring(colon + 1).trim());
+            if (first > last || maxMessages < 0) return null;
+            return new CategoryCap(first, last, maxMessages);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /** @return The valid category caps of this policy */
+    @VisibleForTesting
+    public @NonNull List<CategoryCap> getCategoryCaps() {
+        return mCategoryCaps;
+    }
+
+    /**
+     * Delete messages which are not retained by this policy, at most {@code limit} of them so
+     * that the caller can spread the deletion over short transactions.
+     *
+     * @param db The database
+     * @param now Current wall clock time
+     * @param limit Maximum number of messages to delete
+     * @return The number of messages deleted. If it is {@code limit}, more messages may have to
+     * be deleted.
+     */
+    public int prune(@NonNull SQLiteDatabase db, long now, int limit) {
+        int deleted = 0;
+        if (mMaxAgeMs > 0) {
+            deleted += deleteOldest(db, Telephony.CellBroadcasts.DELIVERY_TIME + "<?",
+                    new String[]{Long.toString(now - mMaxAgeMs)}, 0, limit);
+        }
+        for (CategoryCap cap : mCategoryCaps) {
+            if (deleted >= limit) break;
+            deleted += deleteOldest(db,
+                    Telephony.CellBroadcasts.SERVICE_CATEGORY + " BETWEEN ? AND ?",
+                    new String[]{Integer.toString(cap.mFirstCategory),
+                            Integer.toString(cap.mLastCategory)},
+                    cap.mMaxMessages, limit - deleted);
+        }
+        if (mMaxMessages > 0 && deleted < limit) {
+            deleted += deleteOldest(db, null, null, mMaxMessages, limit - deleted);
+        }
+        return deleted;
+    }
+
+    /**
+     * Delete the oldest of the selected messages, except the {@code keep} newest ones.
+     *
+     * @return The number of messages deleted, at most {@code limit}
+     */
+    private static int deleteOldest(SQLiteDatabase db, String selection, String[] selectionArgs,
+            int keep, int limit) {
+        long excess = DatabaseUtils.queryNumEntries(db, CellBroadcastDatabaseHelper.TABLE_NAME,
+                selection, selectionArgs) - keep;
+        if (excess <= 0) return 0;
+        // Oldest first, so that a step limited below the excess still keeps the newest ones.
+        String oldest = "SELECT " + Telephony.CellBroadcasts._ID + " FROM "
+                + CellBroadcastDatabaseHelper.TABLE_NAME
+                + (selection != null ? " WHERE " + selection : "")
+                + " ORDER BY " + Telephony.CellBroadcasts.DELIVERY_TIME + " ASC"
+                + " LIMIT " + Math.min(limit, excess);
+        return db.delete(CellBroadcastDatabaseHelper.TABLE_NAME,
+                Telephony.CellBroadcasts._ID + " IN (" + oldest + ")", selectionArgs);
+    }
+
+    @Override
+    public String toString() {
+        return "CellBroadcastRetentionPolicy:[maxAgeMs=" + mMaxAgeMs + ",maxMessages="
+                + mMaxMessages + ",categoryCaps=" + mCategoryCaps.size() + "]";
+    }
+}
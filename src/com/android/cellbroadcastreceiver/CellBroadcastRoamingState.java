@@ -0,0 +1,254 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.cellbroadcastreceiver;
+
+import static com.android.cellbroadcastreceiver.CellBroadcastChannelManager.NETWORK_SCOPE_ANY;
+import static com.android.cellbroadcastreceiver.CellBroadcastChannelManager.NETWORK_SCOPE_DOMESTIC;
+import static com.android.cellbroadcastreceiver.CellBroadcastChannelManager.NETWORK_SCOPE_INTERNATIONAL;
+import static com.android.cellbroadcastreceiver.CellBroadcastChannelManager.NETWORK_SCOPE_NONE;
+
+import android.annotation.NonNull;
+import android.annotation.Nullable;
+import android.content.Context;
+import android.telephony.AccessNetworkConstants;
+import android.telephony.NetworkRegistrationInfo;
+import android.telephony.PhoneStateListener;
+import android.telephony.ServiceState;
+import android.telephony.SubscriptionManager;
+import android.telephony.TelephonyManager;
+import android.util.Log;
+import android.util.SparseArray;
+
+import com.android.internal.annotations.GuardedBy;
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.util.Arrays;
+
+/**
+ * Process-wide cache of the network condition of each subscription, as far as channel range
+ * scopes are concerned.
+ *
+ * The first query for a subscription reads its service state once and registers a service state
+ * listener, which keeps the cached condition up to date from then on. Later queries are a plain
+ * memory read: the entries are published through a volatile, copy-on-write array, and the
+ * condition of an entry is a volatile field.
+ */
+public final class CellBroadcastRoamingState {
+
+    private static final String TAG = "CBRoamingState";
+
+    private static final CellBroadcastRoamingState sInstance = new CellBroadcastRoamingState();
+
+    /** Cached network condition of one subscription. */
+    private static final class Entry {
+        /** {@code null} if the condition was injected. */
+        final @Nullable TelephonyManager mTelephonyManager;
+        final @Nullable PhoneStateListener mListener;
+        volatile int mNetworkScope;
+
+        Entry(@Nullable TelephonyManager telephonyManager, int networkScope) {
+            mTelephonyManager = telephonyManager;
+            mNetworkScope = networkScope;
+            mListener = telephonyManager == null ? null : new PhoneStateListener(Runnable::run) {
+                @Override
+                public void onServiceStateChanged(ServiceState serviceState) {
+                    mNetworkScope = getNetworkScope(serviceState);
+                }
+            };
+        }
+    }
+
+    private final Object mLock = new Object();
+
+    /** Never modified once published, replaced as a whole under {@link #mLock}. */
+    private volatile SparseArray<Entry> mEntries = new SparseArray<>();
+
+    @VisibleForTesting
+    public CellBroadcastRoamingState() {
+    }
+
+    /**
+     * @return The process-wide roaming state
+     */
+    public static @NonNull CellBroadcastRoamingState getInstance() {
+        return sInstance;
+    }
+
+    /**
+     * Get the current network condition of a subscription.
+     *
+     * @param context Context
+     * @param subId Subscription index
+     * @return One of the {@code NETWORK_SCOPE_*} constants of {@link CellBroadcastChannelManager}
+     */
+    public int getNetworkScope(@NonNull Context context, int subId) {
+        Entry entry = mEntries.get(subId);
+        if (entry != null) {
+            return entry.mNetworkScope;
+        }
+
+        synchronized (mLock) {
+            entry = mEntries.get(subId);
+            if (entry == null) {
+                TelephonyManager tm = ((TelephonyManager) context.getApplicationContext()
+                        .getSystemService(Context.TELEPHONY_SERVICE))
+                        .createForSubscriptionId(subId);
+                entry = new Entry(tm, getNetworkScope(tm.getServiceState()));
+                tm.listen(entry.mListener, PhoneStateListener.LISTEN_SERVICE_STATE);
+                Log.d(TAG, "Listening to the service state of sub " + subId + ", networkScope="
+                        + entry.mNetworkScope);
+                publish(subId, entry);
+            }
+            return entry.mNetworkScope;
+        }
+    }
+
+    /**
+     * Stop tracking a subscription, e.g. because the subscription the default one refers to
+     * changed. The next query reads the service state again.
+     *
+     * @param subId Subscription index
+     */
+    public void invalidate(int subId) {
+        synchronized (mLock) {
+            publish(subId, null);
+        }
+    }
+
+    /**
+     * Stop tracking the subscriptions that are no longer active, e.g. after a SIM was removed.
+     * The default subscription entry is kept, since it follows whichever subscription is the
+     * default one.
+     *
+     * @param activeSubIds Subscriptions that are kept
+     * @return The number of subscriptions no longer tracked
+     */
+    public int removeInactive(@NonNull int[] activeSubIds) {
+        int removed = 0;
+        synchronized (mLock) {
+            SparseArray<Entry> entries = mEntries.clone();
+            for (int i = entries.size() - 1; i >= 0; i--) {
+                int subId = entries.keyAt(i);
+                if (subId == SubscriptionManager.DEFAULT_SUBSCRIPTION_ID
+                        || Arrays.stream(activeSubIds).anyMatch(id -> id == subId)) {
+                    continue;
+                }
+                stopListening(entries.valueAt(i));
+                entries.removeAt(i);
+                removed++;
+            }
+            if (removed > 0) {
+                mEntries = entries;
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * Replace the network condition of a subscription, so that it no longer follows the service
+     * state.
+     *
+     * @param subId Subscription index
+     * @param networkScope One of the {@code NETWORK_SCOPE_*} constants of
+     * {@link CellBroadcastChannelManager}
+     */
+    @VisibleForTesting
+    public void setNetworkScope(int subId, int networkScope) {
+        synchronized (mLock) {
+            publish(subId, new Entry(null, networkScope));
+        }
+    }
+
+    /**
+     * Stop tracking all subscriptions.
+     */
+    @VisibleForTesting
+    public void reset() {
+        synchronized (mLock) {
+            SparseArray<Entry> entries = mEntries;
+            for (int i = 0; i < entries.size(); i++) {
+                stopListening(entries.valueAt(i));
+            }
+            mEntries = new SparseArray<>();
+        }
+    }
+
+    @GuardedBy("mLock")
+    private void publish(int subId, @Nullable Entry entry) {
+        SparseArray<Entry> entries = mEntries.clone();
+        Entry old = entries.get(subId);
+        if (old != null) {
+            stopListening(old);
+        }
+        if (entry != null) {
+            entries.put(subId, entry);
+        } else {
+            entries.remove(subId);
+        }
+        mEntries = entries;
+    }
+
+    private static void stopListening(Entry entry) {
+        if (entry.mTelephonyManager != null) {
+            entry.mTelephonyManager.listen(entry.mListener, PhoneStateListener.LISTEN_NONE);
+        }
+    }
+
+    /**
+     * @param ss Service state, {@code null} if unknown
+     * @return The network condition of the service state.
+     */
+    @VisibleForTesting
+    public static int getNetworkScope(@Nullable ServiceState ss) {
+        if (ss != null) {
+            NetworkRegistrationInfo regInfo = ss.getNetworkRegistrationInfo(
+                    NetworkRegistrationInfo.DOMAIN_CS,
+                    AccessNetworkConstants.TRANSPORT_TYPE_WWAN);
+            if (regInfo != null) {
+                if (regInfo.getRegistrationState()
+                        == NetworkRegistrationInfo.REGISTRATION_STATE_HOME
+                        || regInfo.getRegistrationState()
+                        == NetworkRegistrationInfo.REGISTRATION_STATE_ROAMING
+                        || regInfo.isEmergencyEnabled()) {
+                    int voiceRoamingType = regInfo.getRoamingType();
+                    if (voiceRoamingType == ServiceState.ROAMING_TYPE_NOT_ROAMING) {
+                        return NETWORK_SCOPE_ANY;
+                    } else if (voiceRoamingType == ServiceState.ROAMING_TYPE_DOMESTIC) {
+                        return NETWORK_SCOPE_DOMESTIC;
+                    } else if (voiceRoamingType == ServiceState.ROAMING_TYPE_INTERNATIONAL) {
+                        return NETWORK_SCOPE_INTERNATIONAL;
+                    }
+                    return NETWORK_SCOPE_NONE;
+                }
+            }
+        }
+        // If we can't determine the scope, for safe we should assume it's in.
+        return NETWORK_SCOPE_ANY;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("CellBroadcastRoamingState:[");
+        SparseArray<Entry> entries = mEntries;
+        for (int i = 0; i < entries.size(); i++) {
+            if (i > 0) sb.append(",");
+            sb.append("sub ").append(entries.keyAt(i)).append("=")
+                    .append(entries.valueAt(i).mNetworkScope);
+        }
+        return sb.append("]").toString();
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.cellbroadcastreceiver;
+
+import android.annotation.NonNull;
+import android.annotation.Nullable;
+import android.telephony.SmsCbMessage;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * Row IDs of received messages in the database of {@link CellBroadcastContentProvider}, so that
+ * marking a message read is a primary key update instead of a lookup by delivery time, which
+ * matches every message received in the same millisecond.
+ *
+ * {@link SmsCbMessage} has no field for the row ID, so it travels next to the messages: in
+ * intents and saved state as a long array aligned with the message list ({@link #EXTRA_ROW_IDS}),
+ * and within the process in a weak map from each message object to its row ID.
+ */
+public final class CellBroadcastRowIds {
+
+    /** Row ID of a message that is not known, e.g. because it could not be written. */
+    public static final long UNKNOWN = -1;
+
+    /** Extra with the row IDs of the message list of an intent or bundle, in the same order. */
+    public static final String EXTRA_ROW_IDS = "row_ids";
+
+    /** Extra with the row ID of a single message. */
+    public static final String EXTRA_ROW_ID = "row_id";
+
+    private static final Map<SmsCbMessage, Long> sRowIds =
+            Collections.synchronizedMap(new WeakHashMap<>());
+
+    private CellBroadcastRowIds() {
+    }
+
+    /**
+     * Remember the row ID of a message.
+     *
+     * @param message The message object
+     * @param rowId Its row ID, or {@link #UNKNOWN}
+     */
+    public static void put(@NonNull SmsCbMessage message, long rowId) {
+        if (rowId != UNKNOWN) {
+            sRowIds.put(message, rowId);
+        }
+    }
+
+    /**
+     * Remember the row IDs of messages.
+     *
+     * @param messages The message objects
+     * @param rowIds Their row IDs in the same order, e.g. from {@link #EXTRA_ROW_IDS}. Ignored if
+     * null or of a different length.
+     */
+    public static void putAll(@NonNull List<SmsCbMessage> messages, @Nullable long[] rowIds) {
+        if (rowIds == null || rowIds.length != messages.size()) {
+            return;
+        }
+        for (int i = 0; i < rowIds.length; i++) {
+            put(messages.get(i), rowIds[i]);
+        }
+    }
+
+    /**
+     * @param message The message object
+     * @return Its row ID, or {@link #UNKNOWN}
+     */
+    public static long get(@NonNull SmsCbMessage message) {
+        Long rowId = sRowIds.get(message);
+        return rowId != null ? rowId : UNKNOWN;
+    }
+
+    /**
+     * @param messages The message objects
+     * @return Their row IDs in the same order, for {@link #EXTRA_ROW_IDS}
+     */
+    public static @NonNull long[] toArray(@NonNull List<SmsCbMessage> messages) {
+        long[] rowIds = new long[messages.size()];
+        for (int i = 0; i < rowIds.length; i++) {
+            rowIds[i] = get(messages.get(i));
+        }
+        return rowIds;
+    }
+}
@@ -0,0 +1,166 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.cellbroadcastreceiver.unit;
+
+import static com.android.cellbroadcastreceiver.CellBroadcastChannelManager.NETWORK_SCOPE_ANY;
+import static com.android.cellbroadcastreceiver.CellBroadcastChannelManager.NETWORK_SCOPE_DOMESTIC;
+import static com.android.cellbroadcastreceiver.CellBroadcastChannelManager.NETWORK_SCOPE_INTERNATIONAL;
+import static com.android.cellbroadcastreceiver.CellBroadcastChannelManager.NETWORK_SCOPE_NONE;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.eq;
+import static org.mockito.Mockito.mock;
+
+import android.content.SharedPreferences;
+import android.test.suitebuilder.annotation.SmallTest;
+import android.util.SparseArray;
+
+import com.android.cellbroadcastreceiver.CellBroadcastAlertFilter;
+import com.android.cellbroadcastreceiver.CellBroadcastAlertPreferences;
+import com.android.cellbroadcastreceiver.CellBroadcastChannelIndex;
+import com.android.cellbroadcastreceiver.CellBroadcastChannelManager.CellBroadcastChannelRange;
+import com.android.cellbroadcastreceiver.CellBroadcastSettings;
+import com.android.cellbroadcastreceiver.R;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Tests for {@link CellBroadcastAlertFilter}
+ */
+public class CellBroadcastAlertFilterTest {
+
+    private static final int[] KEYS = new int[]{R.array.additional_cbs_channels_strings,
+            R.array.cmas_presidential_alerts_channels_range_strings,
+            R.array.cmas_alert_extreme_channels_range_strings,
+            R.array.required_monthly_test_range_strings,
+            R.array.exercise_alert_range_strings,
+            R.array.state_local_test_alert_range_strings};
+
+    private SharedPreferences mPrefs;
+
+    @Before
+    public void setUp() throws Exception {
+        mPrefs = mock(SharedPreferences.class);
+        // Every preference has its default value unless stubbed.
+        doAnswer(invocation -> invocation.getArgument(1))
+                .when(mPrefs).getBoolean(anyString(), anyBoolean());
+    }
+
+    private CellBroadcastAlertPreferences prefs() {
+        return new CellBroadcastAlertPreferences(mPrefs, 0);
+    }
+
+    private static CellBroadcastChannelIndex buildIndex(String[]... channelRanges) {
+        SparseArray<List<CellBroadcastChannelRange>> ranges = new SparseArray<>();
+        for (int i = 0; i < KEYS.length; i++) {
+            List<CellBroadcastChannelRange> list = new ArrayList<>();
+            for (String channelRange : channelRanges[i]) {
+                list.add(new CellBroadcastChannelRange(new int[0], channelRange));
+            }
+            ranges.put(KEYS[i], list);
+        }
+        return new CellBroadcastChannelIndex(KEYS, ranges);
+    }
+
+    private static CellBroadcastChannelIndex buildDefaultIndex() {
+        return buildIndex(
+                new String[]{"0x1100:scope=domestic", "0x1101:type=test"},
+                new String[]{"0x1112"},
+                new String[]{"0x1113-0x1114"},
+                new String[]{"0x111C"},
+                new String[]{"0x111D"},
+                new String[]{"0x111E"});
+    }
+
+    @Test
+    @SmallTest
+    public void testDefaultPreferences() throws Exception {
+        CellBroadcastAlertFilter filter = CellBroadcastAlertFilter.compile(buildDefaultIndex(),
+                prefs(), false, false);
+
+        assertTrue(filter.isChannelEnabled(0x1112, NETWORK_SCOPE_ANY));
+        assertTrue(filter.isChannelEnabled(0x1113, NETWORK_SCOPE_ANY));
+        assertTrue(filter.isChannelEnabled(0x1114, NETWORK_SCOPE_ANY));
+        // Test alerts are off by default
+        assertFalse(filter.isChannelEnabled(0x1101, NETWORK_SCOPE_ANY));
+        assertFalse(filter.isChannelEnabled(0x111C, NETWORK_SCOPE_ANY));
+        assertFalse(filter.isChannelEnabled(0x111D, NETWORK_SCOPE_ANY));
+        assertFalse(filter.isChannelEnabled(0x111E, NETWORK_SCOPE_ANY));
+        // Channels outside of all ranges are not filtered
+        assertTrue(filter.isChannelEnabled(0x1000, NETWORK_SCOPE_NONE));
+    }
+
+    @Test
+    @SmallTest
+    public void testPreferences() throws Exception {
+        doReturn(false).when(mPrefs).getBoolean(
+                eq(CellBroadcastSettings.KEY_ENABLE_ALERTS_MASTER_TOGGLE), anyBoolean());
+        doReturn(true).when(mPrefs).getBoolean(
+                eq(CellBroadcastSettings.KEY_ENABLE_TEST_ALERTS), anyBoolean());
+        CellBroadcastAlertFilter filter = CellBroadcastAlertFilter.compile(buildDefaultIndex(),
+                prefs(), true, true);
+
+        // Presidential alerts are always enabled
+        assertTrue(filter.isChannelEnabled(0x1112, NETWORK_SCOPE_ANY));
+        assertFalse(filter.isChannelEnabled(0x1113, NETWORK_SCOPE_ANY));
+        assertFalse(filter.isChannelEnabled(0x111C, NETWORK_SCOPE_ANY));
+        // Exercise alerts are always enabled by the resource config
+        assertTrue(filter.isChannelEnabled(0x111D, NETWORK_SCOPE_ANY));
+
+        doReturn(true).when(mPrefs).getBoolean(
+                eq(CellBroadcastSettings.KEY_ENABLE_ALERTS_MASTER_TOGGLE), anyBoolean());
+        filter = CellBroadcastAlertFilter.compile(buildDefaultIndex(), prefs(), true, false);
+        assertTrue(filter.isChannelEnabled(0x1101, NETWORK_SCOPE_ANY));
+        assertTrue(filter.isChannelEnabled(0x111C, NETWORK_SCOPE_ANY));
+        assertTrue(filter.isChannelEnabled(0x111D, NETWORK_SCOPE_ANY));
+        // Test alerts stay off if the toggle is not visible
+        filter = CellBroadcastAlertFilter.compile(buildDefaultIndex(), prefs(), false, false);
+        assertFalse(filter.isChannelEnabled(0x111C, NETWORK_SCOPE_ANY));
+    }
+
+    @Test
+    @SmallTest
+    public void testScope() throws Exception {
+        CellBroadcastAlertFilter filter = CellBroadcastAlertFilter.compile(buildDefaultIndex(),
+                prefs(), false, false);
+
+        assertTrue(filter.isChannelEnabled(0x1100, NETWORK_SCOPE_ANY));
+        assertTrue(filter.isChannelEnabled(0x1100, NETWORK_SCOPE_DOMESTIC));
+        assertFalse(filter.isChannelEnabled(0x1100, NETWORK_SCOPE_INTERNATIONAL));
+        assertFalse(filter.isChannelEnabled(0x1100, NETWORK_SCOPE_NONE));
+
+        // An out of scope extreme alert range falls through to the next category
+        filter = CellBroadcastAlertFilter.compile(buildIndex(
+                new String[0],
+                new String[0],
+                new String[]{"0x1113:scope=international"},
+                new String[0],
+                new String[0],
+                new String[]{"0x1113"}), prefs(), false, false);
+        assertTrue(filter.isChannelEnabled(0x1113, NETWORK_SCOPE_INTERNATIONAL));
+        assertFalse(filter.isChannelEnabled(0x1113, NETWORK_SCOPE_DOMESTIC));
+    }
+}
@@ -0,0 +1,186 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.cellbroadcastreceiver.unit;
+
+import static com.android.cellbroadcastreceiver.CellBroadcastAlertPipeline.PRIORITY_AMBER;
+import static com.android.cellbroadcastreceiver.CellBroadcastAlertPipeline.PRIORITY_EXTREME;
+import static com.android.cellbroadcastreceiver.CellBroadcastAlertPipeline.PRIORITY_OTHER;
+import static com.android.cellbroadcastreceiver.CellBroadcastAlertPipeline.PRIORITY_PRESIDENTIAL;
+import static com.android.cellbroadcastreceiver.CellBroadcastAlertPipeline.PRIORITY_PUBLIC_SAFETY;
+import static com.android.cellbroadcastreceiver.CellBroadcastAlertPipeline.PRIORITY_SEVERE;
+import static com.android.cellbroadcastreceiver.CellBroadcastAlertPipeline.PRIORITY_TEST;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import android.telephony.SmsCbCmasInfo;
+import android.telephony.SmsCbEtwsInfo;
+import android.telephony.SmsCbLocation;
+import android.telephony.SmsCbMessage;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.cellbroadcastreceiver.CellBroadcastAlertPipeline;
+import com.android.internal.telephony.gsm.SmsCbConstants;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests for {@link CellBroadcastAlertPipeline}
+ */
+public class CellBroadcastAlertPipelineTest {
+
+    private static SmsCbMessage createCmasMessage(int serviceCategory, int messageClass) {
+        return new SmsCbMessage(SmsCbMessage.MESSAGE_FORMAT_3GPP, 0, 1, new SmsCbLocation(),
+                serviceCategory, "en", "body", SmsCbMessage.MESSAGE_PRIORITY_EMERGENCY, null,
+                new SmsCbCmasInfo(messageClass, 2, 3, 4, 5, 6), 0, 1);
+    }
+
+    private static SmsCbMessage createEtwsMessage(int warningType) {
+        return new SmsCbMessage(SmsCbMessage.MESSAGE_FORMAT_3GPP, 0, 1, new SmsCbLocation(),
+                SmsCbConstants.MESSAGE_ID_ETWS_EARTHQUAKE_WARNING, "ja", "body",
+                SmsCbMessage.MESSAGE_PRIORITY_EMERGENCY,
+                new SmsCbEtwsInfo(warningType, false, false, true, null), null, 0, 1);
+    }
+
+    @Test
+    @SmallTest
+    public void testPriority() throws Exception {
+        assertEquals(PRIORITY_PRESIDENTIAL, CellBroadcastAlertPipeline.getPriority(
+                createCmasMessage(SmsCbConstants.MESSAGE_ID_CMAS_ALERT_PRESIDENTIAL_LEVEL,
+                        SmsCbCmasInfo.CMAS_CLASS_PRESIDENTIAL_LEVEL_ALERT)));
+        assertEquals(PRIORITY_EXTREME, CellBroadcastAlertPipeline.getPriority(
+                createCmasMessage(SmsCbConstants.MESSAGE_ID_CMAS_ALERT_EXTREME_IMMEDIATE_OBSERVED,
+                        SmsCbCmasInfo.CMAS_CLASS_EXTREME_THREAT)));
+        assertEquals(PRIORITY_SEVERE, CellBroadcastAlertPipeline.getPriority(
+                createCmasMessage(SmsCbConstants.MESSAGE_ID_CMAS_ALERT_SEVERE_EXPECTED_LIKELY,
+                        SmsCbCmasInfo.CMAS_CLASS_SEVERE_THREAT)));
+        assertEquals(PRIORITY_AMBER, CellBroadcastAlertPipeline.getPriority(
+                createCmasMessage(SmsCbConstants.MESSAGE_ID_CMAS_ALERT_CHILD_ABDUCTION_EMERGENCY,
+                        SmsCbCmasInfo.CMAS_CLASS_CHILD_ABDUCTION_EMERGENCY)));
+        assertEquals(PRIORITY_PUBLIC_SAFETY, CellBroadcastAlertPipeline.getPriority(
+                createCmasMessage(SmsCbConstants.MESSAGE_ID_CMAS_ALERT_PUBLIC_SAFETY,
+                        SmsCbCmasInfo.CMAS_CLASS_UNKNOWN)));
+        assertEquals(PRIORITY_TEST, CellBroadcastAlertPipeline.getPriority(
+                createCmasMessage(SmsCbConstants.MESSAGE_ID_CMAS_ALERT_REQUIRED_MONTHLY_TEST,
+                        SmsCbCmasInfo.CMAS_CLASS_REQUIRED_MONTHLY_TEST)));
+        assertEquals(PRIORITY_TEST, CellBroadcastAlertPipeline.getPriority(
+                createCmasMessage(SmsCbConstants.MESSAGE_ID_CMAS_ALERT_EXERCISE,
+                        SmsCbCmasInfo.CMAS_CLASS_CMAS_EXERCISE)));
+        assertEquals(PRIORITY_PUBLIC_SAFETY, CellBroadcastAlertPipeline.getPriority(
+                createCmasMessage(SmsCbConstants.MESSAGE_ID_CMAS_ALERT_OPERATOR_DEFINED_USE,
+                        SmsCbCmasInfo.CMAS_CLASS_OPERATOR_DEFINED_USE)));
+
+        assertEquals(PRIORITY_EXTREME, CellBroadcastAlertPipeline.getPriority(
+                createEtwsMessage(SmsCbEtwsInfo.ETWS_WARNING_TYPE_EARTHQUAKE)));
+        assertEquals(PRIORITY_TEST, CellBroadcastAlertPipeline.getPriority(
+                createEtwsMessage(SmsCbEtwsInfo.ETWS_WARNING_TYPE_TEST_MESSAGE)));
+
+        assertEquals(PRIORITY_OTHER, CellBroadcastAlertPipeline.getPriority(new SmsCbMessage(
+                SmsCbMessage.MESSAGE_FORMAT_3GPP, 0, 1, new SmsCbLocation(), 50, "en", "body",
+                SmsCbMessage.MESSAGE_PRIORITY_NORMAL, null, null, 0, 1)));
+    }
+
+    @Test
+    @SmallTest
+    public void testOrdering() throws Exception {
+        CellBroadcastAlertPipeline pipeline = new CellBroadcastAlertPipeline();
+        CountDownLatch blocked = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(6);
+        List<String> order = new ArrayList<>();
+
+        // Keep the worker busy while the burst is queued
+        pipeline.execute(PRIORITY_OTHER, () -> {
+            try {
+                blocked.await(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+            }
+        });
+        pipeline.execute(PRIORITY_TEST, () -> { order.add("test1"); done.countDown(); });
+        pipeline.execute(PRIORITY_PUBLIC_SAFETY, () -> { order.add("safety"); done.countDown(); });
+        pipeline.execute(PRIORITY_TEST, () -> { order.add("test2"); done.countDown(); });
+        pipeline.execute(PRIORITY_SEVERE, () -> { order.add("severe"); done.countDown(); });
+        pipeline.execute(PRIORITY_PRESIDENTIAL, () -> {
+            order.add("presidential");
+            done.countDown();
+        });
+        // A failing job doesn't stop the ones behind it
+        pipeline.execute(PRIORITY_PRESIDENTIAL, () -> {
+            throw new IllegalStateException();
+        });
+        pipeline.execute(PRIORITY_TEST, () -> { order.add("test3"); done.countDown(); });
+        assertEquals(7, pipeline.getQueuedCount());
+
+        blocked.countDown();
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList("presidential", "severe", "safety", "test1", "test2", "test3"),
+                order);
+    }
+
+    @Test
+    @SmallTest
+    public void testBatching() throws Exception {
+        CellBroadcastAlertPipeline pipeline = new CellBroadcastAlertPipeline();
+        pipeline.setBatchWindow(0);
+        CountDownLatch blocked = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(1);
+        List<List<SmsCbMessage>> batches = new ArrayList<>();
+
+        pipeline.execute(PRIORITY_OTHER, () -> {
+            try {
+                blocked.await(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+            }
+        });
+        SmsCbMessage test = createCmasMessage(
+                SmsCbConstants.MESSAGE_ID_CMAS_ALERT_REQUIRED_MONTHLY_TEST,
+                SmsCbCmasInfo.CMAS_CLASS_REQUIRED_MONTHLY_TEST);
+        SmsCbMessage presidential = createCmasMessage(
+                SmsCbConstants.MESSAGE_ID_CMAS_ALERT_PRESIDENTIAL_LEVEL,
+                SmsCbCmasInfo.CMAS_CLASS_PRESIDENTIAL_LEVEL_ALERT);
+        SmsCbMessage severe = createCmasMessage(
+                SmsCbConstants.MESSAGE_ID_CMAS_ALERT_SEVERE_EXPECTED_LIKELY,
+                SmsCbCmasInfo.CMAS_CLASS_SEVERE_THREAT);
+        CellBroadcastAlertPipeline.MessageProcessor processor = messages -> {
+            batches.add(new ArrayList<>(messages));
+            done.countDown();
+        };
+        pipeline.enqueue(test, processor);
+        pipeline.enqueue(presidential, processor);
+        pipeline.enqueue(severe, processor);
+
+        // The burst queued while the worker was busy is processed at once, in the order it was
+        // received.
+        blocked.countDown();
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        // The remaining drains find nothing to do
+        CountDownLatch idle = new CountDownLatch(1);
+        pipeline.execute(PRIORITY_OTHER, idle::countDown);
+        assertTrue(idle.await(5, TimeUnit.SECONDS));
+        assertEquals(1, batches.size());
+        assertEquals(Arrays.asList(test, presidential, severe), batches.get(0));
+        assertEquals(1, pipeline.getBatchCount());
+        assertEquals(3, pipeline.getMessageCount());
+        assertEquals(3, pipeline.getMaxBatchSize());
+        assertTrue(pipeline.getMaxTimeToDisplayMs() >= pipeline.getAverageTimeToDisplayMs());
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.cellbroadcastreceiver.unit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.clearInvocations;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.eq;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+
+import android.content.SharedPreferences;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.cellbroadcastreceiver.CellBroadcastAlertPreferences;
+import com.android.cellbroadcastreceiver.CellBroadcastSettings;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+
+/**
+ * Tests for {@link CellBroadcastAlertPreferences}
+ */
+public class CellBroadcastAlertPreferencesTest extends CellBroadcastTest {
+
+    @Mock
+    SharedPreferences mSharedPreferences;
+
+    @Before
+    public void setUp() throws Exception {
+        super.setUp(getClass().getSimpleName());
+        doReturn(mSharedPreferences).when(mContext).getSharedPreferences(anyString(), anyInt());
+        doAnswer(invocation -> invocation.getArgument(1))
+                .when(mSharedPreferences).getBoolean(anyString(), anyBoolean());
+        CellBroadcastAlertPreferences.invalidate();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        CellBroadcastAlertPreferences.invalidate();
+        super.tearDown();
+    }
+
+    @Test
+    @SmallTest
+    public void testDefaults() throws Exception {
+        CellBroadcastAlertPreferences prefs = CellBroadcastAlertPreferences.get(mContext);
+        assertTrue(prefs.mAlertsMasterToggle);
+        assertTrue(prefs.mEmergencyAlerts);
+        assertTrue(prefs.mCmasExtremeAlerts);
+        assertTrue(prefs.mCmasSevereAlerts);
+        assertTrue(prefs.mCmasAmberAlerts);
+        assertFalse(prefs.mTestAlerts);
+        assertFalse(prefs.mAreaUpdateInfoAlerts);
+        assertTrue(prefs.mPublicSafetyMessages);
+        assertFalse(prefs.mStateLocalTestAlerts);
+        assertFalse(prefs.mReceiveCmasInSecondLanguage);
+        assertFalse(prefs.mOverrideDnd);
+        assertTrue(prefs.mAlertVibrate);
+        assertTrue(prefs.mShowCmasOptOutDialog);
+        assertNull(prefs.mAlertReminderInterval);
+    }
+
+    @Test
+    @SmallTest
+    public void testSnapshotSwappedOnChange() throws Exception {
+        CellBroadcastAlertPreferences prefs = CellBroadcastAlertPreferences.get(mContext);
+        ArgumentCaptor<SharedPreferences.OnSharedPreferenceChangeListener> listener =
+                ArgumentCaptor.forClass(SharedPreferences.OnSharedPreferenceChangeListener.class);
+        verify(mSharedPreferences).registerOnSharedPreferenceChangeListener(listener.capture());
+
+        // Readers get the published snapshot without touching the preferences
+        clearInvocations(mSharedPreferences);
+        assertSame(prefs, CellBroadcastAlertPreferences.get(mContext));
+        verify(mSharedPreferences, never()).getBoolean(anyString(), anyBoolean());
+
+        doReturn(false).when(mSharedPreferences).getBoolean(
+                eq(CellBroadcastSettings.KEY_ENABLE_ALERTS_MASTER_TOGGLE), anyBoolean());
+        doReturn("15").when(mSharedPreferences).getString(
+                eq(CellBroadcastSettings.KEY_ALERT_REMINDER_INTERVAL), any());
+        listener.getValue().onSharedPreferenceChanged(mSharedPreferences,
+                CellBroadcastSettings.KEY_ENABLE_ALERTS_MASTER_TOGGLE);
+
+        CellBroadcastAlertPreferences changed = CellBroadcastAlertPreferences.get(mContext);
+        assertNotSame(prefs, changed);
+        assertFalse(changed.mAlertsMasterToggle);
+        assertEquals("15", changed.mAlertReminderInterval);
+        assertTrue(changed.mGeneration > prefs.mGeneration);
+        // The old snapshot is unchanged
+        assertTrue(prefs.mAlertsMasterToggle);
+    }
+}
@@ -33,6 +33,7 @@ import android.telephony.SmsCbLocation;
 import android.telephony.SmsCbMessage;
 
 import com.android.cellbroadcastreceiver.CellBroadcastAlertAudio;
+import com.android.cellbroadcastreceiver.CellBroadcastAlertPreferences;
 import com.android.cellbroadcastreceiver.CellBroadcastAlertService;
 import com.android.cellbroadcastreceiver.CellBroadcastSettings;
 import com.android.internal.telephony.gsm.SmsCbConstants;
@@ -41,6 +42,7 @@ import org.junit.After;
 import org.junit.Before;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 
 public class CellBroadcastAlertServiceTest extends
         CellBroadcastServiceTestCase<CellBroadcastAlertService> {
@@ -190,6 +192,70 @@ public class CellBroadcastAlertServiceTest extends
         compareCellBroadCastMessage(message, newMessageList.get(0));
     }
 
+    static SmsCbMessage createMessageWithBody(int serialNumber, int serviceCategory,
+            int cmasMessageClass, String body) {
+        return new SmsCbMessage(1, 2, serialNumber, new SmsCbLocation(), serviceCategory,
+                "language", body,
+                SmsCbMessage.MESSAGE_PRIORITY_EMERGENCY, null,
+                new SmsCbCmasInfo(cmasMessageClass, 2, 3, 4, 5, 6),
+                0, 1);
+    }
+
+    public void testOrderForDisplay() {
+        SmsCbMessage test1 = createMessageWithBody(1,
+                SmsCbConstants.MESSAGE_ID_CMAS_ALERT_REQUIRED_MONTHLY_TEST,
+                SmsCbCmasInfo.CMAS_CLASS_REQUIRED_MONTHLY_TEST, "test1");
+        SmsCbMessage extreme1 = createMessageWithBody(2,
+                SmsCbConstants.MESSAGE_ID_CMAS_ALERT_EXTREME_IMMEDIATE_OBSERVED,
+                SmsCbCmasInfo.CMAS_CLASS_EXTREME_THREAT, "extreme1");
+        SmsCbMessage extreme2 = createMessageWithBody(3,
+                SmsCbConstants.MESSAGE_ID_CMAS_ALERT_EXTREME_IMMEDIATE_OBSERVED,
+                SmsCbCmasInfo.CMAS_CLASS_EXTREME_THREAT, "extreme2");
+        SmsCbMessage test2 = createMessageWithBody(4,
+                SmsCbConstants.MESSAGE_ID_CMAS_ALERT_REQUIRED_MONTHLY_TEST,
+                SmsCbCmasInfo.CMAS_CLASS_REQUIRED_MONTHLY_TEST, "test2");
+
+        // The most recent alert of the highest priority is shown first, the others keep the
+        // order they were received in.
+        assertEquals(Arrays.asList(test1, extreme1, test2, extreme2),
+                CellBroadcastAlertService.orderForDisplay(
+                        Arrays.asList(test1, extreme1, extreme2, test2)));
+        assertEquals(Arrays.asList(test1, test2),
+                CellBroadcastAlertService.orderForDisplay(Arrays.asList(test1, test2)));
+    }
+
+    // Test showNewAlert method with a batch of alerts of different priorities
+    @InstrumentationTest
+    // This test has a module dependency, so it is disabled for OEM testing because it is not a true
+    // unit test
+    public void testShowNewAlertMixedPriorityBatch() throws Exception {
+        SmsCbMessage presidential = createMessageWithBody(1,
+                SmsCbConstants.MESSAGE_ID_CMAS_ALERT_PRESIDENTIAL_LEVEL,
+                SmsCbCmasInfo.CMAS_CLASS_PRESIDENTIAL_LEVEL_ALERT, "presidential");
+        SmsCbMessage test = createMessageWithBody(2,
+                SmsCbConstants.MESSAGE_ID_CMAS_ALERT_REQUIRED_MONTHLY_TEST,
+                SmsCbCmasInfo.CMAS_CLASS_REQUIRED_MONTHLY_TEST, "test");
+        Intent intent = new Intent(mContext, CellBroadcastAlertService.class);
+        intent.setAction(SHOW_NEW_ALERT_ACTION);
+        intent.putParcelableArrayListExtra("message_list", new ArrayList<>(
+                Arrays.asList(presidential, test)));
+        startService(intent);
+        waitForMs(500);
+
+        // The presidential alert drives the audio, although the test was received after it
+        assertEquals(CellBroadcastAlertAudio.ACTION_START_ALERT_AUDIO,
+                mServiceIntentToVerify.getAction());
+        assertEquals("presidential", mServiceIntentToVerify.getStringExtra(
+                CellBroadcastAlertAudio.ALERT_AUDIO_MESSAGE_BODY));
+
+        // and the dialog shows it first
+        ArrayList<SmsCbMessage> newMessageList = mActivityIntentToVerify
+                .getParcelableArrayListExtra(CellBroadcastAlertService.SMS_CB_MESSAGE_EXTRA);
+        assertEquals(2, newMessageList.size());
+        compareCellBroadCastMessage(test, newMessageList.get(0));
+        compareCellBroadCastMessage(presidential, newMessageList.get(1));
+    }
+
     // Test showNewAlert method with a CMAS child abduction alert, using the default language code
     @InstrumentationTest
     // This test has a module dependency, so it is disabled for OEM testing because it is not a true
@@ -221,6 +287,8 @@ public class CellBroadcastAlertServiceTest extends
         SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(mContext);
         prefs.edit().putBoolean(CellBroadcastSettings.KEY_RECEIVE_CMAS_IN_SECOND_LANGUAGE, true)
                 .commit();
+        // Listeners are notified asynchronously on the main thread
+        CellBroadcastAlertPreferences.invalidate();
 
         final String language = "es";
         doReturn(new String[]{"0x111B:rat=gsm, emergency=true, filter_language=true"})
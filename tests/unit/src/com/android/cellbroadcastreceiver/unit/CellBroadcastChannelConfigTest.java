@@ -0,0 +1,156 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.cellbroadcastreceiver.unit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import android.telephony.SmsCbMessage;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.cellbroadcastreceiver.CellBroadcastChannelConfig;
+import com.android.cellbroadcastreceiver.CellBroadcastChannelConfig.Operation;
+import com.android.cellbroadcastreceiver.CellBroadcastChannelConfig.Range;
+import com.android.cellbroadcastreceiver.CellBroadcastChannelManager.CellBroadcastChannelRange;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Tests for {@link CellBroadcastChannelConfig}
+ */
+public class CellBroadcastChannelConfigTest {
+
+    private static final int GSM = SmsCbMessage.MESSAGE_FORMAT_3GPP;
+    private static final int CDMA = SmsCbMessage.MESSAGE_FORMAT_3GPP2;
+
+    private static List<CellBroadcastChannelRange> ranges(String... channelRanges) {
+        ArrayList<CellBroadcastChannelRange> ranges = new ArrayList<>();
+        for (String channelRange : channelRanges) {
+            ranges.add(new CellBroadcastChannelRange(new int[0], channelRange));
+        }
+        return ranges;
+    }
+
+    private static Map<Range, Integer> enabledRanges(Object... rangesAndCounts) {
+        LinkedHashMap<Range, Integer> enabled = new LinkedHashMap<>();
+        for (int i = 0; i < rangesAndCounts.length; i += 2) {
+            enabled.put((Range) rangesAndCounts[i], (Integer) rangesAndCounts[i + 1]);
+        }
+        return enabled;
+    }
+
+    @Test
+    @SmallTest
+    public void testCoalescing() throws Exception {
+        CellBroadcastChannelConfig config = new CellBroadcastChannelConfig();
+        config.add(true, ranges("4370", "4371-4372", "4383", "4373:rat=cdma", "4380-4382",
+                "4375-4390"));
+        config.add(false, ranges("4396", "4397"));
+        config.add(true, ranges("4400"));
+
+        List<Operation> operations = config.getOperations();
+        assertEquals(9, config.getRequestedCount());
+        assertEquals(5, operations.size());
+        assertEquals(new Range(4370, 4372, GSM), operations.get(0).mRange);
+        assertEquals(new Range(4375, 4390, GSM), operations.get(1).mRange);
+        assertEquals(new Range(4373, 4373, CDMA), operations.get(2).mRange);
+        assertEquals(new Range(4396, 4397, GSM), operations.get(3).mRange);
+        assertFalse(operations.get(3).mEnable);
+        assertEquals(new Range(4400, 4400, GSM), operations.get(4).mRange);
+
+        // The disable of ranges that were never enabled leaves nothing behind.
+        assertEquals(enabledRanges(new Range(4370, 4372, GSM), 1, new Range(4375, 4390, GSM), 1,
+                new Range(4373, 4373, CDMA), 1, new Range(4400, 4400, GSM), 1),
+                config.getEnabledRanges());
+        assertEquals(Arrays.asList(new Range(4370, 4372, GSM), new Range(4375, 4390, GSM),
+                new Range(4400, 4400, GSM), new Range(4373, 4373, CDMA)),
+                CellBroadcastChannelConfig.getChannelSet(config.getEnabledRanges()));
+    }
+
+    @Test
+    @SmallTest
+    public void testCoalescingSeparateAdds() throws Exception {
+        // Adjacent ranges of different add calls are toggled independently, so they are kept.
+        CellBroadcastChannelConfig config = new CellBroadcastChannelConfig();
+        config.add(true, ranges("4370"));
+        config.add(true, ranges("4371"));
+
+        List<Operation> operations = config.getOperations();
+        assertEquals(2, operations.size());
+        assertEquals(new Range(4370, 4370, GSM), operations.get(0).mRange);
+        assertEquals(new Range(4371, 4371, GSM), operations.get(1).mRange);
+    }
+
+    @Test
+    @SmallTest
+    public void testGetChannelSet() throws Exception {
+        assertEquals(Arrays.asList(new Range(4370, 4375, GSM), new Range(4380, 4380, GSM),
+                new Range(4370, 4370, CDMA)),
+                CellBroadcastChannelConfig.getChannelSet(enabledRanges(
+                        new Range(4380, 4380, GSM), 1, new Range(4370, 4370, CDMA), 1,
+                        new Range(4372, 4375, GSM), 2, new Range(4370, 4371, GSM), 1,
+                        new Range(4373, 4373, GSM), 1)));
+        assertTrue(CellBroadcastChannelConfig.getChannelSet(enabledRanges()).isEmpty());
+    }
+
+    @Test
+    @SmallTest
+    public void testCoalescingKeepsExactDisable() throws Exception {
+        // The disable only matches the range as it was requested, so coalescing the enables
+        // would leave 4371 enabled.
+        CellBroadcastChannelConfig config = new CellBroadcastChannelConfig();
+        config.add(true, ranges("4370", "4371"));
+        config.add(false, ranges("4371"));
+
+        List<Operation> operations = config.getOperations();
+        assertEquals(3, operations.size());
+        assertEquals(new Range(4370, 4370, GSM), operations.get(0).mRange);
+        assertEquals(new Range(4371, 4371, GSM), operations.get(1).mRange);
+        assertEquals(new Range(4371, 4371, GSM), operations.get(2).mRange);
+        assertFalse(operations.get(2).mEnable);
+        assertEquals(enabledRanges(new Range(4370, 4370, GSM), 1), config.getEnabledRanges());
+    }
+
+    @Test
+    @SmallTest
+    public void testDiff() throws Exception {
+        CellBroadcastChannelConfig before = new CellBroadcastChannelConfig();
+        before.add(true, ranges("4370-4372", "4383"));
+        before.add(false, ranges("4396"));
+        CellBroadcastChannelConfig after = new CellBroadcastChannelConfig();
+        after.add(true, ranges("4370-4372"));
+        after.add(true, ranges("4396"));
+
+        List<Operation> diff = CellBroadcastChannelConfig.diff(before.getEnabledRanges(),
+                after.getEnabledRanges());
+        assertEquals(2, diff.size());
+        assertTrue(diff.get(0).mEnable);
+        assertEquals(new Range(4396, 4396, GSM), diff.get(0).mRange);
+        assertFalse(diff.get(1).mEnable);
+        assertEquals(new Range(4383, 4383, GSM), diff.get(1).mRange);
+
+        assertTrue(CellBroadcastChannelConfig.diff(after.getEnabledRanges(),
+                after.getEnabledRanges()).isEmpty());
+    }
+}
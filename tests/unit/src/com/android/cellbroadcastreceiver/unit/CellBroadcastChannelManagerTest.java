@@ -16,14 +16,24 @@
 
 package com.android.cellbroadcastreceiver.unit;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 import android.telephony.SubscriptionManager;
 import android.test.suitebuilder.annotation.SmallTest;
 
 import com.android.cellbroadcastreceiver.CellBroadcastAlertService.AlertType;
+import com.android.cellbroadcastreceiver.CellBroadcastChannelIndex;
 import com.android.cellbroadcastreceiver.CellBroadcastChannelManager;
 import com.android.cellbroadcastreceiver.CellBroadcastChannelManager.CellBroadcastChannelRange;
+import com.android.cellbroadcastreceiver.CellBroadcastChannelManager.CellBroadcastChannelRange.ChannelRangeParseException;
+import com.android.cellbroadcastreceiver.CellBroadcastChannelRegistry;
 import com.android.cellbroadcastreceiver.unit.CellBroadcastTest;
 
 import org.junit.After;
@@ -31,6 +41,7 @@ import org.junit.Before;
 import org.junit.Test;
 
 import java.util.ArrayList;
+import java.util.List;
 
 /**
  * APN retry manager tests
@@ -96,4 +107,159 @@ public class CellBroadcastChannelManagerTest extends CellBroadcastTest {
         assertEquals(AlertType.TEST, list.get(5).mAlertType);
         assertEquals(CellBroadcastChannelRange.LEVEL_EMERGENCY, list.get(5).mEmergencyLevel);
     }
+
+    /**
+     * Test looking up channels through the compiled channel index.
+     */
+    @Test
+    @SmallTest
+    public void testChannelIndexLookup() throws Exception {
+        final int additionalKey =
+                com.android.cellbroadcastreceiver.R.array.additional_cbs_channels_strings;
+        final int extremeKey =
+                com.android.cellbroadcastreceiver.R.array.cmas_alert_extreme_channels_range_strings;
+        putResources(additionalKey, new String[]{
+                "100-200:type=other, emergency=false",
+                "150-160:type=test, emergency=true",
+                "300:type=etws_tsunami"});
+        putResources(extremeKey, new String[]{
+                "300-310:emergency=true",
+                "140-155:emergency=true"});
+
+        CellBroadcastChannelManager channelManager = new CellBroadcastChannelManager(mContext,
+                SubscriptionManager.DEFAULT_SUBSCRIPTION_ID);
+        CellBroadcastChannelIndex index = channelManager.getChannelIndex();
+
+        // The range listed first wins when ranges of the same key overlap.
+        assertEquals(AlertType.OTHER,
+                channelManager.getCellBroadcastChannelRange(155, additionalKey).mAlertType);
+        assertNull(channelManager.getCellBroadcastChannelRange(201, additionalKey));
+        assertTrue(channelManager.checkCellBroadcastChannelRange(305, extremeKey));
+        assertFalse(channelManager.checkCellBroadcastChannelRange(311, extremeKey));
+
+        // The first key specifying an emergency level decides.
+        assertEquals(CellBroadcastChannelRange.LEVEL_NOT_EMERGENCY, index.getEmergencyLevel(150));
+        assertEquals(CellBroadcastChannelRange.LEVEL_EMERGENCY, index.getEmergencyLevel(300));
+        assertEquals(CellBroadcastChannelRange.LEVEL_UNKNOWN, index.getEmergencyLevel(500));
+        assertEquals(AlertType.ETWS_TSUNAMI, index.getFirstRange(300).mAlertType);
+        assertNull(index.getFirstRange(99));
+
+        // The index is compiled once and shared until the carrier config changes.
+        CellBroadcastChannelRegistry registry = CellBroadcastChannelRegistry.getInstance();
+        long hits = registry.getHitCount();
+        long rebuilds = registry.getRebuildCount();
+        assertSame(index, new CellBroadcastChannelManager(mContext,
+                SubscriptionManager.DEFAULT_SUBSCRIPTION_ID).getChannelIndex());
+        assertEquals(hits + 1, registry.getHitCount());
+
+        registry.invalidate(SubscriptionManager.DEFAULT_SUBSCRIPTION_ID);
+        assertNotSame(index, channelManager.getChannelIndex());
+        assertEquals(rebuilds + 1, registry.getRebuildCount());
+
+        index = channelManager.getChannelIndex();
+        registry.invalidateAll();
+        assertNotSame(index, channelManager.getChannelIndex());
+        assertEquals(rebuilds + 2, registry.getRebuildCount());
+    }
+
+    /**
+     * Test looking up all ranges containing a channel, for the lookups that skip the ranges
+     * whose alert type they don't use.
+     */
+    @Test
+    @SmallTest
+    public void testGetMatchingCellBroadcastChannelRanges() throws Exception {
+        final int additionalKey =
+                com.android.cellbroadcastreceiver.R.array.additional_cbs_channels_strings;
+        putResources(additionalKey, new String[]{
+                "90-95:type=test",
+                "100-200:type=area",
+                "150-160:type=etws_earthquake",
+                "155:type=info"});
+        CellBroadcastChannelRegistry.getInstance().invalidateAll();
+        CellBroadcastChannelManager channelManager = new CellBroadcastChannelManager(mContext,
+                SubscriptionManager.DEFAULT_SUBSCRIPTION_ID);
+
+        List<CellBroadcastChannelRange> ranges =
+                channelManager.getMatchingCellBroadcastChannelRanges(155, additionalKey);
+        assertEquals(3, ranges.size());
+        assertEquals(AlertType.AREA, ranges.get(0).mAlertType);
+        assertEquals(AlertType.ETWS_EARTHQUAKE, ranges.get(1).mAlertType);
+        assertEquals(AlertType.INFO, ranges.get(2).mAlertType);
+
+        assertEquals(1, channelManager.getMatchingCellBroadcastChannelRanges(100, additionalKey)
+                .size());
+        assertTrue(channelManager.getMatchingCellBroadcastChannelRanges(201, additionalKey)
+                .isEmpty());
+    }
+
+    /**
+     * Test that all channel ranges are compiled per subscription instead of being shared.
+     */
+    @Test
+    @SmallTest
+    public void testGetAllCellBroadcastChannelRangesFollowsResources() throws Exception {
+        final int additionalKey =
+                com.android.cellbroadcastreceiver.R.array.additional_cbs_channels_strings;
+        putResources(additionalKey, new String[]{"100-200"});
+        CellBroadcastChannelManager channelManager = new CellBroadcastChannelManager(mContext,
+                SubscriptionManager.DEFAULT_SUBSCRIPTION_ID);
+        assertEquals(1, channelManager.getAllCellBroadcastChannelRanges().size());
+
+        putResources(additionalKey, new String[]{"100-200", "300-400"});
+        CellBroadcastChannelRegistry.getInstance().invalidateAll();
+        assertEquals(2, channelManager.getAllCellBroadcastChannelRanges().size());
+    }
+
+    @Test
+    @SmallTest
+    public void testParseChannelRange() throws Exception {
+        int[] defaultVibration = new int[]{0, 1000};
+        CellBroadcastChannelRange range = new CellBroadcastChannelRange(defaultVibration,
+                " 0x1112 - 0x1113 : type = mute, emergency=TRUE,rat=cdma, vibration=10|20|,"
+                        + "alert_duration=30000,unknown=1,bad=a=b,=x");
+        assertEquals(0x1112, range.mStartId);
+        assertEquals(0x1113, range.mEndId);
+        assertEquals(AlertType.MUTE, range.mAlertType);
+        assertEquals(CellBroadcastChannelRange.LEVEL_EMERGENCY, range.mEmergencyLevel);
+        assertArrayEquals(new int[]{10, 20}, range.mVibrationPattern);
+        assertEquals(30000, range.mAlertDuration);
+
+        range = new CellBroadcastChannelRange(defaultVibration, "010");
+        assertEquals(8, range.mStartId);
+        assertEquals(8, range.mEndId);
+        assertSame(defaultVibration, range.mVibrationPattern);
+    }
+
+    @Test
+    @SmallTest
+    public void testParseMalformedChannelRange() throws Exception {
+        int[] defaultVibration = new int[]{0, 1000};
+        assertParseError(defaultVibration, "", 0);
+        assertParseError(defaultVibration, "12a", 2);
+        assertParseError(defaultVibration, "100-", 4);
+        assertParseError(defaultVibration, "100:type=loud", 9);
+        assertParseError(defaultVibration, "100:vibration=1||2", 16);
+        assertParseError(defaultVibration, "99999999999", 0);
+
+        // Malformed entries are skipped, the rest of the key is still loaded.
+        putResources(com.android.cellbroadcastreceiver.R.array.additional_cbs_channels_strings,
+                new String[]{"0x1112-0x1113:type=loud", "0x1114", "abc"});
+        CellBroadcastChannelManager channelManager = new CellBroadcastChannelManager(mContext,
+                SubscriptionManager.DEFAULT_SUBSCRIPTION_ID);
+        List<CellBroadcastChannelRange> ranges = channelManager.getCellBroadcastChannelRanges(
+                com.android.cellbroadcastreceiver.R.array.additional_cbs_channels_strings);
+        assertEquals(1, ranges.size());
+        assertEquals(0x1114, ranges.get(0).mStartId);
+    }
+
+    private static void assertParseError(int[] defaultVibration, String channelRange,
+            int column) {
+        try {
+            new CellBroadcastChannelRange(defaultVibration, channelRange);
+            fail("Expected a parse error for \"" + channelRange + "\"");
+        } catch (ChannelRangeParseException e) {
+            assertEquals(column, e.getColumn());
+        }
+    }
 }
@@ -0,0 +1,245 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.cellbroadcastreceiver.unit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+
+import android.content.Context;
+import android.os.SystemClock;
+import android.telephony.SubscriptionManager;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.test.suitebuilder.annotation.SmallTest;
+import android.util.SparseArray;
+
+import androidx.test.InstrumentationRegistry;
+
+import com.android.cellbroadcastreceiver.CellBroadcastAlertService.AlertType;
+import com.android.cellbroadcastreceiver.CellBroadcastChannelIndex;
+import com.android.cellbroadcastreceiver.CellBroadcastChannelManager;
+import com.android.cellbroadcastreceiver.CellBroadcastChannelManager.CellBroadcastChannelRange;
+import com.android.cellbroadcastreceiver.CellBroadcastChannelRegistry;
+import com.android.cellbroadcastreceiver.CellBroadcastChannelSnapshot;
+import com.android.cellbroadcastreceiver.R;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Tests for {@link CellBroadcastChannelSnapshot}
+ */
+public class CellBroadcastChannelSnapshotTest extends CellBroadcastTest {
+
+    private static final long FINGERPRINT = 0x1234L;
+
+    private static final int[] DEFAULT_VIBRATION = new int[]{0, 2000, 500};
+
+    private File mSnapshotDir;
+
+    @Before
+    public void setUp() throws Exception {
+        super.setUp(getClass().getSimpleName());
+        mSnapshotDir = new File(InstrumentationRegistry.getTargetContext().getCacheDir(),
+                getClass().getSimpleName());
+        deleteSnapshots();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        deleteSnapshots();
+        CellBroadcastChannelSnapshot.setEnabled(true);
+        super.tearDown();
+    }
+
+    @Test
+    @SmallTest
+    public void testEncodeDecode() throws Exception {
+        CellBroadcastChannelIndex index = buildIndex();
+        CellBroadcastChannelIndex decoded = CellBroadcastChannelSnapshot.decode(
+                CellBroadcastChannelSnapshot.encode(FINGERPRINT, DEFAULT_VIBRATION, index),
+                FINGERPRINT);
+        assertNotNull(decoded);
+        assertArrayEquals(index.getKeys(), decoded.getKeys());
+
+        List<CellBroadcastChannelRange> expected = index.getAllRanges();
+        List<CellBroadcastChannelRange> actual = decoded.getAllRanges();
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(expected.get(i).toString(), actual.get(i).toString());
+            assertEquals(expected.get(i).mRanType, actual.get(i).mRanType);
+            assertEquals(expected.get(i).mWriteToSmsInbox, actual.get(i).mWriteToSmsInbox);
+        }
+        // Ranges without their own pattern keep sharing the default one.
+        assertSame(actual.get(1).mVibrationPattern, actual.get(2).mVibrationPattern);
+        assertEquals(AlertType.EARTHQUAKE, decoded.getFirstRange(4370).mAlertType);
+        assertEquals(index.getEmergencyLevel(4370), decoded.getEmergencyLevel(4370));
+    }
+
+    @Test
+    @SmallTest
+    public void testDecodeRejectsStaleOrCorruptedSnapshot() throws Exception {
+        byte[] data = CellBroadcastChannelSnapshot.encode(FINGERPRINT, DEFAULT_VIBRATION,
+                buildIndex());
+        assertNull(CellBroadcastChannelSnapshot.decode(data, FINGERPRINT + 1));
+
+        data[data.length / 2] ^= 0x5a;
+        assertNull(CellBroadcastChannelSnapshot.decode(data, FINGERPRINT));
+        assertNull(CellBroadcastChannelSnapshot.decode(new byte[3], FINGERPRINT));
+    }
+
+    @Test
+    @SmallTest
+    public void testWriteRead() throws Exception {
+        File file = new File(mSnapshotDir, "carrier_1.bin");
+        assertNull(CellBroadcastChannelSnapshot.read(file, FINGERPRINT));
+
+        CellBroadcastChannelIndex index = buildIndex();
+        assertTrue(CellBroadcastChannelSnapshot.write(file, FINGERPRINT, DEFAULT_VIBRATION, index));
+        CellBroadcastChannelIndex read = CellBroadcastChannelSnapshot.read(file, FINGERPRINT);
+        assertNotNull(read);
+        assertEquals(index.getAllRanges().size(), read.getAllRanges().size());
+        assertNull(CellBroadcastChannelSnapshot.read(file, FINGERPRINT + 1));
+    }
+
+    @Test
+    @SmallTest
+    public void testFingerprintCoversCarrierConfig() throws Exception {
+        int subId = 1;
+        long fingerprint = CellBroadcastChannelSnapshot.computeFingerprint(mContext, subId,
+                mResources);
+        carrierConfigSetStringArray(subId, "carrier_config_key", new String[]{"a"});
+        long withConfig = CellBroadcastChannelSnapshot.computeFingerprint(mContext, subId,
+                mResources);
+        assertNotEquals(fingerprint, withConfig);
+        assertEquals(withConfig, CellBroadcastChannelSnapshot.computeFingerprint(mContext,
+                subId, mResources));
+
+        // A carrier config push that changes a value invalidates the snapshot
+        carrierConfigSetStringArray(subId, "carrier_config_key", new String[]{"b"});
+        assertNotEquals(withConfig, CellBroadcastChannelSnapshot.computeFingerprint(mContext,
+                subId, mResources));
+    }
+
+    /**
+     * Compare the first classification after the channel configuration was dropped, as after a
+     * process restart, with and without a snapshot.
+     */
+    @Test
+    @LargeTest
+    public void testColdClassificationBenchmark() throws Exception {
+        final int iterations = 50;
+        int[] keys = new int[]{R.array.additional_cbs_channels_strings,
+                R.array.emergency_alerts_channels_range_strings,
+                R.array.cmas_presidential_alerts_channels_range_strings,
+                R.array.cmas_alert_extreme_channels_range_strings,
+                R.array.cmas_alerts_severe_range_strings,
+                R.array.cmas_amber_alerts_channels_range_strings,
+                R.array.required_monthly_test_range_strings,
+                R.array.exercise_alert_range_strings,
+                R.array.operator_defined_alert_range_strings,
+                R.array.etws_alerts_range_strings,
+                R.array.etws_test_alerts_range_strings,
+                R.array.public_safety_messages_channels_range_strings,
+                R.array.state_local_test_alert_range_strings};
+        for (int i = 0; i < keys.length; i++) {
+            String[] ranges = new String[20];
+            for (int j = 0; j < ranges.length; j++) {
+                int start = 0x1000 + (i * ranges.length + j) * 4;
+                ranges[j] = "0x" + Integer.toHexString(start) + "-0x"
+                        + Integer.toHexString(start + 2)
+                        + ":type=default, emergency=true, vibration=0|350|250|350, "
+                        + "alert_duration=10000, override_dnd=true";
+            }
+            putResources(keys[i], ranges);
+        }
+        Context storageContext = mock(Context.class);
+        doReturn(mSnapshotDir).when(storageContext).getNoBackupFilesDir();
+        doReturn(storageContext).when(mContext).createDeviceProtectedStorageContext();
+
+        CellBroadcastChannelManager channelManager = new CellBroadcastChannelManager(mContext,
+                SubscriptionManager.DEFAULT_SUBSCRIPTION_ID);
+        final int channel = 0x1000 + (keys.length * 20 - 1) * 4;
+
+        CellBroadcastChannelSnapshot.setEnabled(false);
+        long parseNanos = timeColdClassification(channelManager, channel, iterations);
+
+        CellBroadcastChannelSnapshot.setEnabled(true);
+        // Write the snapshot
+        timeColdClassification(channelManager, channel, 1);
+        long snapshotNanos = timeColdClassification(channelManager, channel, iterations);
+
+        logd("Cold classification: parse=" + parseNanos / iterations + "ns, snapshot="
+                + snapshotNanos / iterations + "ns");
+    }
+
+    private long timeColdClassification(CellBroadcastChannelManager channelManager, int channel,
+            int iterations) {
+        long total = 0;
+        for (int i = 0; i < iterations; i++) {
+            CellBroadcastChannelRegistry.getInstance().invalidate(
+                    SubscriptionManager.DEFAULT_SUBSCRIPTION_ID);
+            long start = SystemClock.elapsedRealtimeNanos();
+            assertNotNull(channelManager.getCellBroadcastChannelRange(channel,
+                    R.array.state_local_test_alert_range_strings));
+            total += SystemClock.elapsedRealtimeNanos() - start;
+        }
+        return total;
+    }
+
+    private static CellBroadcastChannelIndex buildIndex() {
+        int[] keys = new int[]{1, 2};
+        SparseArray<List<CellBroadcastChannelRange>> ranges = new SparseArray<>();
+        List<CellBroadcastChannelRange> first = new ArrayList<>();
+        first.add(new CellBroadcastChannelRange(DEFAULT_VIBRATION,
+                "4370:type=earthquake, emergency=true, vibration=0|100, alert_duration=5000"));
+        first.add(new CellBroadcastChannelRange(DEFAULT_VIBRATION,
+                "4371-4379:rat=cdma, scope=carrier, exclude_from_sms_inbox=true"));
+        ranges.put(keys[0], first);
+        List<CellBroadcastChannelRange> second = new ArrayList<>();
+        second.add(new CellBroadcastChannelRange(DEFAULT_VIBRATION,
+                "4370-4400:emergency=false, override_dnd=true, filter_language=true"));
+        ranges.put(keys[1], second);
+        return new CellBroadcastChannelIndex(keys, ranges);
+    }
+
+    private void deleteSnapshots() {
+        File[] files = new File(mSnapshotDir, "channel_snapshots").listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        files = mSnapshotDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+    }
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.cellbroadcastreceiver.unit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.cellbroadcastreceiver.CellBroadcastConfigExecutor;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests for {@link CellBroadcastConfigExecutor}
+ */
+public class CellBroadcastConfigExecutorTest {
+
+    @Test
+    @SmallTest
+    public void testHungSubscriptionDoesNotBlockOthers() throws Exception {
+        CellBroadcastConfigExecutor executor = new CellBroadcastConfigExecutor();
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch otherDone = new CountDownLatch(1);
+
+        boolean completed = executor.run(new int[]{1, 2}, subId -> {
+            if (subId == 1) {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            } else {
+                otherDone.countDown();
+            }
+        }, 200);
+
+        assertFalse(completed);
+        assertTrue(otherDone.await(0, TimeUnit.MILLISECONDS));
+        assertEquals(1, executor.getCompletedCount(2));
+        assertEquals(1, executor.getPendingCount(1));
+
+        release.countDown();
+        assertTrue(executor.run(new int[]{1}, subId -> { }, 1000));
+        assertEquals(2, executor.getCompletedCount(1));
+        assertEquals(0, executor.getPendingCount(1));
+    }
+
+    @Test
+    @SmallTest
+    public void testFailureIsolation() throws Exception {
+        CellBroadcastConfigExecutor executor = new CellBroadcastConfigExecutor();
+        assertTrue(executor.run(new int[]{3, 4}, subId -> {
+            if (subId == 3) {
+                throw new IllegalStateException("radio not available");
+            }
+        }, 1000));
+
+        assertEquals(1, executor.getFailedCount(3));
+        assertEquals(0, executor.getCompletedCount(3));
+        assertEquals(1, executor.getCompletedCount(4));
+        assertEquals(0, executor.getFailedCount(4));
+    }
+
+    @Test
+    @SmallTest
+    public void testRemoveInactive() throws Exception {
+        CellBroadcastConfigExecutor executor = new CellBroadcastConfigExecutor();
+        CountDownLatch release = new CountDownLatch(1);
+        executor.run(new int[]{1, 2, 3}, subId -> {
+            if (subId == 3) {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }, 200);
+
+        // Sub 2 is released, sub 3 still has a configuration running
+        assertEquals(1, executor.removeInactive(new int[]{1}));
+        assertEquals(0, executor.getCompletedCount(2));
+        assertEquals(1, executor.getCompletedCount(1));
+        assertEquals(1, executor.getPendingCount(3));
+
+        release.countDown();
+        assertTrue(executor.run(new int[]{1}, subId -> { }, 1000));
+        // Wait for the configuration of sub 3 to be accounted for
+        for (int i = 0; i < 100 && executor.getPendingCount(3) != 0; i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(1, executor.removeInactive(new int[]{1}));
+        assertEquals(0, executor.getPendingCount(3));
+    }
+
+    @Test
+    @SmallTest
+    public void testAwaitIdle() throws Exception {
+        CellBroadcastConfigExecutor executor = new CellBroadcastConfigExecutor();
+        CountDownLatch release = new CountDownLatch(1);
+        assertFalse(executor.run(new int[]{1, 2}, subId -> {
+            if (subId == 1) {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }, 100));
+
+        new Thread(() -> {
+            try {
+                Thread.sleep(100);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            release.countDown();
+        }).start();
+        executor.awaitIdle(new int[]{1, 2});
+        assertEquals(0, executor.getPendingCount(1));
+        assertEquals(1, executor.getCompletedCount(1));
+    }
+}
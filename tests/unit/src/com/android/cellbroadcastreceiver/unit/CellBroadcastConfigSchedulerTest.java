@@ -0,0 +1,81 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.cellbroadcastreceiver.unit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import android.os.SystemClock;
+import android.telephony.SubscriptionManager;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.cellbroadcastreceiver.CellBroadcastConfigScheduler;
+
+import org.junit.Test;
+
+/**
+ * Tests for {@link CellBroadcastConfigScheduler}
+ */
+public class CellBroadcastConfigSchedulerTest {
+
+    @Test
+    @SmallTest
+    public void testBurstCollapsesIntoOnePass() throws Exception {
+        CellBroadcastConfigScheduler scheduler = new CellBroadcastConfigScheduler();
+        scheduler.setCoalescingWindow(100);
+
+        long start = SystemClock.elapsedRealtime();
+        scheduler.onTrigger(1);
+        scheduler.onTrigger(2);
+        scheduler.onTrigger(1);
+
+        CellBroadcastConfigScheduler.Pass pass = scheduler.takePass();
+        assertTrue(SystemClock.elapsedRealtime() - start >= 100);
+        assertNotNull(pass);
+        assertFalse(pass.mAllSubscriptions);
+        assertTrue(pass.includes(1));
+        assertTrue(pass.includes(2));
+        assertFalse(pass.includes(3));
+
+        // The starts of the collapsed triggers are skipped
+        assertNull(scheduler.takePass());
+        assertNull(scheduler.takePass());
+        assertEquals(3, scheduler.getTriggerCount());
+        assertEquals(1, scheduler.getPassCount());
+    }
+
+    @Test
+    @SmallTest
+    public void testTrailingPass() throws Exception {
+        CellBroadcastConfigScheduler scheduler = new CellBroadcastConfigScheduler();
+        scheduler.setCoalescingWindow(0);
+
+        scheduler.onTrigger(1);
+        assertNotNull(scheduler.takePass());
+
+        // Triggered while the first pass runs
+        scheduler.onTrigger(SubscriptionManager.INVALID_SUBSCRIPTION_ID);
+        CellBroadcastConfigScheduler.Pass pass = scheduler.takePass();
+        assertNotNull(pass);
+        assertTrue(pass.mAllSubscriptions);
+        assertTrue(pass.includes(1));
+        assertEquals(2, scheduler.getPassCount());
+    }
+}
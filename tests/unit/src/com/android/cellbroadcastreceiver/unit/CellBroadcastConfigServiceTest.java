@@ -17,10 +17,14 @@
 package com.android.cellbroadcastreceiver.unit;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 import static org.mockito.Matchers.anyInt;
 import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.clearInvocations;
 import static org.mockito.Mockito.doReturn;
 import static org.mockito.Mockito.eq;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.spy;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
@@ -33,6 +37,10 @@ import android.telephony.SubscriptionManager;
 import android.telephony.TelephonyManager;
 import android.test.suitebuilder.annotation.SmallTest;
 
+import com.android.cellbroadcastreceiver.CellBroadcastAlertPreferences;
+import com.android.cellbroadcastreceiver.CellBroadcastChannelConfig;
+import com.android.cellbroadcastreceiver.CellBroadcastChannelConfig.Operation;
+import com.android.cellbroadcastreceiver.CellBroadcastChannelConfig.Range;
 import com.android.cellbroadcastreceiver.CellBroadcastChannelManager.CellBroadcastChannelRange;
 import com.android.cellbroadcastreceiver.CellBroadcastConfigService;
 import com.android.cellbroadcastreceiver.CellBroadcastSettings;
@@ -44,7 +52,6 @@ import com.android.internal.telephony.gsm.SmsCbConstants;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
-import org.mockito.ArgumentCaptor;
 import org.mockito.Mock;
 
 import java.lang.reflect.Method;
@@ -68,6 +75,7 @@ public class CellBroadcastConfigServiceTest extends CellBroadcastTest {
     public void setUp() throws Exception {
         super.setUp(getClass().getSimpleName());
         mConfigService = spy(new CellBroadcastConfigService());
+        CellBroadcastConfigService.resetChannelState();
         TelephonyManager.disableServiceHandleCaching();
 
         Class[] cArgs = new Class[1];
@@ -136,26 +144,11 @@ public class CellBroadcastConfigServiceTest extends CellBroadcastTest {
 
     @After
     public void tearDown() throws Exception {
+        CellBroadcastConfigService.resetChannelState();
         super.tearDown();
         TelephonyManager.enableServiceHandleCaching();
     }
 
-    private void setCellBroadcastRange(int subId, boolean enable,
-                                       List<CellBroadcastChannelRange> ranges)
-            throws Exception {
-
-        Class[] cArgs = new Class[3];
-        cArgs[0] = Integer.TYPE;
-        cArgs[1] = Boolean.TYPE;
-        cArgs[2] = List.class;
-
-        Method method =
-                CellBroadcastConfigService.class.getDeclaredMethod("setCellBroadcastRange", cArgs);
-        method.setAccessible(true);
-
-        method.invoke(mConfigService, subId, enable, ranges);
-    }
-
     /**
      * Test enable cell broadcast range
      */
@@ -165,17 +158,13 @@ public class CellBroadcastConfigServiceTest extends CellBroadcastTest {
         ArrayList<CellBroadcastChannelRange> result = new ArrayList<>();
         result.add(new CellBroadcastChannelRange(mContext,
                 SubscriptionManager.DEFAULT_SUBSCRIPTION_ID, "10-20"));
-        setCellBroadcastRange(SubscriptionManager.DEFAULT_SUBSCRIPTION_ID, true, result);
-        ArgumentCaptor<Integer> captorStart = ArgumentCaptor.forClass(Integer.class);
-        ArgumentCaptor<Integer> captorEnd = ArgumentCaptor.forClass(Integer.class);
-        ArgumentCaptor<Integer> captorType = ArgumentCaptor.forClass(Integer.class);
+        CellBroadcastChannelConfig config = new CellBroadcastChannelConfig();
+        config.add(true, result);
 
-        verify(mMockedSmsService, times(1)).enableCellBroadcastRangeForSubscriber(anyInt(),
-                captorStart.capture(), captorEnd.capture(), captorType.capture());
-
-        assertEquals(10, captorStart.getValue().intValue());
-        assertEquals(20, captorEnd.getValue().intValue());
-        assertEquals(1, captorType.getValue().intValue());
+        List<Operation> operations = config.getOperations();
+        assertEquals(1, operations.size());
+        assertTrue(operations.get(0).mEnable);
+        assertEquals(new Range(10, 20, 1), operations.get(0).mRange);
     }
 
     /**
@@ -187,21 +176,19 @@ public class CellBroadcastConfigServiceTest extends CellBroadcastTest {
         ArrayList<CellBroadcastChannelRange> result = new ArrayList<>();
         result.add(new CellBroadcastChannelRange(mContext,
                 SubscriptionManager.DEFAULT_SUBSCRIPTION_ID, "10-20"));
-        setCellBroadcastRange(SubscriptionManager.DEFAULT_SUBSCRIPTION_ID, false, result);
-        ArgumentCaptor<Integer> captorStart = ArgumentCaptor.forClass(Integer.class);
-        ArgumentCaptor<Integer> captorEnd = ArgumentCaptor.forClass(Integer.class);
-        ArgumentCaptor<Integer> captorType = ArgumentCaptor.forClass(Integer.class);
-
-        verify(mMockedSmsService, times(1)).disableCellBroadcastRangeForSubscriber(anyInt(),
-                captorStart.capture(), captorEnd.capture(), captorType.capture());
+        CellBroadcastChannelConfig config = new CellBroadcastChannelConfig();
+        config.add(false, result);
 
-        assertEquals(10, captorStart.getValue().intValue());
-        assertEquals(20, captorEnd.getValue().intValue());
-        assertEquals(1, captorType.getValue().intValue());
+        List<Operation> operations = config.getOperations();
+        assertEquals(1, operations.size());
+        assertFalse(operations.get(0).mEnable);
+        assertEquals(new Range(10, 20, 1), operations.get(0).mRange);
     }
 
     private void setPreference(String pref, boolean value) {
         doReturn(value).when(mMockedSharedPreferences).getBoolean(eq(pref), eq(true));
+        // Mocked preferences don't notify listeners
+        CellBroadcastAlertPreferences.invalidate();
     }
 
     /**
@@ -634,4 +621,61 @@ public class CellBroadcastConfigServiceTest extends CellBroadcastTest {
                 eq(SmsCbConstants.MESSAGE_ID_ETWS_OTHER_EMERGENCY_TYPE),
                 eq(SmsCbMessage.MESSAGE_FORMAT_3GPP));
     }
+
+    /**
+     * Test that reconfiguring only sends the channels that changed
+     */
+    @Test
+    @SmallTest
+    public void testIncrementalReconfiguration() throws Exception {
+        doReturn(true).when(mMockedSmsService).enableCellBroadcastRangeForSubscriber(
+                anyInt(), anyInt(), anyInt(), anyInt());
+        doReturn(true).when(mMockedSmsService).disableCellBroadcastRangeForSubscriber(
+                anyInt(), anyInt(), anyInt(), anyInt());
+        setPreference(CellBroadcastSettings.KEY_ENABLE_ALERTS_MASTER_TOGGLE, true);
+        setPreference(CellBroadcastSettings.KEY_ENABLE_CMAS_EXTREME_THREAT_ALERTS, true);
+        mConfigService.enableCellBroadcastChannels(SubscriptionManager.DEFAULT_SUBSCRIPTION_ID);
+
+        verify(mMockedSmsService, times(1)).enableCellBroadcastRangeForSubscriber(
+                eq(0),
+                eq(SmsCbConstants.MESSAGE_ID_CMAS_ALERT_PRESIDENTIAL_LEVEL),
+                eq(SmsCbConstants.MESSAGE_ID_CMAS_ALERT_PRESIDENTIAL_LEVEL),
+                eq(SmsCbMessage.MESSAGE_FORMAT_3GPP));
+        verify(mMockedSmsService, times(1)).enableCellBroadcastRangeForSubscriber(
+                eq(0),
+                eq(SmsCbConstants.MESSAGE_ID_CMAS_ALERT_EXTREME_IMMEDIATE_OBSERVED),
+                eq(SmsCbConstants.MESSAGE_ID_CMAS_ALERT_EXTREME_IMMEDIATE_LIKELY),
+                eq(SmsCbMessage.MESSAGE_FORMAT_3GPP));
+
+        // Nothing changed, nothing is sent
+        clearInvocations(mMockedSmsService);
+        mConfigService.enableCellBroadcastChannels(SubscriptionManager.DEFAULT_SUBSCRIPTION_ID);
+        verify(mMockedSmsService, never()).enableCellBroadcastRangeForSubscriber(
+                anyInt(), anyInt(), anyInt(), anyInt());
+        verify(mMockedSmsService, never()).disableCellBroadcastRangeForSubscriber(
+                anyInt(), anyInt(), anyInt(), anyInt());
+
+        // Only the extreme alert channels are disabled
+        setPreference(CellBroadcastSettings.KEY_ENABLE_CMAS_EXTREME_THREAT_ALERTS, false);
+        mConfigService.enableCellBroadcastChannels(SubscriptionManager.DEFAULT_SUBSCRIPTION_ID);
+        verify(mMockedSmsService, never()).enableCellBroadcastRangeForSubscriber(
+                anyInt(), anyInt(), anyInt(), anyInt());
+        verify(mMockedSmsService, times(3)).disableCellBroadcastRangeForSubscriber(
+                anyInt(), anyInt(), anyInt(), anyInt());
+        verify(mMockedSmsService, times(1)).disableCellBroadcastRangeForSubscriber(
+                eq(0),
+                eq(SmsCbConstants.MESSAGE_ID_CMAS_ALERT_EXTREME_IMMEDIATE_OBSERVED),
+                eq(SmsCbConstants.MESSAGE_ID_CMAS_ALERT_EXTREME_IMMEDIATE_LIKELY),
+                eq(SmsCbMessage.MESSAGE_FORMAT_3GPP));
+
+        // After the lower layer lost its state, everything is sent again
+        clearInvocations(mMockedSmsService);
+        CellBroadcastConfigService.resetChannelState();
+        mConfigService.enableCellBroadcastChannels(SubscriptionManager.DEFAULT_SUBSCRIPTION_ID);
+        verify(mMockedSmsService, times(1)).enableCellBroadcastRangeForSubscriber(
+                eq(0),
+                eq(SmsCbConstants.MESSAGE_ID_CMAS_ALERT_PRESIDENTIAL_LEVEL),
+                eq(SmsCbConstants.MESSAGE_ID_CMAS_ALERT_PRESIDENTIAL_LEVEL),
+                eq(SmsCbMessage.MESSAGE_FORMAT_3GPP));
+    }
 }
@@ -19,9 +19,13 @@ import static org.mockito.Mockito.doReturn;
 import static com.google.common.truth.Truth.assertThat;
 
 import android.content.ContentValues;
+import android.content.Context;
 import android.content.pm.PackageManager;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.net.Uri;
+import android.os.Bundle;
+import android.os.SystemClock;
 import android.provider.Telephony.CellBroadcasts;
 import android.telephony.SmsCbCmasInfo;
 import android.telephony.SmsCbEtwsInfo;
@@ -29,13 +33,26 @@ import android.telephony.SmsCbLocation;
 import android.telephony.SmsCbMessage;
 import android.test.mock.MockContentResolver;
 import android.test.mock.MockContext;
+import android.test.suitebuilder.annotation.LargeTest;
 import android.util.Log;
+import com.android.cellbroadcastreceiver.CellBroadcastContentProvider;
+import com.android.cellbroadcastreceiver.CellBroadcastDatabaseExecutor;
 import com.android.cellbroadcastreceiver.CellBroadcastDatabaseHelper;
+import com.android.cellbroadcastreceiver.CellBroadcastMarkBuffer;
 import junit.framework.TestCase;
 import org.junit.Test;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
 public class CellBroadcastContentProviderTest extends TestCase {
     private static final String TAG = CellBroadcastContentProviderTest.class.getSimpleName();
 
@@ -126,6 +143,511 @@ public class CellBroadcastContentProviderTest extends TestCase {
         assertThat(cursor.getCount()).isEqualTo(0);
     }
 
+    @Test
+    public void testInsertNewBroadcasts() {
+        long[] rowIds = mCellBroadcastProviderTestable.insertNewBroadcasts(
+                Arrays.asList(fakeSmsCbMessage(), fakeSmsCbMessage(), fakeSmsCbMessage()));
+        assertThat(rowIds).asList().containsExactly(1L, 2L, 3L).inOrder();
+        Cursor cursor = mContentResolver.query(CONTENT_URI,
+                CellBroadcastDatabaseHelper.QUERY_COLUMNS, null, null, null);
+        assertThat(cursor.getCount()).isEqualTo(3);
+        assertThat(mCellBroadcastProviderTestable.insertNewBroadcasts(new ArrayList<>()))
+                .isEmpty();
+
+        // The batch writes the same values as a single insert
+        mCellBroadcastProviderTestable.insertNewBroadcast(fakeSmsCbMessage());
+        cursor = mContentResolver.query(CONTENT_URI, CellBroadcastDatabaseHelper.QUERY_COLUMNS,
+                null, null, CellBroadcasts._ID);
+        assertThat(cursor.moveToFirst()).isTrue();
+        ContentValues batched = new ContentValues();
+        DatabaseUtils.cursorRowToContentValues(cursor, batched);
+        batched.remove(CellBroadcasts._ID);
+        assertThat(cursor.moveToLast()).isTrue();
+        ContentValues single = new ContentValues();
+        DatabaseUtils.cursorRowToContentValues(cursor, single);
+        single.remove(CellBroadcasts._ID);
+        assertThat(batched).isEqualTo(single);
+    }
+
+    @Test
+    public void testInsertNewBroadcastsRowFailure() {
+        mCellBroadcastProviderTestable.mOpenHelper.getWritableDatabase().execSQL(
+                "CREATE TEMP TRIGGER fail_insert BEFORE INSERT ON " + CellBroadcastDatabaseHelper
+                        .TABLE_NAME + " WHEN NEW." + CellBroadcasts.MESSAGE_BODY
+                        + "='fail' BEGIN SELECT RAISE(ABORT,'fail'); END");
+        long[] rowIds = mCellBroadcastProviderTestable.insertNewBroadcasts(Arrays.asList(
+                fakeSmsCbMessage("ok", 1), fakeSmsCbMessage("fail", 2),
+                fakeSmsCbMessage("ok", 3)));
+
+        // Only the failing row is lost
+        assertThat(rowIds[1]).isEqualTo(-1L);
+        assertThat(rowIds[0]).isNotEqualTo(-1L);
+        assertThat(rowIds[2]).isNotEqualTo(-1L);
+        Cursor cursor = mContentResolver.query(CONTENT_URI,
+                CellBroadcastDatabaseHelper.QUERY_COLUMNS, null, null, null);
+        assertThat(cursor.getCount()).isEqualTo(2);
+    }
+
+    @Test
+    public void testCallInsertBroadcasts() {
+        Bundle extras = new Bundle();
+        extras.putParcelableArrayList(CellBroadcastContentProvider.EXTRA_MESSAGES,
+                new ArrayList<>(Arrays.asList(fakeSmsCbMessage(), fakeSmsCbMessage())));
+        Bundle result = mContentResolver.call(CONTENT_URI,
+                CellBroadcastContentProvider.METHOD_INSERT_BROADCASTS, null, extras);
+        assertThat(result.getLongArray(CellBroadcastContentProvider.EXTRA_ROW_IDS)).asList()
+                .containsExactly(1L, 2L).inOrder();
+        Cursor cursor = mContentResolver.query(CONTENT_URI,
+                CellBroadcastDatabaseHelper.QUERY_COLUMNS, null, null, null);
+        assertThat(cursor.getCount()).isEqualTo(2);
+
+        try {
+            mContentResolver.call(CONTENT_URI, "unknown", null, extras);
+            fail();
+        } catch (IllegalArgumentException ex) {
+            // pass the test
+        }
+    }
+
+    @Test
+    public void testMarkBroadcastsRead() {
+        long[] rowIds = mCellBroadcastProviderTestable.insertNewBroadcasts(
+                Arrays.asList(fakeSmsCbMessage(), fakeSmsCbMessage(), fakeSmsCbMessage()));
+        assertThat(mCellBroadcastProviderTestable.markBroadcastsRead(rowIds[0], rowIds[2]))
+                .isTrue();
+        assertThat(mCellBroadcastProviderTestable.markBroadcastsRead(rowIds[2] + 1)).isFalse();
+
+        // Only the addressed rows are read, although all were delivered at the same time
+        Cursor cursor = mContentResolver.query(CONTENT_URI,
+                new String[]{CellBroadcasts._ID, CellBroadcasts.MESSAGE_READ}, null, null,
+                CellBroadcasts._ID);
+        List<Long> read = new ArrayList<>();
+        while (cursor.moveToNext()) {
+            if (cursor.getInt(1) != 0) read.add(cursor.getLong(0));
+        }
+        assertThat(read).containsExactly(rowIds[0], rowIds[2]);
+
+        Bundle extras = new Bundle();
+        extras.putLongArray(CellBroadcastContentProvider.EXTRA_ROW_IDS, new long[]{rowIds[1]});
+        mContentResolver.call(CONTENT_URI, CellBroadcastContentProvider.METHOD_MARK_READ, null,
+                extras);
+        assertThat(DatabaseUtils.queryNumEntries(
+                mCellBroadcastProviderTestable.mOpenHelper.getReadableDatabase(),
+                CellBroadcastDatabaseHelper.TABLE_NAME, CellBroadcasts.MESSAGE_READ + "=0"))
+                .isEqualTo(0);
+    }
+
+    /**
+     * Compare the insert throughput of one message per transaction with batches.
+     */
+    @Test
+    @LargeTest
+    public void testInsertBenchmark() {
+        final int rows = 1000;
+        List<SmsCbMessage> messages = new ArrayList<>();
+        for (int i = 0; i < rows; i++) {
+            messages.add(fakeSmsCbMessage());
+        }
+
+        long start = SystemClock.elapsedRealtimeNanos();
+        for (SmsCbMessage message : messages) {
+            mCellBroadcastProviderTestable.insertNewBroadcast(message);
+        }
+        long singleNanos = SystemClock.elapsedRealtimeNanos() - start;
+        StringBuilder report = new StringBuilder("Inserting " + rows + " rows: single="
+                + rows * 1000000000L / Math.max(1, singleNanos) + " rows/s");
+
+        for (int batchSize : new int[] {10, 100, 1000}) {
+            start = SystemClock.elapsedRealtimeNanos();
+            for (int i = 0; i < rows; i += batchSize) {
+                mCellBroadcastProviderTestable.insertNewBroadcasts(
+                        messages.subList(i, Math.min(rows, i + batchSize)));
+            }
+            long batchNanos = SystemClock.elapsedRealtimeNanos() - start;
+            report.append(", batch of ").append(batchSize).append("=")
+                    .append(rows * 1000000000L / Math.max(1, batchNanos)).append(" rows/s");
+        }
+        Log.d(TAG, report.toString());
+
+        Cursor cursor = mContentResolver.query(CONTENT_URI,
+                CellBroadcastDatabaseHelper.QUERY_COLUMNS, null, null, null);
+        assertThat(cursor.getCount()).isEqualTo(4 * rows);
+    }
+
+    @Test
+    public void testDatabaseExecutor() throws Exception {
+        CellBroadcastDatabaseExecutor executor = new CellBroadcastDatabaseExecutor();
+        CompletableFuture<Boolean> first = executor.execute(mContext,
+                provider -> provider.insertNewBroadcast(fakeSmsCbMessage()));
+        CompletableFuture<Boolean> failed = executor.execute(mContext, provider -> {
+            provider.insertNewBroadcast(fakeSmsCbMessage());
+            throw new IllegalStateException();
+        });
+        CompletableFuture<Boolean> last = executor.execute(mContext,
+                provider -> provider.insertNewBroadcast(fakeSmsCbMessage()));
+
+        assertThat(first.get(5, TimeUnit.SECONDS)).isTrue();
+        assertThat(last.get(5, TimeUnit.SECONDS)).isTrue();
+        try {
+            failed.get(5, TimeUnit.SECONDS);
+            fail();
+        } catch (ExecutionException expected) {
+            // pass the test
+        }
+
+        // Only the failed operation is rolled back, not the ones it was flushed with.
+        Cursor cursor = mContentResolver.query(CONTENT_URI,
+                CellBroadcastDatabaseHelper.QUERY_COLUMNS, null, null, null);
+        assertThat(cursor.getCount()).isEqualTo(2);
+    }
+
+    @Test
+    public void testDatabaseExecutorUrgent() throws Exception {
+        CellBroadcastDatabaseExecutor executor = new CellBroadcastDatabaseExecutor();
+        CountDownLatch blocked = new CountDownLatch(1);
+        List<String> order = Collections.synchronizedList(new ArrayList<>());
+        // Keep the worker busy while the other operations are queued
+        CompletableFuture<Boolean> busy = executor.execute(mContext, provider -> {
+            try {
+                blocked.await(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+            }
+            return false;
+        });
+        executor.execute(mContext, provider -> order.add("bulk1"));
+        executor.execute(mContext, provider -> order.add("bulk2"));
+        CompletableFuture<Boolean> alert = executor.executeUrgent(mContext,
+                provider -> order.add("alert"));
+
+        blocked.countDown();
+        busy.get(5, TimeUnit.SECONDS);
+        assertThat(alert.get(5, TimeUnit.SECONDS)).isTrue();
+        // The urgent operation overtakes the ones queued before it
+        assertThat(order.get(0)).isEqualTo("alert");
+    }
+
+    @Test
+    public void testDatabaseExecutorExclusive() throws Exception {
+        CellBroadcastDatabaseExecutor executor = new CellBroadcastDatabaseExecutor();
+        CountDownLatch blocked = new CountDownLatch(1);
+        List<String> order = Collections.synchronizedList(new ArrayList<>());
+        CompletableFuture<Boolean> busy = executor.execute(mContext, provider -> {
+            try {
+                blocked.await(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+            }
+            return false;
+        });
+        executor.execute(mContext, provider -> order.add("bulk"));
+        CompletableFuture<Boolean> exclusive = executor.executeExclusive(mContext, provider -> {
+            order.add(provider.mOpenHelper.getWritableDatabase().inTransaction()
+                    ? "exclusive in transaction" : "exclusive");
+            return false;
+        });
+        executor.executeUrgent(mContext, provider -> order.add("alert"));
+
+        blocked.countDown();
+        busy.get(5, TimeUnit.SECONDS);
+        exclusive.get(5, TimeUnit.SECONDS);
+        // The exclusive operation runs outside of a transaction, after the urgent operation
+        assertThat(order).containsExactly("alert", "bulk", "exclusive").inOrder();
+    }
+
+    @Test
+    public void testMarkAllRead() {
+        long[] rowIds = mCellBroadcastProviderTestable.insertNewBroadcasts(
+                Arrays.asList(fakeSmsCbMessage(), fakeSmsCbMessage(), fakeSmsCbMessage()));
+        mCellBroadcastProviderTestable.markBroadcastsRead(rowIds[2]);
+        assertThat(mCellBroadcastProviderTestable.getReadWatermark()).isEqualTo(0);
+        assertThat(mCellBroadcastProviderTestable.countUnreadBroadcasts()).isEqualTo(2);
+
+        // Marks all broadcasts read up to the latest delivery time, without touching the rows
+        Bundle result = mContentResolver.call(CONTENT_URI,
+                CellBroadcastContentProvider.METHOD_MARK_ALL_READ, null, null);
+        long watermark = result.getLong(CellBroadcastContentProvider.EXTRA_READ_WATERMARK);
+        assertThat(watermark).isGreaterThan(0L);
+        assertThat(DatabaseUtils.queryNumEntries(
+                mCellBroadcastProviderTestable.mOpenHelper.getReadableDatabase(),
+                CellBroadcastDatabaseHelper.TABLE_NAME, CellBroadcasts.MESSAGE_READ + "=0"))
+                .isEqualTo(2);
+        assertThat(mContentResolver.call(CONTENT_URI,
+                CellBroadcastContentProvider.METHOD_COUNT_UNREAD, null, null)
+                .getInt(CellBroadcastContentProvider.EXTRA_UNREAD_COUNT)).isEqualTo(0);
+        assertThat(CellBroadcastContentProvider.getReadWatermark(mContext)).isEqualTo(watermark);
+
+        // The watermark never moves back, and is read back from the database
+        assertThat(mCellBroadcastProviderTestable.markAllBroadcastsRead(watermark - 1)).isFalse();
+        CellBroadcastContentProviderTestable provider = new CellBroadcastContentProviderTestable();
+        provider.mOpenHelper = mCellBroadcastProviderTestable.mOpenHelper;
+        assertThat(provider.getReadWatermark()).isEqualTo(watermark);
+
+        // Broadcasts delivered later are unread
+        mCellBroadcastProviderTestable.insertNewBroadcasts(Arrays.asList(new SmsCbMessage(
+                MESSAGE_FORMAT, GEO_SCOPE, SERIAL_NUMBER, new SmsCbLocation(PLMN, LAC, CID),
+                SERVICE_CATEGORY, LANGUAGE_CODE, 0, MESSAGE_BODY, MESSAGE_PRIORITY, null, null, 0,
+                null, watermark + 1, 1, 0)));
+        assertThat(mCellBroadcastProviderTestable.countUnreadBroadcasts()).isEqualTo(1);
+    }
+
+    /**
+     * Insert broadcasts delivered at 1 to {@code rows}, then mark all of them read from
+     * concurrent threads.
+     */
+    private void markAllReadConcurrently(int rows, int threads) throws Exception {
+        List<SmsCbMessage> messages = new ArrayList<>();
+        for (int i = 1; i <= rows; i++) {
+            messages.add(fakeSmsCbMessage(MESSAGE_BODY, i));
+        }
+        mCellBroadcastProviderTestable.insertNewBroadcasts(messages);
+
+        // The threads move the watermark forward in interleaved steps
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> workers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            final int first = t;
+            Thread worker = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                for (int time = first + 1; time <= rows; time += threads) {
+                    mCellBroadcastProviderTestable.markAllBroadcastsRead(time);
+                }
+            });
+            worker.start();
+            workers.add(worker);
+        }
+        start.countDown();
+        for (Thread worker : workers) {
+            worker.join(TimeUnit.SECONDS.toMillis(30));
+        }
+    }
+
+    @Test
+    public void testMarkAllReadConcurrent() throws Exception {
+        final int rows = 200;
+        markAllReadConcurrently(rows, 4);
+
+        assertThat(mCellBroadcastProviderTestable.getReadWatermark()).isEqualTo((long) rows);
+        CellBroadcastContentProviderTestable provider = new CellBroadcastContentProviderTestable();
+        provider.mOpenHelper = mCellBroadcastProviderTestable.mOpenHelper;
+        assertThat(provider.getReadWatermark()).isEqualTo((long) rows);
+    }
+
+    @Test
+    public void testCountersConcurrent() throws Exception {
+        markAllReadConcurrently(200, 4);
+        mCellBroadcastProviderTestable.insertNewBroadcasts(
+                Arrays.asList(fakeSmsCbMessage(MESSAGE_BODY, 201)));
+
+        // Each broadcast is subtracted from the unread counters once
+        Bundle counters = mCellBroadcastProviderTestable.getCounters();
+        assertThat(counters.getInt(CellBroadcastContentProvider.EXTRA_TOTAL_COUNT))
+                .isEqualTo(201);
+        assertThat(counters.getInt(CellBroadcastContentProvider.EXTRA_UNREAD_COUNT))
+                .isEqualTo(1);
+        assertThat(counters.getBundle(CellBroadcasts.SERVICE_CATEGORY).getIntArray(
+                Integer.toString(SERVICE_CATEGORY))).asList().containsExactly(201, 1).inOrder();
+        assertThat(CellBroadcastContentProvider.countUnreadBroadcasts(mContext)).isEqualTo(1);
+    }
+
+    @Test
+    public void testCounters() {
+        SmsCbMessage presidential = new SmsCbMessage(MESSAGE_FORMAT, GEO_SCOPE, SERIAL_NUMBER,
+                new SmsCbLocation(PLMN, LAC, CID), 4370, LANGUAGE_CODE, 0, MESSAGE_BODY,
+                MESSAGE_PRIORITY, null, null, 0, null, System.currentTimeMillis() + 1000, 2, 0);
+        long[] rowIds = mCellBroadcastProviderTestable.insertNewBroadcasts(
+                Arrays.asList(fakeSmsCbMessage(), fakeSmsCbMessage(), fakeSmsCbMessage(),
+                        presidential));
+        mCellBroadcastProviderTestable.markBroadcastsRead(rowIds[0]);
+        mCellBroadcastProviderTestable.deleteBroadcast(rowIds[1]);
+
+        Bundle counters = mContentResolver.call(CONTENT_URI,
+                CellBroadcastContentProvider.METHOD_GET_COUNTERS, null, null);
+        assertThat(counters.getInt(CellBroadcastContentProvider.EXTRA_TOTAL_COUNT)).isEqualTo(3);
+        assertThat(counters.getInt(CellBroadcastContentProvider.EXTRA_UNREAD_COUNT)).isEqualTo(2);
+        Bundle categories = counters.getBundle(CellBroadcasts.SERVICE_CATEGORY);
+        assertThat(categories.getIntArray(Integer.toString(SERVICE_CATEGORY)))
+                .asList().containsExactly(2, 1).inOrder();
+        assertThat(categories.getIntArray("4370")).asList().containsExactly(1, 1).inOrder();
+        Bundle slots = counters.getBundle(CellBroadcasts.SLOT_INDEX);
+        assertThat(slots.getIntArray("1")).asList().containsExactly(2, 1).inOrder();
+        assertThat(slots.getIntArray("2")).asList().containsExactly(1, 1).inOrder();
+        Bundle cmasClasses = counters.getBundle(CellBroadcasts.CMAS_MESSAGE_CLASS);
+        assertThat(cmasClasses.getIntArray(Integer.toString(CMAS_MESSAGE_CLASS)))
+                .asList().containsExactly(2, 1).inOrder();
+        assertThat(cmasClasses.getIntArray("-1")).asList().containsExactly(1, 1).inOrder();
+
+        // Moving the read watermark over the first broadcasts updates their unread counters
+        mCellBroadcastProviderTestable.markAllBroadcastsRead(System.currentTimeMillis());
+        counters = mCellBroadcastProviderTestable.getCounters();
+        assertThat(counters.getInt(CellBroadcastContentProvider.EXTRA_UNREAD_COUNT)).isEqualTo(1);
+        assertThat(counters.getBundle(CellBroadcasts.SERVICE_CATEGORY).getIntArray(
+                Integer.toString(SERVICE_CATEGORY))).asList().containsExactly(2, 0).inOrder();
+
+        // Deleting the last broadcast of a value removes its counters
+        mCellBroadcastProviderTestable.deleteBroadcast(rowIds[3]);
+        counters = mCellBroadcastProviderTestable.getCounters();
+        assertThat(counters.getBundle(CellBroadcasts.SERVICE_CATEGORY).containsKey("4370"))
+                .isFalse();
+        assertThat(mCellBroadcastProviderTestable.countUnreadBroadcasts()).isEqualTo(0);
+    }
+
+    @Test
+    public void testMarkBuffer() throws Exception {
+        long[] rowIds = mCellBroadcastProviderTestable.insertNewBroadcasts(
+                Arrays.asList(fakeSmsCbMessage(), fakeSmsCbMessage()));
+        CellBroadcastMarkBuffer.setPersistenceEnabled(false);
+        try {
+            CellBroadcastMarkBuffer buffer = new CellBroadcastMarkBuffer(60 * 60 * 1000);
+            buffer.markRead(mContext, rowIds[0], 0);
+            buffer.markRead(mContext, rowIds[1], 0);
+            // Visible through the overlay only
+            assertThat(buffer.isReadPending(mContext, rowIds[0], 0)).isTrue();
+            assertThat(DatabaseUtils.queryNumEntries(
+                    mCellBroadcastProviderTestable.mOpenHelper.getReadableDatabase(),
+                    CellBroadcastDatabaseHelper.TABLE_NAME, CellBroadcasts.MESSAGE_READ + "=1"))
+                    .isEqualTo(0);
+
+            buffer.flush(mContext).get(5, TimeUnit.SECONDS);
+            assertThat(buffer.size()).isEqualTo(0);
+            assertThat(DatabaseUtils.queryNumEntries(
+                    mCellBroadcastProviderTestable.mOpenHelper.getReadableDatabase(),
+                    CellBroadcastDatabaseHelper.TABLE_NAME, CellBroadcasts.MESSAGE_READ + "=1"))
+                    .isEqualTo(2);
+        } finally {
+            CellBroadcastMarkBuffer.setPersistenceEnabled(true);
+        }
+    }
+
+    @Test
+    public void testSearch() {
+        long[] rowIds = mCellBroadcastProviderTestable.insertNewBroadcasts(Arrays.asList(
+                fakeSmsCbMessage("Flood warning for the river valley", 1),
+                fakeSmsCbMessage("Flood warning: evacuate, the flood is expected tonight", 2),
+                fakeSmsCbMessage("Monthly test of the alert system", 3),
+                fakeSmsCbMessage("<b>Test</b> of the <script>alert</script> system", 4)));
+
+        Cursor cursor = search("flood");
+        assertThat(cursor.getCount()).isEqualTo(2);
+        // The message with the most matches comes first
+        cursor.moveToFirst();
+        assertThat(cursor.getLong(cursor.getColumnIndexOrThrow(CellBroadcasts._ID)))
+                .isEqualTo(rowIds[1]);
+        assertThat(cursor.getInt(cursor.getColumnIndexOrThrow(
+                CellBroadcastContentProvider.SEARCH_RANK))).isEqualTo(2);
+        assertThat(cursor.getString(cursor.getColumnIndexOrThrow(
+                CellBroadcastContentProvider.SEARCH_SNIPPET))).contains(
+                CellBroadcastContentProvider.SNIPPET_MATCH_START + "flood"
+                        + CellBroadcastContentProvider.SNIPPET_MATCH_END);
+        cursor.moveToNext();
+        assertThat(cursor.getLong(cursor.getColumnIndexOrThrow(CellBroadcasts._ID)))
+                .isEqualTo(rowIds[0]);
+
+        // Markup in the body is left as is, and matches are not marked with markup
+        cursor = search("script");
+        assertThat(cursor.moveToFirst()).isTrue();
+        assertThat(cursor.getString(cursor.getColumnIndexOrThrow(
+                CellBroadcastContentProvider.SEARCH_SNIPPET))).isEqualTo("<b>Test</b> of the <"
+                + CellBroadcastContentProvider.SNIPPET_MATCH_START + "script"
+                + CellBroadcastContentProvider.SNIPPET_MATCH_END + ">alert</"
+                + CellBroadcastContentProvider.SNIPPET_MATCH_START + "script"
+                + CellBroadcastContentProvider.SNIPPET_MATCH_END + "> system");
+
+        // Words match as prefixes, and all of them must match
+        assertThat(search("evac flo").getCount()).isEqualTo(1);
+        assertThat(search("evac test").getCount()).isEqualTo(0);
+        // The query syntax is not interpreted
+        assertThat(search("flood OR \"test").getCount()).isEqualTo(0);
+        assertThat(search("  ").getCount()).isEqualTo(0);
+
+        // Deleted broadcasts leave the index
+        mCellBroadcastProviderTestable.deleteBroadcast(rowIds[1]);
+        assertThat(search("evacuate").getCount()).isEqualTo(0);
+        assertThat(search("flood").getCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void testSearchRanksAllMatches() {
+        List<SmsCbMessage> messages = new ArrayList<>();
+        messages.add(fakeSmsCbMessage("Flood warning, the flood is expected tonight", 0));
+        for (int i = 1; i <= CellBroadcastContentProvider.MAX_SEARCH_LIMIT + 100; i++) {
+            messages.add(fakeSmsCbMessage("Flood watch " + i, i));
+        }
+        long[] rowIds = mCellBroadcastProviderTestable.insertNewBroadcasts(messages);
+
+        // The oldest broadcast has the most matches, behind newer matches than any limit
+        Cursor cursor = mContentResolver.query(CellBroadcastContentProvider.SEARCH_URI.buildUpon()
+                .appendQueryParameter(CellBroadcastContentProvider.SEARCH_QUERY, "flood")
+                .appendQueryParameter(CellBroadcastContentProvider.SEARCH_LIMIT, "1")
+                .build(), null, null, null, null);
+        assertThat(cursor.moveToFirst()).isTrue();
+        assertThat(cursor.getLong(cursor.getColumnIndexOrThrow(CellBroadcasts._ID)))
+                .isEqualTo(rowIds[0]);
+
+        // The limit is lowered to the maximum
+        cursor = mContentResolver.query(CellBroadcastContentProvider.SEARCH_URI.buildUpon()
+                .appendQueryParameter(CellBroadcastContentProvider.SEARCH_QUERY, "flood")
+                .appendQueryParameter(CellBroadcastContentProvider.SEARCH_LIMIT,
+                        Integer.toString(Integer.MAX_VALUE))
+                .build(), null, null, null, null);
+        assertThat(cursor.getCount()).isEqualTo(CellBroadcastContentProvider.MAX_SEARCH_LIMIT);
+    }
+
+    @Test
+    @LargeTest
+    public void testSearchBenchmark() {
+        final int rows = 50000;
+        final int batchSize = 1000;
+        for (int i = 0; i < rows; i += batchSize) {
+            List<SmsCbMessage> messages = new ArrayList<>();
+            for (int j = i; j < i + batchSize; j++) {
+                messages.add(fakeSmsCbMessage(j % 1000 == 0
+                        ? "Evacuation order for zone " + j + ", leave now"
+                        : "Required monthly test " + j + " of the alert system, no action", j));
+            }
+            mCellBroadcastProviderTestable.insertNewBroadcasts(messages);
+        }
+
+        long start = SystemClock.elapsedRealtimeNanos();
+        Cursor cursor = search("evacuation");
+        int found = cursor.getCount();
+        long searchNanos = SystemClock.elapsedRealtimeNanos() - start;
+
+        start = SystemClock.elapsedRealtimeNanos();
+        Cursor scan = mContentResolver.query(CONTENT_URI,
+                CellBroadcastDatabaseHelper.QUERY_COLUMNS,
+                CellBroadcasts.MESSAGE_BODY + " LIKE '%evacuation%'", null,
+                CellBroadcasts.DELIVERY_TIME + " DESC");
+        int scanned = scan.getCount();
+        long scanNanos = SystemClock.elapsedRealtimeNanos() - start;
+        Log.d(TAG, "Searching " + rows + " rows: index=" + searchNanos / 1000 + "us, scan="
+                + scanNanos / 1000 + "us");
+
+        assertThat(found).isEqualTo(rows / 1000);
+        assertThat(scanned).isEqualTo(found);
+
+        // A word found in most broadcasts ranks all of them
+        start = SystemClock.elapsedRealtimeNanos();
+        cursor = search("monthly");
+        found = cursor.getCount();
+        assertThat(cursor.moveToFirst()).isTrue();
+        long latest = cursor.getLong(cursor.getColumnIndexOrThrow(CellBroadcasts.DELIVERY_TIME));
+        searchNanos = SystemClock.elapsedRealtimeNanos() - start;
+        Log.d(TAG, "Searching a word of " + (rows - rows / 1000) + " of " + rows + " rows: "
+                + searchNanos / 1000 + "us");
+
+        assertThat(found).isEqualTo(100);
+        assertThat(latest).isEqualTo(rows - 1L);
+    }
+
+    private Cursor search(String query) {
+        return mContentResolver.query(CellBroadcastContentProvider.SEARCH_URI.buildUpon()
+                .appendQueryParameter(CellBroadcastContentProvider.SEARCH_QUERY, query)
+                .build(), null, null, null, null);
+    }
+
     @Test
     public void testDeleteBroadcast() {
         // Insert two cell broadcast message
@@ -206,6 +728,11 @@ public class CellBroadcastContentProviderTest extends TestCase {
             return mResolver;
         }
 
+        @Override
+        public Context getApplicationContext() {
+            return this;
+        }
+
 
         @Override
         public Object getSystemService(String name) {
@@ -219,6 +746,12 @@ public class CellBroadcastContentProviderTest extends TestCase {
         }
     }
 
+    private SmsCbMessage fakeSmsCbMessage(String body, long receivedTime) {
+        return new SmsCbMessage(MESSAGE_FORMAT, GEO_SCOPE, SERIAL_NUMBER,
+                new SmsCbLocation(PLMN, LAC, CID), SERVICE_CATEGORY, LANGUAGE_CODE, 0, body,
+                MESSAGE_PRIORITY, null, null, 0, null, receivedTime, 1, 0);
+    }
+
     private SmsCbMessage fakeSmsCbMessage() {
         return new SmsCbMessage(MESSAGE_FORMAT, GEO_SCOPE, SERIAL_NUMBER,
                 new SmsCbLocation(PLMN, LAC, CID), SERVICE_CATEGORY, LANGUAGE_CODE, 0 ,
@@ -57,6 +57,10 @@ public class CellBroadcastContentProviderTestable extends CellBroadcastContentPr
             Log.d(TAG, "IN MEMORY DB CREATED");
             db.execSQL(CellBroadcastDatabaseHelper.getStringForCellBroadcastTableCreation(
                     CellBroadcastDatabaseHelper.TABLE_NAME));
+            CellBroadcastDatabaseHelper.createIndexes(db);
+            CellBroadcastDatabaseHelper.createMetadataTable(db);
+            CellBroadcastDatabaseHelper.createCounters(db);
+            CellBroadcastDatabaseHelper.createSearchIndex(db);
         }
 
         @Override
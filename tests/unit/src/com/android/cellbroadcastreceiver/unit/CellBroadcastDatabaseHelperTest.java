@@ -23,18 +23,25 @@ import static org.mockito.Mockito.doReturn;
 import static org.mockito.Mockito.verify;
 
 import android.content.ContentResolver;
+import android.content.ContentValues;
 import android.content.Context;
 import android.content.IContentProvider;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.MatrixCursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.os.SystemClock;
 import android.provider.Telephony;
 import android.provider.Telephony.CellBroadcasts;
 import android.telephony.SmsCbCmasInfo;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.text.TextUtils;
 import android.util.Log;
 import com.android.cellbroadcastreceiver.CellBroadcastDatabaseHelper;
 import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 import org.junit.Test;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
@@ -50,6 +57,8 @@ public class CellBroadcastDatabaseHelperTest {
 
     private final static String TAG = CellBroadcastDatabaseHelperTest.class.getSimpleName();
 
+    private static final String BENCHMARK_DATABASE = "cell_broadcasts_test.db";
+
     private CellBroadcastDatabaseHelper mHelper; // the actual class being tested
     private SQLiteOpenHelper mInMemoryDbHelper; // used to give us an in-memory db
     @Mock
@@ -144,6 +153,272 @@ public class CellBroadcastDatabaseHelperTest {
         assertEquals(1, cursor.getCount());
     }
 
+    @Test
+    public void databaseHelperOnUpgrade_V13() {
+        SQLiteDatabase db = mInMemoryDbHelper.getWritableDatabase();
+        db.execSQL("CREATE INDEX deliveryTimeIndex ON " + CellBroadcastDatabaseHelper.TABLE_NAME
+                + " (" + CellBroadcasts.DELIVERY_TIME + ");");
+        mHelper.onUpgrade(db, 11, 13);
+        assertEquals(0, DatabaseUtils.longForQuery(db, "SELECT COUNT(*) FROM sqlite_master"
+                + " WHERE type='index' AND name='deliveryTimeIndex'", null));
+        assertEquals(2, DatabaseUtils.longForQuery(db, "SELECT COUNT(*) FROM sqlite_master"
+                + " WHERE type='index' AND name IN ('deliveryTimeReadIndex',"
+                + "'serviceCategoryIndex')", null));
+    }
+
+    @Test
+    public void databaseHelperOnUpgrade_V14() {
+        SQLiteDatabase db = mInMemoryDbHelper.getWritableDatabase();
+        mHelper.onUpgrade(db, 13, 14);
+        assertEquals(1, DatabaseUtils.longForQuery(db, "SELECT COUNT(*) FROM sqlite_master"
+                + " WHERE type='table' AND name='"
+                + CellBroadcastDatabaseHelper.METADATA_TABLE_NAME + "'", null));
+    }
+
+    @Test
+    public void databaseHelperOnUpgrade_V15() {
+        SQLiteDatabase db = mInMemoryDbHelper.getWritableDatabase();
+        ContentValues values = new ContentValues();
+        values.put(CellBroadcasts.SERVICE_CATEGORY, 4370);
+        values.put(CellBroadcasts.DELIVERY_TIME, 1);
+        db.insert(CellBroadcastDatabaseHelper.TABLE_NAME, null, values);
+        values.put(CellBroadcasts.MESSAGE_READ, 1);
+        db.insert(CellBroadcastDatabaseHelper.TABLE_NAME, null, values);
+
+        // Existing broadcasts are counted, new ones by the triggers
+        mHelper.onUpgrade(db, 11, 15);
+        values.put(CellBroadcasts.SERVICE_CATEGORY, 4371);
+        db.insert(CellBroadcastDatabaseHelper.TABLE_NAME, null, values);
+        String counter = "SELECT " + CellBroadcastDatabaseHelper.COUNTERS_TOTAL + "*100+"
+                + CellBroadcastDatabaseHelper.COUNTERS_UNREAD + " FROM "
+                + CellBroadcastDatabaseHelper.COUNTERS_TABLE_NAME + " WHERE "
+                + CellBroadcastDatabaseHelper.COUNTERS_COLUMN + "=? AND "
+                + CellBroadcastDatabaseHelper.COUNTERS_VALUE + "=?";
+        assertEquals(201, DatabaseUtils.longForQuery(db, counter,
+                new String[]{CellBroadcasts.SERVICE_CATEGORY, "4370"}));
+        assertEquals(100, DatabaseUtils.longForQuery(db, counter,
+                new String[]{CellBroadcasts.SERVICE_CATEGORY, "4371"}));
+        assertEquals(301, DatabaseUtils.longForQuery(db, counter,
+                new String[]{CellBroadcasts.SLOT_INDEX, "0"}));
+    }
+
+    @Test
+    public void databaseHelperOnUpgrade_V16() {
+        SQLiteDatabase db = mInMemoryDbHelper.getWritableDatabase();
+        ContentValues values = new ContentValues();
+        values.put(CellBroadcasts.MESSAGE_BODY, "Tsunami warning");
+        db.insert(CellBroadcastDatabaseHelper.TABLE_NAME, null, values);
+
+        // Existing broadcasts are indexed, new ones by the triggers
+        mHelper.onUpgrade(db, 11, 16);
+        values.put(CellBroadcasts.MESSAGE_BODY, "Tsunami all clear");
+        db.insert(CellBroadcastDatabaseHelper.TABLE_NAME, null, values);
+        String search = "SELECT COUNT(*) FROM " + CellBroadcastDatabaseHelper.SEARCH_TABLE_NAME
+                + " WHERE " + CellBroadcastDatabaseHelper.SEARCH_TABLE_NAME + " MATCH ?";
+        assertEquals(2, DatabaseUtils.longForQuery(db, search, new String[]{"tsunami"}));
+        assertEquals(1, DatabaseUtils.longForQuery(db, search, new String[]{"warning"}));
+
+        values.put(CellBroadcasts.MESSAGE_BODY, "Tsunami cancelled");
+        db.update(CellBroadcastDatabaseHelper.TABLE_NAME, values,
+                CellBroadcasts.MESSAGE_BODY + "='Tsunami warning'", null);
+        assertEquals(0, DatabaseUtils.longForQuery(db, search, new String[]{"warning"}));
+        assertEquals(1, DatabaseUtils.longForQuery(db, search, new String[]{"cancelled"}));
+    }
+
+    /**
+     * Check the plan of each query the app issues on the broadcasts table, so that none of them
+     * scans the table without an index or sorts the whole history.
+     */
+    @Test
+    public void testQueryPlans() {
+        SQLiteDatabase db = SQLiteDatabase.create(null);
+        try {
+            db.execSQL(CellBroadcastDatabaseHelper.getStringForCellBroadcastTableCreation(
+                    CellBroadcastDatabaseHelper.TABLE_NAME));
+            CellBroadcastDatabaseHelper.createIndexes(db);
+            String table = CellBroadcastDatabaseHelper.TABLE_NAME;
+            String columns = TextUtils.join(",", CellBroadcastDatabaseHelper.QUERY_COLUMNS);
+
+            // History list, ordered by the index
+            assertPlan(db, "SELECT " + columns + " FROM " + table + " ORDER BY "
+                    + CellBroadcasts.DELIVERY_TIME + " DESC", "SCAN", "INDEX");
+            // History list item
+            assertPlan(db, "SELECT " + CellBroadcasts.MESSAGE_READ + " FROM " + table
+                    + " WHERE " + CellBroadcasts.DELIVERY_TIME + "=1", "SEARCH",
+                    "COVERING INDEX deliveryTimeReadIndex");
+            // Single broadcast
+            assertPlan(db, "SELECT " + columns + " FROM " + table + " WHERE "
+                    + CellBroadcasts._ID + "=1", "SEARCH", "PRIMARY KEY");
+            // Read marks
+            assertPlan(db, "UPDATE " + table + " SET " + CellBroadcasts.MESSAGE_READ + "=1 WHERE "
+                    + CellBroadcasts.DELIVERY_TIME + "=1", "SEARCH", "INDEX");
+            assertPlan(db, "UPDATE " + table + " SET " + CellBroadcasts.MESSAGE_READ + "=1 WHERE "
+                    + CellBroadcasts._ID + "=1", "SEARCH", "PRIMARY KEY");
+            assertPlan(db, "DELETE FROM " + table + " WHERE " + CellBroadcasts._ID + "=1",
+                    "SEARCH", "PRIMARY KEY");
+            // Retention policy
+            assertPlan(db, "SELECT " + CellBroadcasts._ID + " FROM " + table + " WHERE "
+                    + CellBroadcasts.DELIVERY_TIME + "<1 ORDER BY " + CellBroadcasts.DELIVERY_TIME
+                    + " DESC LIMIT 100 OFFSET 0", "SEARCH", "INDEX");
+            assertPlan(db, "SELECT " + CellBroadcasts._ID + " FROM " + table + " WHERE "
+                    + CellBroadcasts.SERVICE_CATEGORY + " BETWEEN 1 AND 1 ORDER BY "
+                    + CellBroadcasts.DELIVERY_TIME + " DESC LIMIT 100 OFFSET 100", null,
+                    "INDEX");
+            assertPlan(db, "SELECT " + CellBroadcasts._ID + " FROM " + table + " ORDER BY "
+                    + CellBroadcasts.DELIVERY_TIME + " DESC LIMIT 100 OFFSET 100", "SCAN",
+                    "INDEX");
+        } finally {
+            db.close();
+        }
+    }
+
+    /**
+     * Assert that the plan of a statement uses an index for the broadcasts table, and never a
+     * temporary b-tree for sorting unless the rows were searched by index first.
+     *
+     * @param access SEARCH or SCAN if the table access must be of that kind
+     * @param index Part of the index name the table access must use
+     */
+    private static void assertPlan(SQLiteDatabase db, String sql, String access, String index) {
+        boolean searched = false;
+        boolean sorted = false;
+        StringBuilder plan = new StringBuilder();
+        try (Cursor c = db.rawQuery("EXPLAIN QUERY PLAN " + sql, null)) {
+            while (c.moveToNext()) {
+                String detail = c.getString(c.getColumnIndexOrThrow("detail"));
+                plan.append(detail).append("; ");
+                if (detail.contains("TEMP B-TREE")) {
+                    sorted = true;
+                    continue;
+                }
+                if (!detail.matches("(SEARCH|SCAN) (TABLE )?"
+                        + CellBroadcastDatabaseHelper.TABLE_NAME + "\\b.*")) {
+                    continue;
+                }
+                String message = sql + " -> " + detail;
+                assertTrue(message, detail.contains(index));
+                if (access != null) {
+                    assertTrue(message, detail.startsWith(access));
+                }
+                searched |= detail.startsWith("SEARCH");
+            }
+        }
+        Log.d(TAG, sql + " -> " + plan);
+        assertFalse(sql + " -> " + plan, sorted && !searched);
+    }
+
+    @Test
+    public void testConfigure() {
+        Context context = InstrumentationRegistry.getTargetContext();
+        CellBroadcastDatabaseHelper helper = new CellBroadcastDatabaseHelper(context, true,
+                BENCHMARK_DATABASE);
+        try {
+            SQLiteDatabase db = helper.getWritableDatabase();
+            assertTrue(db.isWriteAheadLoggingEnabled());
+            assertEquals("wal", DatabaseUtils.stringForQuery(db, "PRAGMA journal_mode;", null));
+            // NORMAL
+            assertEquals(1, DatabaseUtils.longForQuery(db, "PRAGMA synchronous;", null));
+            assertEquals(4096, DatabaseUtils.longForQuery(db, "PRAGMA page_size;", null));
+        } finally {
+            helper.close();
+            context.deleteDatabase(BENCHMARK_DATABASE);
+        }
+    }
+
+    /**
+     * Compare insert latency and read throughput while the history list is read concurrently,
+     * with the default rollback journal and with the configuration of the helper.
+     */
+    @Test
+    @LargeTest
+    public void testConcurrentReadWriteBenchmark() throws Exception {
+        Context context = InstrumentationRegistry.getTargetContext();
+        SQLiteOpenHelper defaultHelper = new SQLiteOpenHelper(context, BENCHMARK_DATABASE, null,
+                1) {
+            @Override
+            public void onCreate(SQLiteDatabase db) {
+                db.execSQL(CellBroadcastDatabaseHelper.getStringForCellBroadcastTableCreation(
+                        CellBroadcastDatabaseHelper.TABLE_NAME));
+            }
+
+            @Override
+            public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+            }
+        };
+        try {
+            Log.d(TAG, "Default journal: " + runConcurrentReadWrite(defaultHelper));
+        } finally {
+            defaultHelper.close();
+            context.deleteDatabase(BENCHMARK_DATABASE);
+        }
+
+        CellBroadcastDatabaseHelper helper = new CellBroadcastDatabaseHelper(context, true,
+                BENCHMARK_DATABASE);
+        try {
+            Log.d(TAG, "Configured: " + runConcurrentReadWrite(helper));
+        } finally {
+            helper.close();
+            context.deleteDatabase(BENCHMARK_DATABASE);
+        }
+    }
+
+    /**
+     * Insert rows one transaction at a time, like alerts arriving, while another thread keeps
+     * reading the whole history like a scrolling list.
+     */
+    private static String runConcurrentReadWrite(SQLiteOpenHelper helper) throws Exception {
+        final int initialRows = 2000;
+        final int inserts = 200;
+        SQLiteDatabase db = helper.getWritableDatabase();
+        ContentValues values = new ContentValues();
+        values.put(CellBroadcasts.SERVICE_CATEGORY, 4379);
+        values.put(CellBroadcasts.MESSAGE_BODY, "Test Message");
+        db.beginTransaction();
+        try {
+            for (int i = 0; i < initialRows; i++) {
+                values.put(CellBroadcasts.DELIVERY_TIME, i);
+                db.insert(CellBroadcastDatabaseHelper.TABLE_NAME, null, values);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+
+        AtomicBoolean done = new AtomicBoolean();
+        AtomicLong reads = new AtomicLong();
+        Thread reader = new Thread(() -> {
+            while (!done.get()) {
+                try (Cursor c = helper.getReadableDatabase().query(
+                        CellBroadcastDatabaseHelper.TABLE_NAME,
+                        CellBroadcastDatabaseHelper.QUERY_COLUMNS, null, null, null, null,
+                        CellBroadcasts.DEFAULT_SORT_ORDER)) {
+                    while (c.moveToNext()) {
+                        c.getString(c.getColumnIndexOrThrow(CellBroadcasts.MESSAGE_BODY));
+                    }
+                }
+                reads.incrementAndGet();
+            }
+        });
+        reader.start();
+
+        long maxInsertNanos = 0;
+        long start = SystemClock.elapsedRealtimeNanos();
+        for (int i = 0; i < inserts; i++) {
+            long insertStart = SystemClock.elapsedRealtimeNanos();
+            values.put(CellBroadcasts.DELIVERY_TIME, initialRows + i);
+            assertTrue(db.insert(CellBroadcastDatabaseHelper.TABLE_NAME, null, values) != -1);
+            maxInsertNanos = Math.max(maxInsertNanos,
+                    SystemClock.elapsedRealtimeNanos() - insertStart);
+        }
+        long elapsedNanos = SystemClock.elapsedRealtimeNanos() - start;
+        done.set(true);
+        reader.join();
+
+        return "inserts=" + inserts * 1000000000L / elapsedNanos + "/s, max insert="
+                + maxInsertNanos / 1000 + "us, reads=" + reads.get() * 1000000000L / elapsedNanos
+                + "/s";
+    }
+
     private static class InMemoryCellBroadcastProviderDbHelperV11 extends SQLiteOpenHelper {
 
         public InMemoryCellBroadcastProviderDbHelperV11() {
@@ -0,0 +1,195 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.cellbroadcastreceiver.unit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+
+import android.content.Context;
+import android.telephony.SmsCbCmasInfo;
+import android.telephony.SmsCbLocation;
+import android.telephony.SmsCbMessage;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import androidx.test.InstrumentationRegistry;
+
+import com.android.cellbroadcastreceiver.CellBroadcastDuplicateDetector;
+import com.android.internal.telephony.gsm.SmsCbConstants;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+
+/**
+ * Tests for {@link CellBroadcastDuplicateDetector}
+ */
+public class CellBroadcastDuplicateDetectorTest {
+
+    private static final long WINDOW_MS = 1000;
+
+    private static SmsCbMessage createMessage(int geographicalScope, SmsCbLocation location,
+            int serialNumber, String body) {
+        return new SmsCbMessage(SmsCbMessage.MESSAGE_FORMAT_3GPP, geographicalScope, serialNumber,
+                location, SmsCbConstants.MESSAGE_ID_CMAS_ALERT_EXTREME_IMMEDIATE_OBSERVED,
+                "en", body, SmsCbMessage.MESSAGE_PRIORITY_EMERGENCY, null,
+                new SmsCbCmasInfo(0, 2, 3, 4, 5, 6), 0, 1);
+    }
+
+    @Test
+    @SmallTest
+    public void testKey() throws Exception {
+        SmsCbLocation cell = new SmsCbLocation("310260", 1, 2);
+        SmsCbLocation otherCell = new SmsCbLocation("310260", 1, 3);
+        SmsCbLocation otherArea = new SmsCbLocation("310260", 4, 3);
+        SmsCbLocation otherPlmn = new SmsCbLocation("310410", 1, 2);
+
+        long key = CellBroadcastDuplicateDetector.computeKey(createMessage(
+                SmsCbMessage.GEOGRAPHICAL_SCOPE_CELL_WIDE, cell, 1, "body"));
+        assertEquals(key, CellBroadcastDuplicateDetector.computeKey(createMessage(
+                SmsCbMessage.GEOGRAPHICAL_SCOPE_CELL_WIDE, cell, 1, "body")));
+        assertNotEquals(key, CellBroadcastDuplicateDetector.computeKey(createMessage(
+                SmsCbMessage.GEOGRAPHICAL_SCOPE_CELL_WIDE, otherCell, 1, "body")));
+        assertNotEquals(key, CellBroadcastDuplicateDetector.computeKey(createMessage(
+                SmsCbMessage.GEOGRAPHICAL_SCOPE_CELL_WIDE, cell, 2, "body")));
+        assertNotEquals(key, CellBroadcastDuplicateDetector.computeKey(createMessage(
+                SmsCbMessage.GEOGRAPHICAL_SCOPE_CELL_WIDE, cell, 1, "other body")));
+
+        // The location only counts as far as the geographical scope covers it
+        long areaKey = CellBroadcastDuplicateDetector.computeKey(createMessage(
+                SmsCbMessage.GEOGRAPHICAL_SCOPE_LOCATION_AREA_WIDE, cell, 1, "body"));
+        assertEquals(areaKey, CellBroadcastDuplicateDetector.computeKey(createMessage(
+                SmsCbMessage.GEOGRAPHICAL_SCOPE_LOCATION_AREA_WIDE, otherCell, 1, "body")));
+        assertNotEquals(areaKey, CellBroadcastDuplicateDetector.computeKey(createMessage(
+                SmsCbMessage.GEOGRAPHICAL_SCOPE_LOCATION_AREA_WIDE, otherArea, 1, "body")));
+
+        long plmnKey = CellBroadcastDuplicateDetector.computeKey(createMessage(
+                SmsCbMessage.GEOGRAPHICAL_SCOPE_PLMN_WIDE, cell, 1, "body"));
+        assertEquals(plmnKey, CellBroadcastDuplicateDetector.computeKey(createMessage(
+                SmsCbMessage.GEOGRAPHICAL_SCOPE_PLMN_WIDE, otherArea, 1, "body")));
+        assertNotEquals(plmnKey, CellBroadcastDuplicateDetector.computeKey(createMessage(
+                SmsCbMessage.GEOGRAPHICAL_SCOPE_PLMN_WIDE, otherPlmn, 1, "body")));
+    }
+
+    @Test
+    @SmallTest
+    public void testWindow() throws Exception {
+        CellBroadcastDuplicateDetector detector = new CellBroadcastDuplicateDetector(16,
+                WINDOW_MS);
+        assertFalse(detector.checkAndAdd(42, 0));
+        assertTrue(detector.checkAndAdd(42, WINDOW_MS - 1));
+        // Expired, and the window restarts
+        assertFalse(detector.checkAndAdd(42, WINDOW_MS));
+        assertTrue(detector.checkAndAdd(42, WINDOW_MS + 1));
+        // The wall clock was set back
+        assertFalse(detector.checkAndAdd(42, -WINDOW_MS));
+        assertEquals(1, detector.size());
+    }
+
+    @Test
+    @SmallTest
+    public void testBounded() throws Exception {
+        final int maxEntries = 8;
+        CellBroadcastDuplicateDetector detector = new CellBroadcastDuplicateDetector(maxEntries,
+                WINDOW_MS);
+        // Key i + 1 expires at WINDOW_MS + i
+        for (int i = 0; i < maxEntries; i++) {
+            assertFalse(detector.checkAndAdd(i + 1, i));
+        }
+        for (int i = 0; i < maxEntries; i++) {
+            assertTrue(detector.checkAndAdd(i + 1, maxEntries));
+        }
+
+        // The entry closest to expiring is evicted
+        assertFalse(detector.checkAndAdd(100, maxEntries));
+        assertEquals(maxEntries, detector.size());
+        for (int i = 1; i < maxEntries; i++) {
+            assertTrue(detector.checkAndAdd(i + 1, maxEntries));
+        }
+        assertFalse(detector.checkAndAdd(1, maxEntries));
+
+        // Expired entries are dropped all at once
+        assertFalse(detector.checkAndAdd(200, WINDOW_MS + maxEntries - 1));
+        assertEquals(3, detector.size());
+        assertTrue(detector.checkAndAdd(100, WINDOW_MS + maxEntries - 1));
+        assertTrue(detector.checkAndAdd(1, WINDOW_MS + maxEntries - 1));
+    }
+
+    @Test
+    @SmallTest
+    public void testEncodeDecode() throws Exception {
+        CellBroadcastDuplicateDetector detector = new CellBroadcastDuplicateDetector(16,
+                WINDOW_MS);
+        detector.checkAndAdd(1, 0);
+        detector.checkAndAdd(2, 500);
+        byte[] data = detector.encode();
+
+        CellBroadcastDuplicateDetector restored = new CellBroadcastDuplicateDetector(16,
+                WINDOW_MS);
+        // Entries expired while the process was gone are dropped
+        assertTrue(restored.decode(data, 1200));
+        assertEquals(1, restored.size());
+        assertTrue(restored.checkAndAdd(2, 1200));
+        assertFalse(restored.checkAndAdd(1, 1200));
+
+        data[data.length - 9] ^= 1;
+        assertFalse(restored.decode(data, 1200));
+        assertEquals(0, restored.size());
+    }
+
+    @Test
+    @SmallTest
+    public void testPreload() throws Exception {
+        File dir = new File(InstrumentationRegistry.getTargetContext().getCacheDir(),
+                getClass().getSimpleName());
+        dir.mkdirs();
+        File file = new File(dir, "cb_duplicates.bin");
+        Context context = mock(Context.class);
+        doReturn(context).when(context).createDeviceProtectedStorageContext();
+        doReturn(dir).when(context).getNoBackupFilesDir();
+        SmsCbMessage message = createMessage(SmsCbMessage.GEOGRAPHICAL_SCOPE_PLMN_WIDE,
+                new SmsCbLocation("310260", 1, 2), 0x1234, "body");
+
+        // Other tests turn persistence off
+        CellBroadcastDuplicateDetector.setPersistenceEnabled(true);
+        try {
+            CellBroadcastDuplicateDetector previous = new CellBroadcastDuplicateDetector(16,
+                    CellBroadcastDuplicateDetector.DEFAULT_WINDOW_MS);
+            previous.checkAndAdd(CellBroadcastDuplicateDetector.computeKey(message),
+                    System.currentTimeMillis());
+            try (FileOutputStream out = new FileOutputStream(file)) {
+                out.write(previous.encode());
+            }
+
+            // The table is read in the background, without a check
+            CellBroadcastDuplicateDetector detector = new CellBroadcastDuplicateDetector(16,
+                    CellBroadcastDuplicateDetector.DEFAULT_WINDOW_MS);
+            detector.preload(context);
+            for (int i = 0; i < 100 && detector.size() == 0; i++) {
+                Thread.sleep(10);
+            }
+            assertEquals(1, detector.size());
+            assertTrue(detector.checkAndAdd(context, message));
+        } finally {
+            file.delete();
+        }
+    }
+}
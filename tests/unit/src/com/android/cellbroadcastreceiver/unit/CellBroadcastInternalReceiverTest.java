@@ -29,6 +29,7 @@ import android.content.res.Configuration;
 
 import com.android.cellbroadcastreceiver.CellBroadcastInternalReceiver;
 import com.android.cellbroadcastreceiver.CellBroadcastReceiver;
+import com.android.cellbroadcastreceiver.CellBroadcastRowIds;
 
 import org.junit.Before;
 import org.junit.Test;
@@ -54,10 +55,13 @@ public class CellBroadcastInternalReceiverTest extends CellBroadcastTest {
     @Test
     public void testOnReceive_actionMarkAsRead() {
         doReturn(CellBroadcastReceiver.ACTION_MARK_AS_READ).when(mIntent).getAction();
-        doNothing().when(mReceiver).getCellBroadcastTask(nullable(Context.class), anyLong());
+        doNothing().when(mReceiver).getCellBroadcastTask(nullable(Context.class), anyLong(),
+                anyLong());
         mReceiver.onReceive(mContext, mIntent);
+        verify(mIntent).getLongExtra(CellBroadcastRowIds.EXTRA_ROW_ID,
+                CellBroadcastRowIds.UNKNOWN);
         verify(mIntent).getLongExtra(CellBroadcastReceiver.EXTRA_DELIVERY_TIME, -1);
-        verify(mReceiver).getCellBroadcastTask(nullable(Context.class), anyLong());
+        verify(mReceiver).getCellBroadcastTask(nullable(Context.class), anyLong(), anyLong());
     }
 
 }
@@ -0,0 +1,66 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.cellbroadcastreceiver.unit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import android.content.ContentValues;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.provider.Telephony.CellBroadcasts;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.cellbroadcastreceiver.CellBroadcastDatabaseHelper;
+import com.android.cellbroadcastreceiver.CellBroadcastMaintenanceService;
+
+import org.junit.Test;
+
+/**
+ * Tests for {@link CellBroadcastMaintenanceService}
+ */
+public class CellBroadcastMaintenanceServiceTest {
+
+    @Test
+    @SmallTest
+    public void testIncrementalVacuum() throws Exception {
+        SQLiteDatabase db = SQLiteDatabase.create(null);
+        try {
+            db.execSQL("PRAGMA auto_vacuum=INCREMENTAL;");
+            db.execSQL(CellBroadcastDatabaseHelper.getStringForCellBroadcastTableCreation(
+                    CellBroadcastDatabaseHelper.TABLE_NAME));
+            ContentValues values = new ContentValues();
+            values.put(CellBroadcasts.MESSAGE_BODY, new String(new char[1000]).replace('\0', 'a'));
+            for (int i = 0; i < 100; i++) {
+                db.insert(CellBroadcastDatabaseHelper.TABLE_NAME, null, values);
+            }
+            db.delete(CellBroadcastDatabaseHelper.TABLE_NAME, null, null);
+            long free = DatabaseUtils.longForQuery(db, "PRAGMA freelist_count;", null);
+            assertTrue(free > 4);
+
+            // Each step releases a bounded number of pages
+            assertEquals(free - 4, CellBroadcastMaintenanceService.incrementalVacuum(db, 4));
+            int left;
+            do {
+                left = CellBroadcastMaintenanceService.incrementalVacuum(db, 4);
+            } while (left > 0);
+            assertEquals(0, DatabaseUtils.longForQuery(db, "PRAGMA freelist_count;", null));
+        } finally {
+            db.close();
+        }
+    }
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.cellbroadcastreceiver.unit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+
+import android.content.Context;
+import android.telephony.SmsCbLocation;
+import android.os.SystemClock;
+import android.telephony.SmsCbMessage;
+import android.test.suitebuilder.annotation.SmallTest;
+import android.util.AtomicFile;
+
+import com.android.cellbroadcastreceiver.CellBroadcastMarkBuffer;
+import com.android.cellbroadcastreceiver.CellBroadcastRowIds;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Tests for {@link CellBroadcastMarkBuffer}
+ */
+public class CellBroadcastMarkBufferTest {
+
+    /** Long enough for the marks to stay pending during a test. */
+    private static final long FLUSH_DELAY_MS = 60 * 60 * 1000;
+
+    private final Context mContext = mock(Context.class);
+
+    private static SmsCbMessage createMessage(long receivedTime) {
+        return new SmsCbMessage(SmsCbMessage.MESSAGE_FORMAT_3GPP, 0, 1, new SmsCbLocation(),
+                0x1112, "en", 0, "body", SmsCbMessage.MESSAGE_PRIORITY_EMERGENCY, null, null,
+                0, null, receivedTime, 1, 0);
+    }
+
+    private static void waitFor(BooleanSupplier condition) throws Exception {
+        long deadline = SystemClock.elapsedRealtime() + 5000;
+        while (!condition.getAsBoolean()) {
+            assertTrue(SystemClock.elapsedRealtime() < deadline);
+            Thread.sleep(10);
+        }
+    }
+
+    @Test
+    @SmallTest
+    public void testOverlay() throws Exception {
+        CellBroadcastMarkBuffer buffer = new CellBroadcastMarkBuffer(FLUSH_DELAY_MS);
+        buffer.markRead(mContext, 7, 1000);
+        buffer.markRead(mContext, CellBroadcastRowIds.UNKNOWN, 2000);
+        buffer.markDisplayed(mContext, Arrays.asList(createMessage(3000), createMessage(4000)));
+
+        assertTrue(buffer.isReadPending(mContext, 7, 1000));
+        assertTrue(buffer.isReadPending(mContext, 8, 2000));
+        assertFalse(buffer.isReadPending(mContext, 8, 3000));
+        // Marks with a row ID are looked up by row ID
+        assertFalse(buffer.isReadPending(mContext, 9, 1000));
+        assertTrue(buffer.isDisplayedPending(mContext, 3000));
+        assertTrue(buffer.isDisplayedPending(mContext, 4000));
+        assertFalse(buffer.isDisplayedPending(mContext, 1000));
+
+        // Marking again coalesces with the pending mark
+        buffer.markRead(mContext, 7, 1000);
+        assertEquals(4, buffer.size());
+    }
+
+    @Test
+    @SmallTest
+    public void testPersistence() throws Exception {
+        CellBroadcastMarkBuffer buffer = new CellBroadcastMarkBuffer(FLUSH_DELAY_MS);
+        buffer.markRead(mContext, 7, 1000);
+        buffer.markRead(mContext, CellBroadcastRowIds.UNKNOWN, 2000);
+        buffer.markDisplayed(mContext, Arrays.asList(createMessage(3000)));
+        byte[] data = buffer.encode();
+
+        // A new process reads the pending marks back
+        CellBroadcastMarkBuffer restored = new CellBroadcastMarkBuffer(FLUSH_DELAY_MS);
+        assertTrue(restored.decode(data));
+        assertEquals(3, restored.size());
+        assertTrue(restored.isReadPending(mContext, 7, 1000));
+        assertTrue(restored.isReadPending(mContext, 8, 2000));
+        assertTrue(restored.isDisplayedPending(mContext, 3000));
+
+        // Corrupted data is dropped
+        data[data.length - 9] ^= 1;
+        assertFalse(restored.decode(data));
+        assertEquals(0, restored.size());
+        assertFalse(restored.decode(new byte[3]));
+    }
+
+    @Test
+    @SmallTest
+    public void testLoadOnWorker() throws Exception {
+        File dir = Files.createTempDirectory("marks").toFile();
+        Context storageContext = mock(Context.class);
+        doReturn(dir).when(storageContext).getNoBackupFilesDir();
+        Context context = mock(Context.class);
+        doReturn(storageContext).when(context).createDeviceProtectedStorageContext();
+
+        // Marks left by a previous process
+        CellBroadcastMarkBuffer previous = new CellBroadcastMarkBuffer(FLUSH_DELAY_MS);
+        previous.markRead(mContext, 7, 1000);
+        AtomicFile file = new AtomicFile(new File(dir, "cb_pending_marks.bin"));
+        FileOutputStream out = file.startWrite();
+        out.write(previous.encode());
+        file.finishWrite(out);
+
+        CellBroadcastMarkBuffer buffer = new CellBroadcastMarkBuffer(FLUSH_DELAY_MS);
+        buffer.markRead(context, 8, 2000);
+        // The file is read and written on the worker thread, and the mark made before it was
+        // read is kept along with the ones read
+        waitFor(() -> buffer.isReadPending(context, 7, 1000));
+        assertTrue(buffer.isReadPending(context, 8, 2000));
+        CellBroadcastMarkBuffer restored = new CellBroadcastMarkBuffer(FLUSH_DELAY_MS);
+        waitFor(() -> {
+            try {
+                return restored.decode(file.readFully()) && restored.size() == 2;
+            } catch (IOException e) {
+                return false;
+            }
+        });
+        assertTrue(restored.isReadPending(mContext, 7, 1000));
+        assertTrue(restored.isReadPending(mContext, 8, 2000));
+    }
+}
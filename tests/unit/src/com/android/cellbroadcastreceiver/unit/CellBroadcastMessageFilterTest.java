@@ -0,0 +1,130 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.cellbroadcastreceiver.unit;
+
+import static com.android.cellbroadcastreceiver.CellBroadcastMessageFilter.NO_MATCH;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import android.os.SystemClock;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.test.suitebuilder.annotation.SmallTest;
+import android.util.Log;
+
+import com.android.cellbroadcastreceiver.CellBroadcastMessageFilter;
+
+import org.junit.Test;
+
+/**
+ * Tests for {@link CellBroadcastMessageFilter}
+ */
+public class CellBroadcastMessageFilterTest {
+
+    private static final String TAG = "CellBroadcastMessageFilterTest";
+
+    private static String match(CellBroadcastMessageFilter filter, String text) {
+        int index = filter.match(text);
+        return index == NO_MATCH ? null : filter.getPattern(index);
+    }
+
+    @Test
+    @SmallTest
+    public void testMatch() throws Exception {
+        CellBroadcastMessageFilter filter = CellBroadcastMessageFilter.get(",he,,she,his,hers,");
+        assertEquals(4, filter.getPatternCount());
+
+        assertEquals("she", match(filter, "ushers"));
+        assertEquals("his", match(filter, "this"));
+        assertEquals(null, match(filter, "hx sx"));
+        assertEquals(null, match(filter, ""));
+        assertEquals(null, match(filter, null));
+    }
+
+    @Test
+    @SmallTest
+    public void testFailureLinks() throws Exception {
+        CellBroadcastMessageFilter filter = CellBroadcastMessageFilter.get("abcd,bce,cf");
+        // "abc" falls back to "bc", which continues into "bce"
+        assertEquals("bce", match(filter, "xabce"));
+        // and from there to "c"
+        assertEquals("cf", match(filter, "abcf"));
+        assertEquals(null, match(filter, "abcbcb"));
+    }
+
+    @Test
+    @SmallTest
+    public void testCaseFolding() throws Exception {
+        CellBroadcastMessageFilter filter = CellBroadcastMessageFilter.get("test,Drill");
+        assertEquals("test", match(filter, "This is a TEST message"));
+        // Keywords are matched against the lower case body, so upper case keywords never match.
+        assertEquals(null, match(filter, "Drill"));
+    }
+
+    @Test
+    @SmallTest
+    public void testCache() throws Exception {
+        CellBroadcastMessageFilter filter = CellBroadcastMessageFilter.get("a,b");
+        assertSame(filter, CellBroadcastMessageFilter.get("a,b"));
+        assertNotSame(filter, CellBroadcastMessageFilter.get("a,b,c"));
+        assertTrue(CellBroadcastMessageFilter.get(",,").isEmpty());
+    }
+
+    /**
+     * Compare the compiled filter with checking each keyword on its own, for a long filter list.
+     */
+    @Test
+    @LargeTest
+    public void testManyKeywordsBenchmark() throws Exception {
+        final int keywords = 500;
+        final int iterations = 200;
+        StringBuilder filters = new StringBuilder();
+        for (int i = 0; i < keywords; i++) {
+            if (i > 0) filters.append(",");
+            filters.append("trial keyword ").append(i).append(";");
+        }
+        String body = "Presidential alert: this is a test of the wireless emergency alert system. "
+                + "No action is required. Trial keyword " + (keywords - 1) + ";";
+        String[] split = filters.toString().split(",");
+        CellBroadcastMessageFilter filter = CellBroadcastMessageFilter.get(filters.toString());
+        assertEquals(split[keywords - 1], match(filter, body));
+
+        long start = SystemClock.elapsedRealtimeNanos();
+        for (int i = 0; i < iterations; i++) {
+            String matched = null;
+            for (String f : split) {
+                if (body.toLowerCase().contains(f)) {
+                    matched = f;
+                    break;
+                }
+            }
+            assertEquals(split[keywords - 1], matched);
+        }
+        long splitNanos = SystemClock.elapsedRealtimeNanos() - start;
+
+        start = SystemClock.elapsedRealtimeNanos();
+        for (int i = 0; i < iterations; i++) {
+            assertEquals(keywords - 1, filter.match(body));
+        }
+        long compiledNanos = SystemClock.elapsedRealtimeNanos() - start;
+
+        Log.d(TAG, "Filtering with " + keywords + " keywords: split=" + splitNanos / iterations
+                + "ns, compiled=" + compiledNanos / iterations + "ns");
+    }
+}
@@ -19,7 +19,6 @@ package com.android.cellbroadcastreceiver.unit;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.anyBoolean;
 import static org.mockito.ArgumentMatchers.anyInt;
-import static org.mockito.ArgumentMatchers.anyLong;
 import static org.mockito.ArgumentMatchers.anyString;
 import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.doNothing;
@@ -127,6 +126,8 @@ public class CellBroadcastReceiverTest extends CellBroadcastTest {
     @Test
     public void testOnReceive_actionCarrierConfigChanged() {
         doReturn(CarrierConfigManager.ACTION_CARRIER_CONFIG_CHANGED).when(mIntent).getAction();
+        doReturn(SubscriptionManager.INVALID_SUBSCRIPTION_ID).when(mIntent).getIntExtra(
+                eq(CarrierConfigManager.EXTRA_SUBSCRIPTION_INDEX), anyInt());
         doNothing().when(mCellBroadcastReceiver).initializeSharedPreference();
         doNothing().when(mCellBroadcastReceiver).enableLauncher();
         mCellBroadcastReceiver.onReceive(mContext, mIntent);
@@ -135,6 +136,19 @@ public class CellBroadcastReceiverTest extends CellBroadcastTest {
         verify(mCellBroadcastReceiver).enableLauncher();
     }
 
+    @Test
+    public void testOnReceive_actionCarrierConfigChangedForSub() {
+        doReturn(CarrierConfigManager.ACTION_CARRIER_CONFIG_CHANGED).when(mIntent).getAction();
+        doReturn(1).when(mIntent).getIntExtra(
+                eq(CarrierConfigManager.EXTRA_SUBSCRIPTION_INDEX), anyInt());
+        doNothing().when(mCellBroadcastReceiver).initializeSharedPreference();
+        doNothing().when(mCellBroadcastReceiver).enableLauncher();
+        doNothing().when(mCellBroadcastReceiver).startConfigService(anyInt());
+        mCellBroadcastReceiver.onReceive(mContext, mIntent);
+        verify(mCellBroadcastReceiver).startConfigService(1);
+        verify(mCellBroadcastReceiver, never()).startConfigService();
+    }
+
     @Test
     public void testOnReceive_cellbroadcastStartConfigAction() {
         doReturn(CellBroadcastReceiver.CELLBROADCAST_START_CONFIG_ACTION).when(mIntent).getAction();
@@ -409,7 +423,6 @@ public class CellBroadcastReceiverTest extends CellBroadcastTest {
     //this method is just to assign mContext to the spied instance mCellBroadcastReceiver
     private void setContext() {
         doReturn("dummy action").when(mIntent).getAction();
-        doNothing().when(mCellBroadcastReceiver).getCellBroadcastTask(anyLong());
 
         mCellBroadcastReceiver.onReceive(mContext, mIntent);
     }
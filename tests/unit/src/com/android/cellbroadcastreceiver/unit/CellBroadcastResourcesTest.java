@@ -16,16 +16,21 @@
 
 package com.android.cellbroadcastreceiver.unit;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.mockito.ArgumentMatchers.anyInt;
 import static org.mockito.Mockito.doReturn;
 
 import android.content.Context;
 import android.content.res.Resources;
+import android.graphics.Typeface;
 import android.telephony.SmsCbCmasInfo;
 import android.telephony.SmsCbLocation;
 import android.telephony.SmsCbMessage;
+import android.text.Spanned;
+import android.text.style.StyleSpan;
 
+import com.android.cellbroadcastreceiver.CellBroadcastContentProvider;
 import com.android.cellbroadcastreceiver.CellBroadcastResources;
 import com.android.internal.telephony.gsm.SmsCbConstants;
 
@@ -73,4 +78,22 @@ public class CellBroadcastResourcesTest {
                 null);
         assertNotNull(details);
     }
+
+    @Test
+    public void testGetSnippetText() {
+        CharSequence text = CellBroadcastResources.getSnippetText("Flood "
+                + CellBroadcastContentProvider.SNIPPET_MATCH_START + "warning"
+                + CellBroadcastContentProvider.SNIPPET_MATCH_END + " for <b>the</b> "
+                + CellBroadcastContentProvider.SNIPPET_MATCH_START + "river"
+                + CellBroadcastContentProvider.SNIPPET_MATCH_END + "\u2026");
+        assertEquals("Flood warning for <b>the</b> river\u2026", text.toString());
+
+        StyleSpan[] spans = ((Spanned) text).getSpans(0, text.length(), StyleSpan.class);
+        assertEquals(2, spans.length);
+        assertEquals(Typeface.BOLD, spans[0].getStyle());
+        assertEquals("warning", text.subSequence(((Spanned) text).getSpanStart(spans[0]),
+                ((Spanned) text).getSpanEnd(spans[0])).toString());
+        assertEquals("river", text.subSequence(((Spanned) text).getSpanStart(spans[1]),
+                ((Spanned) text).getSpanEnd(spans[1])).toString());
+    }
 }
@@ -0,0 +1,148 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.cellbroadcastreceiver.unit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.provider.Telephony.CellBroadcasts;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.cellbroadcastreceiver.CellBroadcastDatabaseHelper;
+import com.android.cellbroadcastreceiver.CellBroadcastRetentionPolicy;
+import com.android.cellbroadcastreceiver.CellBroadcastRetentionPolicy.CategoryCap;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests for {@link CellBroadcastRetentionPolicy}
+ */
+public class CellBroadcastRetentionPolicyTest {
+
+    private static final int MONTHLY_TEST = 0x111C;
+    private static final int PRESIDENTIAL = 0x1112;
+
+    private SQLiteDatabase mDb;
+
+    @Before
+    public void setUp() {
+        mDb = SQLiteDatabase.create(null);
+        mDb.execSQL(CellBroadcastDatabaseHelper.getStringForCellBroadcastTableCreation(
+                CellBroadcastDatabaseHelper.TABLE_NAME));
+    }
+
+    @After
+    public void tearDown() {
+        mDb.close();
+    }
+
+    private void insert(int serviceCategory, long deliveryTime) {
+        ContentValues values = new ContentValues();
+        values.put(CellBroadcasts.SERVICE_CATEGORY, serviceCategory);
+        values.put(CellBroadcasts.DELIVERY_TIME, deliveryTime);
+        mDb.insert(CellBroadcastDatabaseHelper.TABLE_NAME, null, values);
+    }
+
+    private long count(int serviceCategory) {
+        return DatabaseUtils.queryNumEntries(mDb, CellBroadcastDatabaseHelper.TABLE_NAME,
+                CellBroadcasts.SERVICE_CATEGORY + "=" + serviceCategory);
+    }
+
+    private long oldest() {
+        try (Cursor c = mDb.rawQuery("SELECT MIN(" + CellBroadcasts.DELIVERY_TIME + ") FROM "
+                + CellBroadcastDatabaseHelper.TABLE_NAME, null)) {
+            c.moveToFirst();
+            return c.getLong(0);
+        }
+    }
+
+    @Test
+    @SmallTest
+    public void testParseCategoryCap() throws Exception {
+        CategoryCap cap = CellBroadcastRetentionPolicy.parseCategoryCap("0x111C:100");
+        assertEquals(0x111C, cap.mFirstCategory);
+        assertEquals(0x111C, cap.mLastCategory);
+        assertEquals(100, cap.mMaxMessages);
+
+        cap = CellBroadcastRetentionPolicy.parseCategoryCap("4400 - 4401 : 5");
+        assertEquals(4400, cap.mFirstCategory);
+        assertEquals(4401, cap.mLastCategory);
+        assertEquals(5, cap.mMaxMessages);
+
+        assertNull(CellBroadcastRetentionPolicy.parseCategoryCap("0x111C"));
+        assertNull(CellBroadcastRetentionPolicy.parseCategoryCap("0x111C:many"));
+        assertNull(CellBroadcastRetentionPolicy.parseCategoryCap("4401-4400:5"));
+        assertEquals(1, new CellBroadcastRetentionPolicy(0, 0,
+                new String[]{"0x111C:1", "invalid"}).getCategoryCaps().size());
+    }
+
+    @Test
+    @SmallTest
+    public void testPruneByAge() throws Exception {
+        for (int i = 0; i < 10; i++) {
+            insert(PRESIDENTIAL, i * 100);
+        }
+        CellBroadcastRetentionPolicy policy = new CellBroadcastRetentionPolicy(500, 0,
+                new String[0]);
+        // At most 3 per step
+        assertEquals(3, policy.prune(mDb, 1000, 3));
+        assertEquals(2, policy.prune(mDb, 1000, 3));
+        assertEquals(0, policy.prune(mDb, 1000, 3));
+        assertEquals(5, count(PRESIDENTIAL));
+        assertEquals(500, oldest());
+    }
+
+    @Test
+    @SmallTest
+    public void testPruneByCount() throws Exception {
+        for (int i = 0; i < 10; i++) {
+            insert(MONTHLY_TEST, i * 2);
+            insert(PRESIDENTIAL, i * 2 + 1);
+        }
+        CellBroadcastRetentionPolicy policy = new CellBroadcastRetentionPolicy(0, 8,
+                new String[]{"0x111C:2"});
+        // The category cap leaves 2 monthly tests, then the total leaves the 8 newest messages
+        assertEquals(12, policy.prune(mDb, 1000, 100));
+        assertEquals(0, policy.prune(mDb, 1000, 100));
+        assertEquals(2, count(MONTHLY_TEST));
+        assertEquals(6, count(PRESIDENTIAL));
+        assertEquals(9, oldest());
+    }
+
+    @Test
+    @SmallTest
+    public void testPruneByCountInSteps() throws Exception {
+        for (int i = 0; i < 10; i++) {
+            insert(PRESIDENTIAL, i * 100);
+        }
+        CellBroadcastRetentionPolicy policy = new CellBroadcastRetentionPolicy(0, 4,
+                new String[0]);
+        // Each step deletes the oldest of the excess messages
+        assertEquals(3, policy.prune(mDb, 1000, 3));
+        assertEquals(300, oldest());
+        assertEquals(3, policy.prune(mDb, 1000, 3));
+        assertEquals(0, policy.prune(mDb, 1000, 3));
+        assertEquals(4, count(PRESIDENTIAL));
+        assertEquals(600, oldest());
+    }
+}
@@ -0,0 +1,187 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.cellbroadcastreceiver.unit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.eq;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+import android.content.Context;
+import android.os.SystemClock;
+import android.telephony.AccessNetworkConstants;
+import android.telephony.NetworkRegistrationInfo;
+import android.telephony.PhoneStateListener;
+import android.telephony.ServiceState;
+import android.telephony.SubscriptionManager;
+import android.telephony.TelephonyManager;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.cellbroadcastreceiver.CellBroadcastChannelManager;
+import com.android.cellbroadcastreceiver.CellBroadcastChannelManager.CellBroadcastChannelRange;
+import com.android.cellbroadcastreceiver.CellBroadcastRoamingState;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+
+/**
+ * Tests for {@link CellBroadcastRoamingState}
+ */
+public class CellBroadcastRoamingStateTest extends CellBroadcastTest {
+
+    private static final int SUB_ID = 1;
+
+    @Mock
+    TelephonyManager mTelephonyManager;
+
+    private CellBroadcastRoamingState mRoamingState;
+
+    @Before
+    public void setUp() throws Exception {
+        super.setUp(getClass().getSimpleName());
+        doReturn(mTelephonyManager).when(mContext)
+                .getSystemService(eq(Context.TELEPHONY_SERVICE));
+        doReturn(mTelephonyManager).when(mTelephonyManager).createForSubscriptionId(anyInt());
+        mRoamingState = new CellBroadcastRoamingState();
+        CellBroadcastRoamingState.getInstance().reset();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        CellBroadcastRoamingState.getInstance().reset();
+        super.tearDown();
+    }
+
+    private static ServiceState createServiceState(int registrationState, int roamingType) {
+        NetworkRegistrationInfo regInfo = new NetworkRegistrationInfo.Builder()
+                .setDomain(NetworkRegistrationInfo.DOMAIN_CS)
+                .setTransportType(AccessNetworkConstants.TRANSPORT_TYPE_WWAN)
+                .setRegistrationState(registrationState)
+                .build();
+        regInfo.setRoamingType(roamingType);
+        ServiceState ss = new ServiceState();
+        ss.addNetworkRegistrationInfo(regInfo);
+        return ss;
+    }
+
+    @Test
+    @SmallTest
+    public void testGetNetworkScopeFromServiceState() throws Exception {
+        assertEquals(CellBroadcastChannelManager.NETWORK_SCOPE_ANY,
+                CellBroadcastRoamingState.getNetworkScope(null));
+        assertEquals(CellBroadcastChannelManager.NETWORK_SCOPE_ANY,
+                CellBroadcastRoamingState.getNetworkScope(createServiceState(
+                        NetworkRegistrationInfo.REGISTRATION_STATE_HOME,
+                        ServiceState.ROAMING_TYPE_NOT_ROAMING)));
+        assertEquals(CellBroadcastChannelManager.NETWORK_SCOPE_DOMESTIC,
+                CellBroadcastRoamingState.getNetworkScope(createServiceState(
+                        NetworkRegistrationInfo.REGISTRATION_STATE_ROAMING,
+                        ServiceState.ROAMING_TYPE_DOMESTIC)));
+        assertEquals(CellBroadcastChannelManager.NETWORK_SCOPE_INTERNATIONAL,
+                CellBroadcastRoamingState.getNetworkScope(createServiceState(
+                        NetworkRegistrationInfo.REGISTRATION_STATE_ROAMING,
+                        ServiceState.ROAMING_TYPE_INTERNATIONAL)));
+        assertEquals(CellBroadcastChannelManager.NETWORK_SCOPE_NONE,
+                CellBroadcastRoamingState.getNetworkScope(createServiceState(
+                        NetworkRegistrationInfo.REGISTRATION_STATE_ROAMING,
+                        ServiceState.ROAMING_TYPE_UNKNOWN)));
+        // Not registered, so the scope can't be determined
+        assertEquals(CellBroadcastChannelManager.NETWORK_SCOPE_ANY,
+                CellBroadcastRoamingState.getNetworkScope(createServiceState(
+                        NetworkRegistrationInfo.REGISTRATION_STATE_NOT_REGISTERED_SEARCHING,
+                        ServiceState.ROAMING_TYPE_INTERNATIONAL)));
+    }
+
+    @Test
+    @SmallTest
+    public void testListener() throws Exception {
+        doReturn(createServiceState(NetworkRegistrationInfo.REGISTRATION_STATE_HOME,
+                ServiceState.ROAMING_TYPE_NOT_ROAMING)).when(mTelephonyManager).getServiceState();
+
+        assertEquals(CellBroadcastChannelManager.NETWORK_SCOPE_ANY,
+                mRoamingState.getNetworkScope(mContext, SUB_ID));
+        ArgumentCaptor<PhoneStateListener> listener =
+                ArgumentCaptor.forClass(PhoneStateListener.class);
+        verify(mTelephonyManager).listen(listener.capture(),
+                eq(PhoneStateListener.LISTEN_SERVICE_STATE));
+
+        listener.getValue().onServiceStateChanged(createServiceState(
+                NetworkRegistrationInfo.REGISTRATION_STATE_ROAMING,
+                ServiceState.ROAMING_TYPE_DOMESTIC));
+        assertEquals(CellBroadcastChannelManager.NETWORK_SCOPE_DOMESTIC,
+                mRoamingState.getNetworkScope(mContext, SUB_ID));
+        // The service state is only read once
+        verify(mTelephonyManager, times(1)).getServiceState();
+
+        mRoamingState.invalidate(SUB_ID);
+        verify(mTelephonyManager).listen(listener.getValue(), PhoneStateListener.LISTEN_NONE);
+        assertEquals(CellBroadcastChannelManager.NETWORK_SCOPE_ANY,
+                mRoamingState.getNetworkScope(mContext, SUB_ID));
+        verify(mTelephonyManager, times(2)).getServiceState();
+    }
+
+    @Test
+    @SmallTest
+    public void testRemoveInactive() throws Exception {
+        mRoamingState.getNetworkScope(mContext, SUB_ID);
+        mRoamingState.getNetworkScope(mContext, SUB_ID + 1);
+        mRoamingState.getNetworkScope(mContext, SubscriptionManager.DEFAULT_SUBSCRIPTION_ID);
+        ArgumentCaptor<PhoneStateListener> listener =
+                ArgumentCaptor.forClass(PhoneStateListener.class);
+        verify(mTelephonyManager, times(3)).listen(listener.capture(),
+                eq(PhoneStateListener.LISTEN_SERVICE_STATE));
+
+        // The listener of the removed subscription is unregistered, the default one is kept
+        assertEquals(1, mRoamingState.removeInactive(new int[]{SUB_ID}));
+        verify(mTelephonyManager).listen(listener.getAllValues().get(1),
+                PhoneStateListener.LISTEN_NONE);
+        verify(mTelephonyManager, times(1)).listen(any(), eq(PhoneStateListener.LISTEN_NONE));
+        assertEquals(0, mRoamingState.removeInactive(new int[]{SUB_ID}));
+    }
+
+    @Test
+    @SmallTest
+    public void testCheckScope() throws Exception {
+        CellBroadcastChannelManager channelManager = new CellBroadcastChannelManager(mContext,
+                SubscriptionManager.DEFAULT_SUBSCRIPTION_ID);
+        CellBroadcastRoamingState.getInstance().setNetworkScope(
+                SubscriptionManager.DEFAULT_SUBSCRIPTION_ID,
+                CellBroadcastChannelManager.NETWORK_SCOPE_INTERNATIONAL);
+
+        assertTrue(channelManager.checkScope(CellBroadcastChannelRange.SCOPE_UNKNOWN));
+        assertTrue(channelManager.checkScope(CellBroadcastChannelRange.SCOPE_INTERNATIONAL));
+        assertFalse(channelManager.checkScope(CellBroadcastChannelRange.SCOPE_DOMESTIC));
+        assertFalse(channelManager.checkScope(CellBroadcastChannelRange.SCOPE_CARRIER));
+        // Injected states don't touch telephony
+        verify(mTelephonyManager, times(0)).listen(any(), anyInt());
+
+        final int iterations = 100000;
+        long start = SystemClock.elapsedRealtimeNanos();
+        for (int i = 0; i < iterations; i++) {
+            channelManager.checkScope(CellBroadcastChannelRange.SCOPE_DOMESTIC);
+        }
+        logd("checkScope: " + (SystemClock.elapsedRealtimeNanos() - start) / iterations + "ns");
+    }
+}
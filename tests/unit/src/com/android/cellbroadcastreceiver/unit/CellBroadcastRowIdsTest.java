@@ -0,0 +1,67 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.cellbroadcastreceiver.unit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import android.telephony.SmsCbLocation;
+import android.telephony.SmsCbMessage;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.cellbroadcastreceiver.CellBroadcastRowIds;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Tests for {@link CellBroadcastRowIds}
+ */
+public class CellBroadcastRowIdsTest {
+
+    private static SmsCbMessage createMessage() {
+        return new SmsCbMessage(SmsCbMessage.MESSAGE_FORMAT_3GPP, 0, 0,
+                new SmsCbLocation(), 0x1112, "en", "body",
+                SmsCbMessage.MESSAGE_PRIORITY_EMERGENCY, null, null, 0, 1);
+    }
+
+    @Test
+    @SmallTest
+    public void testPutAndGet() throws Exception {
+        SmsCbMessage message = createMessage();
+        assertEquals(CellBroadcastRowIds.UNKNOWN, CellBroadcastRowIds.get(message));
+        CellBroadcastRowIds.put(message, 42);
+        assertEquals(42, CellBroadcastRowIds.get(message));
+        // Equal but distinct message objects have their own row IDs
+        assertEquals(CellBroadcastRowIds.UNKNOWN, CellBroadcastRowIds.get(createMessage()));
+    }
+
+    @Test
+    @SmallTest
+    public void testPutAll() throws Exception {
+        List<SmsCbMessage> messages = Arrays.asList(createMessage(), createMessage());
+        CellBroadcastRowIds.putAll(messages, new long[]{1});
+        assertArrayEquals(new long[]{CellBroadcastRowIds.UNKNOWN, CellBroadcastRowIds.UNKNOWN},
+                CellBroadcastRowIds.toArray(messages));
+
+        CellBroadcastRowIds.putAll(messages, new long[]{7, CellBroadcastRowIds.UNKNOWN});
+        assertArrayEquals(new long[]{7, CellBroadcastRowIds.UNKNOWN},
+                CellBroadcastRowIds.toArray(messages));
+    }
+}
@@ -34,6 +34,11 @@ import android.telephony.SubscriptionManager;
 import android.telephony.TelephonyManager;
 import android.test.ServiceTestCase;
 
+import com.android.cellbroadcastreceiver.CellBroadcastAlertPreferences;
+import com.android.cellbroadcastreceiver.CellBroadcastChannelSnapshot;
+import com.android.cellbroadcastreceiver.CellBroadcastConfigScheduler;
+import com.android.cellbroadcastreceiver.CellBroadcastDuplicateDetector;
+import com.android.cellbroadcastreceiver.CellBroadcastRoamingState;
 import com.android.cellbroadcastreceiver.CellBroadcastSettings;
 import com.android.internal.telephony.ISub;
 
@@ -152,6 +157,12 @@ public abstract class CellBroadcastServiceTestCase<T extends Service> extends Se
         mContext = new TestContextWrapper(getContext());
         setContext(mContext);
         CellBroadcastSettings.setUseResourcesForSubId(false);
+        CellBroadcastChannelSnapshot.setEnabled(false);
+        CellBroadcastConfigScheduler.getInstance().setCoalescingWindow(0);
+        CellBroadcastRoamingState.getInstance().reset();
+        CellBroadcastAlertPreferences.invalidate();
+        CellBroadcastDuplicateDetector.setPersistenceEnabled(false);
+        CellBroadcastDuplicateDetector.getInstance().reset();
     }
 
     @After